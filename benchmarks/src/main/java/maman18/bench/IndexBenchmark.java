@@ -0,0 +1,278 @@
+package maman18.bench;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import maman18.data.Do;
+import maman18.data.IntRBTree;
+import maman18.data.LongArrayRBTree;
+import maman18.data.LongHashIndex;
+import maman18.data.RBTree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * @author Shlomi.v
+ *
+ * put/get/remove/foreach of our trees and hash table, next to java.util.TreeMap and HashMap.
+ *
+ * every index holds the keys 0..size-1, and every benchmark goes over them in one of the orders:
+ *  (*) SEQUENTIAL - 0, 1, 2, ... the worst case of a plain BST, and the best case for the caches.
+ *  (*) RANDOM - a random permutation (with a fixed seed, so runs can be compared).
+ *  (*) ADVERSARIAL - from both ends towards the middle: 0, n-1, 1, n-2, ... every insert lands on
+ *      the opposite spine of the last one, so the fixups rotate on both sides all the time.
+ *
+ * the benchmarks:
+ *  (*) build - put all the keys into an empty index, in the order. the score is per whole build.
+ *  (*) get - look up the next key, in the order, in a full index.
+ *  (*) removePut - remove the next key and put it back, so the index keeps its size.
+ *  (*) foreach - visit all the values. the score is per whole traversal.
+ *
+ * the keys and values are boxed once in setup, so boxing is not measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class IndexBenchmark {
+
+	/**
+	 * the orders the keys are visited in
+	 */
+	public enum Order {
+		SEQUENTIAL, RANDOM, ADVERSARIAL
+	}
+
+	/**
+	 * the common operations of the indexes, so the same benchmark runs on all of them.
+	 * each fork only ever sees one implementation, so the calls stay monomorphic.
+	 */
+	interface Target {
+		void put(Integer key, Integer value);
+
+		Integer get(Integer key);
+
+		void remove(Integer key);
+
+		void foreach(Blackhole bh);
+	}
+
+	static final Comparator<Integer> intOrd = new Comparator<Integer>() {
+		@Override
+		public int compare(Integer o1, Integer o2) {
+			return o1.compareTo(o2);
+		}
+	};
+
+	/**
+	 * the indexes being measured
+	 */
+	public enum Impl {
+		RBTREE {
+			@Override
+			Target create() {
+				final RBTree<Integer, Integer> t = RBTree.empty(intOrd);
+				return new Target() {
+					public void put(Integer key, Integer value) { t.put(key, value); }
+					public Integer get(Integer key) { return t.get(key); }
+					public void remove(Integer key) { t.remove(key); }
+					public void foreach(final Blackhole bh) {
+						t.foreach(new Do<Integer>() {
+							@Override
+							public void action(Integer v) { bh.consume(v); }
+						});
+					}
+				};
+			}
+		},
+		INT_RBTREE {
+			@Override
+			Target create() {
+				final IntRBTree<Integer> t = IntRBTree.empty();
+				return new Target() {
+					public void put(Integer key, Integer value) { t.put(key.intValue(), value); }
+					public Integer get(Integer key) { return t.get(key.intValue()); }
+					public void remove(Integer key) { t.remove(key.intValue()); }
+					public void foreach(final Blackhole bh) {
+						t.foreach(new Do<Integer>() {
+							@Override
+							public void action(Integer v) { bh.consume(v); }
+						});
+					}
+				};
+			}
+		},
+		ARRAY_RBTREE {
+			@Override
+			Target create() {
+				final LongArrayRBTree<Integer> t = LongArrayRBTree.empty();
+				return new Target() {
+					public void put(Integer key, Integer value) { t.put(key.longValue(), value); }
+					public Integer get(Integer key) { return t.get(key.longValue()); }
+					public void remove(Integer key) { t.remove(key.longValue()); }
+					public void foreach(final Blackhole bh) {
+						t.foreach(new Do<Integer>() {
+							@Override
+							public void action(Integer v) { bh.consume(v); }
+						});
+					}
+				};
+			}
+		},
+		HASH {
+			@Override
+			Target create() {
+				final LongHashIndex<Integer> t = LongHashIndex.empty();
+				return new Target() {
+					public void put(Integer key, Integer value) { t.put(key.intValue(), value); }
+					public Integer get(Integer key) { return t.get(key.intValue()); }
+					public void remove(Integer key) { t.remove(key.intValue()); }
+					public void foreach(final Blackhole bh) {
+						t.foreach(new Do<Integer>() {
+							@Override
+							public void action(Integer v) { bh.consume(v); }
+						});
+					}
+				};
+			}
+		},
+		TREE_MAP {
+			@Override
+			Target create() {
+				return mapTarget(new TreeMap<Integer, Integer>(intOrd));
+			}
+		},
+		HASH_MAP {
+			@Override
+			Target create() {
+				return mapTarget(new HashMap<Integer, Integer>());
+			}
+		};
+
+		abstract Target create();
+
+		static Target mapTarget(final Map<Integer, Integer> m) {
+			return new Target() {
+				public void put(Integer key, Integer value) { m.put(key, value); }
+				public Integer get(Integer key) { return m.get(key); }
+				public void remove(Integer key) { m.remove(key); }
+				public void foreach(Blackhole bh) {
+					for (Integer v : m.values())
+						bh.consume(v);
+				}
+			};
+		}
+	}
+
+	@Param({ "1000", "10000", "100000", "1000000", "10000000" })
+	int size;
+
+	@Param
+	Order order;
+
+	@Param
+	Impl impl;
+
+	// the keys in the order they are visited, already boxed
+	Integer[] keys;
+
+	// a full index, for get/removePut/foreach
+	Target full;
+
+	// the next key to visit
+	int next;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		keys = keys(size, order);
+		full = impl.create();
+		for (Integer k : keys)
+			full.put(k, k);
+		next = 0;
+	}
+
+	/**
+	 * @param n
+	 * @param order
+	 * @return the keys 0..n-1, boxed, in the given order
+	 */
+	static Integer[] keys(int n, Order order) {
+		Integer[] keys = new Integer[n];
+		switch (order) {
+		case SEQUENTIAL:
+			for (int i = 0; i < n; i++)
+				keys[i] = i;
+			break;
+		case RANDOM:
+			for (int i = 0; i < n; i++)
+				keys[i] = i;
+			Random rnd = new Random(18);
+			for (int i = n - 1; i > 0; i--) {
+				int j = rnd.nextInt(i + 1);
+				Integer t = keys[i];
+				keys[i] = keys[j];
+				keys[j] = t;
+			}
+			break;
+		case ADVERSARIAL:
+			for (int i = 0, lo = 0, hi = n - 1; i < n; i++)
+				keys[i] = (i & 1) == 0 ? lo++ : hi--;
+			break;
+		}
+		return keys;
+	}
+
+	/**
+	 * @return the next key to visit, wrapping around at the end
+	 */
+	private Integer nextKey() {
+		Integer k = keys[next];
+		if (++next == keys.length) next = 0;
+		return k;
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public Target build() {
+		Target t = impl.create();
+		for (Integer k : keys)
+			t.put(k, k);
+		return t;
+	}
+
+	@Benchmark
+	public Integer get() {
+		return full.get(nextKey());
+	}
+
+	@Benchmark
+	public void removePut() {
+		Integer k = nextKey();
+		full.remove(k);
+		full.put(k, k);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void foreach(Blackhole bh) {
+		full.foreach(bh);
+	}
+}
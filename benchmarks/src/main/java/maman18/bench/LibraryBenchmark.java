@@ -0,0 +1,147 @@
+package maman18.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import maman18.library.Circulation;
+import maman18.library.ConcurrentLibrary;
+import maman18.library.Library;
+import maman18.library.Library.IndexType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * @author Shlomi.v
+ *
+ * end to end mixes of subBorrowBook / subReturnBook / mostBorrowed on a Library with no listener,
+ * so only the library itself is measured (no parsing and no printing).
+ *
+ * every subscriber has SLOTS books of its own. the mix goes over a random permutation of all the
+ * (subscriber, book) pairs, and returns the book if it is held or borrows it if it isnt, so every
+ * command succeeds and the library stays about half full. mostPercent of the operations are a
+ * mostBorrowed query instead.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class LibraryBenchmark {
+
+	// the books of each subscriber, less than the limit so borrowing always succeeds
+	static final int SLOTS = 5;
+
+	// the length of the precomputed operation list
+	static final int OPS = 1 << 16;
+
+	/**
+	 * the libraries being measured
+	 */
+	public enum Kind {
+		HASH, TREE, SKIP_LIST, CONCURRENT
+	}
+
+	@Param({ "1000", "100000" })
+	int subscribers;
+
+	@Param
+	Kind kind;
+
+	@Param({ "0", "1", "10" })
+	int mostPercent;
+
+	Circulation lib;
+
+	// the (subscriber, book) pairs in the order they are used, and whether each is held
+	int[] pairs;
+	String[] books;
+	boolean[] held;
+
+	// which of the operations are mostBorrowed queries
+	boolean[] most;
+
+	int next;
+	int nextOp;
+
+	/**
+	 * @param kind
+	 * @return a new, empty library of the kind
+	 */
+	static Circulation create(Kind kind) {
+		switch (kind) {
+		case TREE:
+			return new Library(IndexType.TREE, IndexType.TREE);
+		case SKIP_LIST:
+			return new Library(IndexType.SKIP_LIST, IndexType.SKIP_LIST);
+		case CONCURRENT:
+			return new ConcurrentLibrary();
+		default:
+			return new Library(IndexType.HASH, IndexType.HASH);
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() {
+		lib = create(kind);
+
+		for (int id = 0; id < subscribers; id++)
+			lib.addSubscriber("sub" + id, id);
+
+		int n = subscribers * SLOTS;
+		books = new String[n];
+		pairs = new int[n];
+		held = new boolean[n];
+		Random rnd = new Random(18);
+		for (int i = 0; i < n; i++) {
+			books[i] = "book" + i;
+			pairs[i] = i;
+		}
+		for (int i = n - 1; i > 0; i--) {
+			int j = rnd.nextInt(i + 1);
+			int t = pairs[i];
+			pairs[i] = pairs[j];
+			pairs[j] = t;
+		}
+
+		// start half full, so the first iterations dont only borrow
+		for (int i = 0; i < n; i += 2) {
+			lib.subBorrowBook(i / SLOTS, books[i]);
+			held[i] = true;
+		}
+
+		most = new boolean[OPS];
+		for (int i = 0; i < OPS; i++)
+			most[i] = rnd.nextInt(100) < mostPercent;
+		next = 0;
+		nextOp = 0;
+	}
+
+	@Benchmark
+	public Object mix() {
+		boolean query = most[nextOp];
+		nextOp = (nextOp + 1) & (OPS - 1);
+		if (query)
+			return lib.mostBorrowed();
+
+		int pair = pairs[next];
+		if (++next == pairs.length) next = 0;
+		if (held[pair]) {
+			held[pair] = false;
+			return lib.subReturnBook(pair / SLOTS, books[pair]);
+		}
+		held[pair] = true;
+		return lib.subBorrowBook(pair / SLOTS, books[pair]);
+	}
+}
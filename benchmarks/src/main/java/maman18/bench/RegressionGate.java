@@ -0,0 +1,153 @@
+package maman18.bench;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Shlomi.v
+ *
+ * Compares two JMH runs that were saved with -rf csv, and fails if any benchmark got slower.
+ *
+ *   java -cp benchmarks.jar maman18.bench.RegressionGate baseline.csv current.csv [tolerance%]
+ *
+ * a benchmark is matched by its name, mode and params. it is a regression if its score is worse than
+ * the baseline by more than the tolerance (10% by default): lower is better for the time modes, and
+ * higher is better for thrpt. benchmarks that are only in one of the files are reported but not failed,
+ * so the gate can be used while benchmarks are added.
+ *
+ * the exit code is 0 if there are no regressions, 1 if there are, and 2 if the files could not be read.
+ */
+public class RegressionGate {
+
+	/**
+	 * a single row of a JMH csv file
+	 */
+	static class Result {
+		String mode;
+		double score;
+		String unit;
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 2 || args.length > 3) {
+			System.err.println("usage: RegressionGate baseline.csv current.csv [tolerance%]");
+			System.exit(2);
+		}
+
+		Map<String, Result> baseline, current;
+		double tolerance;
+		try {
+			baseline = read(args[0]);
+			current = read(args[1]);
+			tolerance = args.length == 3 ? Double.parseDouble(args[2]) / 100 : 0.10;
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			System.exit(2);
+			return;
+		} catch (NumberFormatException e) {
+			System.err.println("bad tolerance " + args[2]);
+			System.exit(2);
+			return;
+		}
+
+		int regressions = 0;
+		for (Map.Entry<String, Result> e : current.entrySet()) {
+			Result now = e.getValue();
+			Result before = baseline.get(e.getKey());
+			if (before == null) {
+				System.out.println("NEW        " + e.getKey() + "  " + format(now));
+				continue;
+			}
+
+			// the change, as a fraction of the baseline, positive means worse
+			double change = (now.score - before.score) / before.score;
+			if (now.mode.equals("thrpt")) change = -change;
+
+			String verdict = change > tolerance ? "REGRESSION" : change < -tolerance ? "FASTER    " : "OK        ";
+			if (change > tolerance) regressions++;
+			System.out.println(verdict + " " + e.getKey() + "  " + format(before) + " -> " + format(now)
+					+ String.format(" (%+.1f%%)", 100 * change));
+		}
+		for (String key : baseline.keySet()) {
+			if (!current.containsKey(key))
+				System.out.println("MISSING    " + key);
+		}
+
+		System.out.println(regressions + " regression(s), tolerance " + Math.round(100 * tolerance) + "%");
+		System.exit(regressions == 0 ? 0 : 1);
+	}
+
+	/**
+	 * @param file - a JMH csv result file
+	 * @return the results in it, by benchmark, mode and params
+	 * @throws IOException
+	 */
+	static Map<String, Result> read(String file) throws IOException {
+		Map<String, Result> results = new LinkedHashMap<String, Result>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line = in.readLine();
+			if (line == null) throw new IOException(file + " is empty");
+			List<String> header = split(line);
+			int benchmark = header.indexOf("Benchmark"), mode = header.indexOf("Mode");
+			int score = header.indexOf("Score"), unit = header.indexOf("Unit");
+			if (benchmark < 0 || mode < 0 || score < 0 || unit < 0)
+				throw new IOException(file + " is not a JMH csv file");
+
+			while ((line = in.readLine()) != null) {
+				if (line.length() == 0) continue;
+				List<String> row = split(line);
+				StringBuilder key = new StringBuilder(row.get(benchmark)).append(' ').append(row.get(mode));
+				for (int i = 0; i < header.size(); i++) {
+					if (header.get(i).startsWith("Param: "))
+						key.append(' ').append(header.get(i).substring(7)).append('=').append(row.get(i));
+				}
+
+				Result r = new Result();
+				r.mode = row.get(mode);
+				r.unit = row.get(unit);
+				try {
+					r.score = Double.parseDouble(row.get(score));
+				} catch (NumberFormatException e) {
+					throw new IOException(file + ": bad score in " + line);
+				}
+				results.put(key.toString(), r);
+			}
+		} finally {
+			in.close();
+		}
+		return results;
+	}
+
+	/**
+	 * @param line
+	 * @return the comma separated fields of the line, without their quotes
+	 */
+	static List<String> split(String line) {
+		List<String> fields = new ArrayList<String>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '"') {
+				quoted = !quoted;
+			} else if (c == ',' && !quoted) {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}
+		}
+		fields.add(field.toString());
+		return fields;
+	}
+
+	private static String format(Result r) {
+		return String.format("%.3f %s", r.score, r.unit);
+	}
+}
@@ -0,0 +1,322 @@
+package maman18.bench;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import maman18.bench.LibraryBenchmark.Kind;
+import maman18.bench.WorkloadGenerator.Settings;
+import maman18.data.LatencyHistogram;
+import maman18.library.Circulation;
+import maman18.library.CommandParser;
+import maman18.library.Library;
+import maman18.library.LibraryMetrics;
+import maman18.library.PrintingListener;
+
+/**
+ * @author Shlomi.v
+ *
+ * Runs a long workload through a CommandParser and a Library end to end, and reports how fast it went:
+ *
+ *   java -Xmx4g -cp benchmarks.jar maman18.bench.ThroughputHarness [workload options] [--library kind]
+ *        [--snapshots] [--report n] [--input file]
+ *
+ *   workload options - the workload to generate (see WorkloadGenerator.Settings), it is generated in the
+ *                      same process as it runs, so even 100M commands need no files
+ *   --library kind   - HASH, TREE, SKIP_LIST or CONCURRENT (HASH)
+ *   --snapshots      - the library keeps snapshots (see Library.keepSnapshots), not for CONCURRENT
+ *   --report n       - print a line every n commands (1000000)
+ *   --input file     - run the commands in the file instead (like one WorkloadGenerator wrote), all of them
+ *                      are measured. reading the lines allocates a String for each one
+ *
+ * the subscribers of a generated workload are added before the measuring starts. the output of the
+ * commands is printed to a stream that drops it, so the printing is measured but not the console.
+ * every report line shows the commands per second, the latency percentiles of the commands (as the
+ * CommandParser measures them), the allocation rate of the thread that runs them, the heap that is used
+ * and the time spent in GC, all since the last line. at the end the same is shown for the whole run, with
+ * the live heap after a full GC (the footprint of the library), the peak heap, and the library metrics.
+ */
+public class ThroughputHarness {
+
+	private final Circulation lib;
+	private final CommandParser parser;
+
+	// the latencies of the parser (reset on every report), and all of them since the measuring started
+	private final Map<String, LatencyHistogram> latencies;
+	private final Map<String, LatencyHistogram> totals = new LinkedHashMap<String, LatencyHistogram>();
+	private final LatencyHistogram interval = new LatencyHistogram();
+
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	// where the last report (or the start) was
+	private long commands;
+	private long nanos;
+	private long allocated;
+	private long gcMillis;
+
+	// where the measuring started
+	private long startNanos;
+	private long startAllocated;
+	private long startGcMillis;
+	private long startGcs;
+
+	/**
+	 * @param lib
+	 */
+	public ThroughputHarness(Circulation lib) {
+		this.lib = lib;
+		PrintStream dropped = new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		});
+		parser = new CommandParser(lib, new PrintingListener(dropped), dropped);
+		latencies = parser.getLatencies();
+		for (String kind : latencies.keySet())
+			totals.put(kind, new LatencyHistogram());
+	}
+
+	/**
+	 * @param generator
+	 * @param report - how many commands between two report lines
+	 * add the subscribers of the workload, and then measure all of its commands
+	 */
+	public void run(WorkloadGenerator generator, long report) {
+		StringBuilder line = new StringBuilder(64);
+		while (!generator.populated()) {
+			generator.next(line);
+			parser.doCommand(line);
+		}
+
+		start();
+		while (!generator.done()) {
+			generator.next(line);
+			parser.doCommand(line);
+			if (++commands % report == 0) report();
+		}
+		finish();
+	}
+
+	/**
+	 * @param in - the commands, one per line
+	 * @param report - how many commands between two report lines
+	 * measure all the commands
+	 * @throws IOException
+	 */
+	public void run(BufferedReader in, long report) throws IOException {
+		start();
+		String line;
+		while ((line = in.readLine()) != null) {
+			parser.doCommand(line);
+			if (++commands % report == 0) report();
+		}
+		finish();
+	}
+
+	/**
+	 * start measuring from here
+	 */
+	private void start() {
+		for (LatencyHistogram histogram : latencies.values())
+			histogram.reset();
+		new LibraryMetrics(lib, totals).reset();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+
+		commands = 0;
+		startNanos = nanos = System.nanoTime();
+		startAllocated = allocated = allocated();
+		startGcMillis = gcMillis = gcMillis();
+		startGcs = gcs();
+		System.out.println(String.format("%14s %12s %9s %9s %9s %9s %10s %9s %8s",
+				"commands", "cmd/s", "mean", "p50", "p99", "p99.9", "max", "alloc/s", "heap"));
+	}
+
+	/**
+	 * print a line for the commands since the last one, and start the next one
+	 */
+	private void report() {
+		long now = System.nanoTime(), bytes = allocated(), gc = gcMillis();
+		interval.reset();
+		for (Map.Entry<String, LatencyHistogram> e : latencies.entrySet()) {
+			interval.add(e.getValue());
+			totals.get(e.getKey()).add(e.getValue());
+			e.getValue().reset();
+		}
+		long count = interval.getCount();
+		System.out.println(String.format("%,14d %,12.0f %9s %9s %9s %9s %10s %9s %8s  gc %d ms",
+				commands, count * 1e9 / (now - nanos), time(interval.getMean()), time(interval.getPercentile(50)),
+				time(interval.getPercentile(99)), time(interval.getPercentile(99.9)), time(interval.getMax()),
+				bytes < 0 ? "-" : size((bytes - allocated) * 1e9 / (now - nanos)),
+				size(Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()), gc - gcMillis));
+		nanos = now;
+		allocated = bytes;
+		gcMillis = gc;
+	}
+
+	/**
+	 * print the summary of all the commands since the start
+	 */
+	private void finish() {
+		if (latenciesCount() > 0) report(); // the commands after the last report
+		long elapsed = nanos - startNanos, bytes = allocated - startAllocated;
+
+		LatencyHistogram all = new LatencyHistogram();
+		for (LatencyHistogram histogram : totals.values())
+			all.add(histogram);
+
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+		System.gc();
+		System.gc();
+		long live = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+		System.out.println();
+		System.out.println(String.format("throughput  %,d commands in %.3f s, %,.0f commands/s",
+				commands, elapsed / 1e9, commands * 1e9 / Math.max(elapsed, 1)));
+		System.out.println("latency     " + all);
+		if (startAllocated >= 0)
+			System.out.println(String.format("allocation  %s in all, %,.1f bytes/command, %s/s",
+					size(bytes), (double) bytes / Math.max(commands, 1), size(bytes * 1e9 / Math.max(elapsed, 1))));
+		System.out.println(String.format("heap        %s live after a full gc, %s at the peak",
+				size(live), size(peak)));
+		System.out.println(String.format("gc          %d collections, %d ms (%.1f%% of the time)",
+				gcs() - startGcs, gcMillis - startGcMillis, (gcMillis - startGcMillis) * 1e8 / Math.max(elapsed, 1)));
+		System.out.print(new LibraryMetrics(lib, totals).dump());
+	}
+
+	/**
+	 * @return the latencies the parser measured since the last report
+	 */
+	private long latenciesCount() {
+		long count = 0;
+		for (LatencyHistogram histogram : latencies.values())
+			count += histogram.getCount();
+		return count;
+	}
+
+	/**
+	 * @return the bytes the calling thread allocated so far, or -1 if the JVM does not count them
+	 */
+	private long allocated() {
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+		com.sun.management.ThreadMXBean counting = (com.sun.management.ThreadMXBean) threads;
+		if (!counting.isThreadAllocatedMemorySupported() || !counting.isThreadAllocatedMemoryEnabled()) return -1;
+		return counting.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * @return the collections of all the garbage collectors so far
+	 */
+	private static long gcs() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			count += Math.max(gc.getCollectionCount(), 0);
+		return count;
+	}
+
+	/**
+	 * @return the milliseconds all the garbage collectors took so far
+	 */
+	private static long gcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			millis += Math.max(gc.getCollectionTime(), 0);
+		return millis;
+	}
+
+	/**
+	 * @param nanos
+	 * @return the time, in the unit that suits it
+	 */
+	private static String time(double nanos) {
+		if (nanos < 1e4) return String.format("%.0fns", nanos);
+		if (nanos < 1e6) return String.format("%.1fus", nanos / 1e3);
+		return String.format("%.1fms", nanos / 1e6);
+	}
+
+	/**
+	 * @param bytes
+	 * @return the size, in the unit that suits it
+	 */
+	private static String size(double bytes) {
+		if (bytes < 1 << 10) return String.format("%.0fB", bytes);
+		if (bytes < 1 << 20) return String.format("%.1fKB", bytes / (1 << 10));
+		if (bytes < 1 << 30) return String.format("%.1fMB", bytes / (1 << 20));
+		return String.format("%.2fGB", bytes / (1 << 30));
+	}
+
+	public static void main(String[] args) {
+		Settings settings = new Settings();
+		Kind kind = Kind.HASH;
+		boolean snapshots = false;
+		long report = 1000000;
+		String input = null;
+		try {
+			for (int i = 0; i < args.length;) {
+				int read = settings.read(args, i);
+				if (read == 0) {
+					read = 2;
+					if (args[i].equals("--snapshots")) {
+						snapshots = true;
+						read = 1;
+					} else if (i + 1 == args.length)
+						throw new IllegalArgumentException("unknown option " + args[i]);
+					else if (args[i].equals("--library"))
+						kind = Kind.valueOf(args[i + 1]);
+					else if (args[i].equals("--report"))
+						report = Long.parseLong(args[i + 1]);
+					else if (args[i].equals("--input"))
+						input = args[i + 1];
+					else
+						throw new IllegalArgumentException("unknown option " + args[i]);
+				}
+				i += read;
+			}
+			if (report < 1) throw new IllegalArgumentException("--report must be positive");
+			if (snapshots && kind == Kind.CONCURRENT)
+				throw new IllegalArgumentException("a CONCURRENT library does not keep snapshots");
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("usage: ThroughputHarness [--commands n] [--subscribers n] [--books n] [--skew s]"
+					+ " [--subscriber-skew s] [--mix b,r,qb,qs,qm,c] [--seed n] [--library kind] [--snapshots] [--report n] [--input file]");
+			System.exit(2);
+			return;
+		}
+
+		Circulation lib = LibraryBenchmark.create(kind);
+		if (snapshots) ((Library) lib).keepSnapshots(); // not CONCURRENT, see above
+		ThroughputHarness harness = new ThroughputHarness(lib);
+		System.out.println("library " + kind + (snapshots ? " with snapshots" : "") + ", workload "
+				+ (input != null ? input : settings.toString()));
+		if (input == null) {
+			harness.run(new WorkloadGenerator(settings), report);
+			return;
+		}
+		try {
+			BufferedReader in = new BufferedReader(new FileReader(input), 1 << 16);
+			try {
+				harness.run(in, report);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			System.err.println("could not read the commands: " + e.getMessage());
+			System.exit(2);
+		}
+	}
+}
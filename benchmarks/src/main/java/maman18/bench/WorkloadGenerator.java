@@ -0,0 +1,412 @@
+package maman18.bench;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+
+import maman18.library.Library.Tier;
+
+/**
+ * @author Shlomi.v
+ *
+ * Generates a stream of library commands, in the grammar of the CommandParser, that looks like a real
+ * library at work:
+ *  (*) the subscribers are added first, and then the commands are drawn by the mix: borrowing, returning,
+ *      the three queries, and churn (a subscriber leaves and a new one joins in its place)
+ *  (*) who borrows and which book is borrowed or queried follow Zipf's law (see ZipfSampler), so a few
+ *      subscribers and books are far busier than the rest. the popular ones are spread over the ids.
+ *      a subscriber that wants a popular book that is lent takes another book off the shelf instead
+ *  (*) the generator keeps the loans the same way the library does, so a book is returned by its holder.
+ *      borrowing a book that is lent, or over the limit of a patron, is still generated, and fails just like
+ *      it would in a real library
+ *
+ * the same settings (and seed) always generate the same commands. generating a command allocates nothing,
+ * so the generator can feed a library in the same process (see ThroughputHarness), or write the commands
+ * to a file:
+ *
+ *   java -cp benchmarks.jar maman18.bench.WorkloadGenerator [options] [file]
+ *
+ * see Settings for the options. without a file the commands go to the standard output.
+ */
+public class WorkloadGenerator {
+
+	/**
+	 * the kinds of commands in the mix
+	 */
+	enum Op {
+		BORROW, RETURN, QUERY_BOOK, QUERY_SUBSCRIBER, QUERY_MOST, CHURN
+	}
+
+	/**
+	 * the settings of a workload, and the command line options that set them:
+	 *   --commands n    - the commands after the subscribers are added (1000000)
+	 *   --subscribers n - the subscribers at any time (100000)
+	 *   --books n       - the books of the library (1000000)
+	 *   --skew s        - the exponent of the Zipf law of the books, 0 for uniform (0.99)
+	 *   --subscriber-skew s - the exponent of the Zipf law of the subscribers (0.5)
+	 *   --mix b,r,qb,qs,qm,c - the weights of borrow, return, ? book, ? id, ? ! and churn (40,35,10,10,1,4)
+	 *   --seed n        - the seed of the random choices (18)
+	 */
+	static final class Settings {
+		long commands = 1000000;
+		int subscribers = 100000;
+		int books = 1000000;
+		double skew = 0.99;
+		double subscriberSkew = 0.5;
+		int[] mix = { 40, 35, 10, 10, 1, 4 };
+		long seed = 18;
+
+		/**
+		 * @param args
+		 * @param i
+		 * @return the number of arguments read from args[i] on, or 0 if args[i] is not a workload option
+		 * @throws IllegalArgumentException if the option has a bad value
+		 */
+		int read(String[] args, int i) {
+			String option = args[i];
+			if (!option.equals("--commands") && !option.equals("--subscribers") && !option.equals("--books")
+					&& !option.equals("--skew") && !option.equals("--subscriber-skew") && !option.equals("--mix")
+					&& !option.equals("--seed"))
+				return 0;
+			if (i + 1 == args.length) throw new IllegalArgumentException(option + " needs a value");
+
+			String value = args[i + 1];
+			if (option.equals("--commands"))
+				commands = Long.parseLong(value);
+			else if (option.equals("--subscribers"))
+				subscribers = Integer.parseInt(value);
+			else if (option.equals("--books"))
+				books = Integer.parseInt(value);
+			else if (option.equals("--skew"))
+				skew = Double.parseDouble(value);
+			else if (option.equals("--subscriber-skew"))
+				subscriberSkew = Double.parseDouble(value);
+			else if (option.equals("--seed"))
+				seed = Long.parseLong(value);
+			else {
+				String[] weights = value.split(",");
+				if (weights.length != Op.values().length)
+					throw new IllegalArgumentException("--mix needs " + Op.values().length + " weights: " + value);
+				for (int j = 0; j < weights.length; j++)
+					mix[j] = Integer.parseInt(weights[j].trim());
+			}
+			return 2;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append("commands=").append(commands).append(" subscribers=").append(subscribers)
+					.append(" books=").append(books).append(" skew=").append(skew)
+					.append(" subscriber-skew=").append(subscriberSkew).append(" mix=");
+			for (int j = 0; j < mix.length; j++)
+				sb.append(j == 0 ? "" : ",").append(mix[j]);
+			return sb.append(" seed=").append(seed).toString();
+		}
+	}
+
+	// the names of the subscribers, by their ids
+	private static final String[] NAMES = { "Shlomi", "Idan", "Ella", "Noa", "Yael", "Omer", "Tamar", "Itai",
+			"Maya", "Yoav", "Shira", "Amit", "Roni", "Eden", "Lior", "Gal" };
+
+	// the first id of a subscriber, so all the ids have 9 digits
+	private static final int FIRST_ID = 100000000;
+
+	// spreads the ranks of the Zipf law over the subscribers and books, a prime so it is a permutation
+	private static final long SPREAD = 1000000007L;
+
+	private final Settings settings;
+	private final Random rnd;
+	private final ZipfSampler bySubscriber;
+	private final ZipfSampler byBook;
+
+	// the upper bound of each Op in the mix, out of the sum of the weights
+	private final int[] bounds;
+
+	// the subscribers, by their slot: the id, the number of times it was replaced, and the books it holds
+	private final int[] ids;
+	private final int[] generation;
+	private final int[] count;
+	private int nextId;
+
+	// the books: the slot of the holder (or -1), and its generation when it borrowed the book.
+	// a book whose holder left since is not lent any more
+	private final int[] holder;
+	private final int[] heldIn;
+
+	// the books that may be lent, and the position of each book in lent (or -1)
+	private final int[] lent;
+	private final int[] lentAt;
+	private int lentCount = 0;
+
+	// the subscribers that were added so far, and the slot whose new subscriber joins next (or -1)
+	private int added = 0;
+	private int joining = -1;
+
+	// the commands generated since the subscribers were added
+	private long generated = 0;
+
+	/**
+	 * @param settings
+	 */
+	public WorkloadGenerator(Settings settings) {
+		if (settings.subscribers < 1 || settings.books < 1)
+			throw new IllegalArgumentException("a workload needs subscribers and books: " + settings);
+		this.settings = settings;
+		rnd = new Random(settings.seed);
+		bySubscriber = new ZipfSampler(settings.subscribers, settings.subscriberSkew, rnd);
+		byBook = new ZipfSampler(settings.books, settings.skew, rnd);
+
+		bounds = new int[settings.mix.length];
+		int sum = 0;
+		for (int j = 0; j < bounds.length; j++) {
+			if (settings.mix[j] < 0) throw new IllegalArgumentException("a negative weight in the mix: " + settings);
+			bounds[j] = sum += settings.mix[j];
+		}
+		if (sum == 0) throw new IllegalArgumentException("the mix is empty: " + settings);
+
+		int n = settings.subscribers, m = settings.books;
+		ids = new int[n];
+		generation = new int[n];
+		count = new int[n];
+		for (int i = 0; i < n; i++)
+			ids[i] = FIRST_ID + i;
+		nextId = FIRST_ID + n;
+
+		holder = new int[m];
+		heldIn = new int[m];
+		lent = new int[m];
+		lentAt = new int[m];
+		for (int b = 0; b < m; b++) {
+			holder[b] = -1;
+			lentAt[b] = -1;
+		}
+	}
+
+	/**
+	 * @return true once all the subscribers were added, the commands after it are the measured mix
+	 */
+	public boolean populated() {
+		return added == ids.length;
+	}
+
+	/**
+	 * @return true if all the commands of the workload were generated
+	 */
+	public boolean done() {
+		return populated() && generated >= settings.commands;
+	}
+
+	/**
+	 * @param line - the command is written here, instead of what it had
+	 * generate the next command, the subscribers are added first
+	 * Complexity: O(1) expected, with no allocations once line is long enough
+	 */
+	public void next(StringBuilder line) {
+		line.setLength(0);
+		if (added < ids.length) {
+			add(line, added++);
+			return;
+		}
+		generated++;
+		if (joining >= 0) {
+			// the second half of a churn
+			add(line, joining);
+			joining = -1;
+			return;
+		}
+
+		int draw = rnd.nextInt(bounds[bounds.length - 1]), op = 0;
+		while (draw >= bounds[op])
+			op++;
+		switch (Op.values()[op]) {
+		case BORROW:
+			borrow(line);
+			break;
+		case RETURN:
+			giveBack(line);
+			break;
+		case QUERY_BOOK:
+			appendBook(line.append("? "), book());
+			break;
+		case QUERY_SUBSCRIBER:
+			line.append("? ").append(ids[subscriber()]);
+			break;
+		case QUERY_MOST:
+			line.append("? !");
+			break;
+		case CHURN:
+			churn(line);
+			break;
+		}
+	}
+
+	/**
+	 * @return the slot of a subscriber, by the Zipf law
+	 */
+	private int subscriber() {
+		return (int) ((bySubscriber.next() - 1) * SPREAD % ids.length);
+	}
+
+	/**
+	 * @return a book, by the Zipf law
+	 */
+	private int book() {
+		return (int) ((byBook.next() - 1) * SPREAD % holder.length);
+	}
+
+	/**
+	 * @param book
+	 * @return true if the book is lent now
+	 */
+	private boolean held(int book) {
+		int slot = holder[book];
+		return slot >= 0 && heldIn[book] == generation[slot];
+	}
+
+	/**
+	 * @param line
+	 * @param slot
+	 * add the subscriber of the slot
+	 */
+	private void add(StringBuilder line, int slot) {
+		line.append("+ ").append(NAMES[ids[slot] % NAMES.length]).append(' ').append(ids[slot]);
+	}
+
+	/**
+	 * @param line
+	 * a busy subscriber borrows a popular book, or any book if the popular one is lent. it only gets it if
+	 * the book is not lent and the subscriber has room for it
+	 */
+	private void borrow(StringBuilder line) {
+		int slot = subscriber(), book = book();
+		if (held(book)) book = rnd.nextInt(holder.length);
+		loan(line, slot, book).append(" +");
+		if (held(book) || count[slot] >= Tier.PATRON.getLimit()) return;
+
+		holder[book] = slot;
+		heldIn[book] = generation[slot];
+		count[slot]++;
+		if (lentAt[book] < 0) {
+			lentAt[book] = lentCount;
+			lent[lentCount++] = book;
+		}
+	}
+
+	/**
+	 * @param line
+	 * one of the lent books is returned by its holder. the books of subscribers that left are dropped
+	 * from lent on the way. if no book is lent, a book that is not lent is returned, and it fails
+	 */
+	private void giveBack(StringBuilder line) {
+		while (lentCount > 0) {
+			int book = lent[rnd.nextInt(lentCount)];
+			if (held(book)) {
+				int slot = holder[book];
+				loan(line, slot, book).append(" -");
+				count[slot]--;
+				holder[book] = -1;
+				unlend(book);
+				return;
+			}
+			unlend(book);
+		}
+		loan(line, subscriber(), book()).append(" -");
+	}
+
+	/**
+	 * @param book
+	 * take the book out of lent
+	 */
+	private void unlend(int book) {
+		int at = lentAt[book], last = lent[--lentCount];
+		lent[at] = last;
+		lentAt[last] = at;
+		lentAt[book] = -1;
+	}
+
+	/**
+	 * @param line
+	 * a subscriber leaves with all of its books, and a new subscriber joins in its place with the next
+	 * command
+	 */
+	private void churn(StringBuilder line) {
+		int slot = rnd.nextInt(ids.length);
+		line.append("- ").append(NAMES[ids[slot] % NAMES.length]).append(' ').append(ids[slot]);
+		generation[slot]++;
+		count[slot] = 0;
+		ids[slot] = nextId++;
+		joining = slot;
+	}
+
+	/**
+	 * @param line
+	 * @param slot
+	 * @param book
+	 * @return line, with the subscriber and the book of a borrow or a return
+	 */
+	private StringBuilder loan(StringBuilder line, int slot, int book) {
+		line.append(NAMES[ids[slot] % NAMES.length]).append(' ').append(ids[slot]).append(' ');
+		return appendBook(line, book);
+	}
+
+	/**
+	 * @param line
+	 * @param book
+	 * @return line, with the id of the book in the style of AA0001: two letters or more for every 10000
+	 * books, and 4 digits
+	 */
+	private static StringBuilder appendBook(StringBuilder line, int book) {
+		int shelf = book / 10000, number = book % 10000;
+		int letters = 26 * 26;
+		while (letters <= shelf)
+			letters *= 26;
+		for (letters /= 26; letters > 0; letters /= 26)
+			line.append((char) ('A' + shelf / letters % 26));
+		for (int d = 1000; d > 0; d /= 10)
+			line.append((char) ('0' + number / d % 10));
+		return line;
+	}
+
+	public static void main(String[] args) {
+		Settings settings = new Settings();
+		String file = null;
+		try {
+			for (int i = 0; i < args.length;) {
+				int read = settings.read(args, i);
+				if (read == 0 && file == null && !args[i].startsWith("--")) {
+					file = args[i];
+					read = 1;
+				}
+				if (read == 0) throw new IllegalArgumentException("unknown option " + args[i]);
+				i += read;
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("usage: WorkloadGenerator [--commands n] [--subscribers n] [--books n] [--skew s]"
+					+ " [--subscriber-skew s] [--mix b,r,qb,qs,qm,c] [--seed n] [file]");
+			System.exit(2);
+			return;
+		}
+
+		WorkloadGenerator generator = new WorkloadGenerator(settings);
+		StringBuilder line = new StringBuilder();
+		try {
+			Writer out = new BufferedWriter(file != null ? new FileWriter(file) : new OutputStreamWriter(System.out), 1 << 16);
+			try {
+				while (!generator.done()) {
+					generator.next(line);
+					out.append(line).append('\n');
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			System.err.println("could not write the commands: " + e.getMessage());
+			System.exit(2);
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package maman18.bench;
+
+import java.util.Random;
+
+/**
+ * @author Shlomi.v
+ *
+ * Draws ranks 1..n with Zipf's law: the rank k is drawn with a probability proportional to 1/k^skew,
+ * so a few ranks are very popular and most of them are rarely drawn. a skew of 0 draws them uniformly.
+ *
+ * the ranks are drawn by rejection-inversion (W. Hormann and G. Derflinger, "Rejection-inversion to
+ * generate variates from monotone discrete distributions", 1996): the inverse of the integral of a
+ * continuous hat function is sampled, and the few samples that fall outside the histogram are drawn again.
+ * so a draw takes O(1) time with no tables at all, even for hundreds of millions of ranks.
+ *
+ * a sampler is not thread safe, like the Random it draws from.
+ */
+final class ZipfSampler {
+
+	private final int n;
+	private final double skew;
+	private final Random rnd;
+
+	// the integral of the hat function at 1.5 (minus h(1)) and at n+0.5, and the squeeze constant
+	private final double hIntegralX1;
+	private final double hIntegralN;
+	private final double s;
+
+	/**
+	 * @param n - the number of ranks
+	 * @param skew - the exponent of the law, 0 for uniform ranks
+	 * @param rnd
+	 */
+	ZipfSampler(int n, double skew, Random rnd) {
+		if (n < 1) throw new IllegalArgumentException("no ranks to draw: " + n);
+		if (skew < 0) throw new IllegalArgumentException("a negative skew: " + skew);
+		this.n = n;
+		this.skew = skew;
+		this.rnd = rnd;
+		hIntegralX1 = hIntegral(1.5) - 1;
+		hIntegralN = hIntegral(n + 0.5);
+		s = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+	}
+
+	/**
+	 * @return a rank between 1 and n
+	 * Complexity: O(1) expected
+	 */
+	int next() {
+		if (skew == 0) return 1 + rnd.nextInt(n);
+		while (true) {
+			double u = hIntegralN + rnd.nextDouble() * (hIntegralX1 - hIntegralN);
+			double x = hIntegralInverse(u);
+			int k = (int) (x + 0.5);
+			if (k < 1) k = 1;
+			else if (k > n) k = n;
+			if (k - x <= s || u >= hIntegral(k + 0.5) - h(k)) return k;
+		}
+	}
+
+	/**
+	 * @param x
+	 * @return the hat function, 1/x^skew
+	 */
+	private double h(double x) {
+		return Math.exp(-skew * Math.log(x));
+	}
+
+	/**
+	 * @param x
+	 * @return the integral of h, (x^(1-skew) - 1)/(1-skew), or log(x) when the skew is 1
+	 */
+	private double hIntegral(double x) {
+		double logX = Math.log(x);
+		return expm1OverX((1 - skew) * logX) * logX;
+	}
+
+	/**
+	 * @param x
+	 * @return the inverse of hIntegral
+	 */
+	private double hIntegralInverse(double x) {
+		double t = x * (1 - skew);
+		if (t < -1) t = -1; // only rounding errors get here
+		return Math.exp(log1pOverX(t) * x);
+	}
+
+	/**
+	 * @param x
+	 * @return log(1+x)/x, with its taylor series near 0
+	 */
+	private static double log1pOverX(double x) {
+		if (Math.abs(x) > 1e-8) return Math.log1p(x) / x;
+		return 1 - x * (0.5 - x * (1.0 / 3 - 0.25 * x));
+	}
+
+	/**
+	 * @param x
+	 * @return (e^x-1)/x, with its taylor series near 0
+	 */
+	private static double expm1OverX(double x) {
+		if (Math.abs(x) > 1e-8) return Math.expm1(x) / x;
+		return 1 + x * 0.5 * (1 + x * (1.0 / 3) * (1 + 0.25 * x));
+	}
+}
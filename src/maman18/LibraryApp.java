@@ -1,36 +1,274 @@
-package maman18;
-
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-
-import maman18.library.CommandParser;
-import maman18.library.Library;
-
-/**
- * @author Shlomi.v
- *
- * this is the entry point to our application.
- *
- */
-public class LibraryApp {
-	public static void main(String[] args) {
-		// initialize the parser and a new library
-		CommandParser parser = new CommandParser(new Library());
-		
-		// prepare a command reader
-		BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
-		
-		System.out.println("Welcome to the library, please enter a command\nEnter quit to exit the application");
-		
-		// Endlessly run..
-		try {
-			while (true) {
-				System.out.print("> ");
-				parser.doCommand(br.readLine());
-			}
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-	}
-}
+package maman18;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Map;
+
+import javax.management.JMException;
+
+import maman18.data.LatencyHistogram;
+import maman18.library.Circulation;
+import maman18.library.CommandParser;
+import maman18.library.CommandPipeline;
+import maman18.library.ConcurrentLibrary;
+import maman18.library.Library;
+import maman18.library.LibraryMetrics;
+import maman18.library.ParallelReplay;
+
+/**
+ * @author Shlomi.v
+ *
+ * this is the entry point to our application.
+ * 
+ * usage: LibraryApp [--concurrent] [--index file] [--data dir] [--pipelined | --parallel] [--metrics seconds]
+ *                   [--serve port | --batch file...]
+ *   --concurrent    - use a thread safe ConcurrentLibrary. it keeps nothing in files, so it cannot be used
+ *                     with --index or --data
+ *   --index file    - keep the whoHoldsTheBook index off the heap, in the given memory mapped file.
+ *                     the lent books only survive restarts together with --data, and the file is then
+ *                     used as is when it was closed with the same data, or rebuilt from it otherwise
+ *   --data dir      - recover the library from the snapshot and journal in dir, and log every change there.
+ *                     the changes are synced to the disk before their outcome is printed (see Library.commit)
+ *   --serve port    - serve the library over TCP on the given port instead of the console (see LibraryServer),
+ *                     every connection is a user that sends commands, one per line, and reads the answers
+ *   --batch file... - run all the commands in the given files (- is the standard input) and exit.
+ *                     there are no prompts, and the output is buffered instead of flushed on every line
+ *   --pipelined     - in batch mode, read, parse, run and print the commands on four threads at once
+ *                     (see CommandPipeline), with the same output
+ *   --parallel      - in batch mode, run the commands on different subscribers and books at the same time
+ *                     (see ParallelReplay), with the same output. it always uses a ConcurrentLibrary,
+ *                     so it cannot be used with --index or --data either
+ *   --metrics seconds - show the metrics of the library over JMX (see LibraryMetrics), and print them to the
+ *                     standard error every given number of seconds (0 for JMX only)
+ *
+ */
+public class LibraryApp {
+
+	// the size of the input and output buffers in batch mode
+	private static final int BATCH_BUFFER = 1 << 16;
+
+	/**
+	 * the standard output, that commits the changes of the library before anything is written to it,
+	 * so the outcome of a command is never shown before the change is durable (see Library.commit)
+	 */
+	private static class CommittingOutputStream extends FilterOutputStream {
+		private final Circulation lib;
+
+		CommittingOutputStream(Circulation lib) {
+			super(new FileOutputStream(FileDescriptor.out));
+			this.lib = lib;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			lib.commit();
+			out.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			lib.commit();
+			out.write(b, off, len);
+		}
+	}
+
+	public static void main(String[] args) {
+		// initialize the parser and a new library
+		final Circulation lib;
+		try {
+			lib = createLibrary(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(2);
+			return;
+		} catch (IOException e) {
+			System.out.println("could not open the library: " + e.getMessage());
+			return;
+		}
+		System.setOut(new PrintStream(new CommittingOutputStream(lib), true));
+		
+		// make sure the library files are written when we exit
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				System.out.flush();
+				try {
+					lib.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		
+		// in batch mode, run the given files instead of reading commands from the user
+		boolean pipelined = false, parallel = false;
+		long metrics = -1;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--pipelined"))
+				pipelined = true;
+			if (args[i].equals("--parallel"))
+				parallel = true;
+			if (args[i].equals("--metrics") && i + 1 < args.length)
+				metrics = Long.parseLong(args[++i]);
+			if (args[i].equals("--batch")) {
+				runBatch(lib, args, i + 1, pipelined, parallel, metrics);
+				return;
+			}
+			if (args[i].equals("--serve") && i + 1 < args.length) {
+				serve(lib, Integer.parseInt(args[i + 1]), metrics);
+				return;
+			}
+		}
+		CommandParser parser = new CommandParser(lib);
+		watch(lib, parser.getLatencies(), metrics);
+		
+		// prepare a command reader
+		BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
+		
+		System.out.println("Welcome to the library, please enter a command\nEnter quit to exit the application");
+		
+		// Endlessly run..
+		try {
+			while (true) {
+				System.out.print("> ");
+				parser.doCommand(br.readLine());
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @param lib
+	 * @param latencies - the latency histograms of the commands
+	 * @param seconds - how often to print the metrics, 0 for never, or -1 to not watch the library at all
+	 * @return the metrics of the library, or null if it is not watched
+	 * 
+	 * show the metrics of the library over JMX, and print them to the standard error every few seconds
+	 */
+	private static LibraryMetrics watch(Circulation lib, Map<String, LatencyHistogram> latencies, long seconds) {
+		if (seconds < 0)
+			return null;
+		LibraryMetrics metrics = new LibraryMetrics(lib, latencies);
+		try {
+			metrics.register();
+		} catch (JMException e) {
+			System.err.println("could not register the library metrics: " + e.getMessage());
+		}
+		if (seconds > 0)
+			metrics.dumpEvery(System.err, seconds);
+		return metrics;
+	}
+
+	/**
+	 * @param lib
+	 * @param port
+	 * @param metrics - how often to print the metrics (see watch)
+	 * 
+	 * serve the library on the given port, until the application is stopped
+	 */
+	private static void serve(Circulation lib, int port, long metrics) {
+		try {
+			LibraryServer server = new LibraryServer(lib, port);
+			watch(lib, server.getLatencies(), metrics);
+			System.out.println("Serving the library on port " + server.getPort());
+			server.serve();
+		} catch (IOException e) {
+			System.out.println("could not serve the library: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @param lib
+	 * @param files - the names of the command files
+	 * @param first - the index of the first file name in files
+	 * @param pipelined - true to run the commands in a CommandPipeline
+	 * @param parallel - true to run the commands in a ParallelReplay, lib is a ConcurrentLibrary then
+	 * @param metrics - how often to print the metrics (see watch), they are also printed once more at the end
+	 * 
+	 * run all the commands in the given files, one file after the other.
+	 * the output goes to a large buffer that is only written when it fills up (and when we are done),
+	 * instead of writing every line to the console as it is printed. the changes of all the commands in
+	 * the buffer are committed together, right before it is written
+	 */
+	private static void runBatch(Circulation lib, String[] files, int first, boolean pipelined, boolean parallel,
+			long metrics) {
+		System.setOut(new PrintStream(new BufferedOutputStream(new CommittingOutputStream(lib), BATCH_BUFFER), false));
+		ParallelReplay replay = parallel ? new ParallelReplay((ConcurrentLibrary) lib, System.out) : null;
+		CommandPipeline pipeline = pipelined && !parallel ? new CommandPipeline(lib, System.out) : null;
+		CommandParser parser = replay == null && pipeline == null ? new CommandParser(lib) : null;
+		LibraryMetrics watched = watch(lib,
+				parser != null ? parser.getLatencies() : pipeline != null ? pipeline.getLatencies() : null, metrics);
+		
+		try {
+			for (int i = first; i < files.length; i++) {
+				InputStream in = files[i].equals("-") ? System.in : new FileInputStream(files[i]);
+				BufferedReader br = new BufferedReader(new InputStreamReader(in), BATCH_BUFFER);
+				try {
+					if (replay != null) {
+						replay.run(br);
+					} else if (pipeline != null) {
+						pipeline.run(br);
+					} else {
+						String line;
+						while ((line = br.readLine()) != null)
+							parser.doCommand(line);
+					}
+				} finally {
+					br.close();
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("could not read the commands: " + e.getMessage());
+		} finally {
+			System.out.flush();
+			if (watched != null) {
+				if (metrics > 0)
+					System.err.print(watched.dump());
+				watched.close();
+			}
+		}
+	}
+
+	/**
+	 * @param args - the command line arguments
+	 * @return a new library, set up according to the arguments
+	 * @throws IOException
+	 * @throws IllegalArgumentException if the arguments ask for a ConcurrentLibrary that is kept in files
+	 */
+	private static Circulation createLibrary(String[] args) throws IOException {
+		File index = null, data = null;
+		boolean concurrent = false;
+		for (int i = 0; i < args.length && !args[i].equals("--batch") && !args[i].equals("--serve"); i++) {
+			if (args[i].equals("--concurrent") || args[i].equals("--parallel"))
+				concurrent = true;
+			else if (args[i].equals("--index") && i + 1 < args.length)
+				index = new File(args[++i]);
+			else if (args[i].equals("--data") && i + 1 < args.length)
+				data = new File(args[++i]);
+		}
+
+		if (concurrent) {
+			if (index != null || data != null)
+				throw new IllegalArgumentException("--concurrent and --parallel cannot be used with --index or --data,"
+						+ " a ConcurrentLibrary keeps nothing in files");
+			return new ConcurrentLibrary();
+		}
+		if (index != null && data != null)
+			return new Library(index, data);
+		Library lib = index != null ? new Library(index) : new Library();
+		if (data != null)
+			lib.persistTo(data);
+		return lib;
+	}
+}
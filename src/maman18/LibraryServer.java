@@ -0,0 +1,494 @@
+package maman18;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+
+import maman18.data.LatencyHistogram;
+import maman18.library.CommandParser;
+import maman18.library.Circulation;
+import maman18.library.PrintingListener;
+
+/**
+ * @author Shlomi.v
+ *
+ * Serves the library to many users over TCP, with the same line protocol the console uses:
+ * each line a user sends is a command for the CommandParser, and everything the parser prints for that
+ * command is sent back to the user who sent it.
+ *
+ * all the connections are served by a single thread, that waits on a Selector for any of them to be ready.
+ * the library commands take much less time than moving their bytes over the network, so a single thread
+ * keeps up with thousands of connections, and the library needs no locks at all.
+ *  (*) pipelining - a user may send many commands without waiting for the answers. every line that
+ *      arrives is run right away, in order, and the answers are sent back in the same order.
+ *  (*) the answers are printed straight into direct buffers taken from a pool, and a connection sends
+ *      all of its waiting buffers with a single gathering write.
+ *  (*) a user that sends commands faster than it reads the answers is not read from again until most
+ *      of its answers were sent, so a slow reader cannot make the server hold an unbounded backlog.
+ *  (*) the answers are only sent once the changes of the commands are durable (see Circulation.commit).
+ *      the commands of all the users that were read in one round of the selector are run first, and
+ *      then a single commit covers all of them before their answers are sent.
+ *  (*) the lines are decoded into a char buffer of each connection, and handed to the parser as a view
+ *      over that buffer, so running a command creates no Strings beyond what the command itself needs.
+ *
+ * quit ends the session of the user that sent it (and not the server). the server runs until close is called.
+ */
+public class LibraryServer implements Closeable {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// the size of the input buffers of each connection, a longer line is not a valid command
+	private static final int IN_BUFFER = 1 << 12;
+
+	// the size of each output buffer, and the most idle buffers the pool keeps
+	private static final int OUT_BUFFER = 1 << 13;
+	private static final int MAX_POOLED = 1 << 10;
+
+	// a connection is not read from while it has more than this many bytes waiting to be sent
+	private static final int MAX_BACKLOG = 1 << 18;
+
+	// the most buffers sent by a single gathering write
+	private static final int MAX_GATHER = 64;
+
+	// the length of the queue of connections waiting to be accepted
+	private static final int ACCEPT_BACKLOG = 1 << 10;
+
+	/**
+	 * a line of a connection, as a view over its char buffer
+	 */
+	private static class Line implements CharSequence {
+		private char[] chars;
+		private int start;
+		private int length;
+
+		Line set(char[] chars, int start, int end) {
+			this.chars = chars;
+			this.start = start;
+			this.length = end - start;
+			return this;
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (index < 0 || index >= length) throw new IndexOutOfBoundsException("index " + index);
+			return chars[start + index];
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return new String(chars, this.start + start, end - start);
+		}
+
+		@Override
+		public String toString() {
+			return new String(chars, start, length);
+		}
+	}
+
+	/**
+	 * the state of a single user
+	 */
+	private class Connection {
+		final SocketChannel channel;
+		final SelectionKey key;
+
+		// the bytes read and not decoded yet, and the decoded characters (in fill mode).
+		// the characters before start were already run, the ones before scanned hold no line end
+		final ByteBuffer in = ByteBuffer.allocate(IN_BUFFER);
+		final CharBuffer chars = CharBuffer.allocate(IN_BUFFER);
+		final CharsetDecoder decoder = UTF8.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		int start = 0;
+		int scanned = 0;
+
+		// the answers waiting to be sent (flipped), and the buffer they are printed into now
+		final ArrayDeque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+		ByteBuffer tail;
+		long backlog = 0;
+
+		// the user closed its side, or quit. either way it is closed once all the answers are sent
+		boolean eof = false;
+		boolean closing = false;
+
+		Connection(SocketChannel channel, SelectionKey key) {
+			this.channel = channel;
+			this.key = key;
+		}
+
+		/**
+		 * @param b
+		 * @param off
+		 * @param len
+		 * add the bytes to the answers
+		 */
+		void append(byte[] b, int off, int len) {
+			backlog += len;
+			while (len > 0) {
+				if (tail == null || !tail.hasRemaining()) {
+					seal();
+					tail = allocate();
+				}
+				int n = Math.min(len, tail.remaining());
+				tail.put(b, off, n);
+				off += n;
+				len -= n;
+			}
+		}
+
+		/**
+		 * move the buffer that is printed into now to the buffers waiting to be sent
+		 */
+		void seal() {
+			if (tail == null) return;
+			if (tail.position() == 0) {
+				release(tail);
+			} else {
+				tail.flip();
+				pending.add(tail);
+			}
+			tail = null;
+		}
+	}
+
+	private final Circulation lib;
+	private final ServerSocketChannel server;
+	private final Selector selector;
+
+	// the parser prints into the connection whose command it is running
+	private final CommandParser parser;
+	private Connection current;
+
+	// idle output buffers, and the array the gathering writes are made from
+	private final ArrayDeque<ByteBuffer> pool = new ArrayDeque<ByteBuffer>();
+	private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+	private final Line line = new Line();
+	private volatile boolean running = true;
+
+	// the connections whose commands were run in this round of the selector, and are waiting to be answered
+	private final ArrayDeque<Connection> answering = new ArrayDeque<Connection>();
+
+	/**
+	 * @param lib - the library to serve, it is only used by the thread that runs serve
+	 * @param port - the port to listen on, 0 for any free port (see getPort)
+	 * @throws IOException if the port cannot be listened on
+	 */
+	public LibraryServer(Circulation lib, int port) throws IOException {
+		this(lib, new InetSocketAddress(port));
+	}
+
+	/**
+	 * @param lib - the library to serve, it is only used by the thread that runs serve
+	 * @param address - the address to listen on
+	 * @throws IOException if the address cannot be listened on
+	 */
+	public LibraryServer(Circulation lib, InetSocketAddress address) throws IOException {
+		this.lib = lib;
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.configureBlocking(false);
+		server.socket().setReuseAddress(true);
+		server.socket().bind(address, ACCEPT_BACKLOG);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+
+		PrintStream out = new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				current.append(b, off, len);
+			}
+		}, false, UTF8.name());
+		parser = new CommandParser(lib, new PrintingListener(out), out) {
+			@Override
+			protected void quit() {
+				out.println("Byebye!");
+				current.closing = true;
+			}
+		};
+	}
+
+	/**
+	 * @return the port the server listens on
+	 */
+	public int getPort() {
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 * @return the latency histogram of each kind of command, by its name (see CommandParser.getLatencies)
+	 */
+	public Map<String, LatencyHistogram> getLatencies() {
+		return parser.getLatencies();
+	}
+
+	/**
+	 * @return the library being served
+	 */
+	public Circulation getLibrary() {
+		return lib;
+	}
+
+	/**
+	 * serve the users until close is called. this is the only thread that touches the library
+	 * @throws IOException if the selector fails
+	 */
+	public void serve() throws IOException {
+		try {
+			while (running) {
+				selector.select();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) continue;
+
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					Connection c = (Connection) key.attachment();
+					try {
+						if (key.isReadable()) read(c);
+						else if (key.isWritable()) write(c);
+					} catch (IOException e) {
+						// the user is gone, whatever it did not read yet is dropped
+						close(c);
+					}
+				}
+
+				// the first write commits the commands of all the users that were read, with a single fsync
+				Connection c;
+				while ((c = answering.poll()) != null) {
+					try {
+						if (c.key.isValid()) write(c);
+					} catch (IOException e) {
+						close(c);
+					}
+				}
+			}
+		} finally {
+			for (SelectionKey key : selector.keys())
+				if (key.attachment() != null) close((Connection) key.attachment());
+			selector.close();
+			server.close();
+		}
+	}
+
+	/**
+	 * stop serving, the thread that runs serve closes all the connections and returns
+	 */
+	@Override
+	public void close() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * accept all the users waiting to connect
+	 * @throws IOException
+	 */
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = server.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+			key.attach(new Connection(channel, key));
+		}
+	}
+
+	/**
+	 * @param c
+	 * read whatever the user sent, and run all the complete lines. the answers are sent at the end of
+	 * the round, once all the users were read
+	 * @throws IOException
+	 */
+	private void read(Connection c) throws IOException {
+		if (c.channel.read(c.in) < 0) c.eof = true;
+		run(c);
+		answering.add(c);
+	}
+
+	/**
+	 * @param c
+	 * commit the changes, send as much of the answers as the network takes, and go on running the commands
+	 * of the user once the backlog is low again
+	 * @throws IOException
+	 */
+	private void write(Connection c) throws IOException {
+		c.seal();
+		while (!c.pending.isEmpty()) {
+			lib.commit();
+			int n = 0;
+			for (ByteBuffer b : c.pending) {
+				if (n == MAX_GATHER) break;
+				gather[n++] = b;
+			}
+			long written = c.channel.write(gather, 0, n);
+			Arrays.fill(gather, 0, n, null);
+			c.backlog -= written;
+			while (!c.pending.isEmpty() && !c.pending.peekFirst().hasRemaining())
+				release(c.pending.pollFirst());
+			if (!c.pending.isEmpty() && written == 0) break;
+			if (c.pending.isEmpty() && !c.closing && c.backlog < MAX_BACKLOG) {
+				// the backlog was sent, run the commands that were held back meanwhile
+				run(c);
+				c.seal();
+			}
+		}
+
+		if (c.pending.isEmpty() && c.closing) {
+			close(c);
+			return;
+		}
+		int ops = 0;
+		if (!c.closing && !c.eof && c.backlog < MAX_BACKLOG) ops |= SelectionKey.OP_READ;
+		if (!c.pending.isEmpty()) ops |= SelectionKey.OP_WRITE;
+		c.key.interestOps(ops);
+	}
+
+	/**
+	 * @param c
+	 * run the complete lines of the connection, until there are none left or the backlog is too large
+	 */
+	private void run(Connection c) {
+		current = c;
+		try {
+			while (!c.closing && c.backlog < MAX_BACKLOG) {
+				if (runLine(c)) continue;
+
+				// no complete line is left, make room for more and decode it
+				if (!compact(c)) return;
+				int decoded = c.chars.position();
+				c.in.flip();
+				c.decoder.decode(c.in, c.chars, c.eof);
+				c.in.compact();
+				if (c.chars.position() == decoded) {
+					if (c.eof) {
+						// the last line of the user may not end with a line end
+						if (c.start < decoded) command(c, c.start, decoded);
+						c.start = c.scanned = decoded;
+						c.closing = true;
+					}
+					return;
+				}
+			}
+		} finally {
+			current = null;
+		}
+	}
+
+	/**
+	 * @param c
+	 * @return true iff a complete line was found and run
+	 */
+	private boolean runLine(Connection c) {
+		char[] chars = c.chars.array();
+		int end = c.chars.position();
+		for (int i = c.scanned; i < end; i++) {
+			if (chars[i] == '\n') {
+				command(c, c.start, i > c.start && chars[i - 1] == '\r' ? i - 1 : i);
+				c.start = c.scanned = i + 1;
+				return true;
+			}
+		}
+		c.scanned = end;
+		return false;
+	}
+
+	/**
+	 * @param c
+	 * @return false if the buffer is full of a single line that is too long, the user is dropped then
+	 */
+	private boolean compact(Connection c) {
+		char[] chars = c.chars.array();
+		int end = c.chars.position();
+		if (c.start == 0 && end == chars.length) {
+			byte[] error = "command too long!\n".getBytes(UTF8);
+			c.append(error, 0, error.length);
+			c.closing = true;
+			return false;
+		}
+		System.arraycopy(chars, c.start, chars, 0, end - c.start);
+		c.chars.position(end - c.start);
+		c.scanned -= c.start;
+		c.start = 0;
+		return true;
+	}
+
+	/**
+	 * @param c
+	 * @param start
+	 * @param end
+	 * run the characters start..end-1 of the connection as a command
+	 */
+	private void command(Connection c, int start, int end) {
+		try {
+			parser.doCommand(line.set(c.chars.array(), start, end));
+		} catch (RuntimeException e) {
+			// a bad command (like an id that is not a number) only fails itself
+			byte[] error = ("bad command: " + e.getMessage() + "\n").getBytes(UTF8);
+			c.append(error, 0, error.length);
+		}
+	}
+
+	/**
+	 * @param c
+	 * drop the connection and return its buffers to the pool
+	 */
+	private void close(Connection c) {
+		c.key.cancel();
+		try {
+			c.channel.close();
+		} catch (IOException e) {
+			// it is closed either way
+		}
+		c.seal();
+		while (!c.pending.isEmpty())
+			release(c.pending.poll());
+	}
+
+	/**
+	 * @return an empty output buffer
+	 */
+	private ByteBuffer allocate() {
+		ByteBuffer b = pool.poll();
+		return b != null ? b : ByteBuffer.allocateDirect(OUT_BUFFER);
+	}
+
+	/**
+	 * @param b
+	 * return the buffer to the pool
+	 */
+	private void release(ByteBuffer b) {
+		if (pool.size() < MAX_POOLED) {
+			b.clear();
+			pool.add(b);
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package maman18.data;
+
+/**
+ * @author Shlomi.v
+ *
+ * @param <V> - the type of the Values
+ *
+ * a LongIndex on top of an Index of Long keys, for the kinds of indexes that have no
+ * version specialized for long keys. notice every call boxes its key.
+ * it is an IntIndex as well, the int keys are widened to longs
+ */
+public class BoxedLongIndex<V> implements LongIndex<V>, IntIndex<V> {
+	private final Index<Long, V> index;
+
+	/**
+	 * @param index - the index that actually holds the items
+	 */
+	public BoxedLongIndex(Index<Long, V> index) {
+		this.index = index;
+	}
+
+	public void put(long key, V value) {
+		index.put(key, value);
+	}
+
+	public V get(long key) {
+		return index.get(key);
+	}
+
+	public void remove(long key) {
+		index.remove(key);
+	}
+
+	public boolean containsKey(long key) {
+		return index.containsKey(key);
+	}
+
+	public void put(int key, V value) {
+		index.put((long) key, value);
+	}
+
+	public V get(int key) {
+		return index.get((long) key);
+	}
+
+	public void remove(int key) {
+		index.remove((long) key);
+	}
+
+	public boolean containsKey(int key) {
+		return index.containsKey((long) key);
+	}
+
+	public boolean isEmpty() {
+		return index.isEmpty();
+	}
+
+	public boolean isNotEmpty() {
+		return index.isNotEmpty();
+	}
+
+	public int getSize() {
+		return index.getSize();
+	}
+
+	public void foreach(Do<V> action) {
+		index.foreach(action);
+	}
+}
@@ -0,0 +1,28 @@
+package maman18.data;
+
+/**
+ * @author Shlomi.v
+ *
+ * @param <K> - the type of the Key
+ * @param <V> - the type of the Values
+ *
+ * the basic key/value operations shared by all of our trees,
+ * so the Library can choose how each of its indexes is stored
+ */
+public interface Index<K, V> {
+	public void put(K key, V value);
+
+	public V get(K key);
+
+	public void remove(K key);
+
+	public boolean containsKey(K key);
+
+	public boolean isEmpty();
+
+	public boolean isNotEmpty();
+
+	public int getSize();
+
+	public void foreach(Do<V> action);
+}
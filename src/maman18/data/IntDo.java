@@ -0,0 +1,11 @@
+package maman18.data;
+
+/**
+ * @author Shlomi.v
+ *
+ * @param <T> - the type of the value
+ * a callback interface for int-keyed traversals, gets both the primitive key and its value
+ */
+public interface IntDo<T> {
+	public void action(int key, T t);
+}
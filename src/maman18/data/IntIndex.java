@@ -0,0 +1,26 @@
+package maman18.data;
+
+/**
+ * @author Shlomi.v
+ *
+ * @param <V> - the type of the Values
+ *
+ * the same as Index, for indexes keyed by primitive ints
+ */
+public interface IntIndex<V> {
+	public void put(int key, V value);
+
+	public V get(int key);
+
+	public void remove(int key);
+
+	public boolean containsKey(int key);
+
+	public boolean isEmpty();
+
+	public boolean isNotEmpty();
+
+	public int getSize();
+
+	public void foreach(Do<V> action);
+}
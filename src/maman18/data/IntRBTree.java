@@ -0,0 +1,948 @@
+package maman18.data;
+
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * @author Shlomi.v
+ *
+ * @param <V> - the type of the Values
+ * 
+ * This is a version of RBTree that is specialized for primitive int keys.
+ * the keys are kept as plain int fields and compared with Integer.compare, so there is no boxing
+ * of Integer keys and no call through a Comparator on every level of the tree.
+ * other than that, the algorithms are exactly the same as in RBTree, and so are the ways to visit the
+ * entries: by rank (select, and a page at a time), in order with an iterator, over a range of keys, or with
+ * a stream. the entries are the nodes themselves, so iterating allocates nothing, and the key is only
+ * boxed if getKey is called.
+ * 
+ */
+public class IntRBTree<V> implements IntIndex<V>, Iterable<Map.Entry<Integer, V>> {
+
+	enum Color {
+		RED, BLACK
+	};
+
+	/**
+	 * the keys are always ordered by their natural int order
+	 * 
+	 * notice this method is private. in order to construct a new IntRBTree, see empty below
+	 */
+	private IntRBTree() {
+	}
+	
+	/**
+	 * @return a new empty IntRBTree
+	 */
+	static public <V> IntRBTree<V> empty() {
+		return new IntRBTree<V>();
+	}
+
+	/**
+	 * @param keys - the keys, sorted and with no duplicates
+	 * @param values - the value of each key
+	 * @param n - the number of entries to take from the arrays
+	 * @return a new IntRBTree holding the n entries
+	 * @throws IllegalArgumentException if the keys are not sorted
+	 * builds the tree bottom-up with no rotations, see RBTree.fromSorted
+	 * Complexity: O(n)
+	 */
+	static public <V> IntRBTree<V> fromSorted(int[] keys, V[] values, int n) {
+		for (int i = 1; i < n; i++)
+			if (keys[i - 1] >= keys[i])
+				throw new IllegalArgumentException("the keys are not sorted: " + keys[i - 1] + " before " + keys[i]);
+		IntRBTree<V> t = new IntRBTree<V>();
+		t.root = t.build(keys, values, 0, n - 1, 0, RBTree.redLevel(n));
+		t.modCount++;
+		return t;
+	}
+
+	/**
+	 * @param keys
+	 * @param values
+	 * @param lo
+	 * @param hi
+	 * @param level - the depth of the built subtree in the whole tree
+	 * @param redLevel - the depth of the nodes to color red
+	 * @return the root of a balanced tree holding the entries lo..hi
+	 * a recursive helper of fromSorted
+	 */
+	private Node build(int[] keys, V[] values, int lo, int hi, int level, int redLevel) {
+		if (hi < lo) return null;
+		final int mid = (lo + hi) >>> 1;
+		final Node left = build(keys, values, lo, mid - 1, level + 1, redLevel);
+		final Node right = build(keys, values, mid + 1, hi, level + 1, redLevel);
+		final Node n = new Node(keys[mid], values[mid], null, left, right, level == redLevel ? Color.RED : Color.BLACK);
+		n.size = hi - lo + 1;
+		return n;
+	}
+
+	/**
+	 * @author Shlomi.v
+	 * the internal representation of a node in the tree,
+	 * including helper methods to navigate between the nodes.
+	 */
+	private class Node implements Map.Entry<Integer, V> {
+		int key;
+		V value;
+		Node parent;
+		Node left;
+		Node right;
+		Color color;
+		// the number of nodes in the subtree rooted in this node, kept up to date by insert, remove and the rotations
+		int size = 1;
+		@Override
+	    public String toString() {
+	    	return "("+key+","+value+"," +color+")";
+	    }
+		Node(int key, V value, Node parent, Node left, Node right, Color color) {
+			this.key = key;
+			this.value = value;
+			this.left = left;
+			this.right = right;
+			this.parent = parent;
+			this.color = color;
+			if (left != null)
+				left.parent = this;
+			if (right != null)
+				right.parent = this;
+		}
+
+		/* the entry methods, a node is the entry that the iterators return */
+		@Override
+		public Integer getKey() {
+			return key;
+		}
+
+		@Override
+		public V getValue() {
+			return value;
+		}
+
+		@Override
+		public V setValue(V value) {
+			V old = this.value;
+			this.value = value;
+			return old;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Map.Entry)) return false;
+			Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+			return Integer.valueOf(key).equals(e.getKey())
+					&& (value == null ? e.getValue() == null : value.equals(e.getValue()));
+		}
+
+		@Override
+		public int hashCode() {
+			return Integer.hashCode(key) ^ (value == null ? 0 : value.hashCode());
+		}
+
+		/* helper node navigation methods */
+		boolean isLeftChild() {
+			return parent.left == this;
+		}
+
+		boolean isRightChild() {
+			return parent.right == this;
+		}
+
+		Node uncle() {
+			return parent.brother();
+		}
+
+		Node grandparent() {
+			return parent.parent;
+		}
+
+		Node brother() {
+			return isLeftChild() ? parent.right : parent.left ;
+		}
+
+		/**
+		 * @return the node that has the largest value
+		 * a recursive method that only goes right
+		 * Complexity: O(lgn)
+		 */
+		private Node maximumNode() {
+			if (right == null)
+				return this;
+			return right.maximumNode();
+		}
+
+		/**
+		 * @param key
+		 * @param value
+		 * @return the newly inserted node, or null if the key already existed and only its value was replaced
+		 * this is a recursive implementation of tree insert
+		 */
+		private Node insert(int key, V value) {
+			final int ord = Integer.compare(key, this.key);
+			if (ord == 0) {
+				this.value = value;
+				return null;
+			}
+
+			final Node n;
+			if (ord < 0) {
+				if (left != null) n = left.insert(key, value);
+				else n = left = new Node(key, value, this, null, null, Color.RED);
+			} else {
+				if (right != null) n = right.insert(key, value);
+				else n = right = new Node(key, value, this, null, null, Color.RED);
+			}
+
+			// a new node was added below this one
+			if (n != null) size++;
+			return n;
+		}
+
+		/**
+		 * @return the maximum depth of the tree rooted in this node
+		 * this is a helper method for testing..
+		 */
+		private int maxDepth() {
+			if (left == null && right == null) return 1;
+			if (left == null && right != null) return 1+right.maxDepth();
+			if (left != null && right == null) return 1+left.maxDepth();
+			return 1+Math.max(left.maxDepth(), right.maxDepth());
+		}
+		
+		/**
+		 * @return the number of elements in the tree rooted in this node
+		 * Complexity: O(1)
+		 */
+		private int getSize() {
+			return size;
+		}
+
+		/**
+		 * recount the size of this node from its children, after they were changed by a rotation
+		 */
+		private void updateSize() {
+			size = 1 + size(left) + size(right);
+		}
+
+		/**
+		 * @param from
+		 * @param to
+		 * @param base - the rank of the smallest item in the tree rooted in this node
+		 * @param action
+		 * perform an in-order scan of the items ranked from..to-1 in this tree, skipping the subtrees outside of it
+		 */
+		public void foreach(int from, int to, int base, Do<V> action) {
+			int rank = base + size(left);
+			if (left != null && from < rank) left.foreach(from, to, base, action);
+			if (from <= rank && rank < to) action.action(value);
+			if (right != null && rank + 1 < to) right.foreach(from, to, rank + 1, action);
+		}
+		
+		/**
+		 * @param action - the action that will get executed during tree traversal
+		 * perform an in-order scan of this tree, running action over each item
+		 */
+		public void foreach(Do<V> action) {
+			if (left != null) left.foreach(action);
+			action.action(value);
+			if (right != null) right.foreach(action);
+		}
+
+		/**
+		 * @param action - the action that will get executed during tree traversal
+		 * perform an in-order scan of this tree, running action over each key and item
+		 */
+		public void foreach(IntDo<V> action) {
+			if (left != null) left.foreach(action);
+			action.action(key, value);
+			if (right != null) right.foreach(action);
+		}
+	}
+
+	/**
+	 * @param key
+	 * @param value
+	 * this method adds a new key/value pair to this RBTree
+	 */
+	public void put(int key, V value) {
+		// if we have an empty tree, so simply insert a root node and make sure its black
+		if (root == null) {
+			root = new Node(key, value, null, null, null, Color.BLACK);
+			modCount++;
+			return;
+		}
+
+		// this tree is not empty, so insert a new node to the root tree, and fix it to satisfy all 5 red-black properties
+		// (if the key was already in the tree, only its value was replaced and there is nothing to fix)
+		final Node n = root.insert(key, value);
+		if (n != null) {
+			modCount++;
+			fixRedBlackInsert(n);
+		}
+	}
+
+	/**
+	 * @param node
+	 * @return the color of the node
+	 * ***NOTE*** we are using nulls instead of Nil[T], so we define a null node to have the color Black
+	 */
+	Color getColor(final Node node) {
+		// return the color of the node, a null node is black (instead of Nil[T])
+		return node == null ? Color.BLACK : node.color;
+	}
+
+	// the RBTree's root
+	Node root = null;
+
+	// the number of nodes added and removed so far, the iterators use it to notice changes
+	int modCount = 0;
+
+	// the counters of the work this tree does
+	private final TreeStats stats = new TreeStats();
+
+	/**
+	 * @param key 
+	 * @return the found node
+	 * an iterative find node method. each loop goes one level down the tree.
+	 * Complexity: O(lgn)
+	 */
+	private Node findNode(final int key) {
+		Node p = root;
+		int steps = 0;
+		while (p != null) {
+			steps++;
+			final int theOrder = Integer.compare(key, p.key);
+			if (theOrder == 0) break;
+			p = theOrder < 0 ? p.left : p.right;
+		}
+		stats.search(steps);
+		return p;
+	}
+
+	/**
+	 * @param key
+	 * @return the value associated with the given key
+	 * Complexity: O(lgn)
+	 */
+	public V get(final int key) {
+		final Node n = findNode(key);
+		return n == null ? null : n.value;
+	}
+
+	
+	/**
+	 * @param n - the node to rotate
+	 */
+	private void rotateLeft(final Node n) {
+		stats.rotations++;
+		final Node r = n.right;
+		replaceNode(n, r);
+		n.right = r.left;
+		if (r.left != null)
+			r.left.parent = n;
+		r.left = n;
+		n.parent = r;
+		r.size = n.size;
+		n.updateSize();
+	}
+
+	/**
+	 * @param n - the node to rotate
+	 */
+	private void rotateRight(final Node n) {
+		stats.rotations++;
+		final Node l = n.left;
+		replaceNode(n, l);
+		n.left = l.right;
+		if (l.right != null)
+			l.right.parent = n;
+		l.right = n;
+		n.parent = l;
+		l.size = n.size;
+		n.updateSize();
+	}
+	
+	/**
+	 * @param oldn - the node to override
+	 * @param newn - the node that will override
+	 * a helper method for rotating nodes
+	 */
+	private void replaceNode(final Node oldn, final Node newn) {
+		if (oldn.parent == null) 
+			root = newn;
+		else 
+			if (oldn.isLeftChild()) oldn.parent.left = newn;
+			else oldn.parent.right = newn;
+		
+		if (newn != null) newn.parent = oldn.parent;
+	}
+
+
+	
+	/**
+	 * @param z
+	 * fix insert in a red black tree
+	 */
+	private void fixRedBlackInsert(final Node z) {
+		// if we reached the tree's head, make sure its black
+		if (z.parent == null) {
+			z.color = Color.BLACK;
+			stats.recolorings++;
+		} else {
+			// otherwise, fix all cases..
+			if (getColor(z.parent) == Color.BLACK)
+				return;
+			else {
+				// case 1
+				if (getColor(z.uncle()) == Color.RED) {
+					z.parent.color = Color.BLACK;
+					z.uncle().color = Color.BLACK;
+					z.grandparent().color = Color.RED;
+					stats.recolorings += 3;
+					fixRedBlackInsert(z.grandparent());
+				} else {
+					// case 2
+					if (z.isRightChild() && z.parent.isLeftChild()) {
+						rotateLeft(z.parent);
+						finalInsertFix(z.left);
+						return;
+					} else if (z.isLeftChild() && z.parent.isRightChild()) {
+						rotateRight(z.parent);
+						finalInsertFix(z.right);
+						return;
+					}
+					finalInsertFix(z);
+				}
+			}
+		}
+	}
+
+	
+	/**
+	 * @param z - the node to fix
+	 * this method is a helper to the fixup method..
+	 */
+	private void finalInsertFix(Node z) {
+		// case 3
+		z.parent.color = Color.BLACK;
+		z.grandparent().color = Color.RED;
+		stats.recolorings += 2;
+		if (z.isLeftChild() && z.parent.isLeftChild()) {
+			rotateRight(z.grandparent());
+		} else {
+			rotateLeft(z.grandparent());
+		}
+	}
+
+	/**
+	 * @param key
+	 * remove an item by its key.
+	 * since in this implementation, node is an internal class that does not get exposed outside
+	 * we dont remove the node by a reference to an existing node, rather we have to first 
+	 * find the node in a tree to get the reference and then remove it.
+	 * 
+	 * Complexity: O(lgn)
+	 */
+	public void remove(int key) {
+		Node n = findNode(key);
+		if (n == null)
+			return; // Key not found, do nothing
+		modCount++;
+		if (n.left != null && n.right != null) {
+			// Copy key/value from predecessor and then delete it instead
+			Node pred = n.left.maximumNode();
+			n.key = pred.key;
+			n.value = pred.value;
+			n = pred;
+		}
+
+		Node child = (n.right == null) ? n.left : n.right;
+		if (getColor(n) == Color.BLACK) {
+			n.color = getColor(child);
+			fixRedBlackDelete(n);
+		}
+		replaceNode(n, child);
+
+		// n is gone, so all of its ancestors lost a node
+		for (Node p = n.parent; p != null; p = p.parent)
+			p.size--;
+
+		if (getColor(root) == Color.RED) {
+			root.color = Color.BLACK;
+		}
+
+	}
+
+	/**
+	 * @param z 
+	 * this method runs up the tree, fixing colors and rotating nodes to maintain all 5
+	 * RBTree attributes
+	 * Complexity: O(lgn)
+	 */
+	private void fixRedBlackDelete(final Node z) {
+		if (z.parent == null)
+			return;
+		else {
+			// case 1, z is red
+			if (getColor(z.brother()) == Color.RED) {
+				z.parent.color = Color.RED;
+				z.brother().color = Color.BLACK;
+				stats.recolorings += 2;
+				if (z.isLeftChild())
+					rotateLeft(z.parent);
+				else
+					rotateRight(z.parent);
+			}
+			// case 2, z's brother is black, and both its sons are black
+			if (getColor(z.brother()) == Color.BLACK
+					&& getColor(z.brother().left) == Color.BLACK
+					&& getColor(z.brother().right) == Color.BLACK) {
+				
+				z.brother().color = Color.RED;
+				stats.recolorings++;
+				if (getColor(z.parent) == Color.BLACK) fixRedBlackDelete(z.parent);
+				else {
+					z.parent.color = Color.BLACK;
+					stats.recolorings++;
+				}
+			} 
+			else {
+				// case 3, z's brother is black, left child is red and right child is black
+				if (z.isLeftChild()
+					&& getColor(z.brother()) == Color.BLACK
+					&& getColor(z.brother().left) == Color.RED
+					&& getColor(z.brother().right) == Color.BLACK) {
+					
+					z.brother().color = Color.RED;
+					z.brother().left.color = Color.BLACK;
+					stats.recolorings += 2;
+					rotateRight(z.brother());
+				} else if (z.isRightChild()
+						&& getColor(z.brother()) == Color.BLACK
+						&& getColor(z.brother().right) == Color.RED
+						&& getColor(z.brother().left) == Color.BLACK) {
+					
+					z.brother().color = Color.RED;
+					z.brother().right.color = Color.BLACK;
+					stats.recolorings += 2;
+					rotateLeft(z.brother());
+				}
+				
+				// case 4, fix the colors of z's brother and z's parent
+				z.brother().color = getColor(z.parent);
+				z.parent.color = Color.BLACK;
+				stats.recolorings += 3;
+	
+				if (z.isLeftChild()) {
+					z.brother().right.color = Color.BLACK;
+					rotateLeft(z.parent);
+				} else {
+					z.brother().left.color = Color.BLACK;
+					rotateRight(z.parent);
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * @return the counters of the work this tree does (searches, rotations and recolorings)
+	 */
+	public TreeStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * @return the maximum depth in the tree
+	 * used to test that the tree.. 
+	 */
+	public int maxDepth() {
+		if (root == null) return 0;
+		return root.maxDepth();
+	}
+	
+	/**
+	 * @param key
+	 * @return true iff the key exists
+	 */
+	public boolean containsKey(int key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * @return true iff this IntRBTree is empty
+	 */
+	public boolean isEmpty() {
+		return root == null;
+	}
+	
+	/**
+	 * @return true iff this IntRBTree is NOT empty
+	 */
+	public boolean isNotEmpty() {
+		return !isEmpty();
+	}
+
+	/**
+	 * @return the value stored in the root element
+	 */
+	public V firstEntry() {
+		return root.value;
+	}
+	
+	/**
+	 * @param action - the action to perform over each item in the tree
+	 * I was too lazy to write a linked list or a stack :)
+	 * so instead i used a function that will get executed during the tree traversal.. 
+	 * the traversal is done in-order, so the action gets on the keys in a sorted manner
+	 * Complexity: O(n)   
+	 */
+	public void foreach(Do<V> action) {
+		if (root != null) root.foreach(action);
+	}
+
+	/**
+	 * @param action - the action to perform over each key and item in the tree
+	 * same as foreach above, but the action also gets the primitive key of each item
+	 * Complexity: O(n)   
+	 */
+	public void foreach(IntDo<V> action) {
+		if (root != null) root.foreach(action);
+	}
+
+	/**
+	 * @return the number of nodes in this tree
+	 * Complexity: O(1)
+	 */
+	public int getSize() {
+		return root == null ? 0 : root.getSize();
+	}
+
+	/**
+	 * @param n
+	 * @return the number of nodes in the tree rooted in n, a null node is an empty tree
+	 */
+	private int size(final Node n) {
+		return n == null ? 0 : n.size;
+	}
+
+	/**
+	 * @param key
+	 * @return the number of keys in this tree that are smaller than key.
+	 * if the key is in the tree, this is its index in the sorted order
+	 * Complexity: O(lgn)
+	 */
+	public int rank(final int key) {
+		int rank = 0;
+		Node p = root;
+		while (p != null) {
+			final int ord = Integer.compare(key, p.key);
+			if (ord == 0) return rank + size(p.left);
+			if (ord < 0) {
+				p = p.left;
+			} else {
+				rank += size(p.left) + 1;
+				p = p.right;
+			}
+		}
+		return rank;
+	}
+
+	/**
+	 * @param k
+	 * @return the value of the k-th smallest key (counting from 0), or null if there are no k+1 keys
+	 * Complexity: O(lgn)
+	 */
+	public V select(int k) {
+		final Node n = selectNode(k);
+		return n == null ? null : n.value;
+	}
+
+	/**
+	 * @param k
+	 * @return the node with the k-th smallest key, or null if there are no k+1 keys
+	 * Complexity: O(lgn)
+	 */
+	private Node selectNode(int k) {
+		if (k < 0 || k >= getSize()) return null;
+		Node p = root;
+		while (true) {
+			int left = size(p.left);
+			if (k == left) return p;
+			if (k < left) {
+				p = p.left;
+			} else {
+				k -= left + 1;
+				p = p.right;
+			}
+		}
+	}
+
+	/**
+	 * @param from - the rank of the first item to visit
+	 * @param to - the rank after the last item to visit
+	 * @param action - the action to perform over each item
+	 * visit one page of the items, in the order of their keys, without going over the items before it.
+	 * Complexity: O(lgn + to-from)
+	 */
+	public void foreach(int from, int to, Do<V> action) {
+		if (root != null && from < to) root.foreach(from, to, 0, action);
+	}
+
+	/* ordered access: ceiling/floor, iterators, range scans and streams, the same as in RBTree */
+
+	/**
+	 * @return the node with the smallest key, or null if the tree is empty
+	 * Complexity: O(lgn)
+	 */
+	private Node firstNode() {
+		Node p = root;
+		if (p != null)
+			while (p.left != null) p = p.left;
+		return p;
+	}
+
+	/**
+	 * @param n
+	 * @return the node with the next key after the key of n, or null if n is the last node
+	 * Complexity: O(lgn), and O(1) on average over a whole scan
+	 */
+	private Node successor(Node n) {
+		if (n.right != null) {
+			n = n.right;
+			while (n.left != null) n = n.left;
+			return n;
+		}
+		while (n.parent != null && n.isRightChild()) n = n.parent;
+		return n.parent;
+	}
+
+	/**
+	 * @param key
+	 * @return the node with the smallest key that is larger than or equal to key, or null if there is none
+	 * Complexity: O(lgn)
+	 */
+	private Node ceilingNode(final int key) {
+		Node p = root, ceiling = null;
+		while (p != null) {
+			int ord = Integer.compare(key, p.key);
+			if (ord == 0) return p;
+			if (ord < 0) {
+				ceiling = p;
+				p = p.left;
+			} else {
+				p = p.right;
+			}
+		}
+		return ceiling;
+	}
+
+	/**
+	 * @param key
+	 * @return the node with the largest key that is smaller than or equal to key, or null if there is none
+	 * Complexity: O(lgn)
+	 */
+	private Node floorNode(final int key) {
+		Node p = root, floor = null;
+		while (p != null) {
+			int ord = Integer.compare(key, p.key);
+			if (ord == 0) return p;
+			if (ord > 0) {
+				floor = p;
+				p = p.right;
+			} else {
+				p = p.left;
+			}
+		}
+		return floor;
+	}
+
+	/**
+	 * @param key
+	 * @return the entry with the smallest key that is larger than or equal to key, or null if there is none
+	 * Complexity: O(lgn)
+	 */
+	public Map.Entry<Integer, V> ceilingEntry(final int key) {
+		return ceilingNode(key);
+	}
+
+	/**
+	 * @param key
+	 * @return the entry with the largest key that is smaller than or equal to key, or null if there is none
+	 * Complexity: O(lgn)
+	 */
+	public Map.Entry<Integer, V> floorEntry(final int key) {
+		return floorNode(key);
+	}
+
+	/**
+	 * @return an iterator over all the entries, in the order of their keys
+	 * the entries are the nodes themselves, so setValue changes the tree
+	 */
+	@Override
+	public Iterator<Map.Entry<Integer, V>> iterator() {
+		return new EntryIterator(firstNode(), Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param from - the smallest key to visit
+	 * @param to - the key to stop before
+	 * @return the entries with from <= key < to, in the order of their keys
+	 * Complexity: O(lgn) to find from, and then O(1) on average per entry
+	 */
+	public Iterable<Map.Entry<Integer, V>> range(final int from, final int to) {
+		return new Iterable<Map.Entry<Integer, V>>() {
+			@Override
+			public Iterator<Map.Entry<Integer, V>> iterator() {
+				return new EntryIterator(ceilingNode(from), to);
+			}
+		};
+	}
+
+	/**
+	 * an in-order iterator that walks from node to node through the parent links, so it needs no stack
+	 */
+	private class EntryIterator implements Iterator<Map.Entry<Integer, V>> {
+		private Node next;
+		private Node lastReturned = null;
+		// a long, so every int key can be below it
+		private final long to;
+		private int expectedModCount = modCount;
+
+		/**
+		 * @param first - the first node to visit
+		 * @param to - the key to stop before, or Long.MAX_VALUE to visit all the nodes after first
+		 */
+		EntryIterator(Node first, long to) {
+			this.to = to;
+			this.next = inRange(first) ? first : null;
+		}
+
+		private boolean inRange(Node n) {
+			return n != null && n.key < to;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Map.Entry<Integer, V> next() {
+			if (next == null) throw new NoSuchElementException();
+			if (modCount != expectedModCount) throw new ConcurrentModificationException();
+			lastReturned = next;
+			next = successor(next);
+			if (!inRange(next)) next = null;
+			return lastReturned;
+		}
+
+		/**
+		 * remove the last entry that was returned.
+		 * remove replaces a node with two children by its predecessor, so the next node is not touched
+		 */
+		@Override
+		public void remove() {
+			if (lastReturned == null) throw new IllegalStateException();
+			if (modCount != expectedModCount) throw new ConcurrentModificationException();
+			IntRBTree.this.remove(lastReturned.key);
+			lastReturned = null;
+			expectedModCount = modCount;
+		}
+	}
+
+	/**
+	 * @return a spliterator over all the entries, in the order of their keys.
+	 * it splits by rank, using the subtree sizes, so both halves are always the same size (see RBTree.spliterator)
+	 */
+	@Override
+	public Spliterator<Map.Entry<Integer, V>> spliterator() {
+		return new EntrySpliterator(0, getSize());
+	}
+
+	/**
+	 * @return a stream of all the entries, in the order of their keys. call parallel() on it
+	 * to spread the work over all the cores, as long as the tree is not changed while it runs
+	 */
+	public Stream<Map.Entry<Integer, V>> stream() {
+		return StreamSupport.stream(spliterator(), false);
+	}
+
+	/**
+	 * a spliterator over the entries ranked lo..hi-1.
+	 * the node at rank lo is only found when the first entry is needed, so splitting is O(1)
+	 */
+	private class EntrySpliterator implements Spliterator<Map.Entry<Integer, V>> {
+		private int lo;
+		private final int hi;
+		private Node current = null;
+		private final int expectedModCount = modCount;
+
+		EntrySpliterator(int lo, int hi) {
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super Map.Entry<Integer, V>> action) {
+			if (lo >= hi) return false;
+			if (modCount != expectedModCount) throw new ConcurrentModificationException();
+			if (current == null) current = selectNode(lo);
+			final Node n = current;
+			current = ++lo < hi ? successor(n) : null;
+			action.accept(n);
+			return true;
+		}
+
+		@Override
+		public void forEachRemaining(Consumer<? super Map.Entry<Integer, V>> action) {
+			if (lo >= hi) return;
+			if (modCount != expectedModCount) throw new ConcurrentModificationException();
+			Node n = current == null ? selectNode(lo) : current;
+			for (; lo < hi && n != null; lo++) {
+				action.accept(n);
+				n = successor(n);
+			}
+			current = null;
+			if (modCount != expectedModCount) throw new ConcurrentModificationException();
+		}
+
+		@Override
+		public Spliterator<Map.Entry<Integer, V>> trySplit() {
+			if (hi - lo < 2) return null;
+			final int mid = (lo + hi) >>> 1;
+			EntrySpliterator prefix = new EntrySpliterator(lo, mid);
+			prefix.current = current;
+			lo = mid;
+			current = null;
+			return prefix;
+		}
+
+		@Override
+		public long estimateSize() {
+			return hi - lo;
+		}
+
+		@Override
+		public int characteristics() {
+			return ORDERED | SORTED | DISTINCT | SIZED | SUBSIZED | NONNULL;
+		}
+
+		@Override
+		public Comparator<? super Map.Entry<Integer, V>> getComparator() {
+			return new Comparator<Map.Entry<Integer, V>>() {
+				@Override
+				public int compare(Map.Entry<Integer, V> e1, Map.Entry<Integer, V> e2) {
+					return Integer.compare(e1.getKey(), e2.getKey());
+				}
+			};
+		}
+	}
+}
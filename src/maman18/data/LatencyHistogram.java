@@ -0,0 +1,136 @@
+package maman18.data;
+
+/**
+ * @author Shlomi.v
+ *
+ * A histogram of latencies (in nanoseconds), with a fixed number of buckets so recording a value
+ * never allocates.
+ *
+ * the buckets are log-linear: every power of 2 is split into SUB_BUCKETS buckets of the same width, so a
+ * value is always kept within 1/SUB_BUCKETS of itself (12.5%), from a few nanoseconds up to hours, in
+ * a few hundred counters. finding the bucket of a value is a count of its leading zeros and a shift.
+ *
+ * a histogram is written by a single thread. another thread that reads it (like a JMX client) may see
+ * it a little behind.
+ */
+public final class LatencyHistogram {
+
+	// the buckets each power of 2 is split into, and its log
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	// the values below this have a bucket of their own
+	private static final int LINEAR = 2 * SUB_BUCKETS;
+
+	private static final int BUCKETS = LINEAR + (63 - SUB_BITS - 1) * SUB_BUCKETS;
+
+	private final long[] counts = new long[BUCKETS];
+	private long count = 0;
+	private long total = 0;
+	private long max = 0;
+
+	/**
+	 * @param value
+	 * @return the bucket of the value
+	 */
+	private static int bucket(long value) {
+		if (value < LINEAR) return (int) value;
+		int exp = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR + (exp - SUB_BITS - 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @param bucket
+	 * @return the largest value that falls in the bucket
+	 */
+	private static long highest(int bucket) {
+		if (bucket < LINEAR) return bucket;
+		int exp = (bucket - LINEAR) / SUB_BUCKETS + SUB_BITS + 1;
+		long sub = (bucket - LINEAR) % SUB_BUCKETS;
+		long width = 1L << (exp - SUB_BITS);
+		return (1L << exp) + (sub + 1) * width - 1;
+	}
+
+	/**
+	 * @param nanos
+	 * add a latency to the histogram
+	 * Complexity: O(1)
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) nanos = 0;
+		counts[bucket(nanos)]++;
+		count++;
+		total += nanos;
+		if (nanos > max) max = nanos;
+	}
+
+	/**
+	 * @return the number of latencies recorded
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the average latency, in nanoseconds
+	 */
+	public double getMean() {
+		long n = count;
+		return n == 0 ? 0 : (double) total / n;
+	}
+
+	/**
+	 * @return the highest latency, in nanoseconds
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * @param percentile - between 0 and 100
+	 * @return the latency that this percentile of the latencies is not above (rounded up to its bucket),
+	 * in nanoseconds
+	 * Complexity: O(number of buckets)
+	 */
+	public long getPercentile(double percentile) {
+		long n = count;
+		if (n == 0) return 0;
+		long rank = (long) Math.ceil(percentile / 100 * n);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank && seen > 0) return Math.min(highest(i), max);
+		}
+		return max;
+	}
+
+	/**
+	 * @param other
+	 * add all the latencies of other to this histogram
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++)
+			counts[i] += other.counts[i];
+		count += other.count;
+		total += other.total;
+		max = Math.max(max, other.max);
+	}
+
+	/**
+	 * forget all the latencies
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			counts[i] = 0;
+		count = 0;
+		total = 0;
+		max = 0;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count=%d mean=%.0fns p50=%dns p99=%dns p999=%dns max=%dns",
+				count, getMean(), getPercentile(50), getPercentile(99), getPercentile(99.9), max);
+	}
+}
@@ -0,0 +1,1080 @@
+package maman18.data;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * @author Shlomi.v
+ *
+ * @param <V> - the type of the Values
+ *
+ * This is an RB-Tree without a Node object per entry, specialized for primitive long keys.
+ * the keys are kept in a long array and compared with Long.compare, so there is no boxing, no call through a
+ * Comparator, and no key object per node at all. the algorithms are the same as in RBTree.
+ * A node is just an index into a set of parallel arrays:
+ *  (*) keys/values hold the entry itself
+ *  (*) left/right/parent hold the indexes of the neighbour nodes
+ *  (*) sizes holds the number of nodes in the subtree of each node, for rank and select
+ *  (*) the color of each node is a single bit in the red bitset
+ *
+ * Index 0 is never used by a real node and plays the role of null (Nil[T]), so it is always black,
+ * and its subtree is always empty.
+ * Removed nodes are put on a free list (chained through the left array) and reused by the next put.
+ *
+ * the entries can be visited just like in RBTree: by rank, in order with an iterator, over a range of keys,
+ * or with a stream. there are no node objects, so each entry an iterator returns is a small view of its node.
+ *
+ */
+public class LongArrayRBTree<V> implements LongIndex<V>, Iterable<Map.Entry<Long, V>> {
+
+	// the index used as a null reference
+	private static final int NIL = 0;
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	// the node storage, each node i is made of keys[i], values[i], left[i], right[i], parent[i], sizes[i]
+	// and bit i of red
+	private long[] keys;
+	private Object[] values;
+	private int[] left;
+	private int[] right;
+	private int[] parent;
+	private int[] sizes;
+	private int[] red;
+
+	// the RBTree's root
+	private int root = NIL;
+
+	// the first never used index, and the head of the free list of removed nodes
+	private int next = 1;
+	private int free = NIL;
+
+	// the number of nodes added and removed so far, the iterators use it to notice changes
+	private int modCount = 0;
+
+	// the counters of the work this tree does
+	private final TreeStats stats = new TreeStats();
+
+	// the last node that was found or added, when finger search is on (see setFingerSearch)
+	private boolean fingerSearch = false;
+	private int finger = NIL;
+
+	/**
+	 * the keys are always ordered by their natural long order
+	 *
+	 * notice this method is private. in order to construct a new LongArrayRBTree, see empty below
+	 */
+	private LongArrayRBTree() {
+		this(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * @param capacity - the initial length of the node arrays
+	 */
+	private LongArrayRBTree(int capacity) {
+		keys = new long[capacity];
+		values = new Object[capacity];
+		left = new int[capacity];
+		right = new int[capacity];
+		parent = new int[capacity];
+		sizes = new int[capacity];
+		red = new int[(capacity + 31) >>> 5];
+	}
+
+	/**
+	 * @return a new empty LongArrayRBTree
+	 */
+	static public <V> LongArrayRBTree<V> empty() {
+		return new LongArrayRBTree<V>();
+	}
+
+	/**
+	 * @param keys - the keys, sorted and with no duplicates
+	 * @param values - the value of each key
+	 * @param n - the number of entries to take from the arrays
+	 * @return a new LongArrayRBTree holding the n entries
+	 * @throws IllegalArgumentException if the keys are not sorted
+	 *
+	 * builds the tree bottom-up with no rotations, see RBTree.fromSorted.
+	 * node i holds the i-th smallest entry, so the entries are copied into the arrays as is, and the
+	 * tree is laid out in key order in the memory
+	 * Complexity: O(n)
+	 */
+	static public <V> LongArrayRBTree<V> fromSorted(long[] keys, V[] values, int n) {
+		for (int i = 1; i < n; i++)
+			if (keys[i - 1] >= keys[i])
+				throw new IllegalArgumentException("the keys are not sorted: " + keys[i - 1] + " before " + keys[i]);
+
+		LongArrayRBTree<V> t = new LongArrayRBTree<V>(Math.max(INITIAL_CAPACITY, n + 1));
+		System.arraycopy(keys, 0, t.keys, 1, n);
+		System.arraycopy(values, 0, t.values, 1, n);
+		t.root = t.build(1, n, NIL, 0, RBTree.redLevel(n));
+		t.next = n + 1;
+		return t;
+	}
+
+	/**
+	 * @param lo
+	 * @param hi
+	 * @param p - the parent of the built subtree
+	 * @param level - the depth of the built subtree in the whole tree
+	 * @param redLevel - the depth of the nodes to color red
+	 * @return the root of a balanced tree over the nodes lo..hi
+	 * a recursive helper of fromSorted, the nodes are already black
+	 */
+	private int build(int lo, int hi, int p, int level, int redLevel) {
+		if (hi < lo) return NIL;
+		final int mid = (lo + hi) >>> 1;
+		parent[mid] = p;
+		left[mid] = build(lo, mid - 1, mid, level + 1, redLevel);
+		right[mid] = build(mid + 1, hi, mid, level + 1, redLevel);
+		sizes[mid] = hi - lo + 1;
+		if (level == redLevel) setRed(mid);
+		return mid;
+	}
+
+	/* node field access, so the algorithms below read like the ones in RBTree */
+
+	private long key(int n) {
+		return keys[n];
+	}
+
+	@SuppressWarnings("unchecked")
+	private V value(int n) {
+		return (V) values[n];
+	}
+
+	/**
+	 * @param n
+	 * @return true iff n is red, the NIL node is always black
+	 */
+	private boolean isRed(int n) {
+		return (red[n >>> 5] & (1 << n)) != 0;
+	}
+
+	private boolean isBlack(int n) {
+		return !isRed(n);
+	}
+
+	private void setRed(int n) {
+		red[n >>> 5] |= 1 << n;
+	}
+
+	private void setBlack(int n) {
+		red[n >>> 5] &= ~(1 << n);
+	}
+
+	private void setColor(int n, boolean isRed) {
+		if (isRed) setRed(n);
+		else setBlack(n);
+	}
+
+	/* helper node navigation methods */
+	private boolean isLeftChild(int n) {
+		return left[parent[n]] == n;
+	}
+
+	private boolean isRightChild(int n) {
+		return right[parent[n]] == n;
+	}
+
+	private int grandparent(int n) {
+		return parent[parent[n]];
+	}
+
+	private int brother(int n) {
+		return isLeftChild(n) ? right[parent[n]] : left[parent[n]];
+	}
+
+	private int uncle(int n) {
+		return brother(parent[n]);
+	}
+
+	/**
+	 * @param key
+	 * @param value
+	 * @return the index of a fresh red node, taken from the free list if possible
+	 * Complexity: O(1) amortized
+	 */
+	private int newNode(long key, V value, int p) {
+		int n;
+		if (free != NIL) {
+			n = free;
+			free = left[n];
+		} else {
+			if (next == keys.length) grow();
+			n = next++;
+		}
+		keys[n] = key;
+		values[n] = value;
+		left[n] = NIL;
+		right[n] = NIL;
+		parent[n] = p;
+		sizes[n] = 1;
+		setRed(n);
+		modCount++;
+		return n;
+	}
+
+	/**
+	 * @param n - a node that was just added under its parent
+	 * count n in the sizes of all of its ancestors, this takes no compares
+	 * Complexity: O(lgn)
+	 */
+	private void countUp(int n) {
+		for (int p = parent[n]; p != NIL; p = parent[p])
+			sizes[p]++;
+	}
+
+	/**
+	 * @param n
+	 * return the node n to the free list, and drop the references it holds
+	 */
+	private void freeNode(int n) {
+		values[n] = null;
+		right[n] = NIL;
+		parent[n] = NIL;
+		sizes[n] = 0;
+		setBlack(n);
+		left[n] = free;
+		free = n;
+		modCount++;
+	}
+
+	/**
+	 * double the capacity of all the node arrays
+	 */
+	private void grow() {
+		int capacity = keys.length * 2;
+		keys = Arrays.copyOf(keys, capacity);
+		values = Arrays.copyOf(values, capacity);
+		left = Arrays.copyOf(left, capacity);
+		right = Arrays.copyOf(right, capacity);
+		parent = Arrays.copyOf(parent, capacity);
+		sizes = Arrays.copyOf(sizes, capacity);
+		red = Arrays.copyOf(red, (capacity + 31) >>> 5);
+	}
+
+	/**
+	 * @param key
+	 * @param value
+	 * this method adds a new key/value pair to this tree
+	 */
+	public void put(long key, V value) {
+		// if we have an empty tree, so simply insert a root node and make sure its black
+		if (root == NIL) {
+			root = newNode(key, value, NIL);
+			setBlack(root);
+			if (fingerSearch) finger = root;
+			return;
+		}
+
+		// a key next to the last one is put right there, without going down from the root
+		if (finger != NIL && putNearFinger(key, value))
+			return;
+
+		// an iterative tree insert, going down from the root
+		int p = root;
+		while (true) {
+			int ord = Long.compare(key, key(p));
+			if (ord == 0) {
+				// the key already exists, only replace its value
+				values[p] = value;
+				return;
+			}
+			int child = ord < 0 ? left[p] : right[p];
+			if (child == NIL) {
+				// notice newNode might grow the arrays, so only touch them after it returns
+				int n = newNode(key, value, p);
+				if (ord < 0) left[p] = n;
+				else right[p] = n;
+				countUp(n);
+				fixRedBlackInsert(n);
+				if (fingerSearch) finger = n;
+				return;
+			}
+			p = child;
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return the index of the found node, or NIL
+	 * an iterative find node method. each loop goes one level down the tree.
+	 * Complexity: O(lgn)
+	 */
+	private int findNode(final long key) {
+		int p = root;
+		int steps = 0;
+		while (p != NIL) {
+			steps++;
+			int theOrder = Long.compare(key, key(p));
+			if (theOrder == 0) break;
+			p = theOrder < 0 ? left[p] : right[p];
+		}
+		stats.search(steps);
+		return p;
+	}
+
+	/**
+	 * @param key
+	 * @return the value associated with the given key
+	 * Complexity: O(lgn)
+	 */
+	public V get(final long key) {
+		final int n = fingerSearch ? findNodeNearFinger(key) : findNode(key);
+		return n == NIL ? null : value(n);
+	}
+
+	/* finger search, see RBTree.setFingerSearch */
+
+	/**
+	 * @param on
+	 * turn finger search on or off. when it is on, the next get/put/remove first looks next to the last node
+	 * that was found or added, so runs of sequential keys cost O(1) compares each (see RBTree.setFingerSearch)
+	 */
+	public void setFingerSearch(boolean on) {
+		fingerSearch = on;
+		finger = on ? root : NIL;
+	}
+
+	/**
+	 * @param n
+	 * @return the node with the next key after the key of n, or NIL if n is the last node
+	 */
+	private int successor(int n) {
+		if (right[n] != NIL) {
+			n = right[n];
+			while (left[n] != NIL) n = left[n];
+			return n;
+		}
+		while (parent[n] != NIL && isRightChild(n)) n = parent[n];
+		return parent[n];
+	}
+
+	/**
+	 * @param n
+	 * @return the node with the previous key before the key of n, or NIL if n is the first node
+	 */
+	private int predecessor(int n) {
+		if (left[n] != NIL) {
+			n = left[n];
+			while (right[n] != NIL) n = right[n];
+			return n;
+		}
+		while (parent[n] != NIL && isLeftChild(n)) n = parent[n];
+		return parent[n];
+	}
+
+	/**
+	 * @param key
+	 * @return the node of the key, or NIL if there is none. the finger moves to the found node
+	 * looks next to the finger first, and goes down from the root only if the key is not near it
+	 */
+	private int findNodeNearFinger(final long key) {
+		final int f = finger;
+		if (f != NIL) {
+			final int ord = Long.compare(key, key(f));
+			if (ord == 0) return f;
+
+			// the neighbour of the finger on the side of the key
+			final int next = ord > 0 ? successor(f) : predecessor(f);
+			if (next == NIL) return NIL; // the key is beyond the first or the last key
+			final int nextOrd = Long.compare(key, key(next));
+			if (nextOrd == 0) return finger = next;
+			if ((nextOrd < 0) == (ord > 0)) return NIL; // the key falls between the finger and its neighbour
+		}
+
+		final int n = findNode(key);
+		if (n != NIL) finger = n;
+		return n;
+	}
+
+	/**
+	 * @param key
+	 * @param value
+	 * @return true iff the key was put next to the finger, false if it is not near it
+	 * a new node between the finger f and its neighbour goes under whichever of them has a free child
+	 * on that side: if f has a child there, then the neighbour is the leftmost (or rightmost) node of that subtree
+	 */
+	private boolean putNearFinger(long key, V value) {
+		final int f = finger;
+		final int ord = Long.compare(key, key(f));
+		if (ord == 0) {
+			values[f] = value;
+			return true;
+		}
+
+		final int next = ord > 0 ? successor(f) : predecessor(f);
+		if (next != NIL) {
+			final int nextOrd = Long.compare(key, key(next));
+			if (nextOrd == 0) {
+				values[next] = value;
+				finger = next;
+				return true;
+			}
+			if ((nextOrd < 0) != (ord > 0)) return false; // the key is beyond the neighbour
+		}
+
+		// notice newNode might grow the arrays, so only touch them after it returns
+		final int n;
+		if (ord > 0) {
+			if (right[f] == NIL) {
+				n = newNode(key, value, f);
+				right[f] = n;
+			} else {
+				n = newNode(key, value, next);
+				left[next] = n;
+			}
+		} else {
+			if (left[f] == NIL) {
+				n = newNode(key, value, f);
+				left[f] = n;
+			} else {
+				n = newNode(key, value, next);
+				right[next] = n;
+			}
+		}
+		countUp(n);
+		fixRedBlackInsert(n);
+		finger = n;
+		return true;
+	}
+
+	/**
+	 * @param n - the node to rotate
+	 */
+	private void rotateLeft(final int n) {
+		stats.rotations++;
+		final int r = right[n];
+		replaceNode(n, r);
+		right[n] = left[r];
+		if (left[r] != NIL)
+			parent[left[r]] = n;
+		left[r] = n;
+		parent[n] = r;
+		sizes[r] = sizes[n];
+		sizes[n] = 1 + sizes[left[n]] + sizes[right[n]];
+	}
+
+	/**
+	 * @param n - the node to rotate
+	 */
+	private void rotateRight(final int n) {
+		stats.rotations++;
+		final int l = left[n];
+		replaceNode(n, l);
+		left[n] = right[l];
+		if (right[l] != NIL)
+			parent[right[l]] = n;
+		right[l] = n;
+		parent[n] = l;
+		sizes[l] = sizes[n];
+		sizes[n] = 1 + sizes[left[n]] + sizes[right[n]];
+	}
+
+	/**
+	 * @param oldn - the node to override
+	 * @param newn - the node that will override
+	 * a helper method for rotating nodes
+	 */
+	private void replaceNode(final int oldn, final int newn) {
+		if (parent[oldn] == NIL)
+			root = newn;
+		else
+			if (isLeftChild(oldn)) left[parent[oldn]] = newn;
+			else right[parent[oldn]] = newn;
+
+		if (newn != NIL) parent[newn] = parent[oldn];
+	}
+
+	/**
+	 * @param z
+	 * fix insert in a red black tree, see RBTree for the cases
+	 */
+	private void fixRedBlackInsert(int z) {
+		while (true) {
+			// if we reached the tree's head, make sure its black
+			if (parent[z] == NIL) {
+				setBlack(z);
+				stats.recolorings++;
+				return;
+			}
+			if (isBlack(parent[z]))
+				return;
+
+			// case 1
+			if (isRed(uncle(z))) {
+				setBlack(parent[z]);
+				setBlack(uncle(z));
+				setRed(grandparent(z));
+				stats.recolorings += 3;
+				z = grandparent(z);
+				continue;
+			}
+
+			// case 2
+			if (isRightChild(z) && isLeftChild(parent[z])) {
+				rotateLeft(parent[z]);
+				z = left[z];
+			} else if (isLeftChild(z) && isRightChild(parent[z])) {
+				rotateRight(parent[z]);
+				z = right[z];
+			}
+
+			// case 3
+			setBlack(parent[z]);
+			setRed(grandparent(z));
+			stats.recolorings += 2;
+			if (isLeftChild(z) && isLeftChild(parent[z])) {
+				rotateRight(grandparent(z));
+			} else {
+				rotateLeft(grandparent(z));
+			}
+			return;
+		}
+	}
+
+	/**
+	 * @param key
+	 * remove an item by its key.
+	 *
+	 * Complexity: O(lgn)
+	 */
+	public void remove(long key) {
+		int n = fingerSearch ? findNodeNearFinger(key) : findNode(key);
+		if (n == NIL)
+			return; // Key not found, do nothing
+
+		// the next key is where the next remove of a run is going to look, and its node is never the one
+		// that gets freed below (that is either n or its predecessor)
+		if (fingerSearch) finger = successor(n);
+		if (left[n] != NIL && right[n] != NIL) {
+			// Copy key/value from predecessor and then delete it instead
+			int pred = left[n];
+			while (right[pred] != NIL) pred = right[pred];
+			keys[n] = keys[pred];
+			values[n] = values[pred];
+			n = pred;
+		}
+
+		int child = (right[n] == NIL) ? left[n] : right[n];
+		if (isBlack(n)) {
+			setColor(n, isRed(child));
+			fixRedBlackDelete(n);
+		}
+		replaceNode(n, child);
+
+		// n is gone, so all of its ancestors lost a node
+		for (int p = parent[n]; p != NIL; p = parent[p])
+			sizes[p]--;
+		freeNode(n);
+
+		if (isRed(root)) {
+			setBlack(root);
+		}
+	}
+
+	/**
+	 * @param z
+	 * this method runs up the tree, fixing colors and rotating nodes to maintain all 5
+	 * RBTree attributes, see RBTree for the cases
+	 * Complexity: O(lgn)
+	 */
+	private void fixRedBlackDelete(int z) {
+		while (parent[z] != NIL) {
+			// case 1, z's brother is red
+			if (isRed(brother(z))) {
+				setRed(parent[z]);
+				setBlack(brother(z));
+				stats.recolorings += 2;
+				if (isLeftChild(z))
+					rotateLeft(parent[z]);
+				else
+					rotateRight(parent[z]);
+			}
+
+			int b = brother(z);
+			// case 2, z's brother is black, and both its sons are black
+			if (isBlack(b) && isBlack(left[b]) && isBlack(right[b])) {
+				setRed(b);
+				stats.recolorings++;
+				if (isBlack(parent[z])) {
+					z = parent[z];
+					continue;
+				}
+				setBlack(parent[z]);
+				stats.recolorings++;
+				return;
+			}
+
+			// case 3, z's brother is black, the near child is red and the far child is black
+			if (isLeftChild(z) && isRed(left[b]) && isBlack(right[b])) {
+				setRed(b);
+				setBlack(left[b]);
+				stats.recolorings += 2;
+				rotateRight(b);
+			} else if (isRightChild(z) && isRed(right[b]) && isBlack(left[b])) {
+				setRed(b);
+				setBlack(right[b]);
+				stats.recolorings += 2;
+				rotateLeft(b);
+			}
+
+			// case 4, fix the colors of z's brother and z's parent
+			b = brother(z);
+			setColor(b, isRed(parent[z]));
+			setBlack(parent[z]);
+			stats.recolorings += 3;
+			if (isLeftChild(z)) {
+				setBlack(right[b]);
+				rotateLeft(parent[z]);
+			} else {
+				setBlack(left[b]);
+				rotateRight(parent[z]);
+			}
+			return;
+		}
+	}
+
+	/**
+	 * @return the counters of the work this tree does (searches, rotations and recolorings)
+	 */
+	public TreeStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * @return the maximum depth in the tree
+	 * used to test that the tree..
+	 */
+	public int maxDepth() {
+		return maxDepth(root);
+	}
+
+	private int maxDepth(int n) {
+		if (n == NIL) return 0;
+		return 1 + Math.max(maxDepth(left[n]), maxDepth(right[n]));
+	}
+
+	/**
+	 * @param key
+	 * @return true iff the key exists
+	 */
+	public boolean containsKey(long key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * @return true iff this tree is empty
+	 */
+	public boolean isEmpty() {
+		return root == NIL;
+	}
+
+	/**
+	 * @return true iff this tree is NOT empty
+	 */
+	public boolean isNotEmpty() {
+		return !isEmpty();
+	}
+
+	/**
+	 * @return the value stored in the root element
+	 */
+	public V firstEntry() {
+		return value(root);
+	}
+
+	/**
+	 * @param action - the action to perform over each item in the tree
+	 * an in-order traversal, so the action gets on the keys in a sorted manner
+	 * Complexity: O(n)
+	 */
+	public void foreach(Do<V> action) {
+		foreach(root, action);
+	}
+
+	private void foreach(int n, Do<V> action) {
+		if (n == NIL) return;
+		foreach(left[n], action);
+		action.action(value(n));
+		foreach(right[n], action);
+	}
+
+	/**
+	 * @return the number of nodes in this tree
+	 * Complexity: O(1)
+	 */
+	public int getSize() {
+		return sizes[root];
+	}
+
+	/**
+	 * @param key
+	 * @return the number of keys in this tree that are smaller than key.
+	 * if the key is in the tree, this is its index in the sorted order
+	 * Complexity: O(lgn)
+	 */
+	public int rank(final long key) {
+		int rank = 0;
+		int p = root;
+		while (p != NIL) {
+			int ord = Long.compare(key, key(p));
+			if (ord == 0) return rank + sizes[left[p]];
+			if (ord < 0) {
+				p = left[p];
+			} else {
+				rank += sizes[left[p]] + 1;
+				p = right[p];
+			}
+		}
+		return rank;
+	}
+
+	/**
+	 * @param k
+	 * @return the value of the k-th smallest key (counting from 0), or null if there are no k+1 keys
+	 * Complexity: O(lgn)
+	 */
+	public V select(int k) {
+		final int n = selectNode(k);
+		return n == NIL ? null : value(n);
+	}
+
+	/**
+	 * @param k
+	 * @return the node with the k-th smallest key, or NIL if there are no k+1 keys
+	 * Complexity: O(lgn)
+	 */
+	private int selectNode(int k) {
+		if (k < 0 || k >= getSize()) return NIL;
+		int p = root;
+		while (true) {
+			int l = sizes[left[p]];
+			if (k == l) return p;
+			if (k < l) {
+				p = left[p];
+			} else {
+				k -= l + 1;
+				p = right[p];
+			}
+		}
+	}
+
+	/**
+	 * @param from - the rank of the first item to visit
+	 * @param to - the rank after the last item to visit
+	 * @param action - the action to perform over each item
+	 * visit one page of the items, in the order of their keys, without going over the items before it.
+	 * Complexity: O(lgn + to-from)
+	 */
+	public void foreach(int from, int to, Do<V> action) {
+		if (from < to) foreach(root, from, to, 0, action);
+	}
+
+	/**
+	 * @param n
+	 * @param from
+	 * @param to
+	 * @param base - the rank of the smallest item in the tree rooted in n
+	 * @param action
+	 * an in-order scan of the items ranked from..to-1 in the tree rooted in n, skipping the subtrees outside of it
+	 */
+	private void foreach(int n, int from, int to, int base, Do<V> action) {
+		if (n == NIL) return;
+		int rank = base + sizes[left[n]];
+		if (from < rank) foreach(left[n], from, to, base, action);
+		if (from <= rank && rank < to) action.action(value(n));
+		if (rank + 1 < to) foreach(right[n], from, to, rank + 1, action);
+	}
+
+	/* ordered access: ceiling/floor, iterators, range scans and streams, the same as in RBTree */
+
+	/**
+	 * @return the node with the smallest key, or NIL if the tree is empty
+	 * Complexity: O(lgn)
+	 */
+	private int firstNode() {
+		int p = root;
+		if (p != NIL)
+			while (left[p] != NIL) p = left[p];
+		return p;
+	}
+
+	/**
+	 * @param key
+	 * @return the node with the smallest key that is larger than or equal to key, or NIL if there is none
+	 * Complexity: O(lgn)
+	 */
+	private int ceilingNode(final long key) {
+		int p = root, ceiling = NIL;
+		while (p != NIL) {
+			int ord = Long.compare(key, key(p));
+			if (ord == 0) return p;
+			if (ord < 0) {
+				ceiling = p;
+				p = left[p];
+			} else {
+				p = right[p];
+			}
+		}
+		return ceiling;
+	}
+
+	/**
+	 * @param key
+	 * @return the node with the largest key that is smaller than or equal to key, or NIL if there is none
+	 * Complexity: O(lgn)
+	 */
+	private int floorNode(final long key) {
+		int p = root, floor = NIL;
+		while (p != NIL) {
+			int ord = Long.compare(key, key(p));
+			if (ord == 0) return p;
+			if (ord > 0) {
+				floor = p;
+				p = right[p];
+			} else {
+				p = left[p];
+			}
+		}
+		return floor;
+	}
+
+	/**
+	 * @param key
+	 * @return the entry with the smallest key that is larger than or equal to key, or null if there is none
+	 * Complexity: O(lgn)
+	 */
+	public Map.Entry<Long, V> ceilingEntry(final long key) {
+		final int n = ceilingNode(key);
+		return n == NIL ? null : new Entry(n);
+	}
+
+	/**
+	 * @param key
+	 * @return the entry with the largest key that is smaller than or equal to key, or null if there is none
+	 * Complexity: O(lgn)
+	 */
+	public Map.Entry<Long, V> floorEntry(final long key) {
+		final int n = floorNode(key);
+		return n == NIL ? null : new Entry(n);
+	}
+
+	/**
+	 * a view of a node as an entry. setValue changes the tree.
+	 * notice the node may hold another entry once the tree is changed, just like the nodes of RBTree
+	 */
+	private class Entry implements Map.Entry<Long, V> {
+		private final int n;
+
+		Entry(int n) {
+			this.n = n;
+		}
+
+		@Override
+		public Long getKey() {
+			return keys[n];
+		}
+
+		@Override
+		public V getValue() {
+			return value(n);
+		}
+
+		@Override
+		public V setValue(V value) {
+			V old = value(n);
+			values[n] = value;
+			return old;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Map.Entry)) return false;
+			Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+			V value = getValue();
+			return getKey().equals(e.getKey()) && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+		}
+
+		@Override
+		public int hashCode() {
+			V value = getValue();
+			return Long.hashCode(keys[n]) ^ (value == null ? 0 : value.hashCode());
+		}
+
+		@Override
+		public String toString() {
+			return keys[n] + "=" + getValue();
+		}
+	}
+
+	/**
+	 * @return an iterator over all the entries, in the order of their keys
+	 */
+	@Override
+	public Iterator<Map.Entry<Long, V>> iterator() {
+		return new EntryIterator(firstNode(), NIL);
+	}
+
+	/**
+	 * @param from - the smallest key to visit
+	 * @param to - the key to stop before
+	 * @return the entries with from <= key < to, in the order of their keys
+	 * Complexity: O(lgn) to find from and to, and then O(1) on average per entry
+	 */
+	public Iterable<Map.Entry<Long, V>> range(final long from, final long to) {
+		return new Iterable<Map.Entry<Long, V>>() {
+			@Override
+			public Iterator<Map.Entry<Long, V>> iterator() {
+				if (from >= to) return new EntryIterator(NIL, NIL);
+				return new EntryIterator(ceilingNode(from), ceilingNode(to));
+			}
+		};
+	}
+
+	/**
+	 * an in-order iterator that walks from node to node through the parent links, so it needs no stack
+	 */
+	private class EntryIterator implements Iterator<Map.Entry<Long, V>> {
+		private int next;
+		private int lastReturned = NIL;
+		// the first node after the range, or NIL to go on to the last node
+		private final int end;
+		private int expectedModCount = modCount;
+
+		/**
+		 * @param first - the first node to visit
+		 * @param end - the node to stop at, without visiting it
+		 */
+		EntryIterator(int first, int end) {
+			this.end = end;
+			this.next = first == end ? NIL : first;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != NIL;
+		}
+
+		@Override
+		public Map.Entry<Long, V> next() {
+			if (next == NIL) throw new NoSuchElementException();
+			if (modCount != expectedModCount) throw new ConcurrentModificationException();
+			lastReturned = next;
+			next = successor(next);
+			if (next == end) next = NIL;
+			return new Entry(lastReturned);
+		}
+
+		/**
+		 * remove the last entry that was returned.
+		 * remove replaces a node with two children by its predecessor, so the next node is not touched
+		 */
+		@Override
+		public void remove() {
+			if (lastReturned == NIL) throw new IllegalStateException();
+			if (modCount != expectedModCount) throw new ConcurrentModificationException();
+			LongArrayRBTree.this.remove(keys[lastReturned]);
+			lastReturned = NIL;
+			expectedModCount = modCount;
+		}
+	}
+
+	/**
+	 * @return a spliterator over all the entries, in the order of their keys.
+	 * it splits by rank, using the subtree sizes, so both halves are always the same size (see RBTree.spliterator)
+	 */
+	@Override
+	public Spliterator<Map.Entry<Long, V>> spliterator() {
+		return new EntrySpliterator(0, getSize());
+	}
+
+	/**
+	 * @return a stream of all the entries, in the order of their keys. call parallel() on it
+	 * to spread the work over all the cores, as long as the tree is not changed while it runs
+	 */
+	public Stream<Map.Entry<Long, V>> stream() {
+		return StreamSupport.stream(spliterator(), false);
+	}
+
+	/**
+	 * a spliterator over the entries ranked lo..hi-1.
+	 * the node at rank lo is only found when the first entry is needed, so splitting is O(1)
+	 */
+	private class EntrySpliterator implements Spliterator<Map.Entry<Long, V>> {
+		private int lo;
+		private final int hi;
+		private int current = NIL;
+		private final int expectedModCount = modCount;
+
+		EntrySpliterator(int lo, int hi) {
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super Map.Entry<Long, V>> action) {
+			if (lo >= hi) return false;
+			if (modCount != expectedModCount) throw new ConcurrentModificationException();
+			if (current == NIL) current = selectNode(lo);
+			final int n = current;
+			current = ++lo < hi ? successor(n) : NIL;
+			action.accept(new Entry(n));
+			return true;
+		}
+
+		@Override
+		public void forEachRemaining(Consumer<? super Map.Entry<Long, V>> action) {
+			if (lo >= hi) return;
+			if (modCount != expectedModCount) throw new ConcurrentModificationException();
+			int n = current == NIL ? selectNode(lo) : current;
+			for (; lo < hi && n != NIL; lo++) {
+				action.accept(new Entry(n));
+				n = successor(n);
+			}
+			current = NIL;
+			if (modCount != expectedModCount) throw new ConcurrentModificationException();
+		}
+
+		@Override
+		public Spliterator<Map.Entry<Long, V>> trySplit() {
+			if (hi - lo < 2) return null;
+			final int mid = (lo + hi) >>> 1;
+			EntrySpliterator prefix = new EntrySpliterator(lo, mid);
+			prefix.current = current;
+			lo = mid;
+			current = NIL;
+			return prefix;
+		}
+
+		@Override
+		public long estimateSize() {
+			return hi - lo;
+		}
+
+		@Override
+		public int characteristics() {
+			return ORDERED | SORTED | DISTINCT | SIZED | SUBSIZED | NONNULL;
+		}
+
+		@Override
+		public Comparator<? super Map.Entry<Long, V>> getComparator() {
+			return new Comparator<Map.Entry<Long, V>>() {
+				@Override
+				public int compare(Map.Entry<Long, V> e1, Map.Entry<Long, V> e2) {
+					return Long.compare(e1.getKey(), e2.getKey());
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,339 @@
+package maman18.data;
+
+/**
+ * @author Shlomi.v
+ *
+ * @param <V> - the type of the Values
+ *
+ * A LongIndex kept in a hash table with open addressing, for indexes that only need point lookups and
+ * never need their keys in order. the keys and the values are kept in two parallel arrays, so a lookup is
+ * a hash and a short scan over neighbouring slots (usually in the same cache line), instead of lgn
+ * pointers down a tree.
+ *  (*) linear probing with Robin Hood insertion: an entry that is farther from its home slot takes the
+ *      place of an entry that is nearer to its own, so the probe lengths all stay short, and a lookup for
+ *      a missing key stops as soon as it meets an entry that is nearer to its home than the key would be.
+ *  (*) remove shifts the entries after it one slot back (backward shift deletion), so there are no
+ *      tombstones and the probe lengths do not decay over time.
+ *  (*) incremental resize: when the table gets too full, a table twice as large is allocated, and the
+ *      entries are moved into it a few slots at a time by each put and remove that follow, so no single
+ *      operation pays for copying the whole table. until they are all moved, a lookup checks both tables.
+ *
+ * the values cannot be null, a null value marks an empty slot.
+ *
+ * the same table also serves as an IntIndex: an int key is widened to a long, and the hash mixes every
+ * bit of it anyway, so there is a single copy of the probing, the deletion and the resize.
+ */
+public class LongHashIndex<V> implements LongIndex<V>, IntIndex<V> {
+
+	private static final int MIN_CAPACITY = 16;
+
+	// the table is grown once it is fuller than this
+	private static final float MAX_LOAD = 0.75f;
+
+	// the slots of the old table that each put and remove move while resizing. the new table is twice
+	// as large, so the old one is always empty long before the new one has to grow
+	private static final int MIGRATE_STEP = 8;
+
+	// marks a slot of the old table whose entry was moved or removed while resizing
+	private static final Object MOVED = new Object();
+
+	// the table, its length is a power of 2
+	private long[] keys;
+	private Object[] values;
+	private int mask;
+
+	// the number of entries in the table, and how many it may hold before it grows
+	private int used;
+	private int maxUsed;
+
+	// the previous table while it is being moved into the current one, or null.
+	// its slots below migrated were already moved
+	private long[] oldKeys;
+	private Object[] oldValues;
+	private int oldMask;
+	private int migrated;
+
+	// the number of entries in both tables
+	private int size = 0;
+
+	/**
+	 * @param capacity - the number of slots, a power of 2
+	 *
+	 * notice this method is private. in order to construct a new LongHashIndex, see empty below
+	 */
+	private LongHashIndex(int capacity) {
+		allocate(capacity);
+	}
+
+	/**
+	 * @return a new empty LongHashIndex
+	 */
+	static public <V> LongHashIndex<V> empty() {
+		return new LongHashIndex<V>(MIN_CAPACITY);
+	}
+
+	/**
+	 * @param n - the number of entries that are going to be put
+	 * @return a new empty LongHashIndex that holds n entries without resizing
+	 */
+	static public <V> LongHashIndex<V> withCapacity(int n) {
+		int capacity = MIN_CAPACITY;
+		while (capacity * MAX_LOAD < n) capacity <<= 1;
+		return new LongHashIndex<V>(capacity);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+		used = 0;
+		maxUsed = (int) (capacity * MAX_LOAD);
+	}
+
+	/**
+	 * @param key
+	 * @return the hash of the key, every bit of the key is mixed into the low bits that pick the slot
+	 * (the finalizer of MurmurHash3), so runs of keys do not cluster
+	 */
+	private static int hash(long key) {
+		long h = (key ^ (key >>> 33)) * 0xFF51AFD7ED558CCDL;
+		h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+		return (int) (h ^ (h >>> 33));
+	}
+
+	/**
+	 * @param i
+	 * @return how far the entry in slot i is from its home slot
+	 */
+	private int distance(int i) {
+		return (i - hash(keys[i])) & mask;
+	}
+
+	/**
+	 * @param key
+	 * @return the slot of the key in the table, or -1 if it is not there
+	 * Complexity: O(1) expected
+	 */
+	private int slot(long key) {
+		int i = hash(key) & mask;
+		for (int dist = 0; values[i] != null; dist++) {
+			if (keys[i] == key) return i;
+			if (distance(i) < dist) return -1;
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param key
+	 * @return the slot of the key in the old table, or -1 if it is not there (or there is no old table).
+	 * the old table is never shifted, so it is a plain linear probe that skips the moved slots
+	 */
+	private int oldSlot(long key) {
+		if (oldValues == null) return -1;
+		int i = hash(key) & oldMask;
+		for (; oldValues[i] != null; i = (i + 1) & oldMask) {
+			if (oldValues[i] != MOVED && oldKeys[i] == key) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param key - a key that is not in the table
+	 * @param value
+	 * add the entry to the table, swapping it with any entry on the way that is nearer to its home slot
+	 */
+	private void insert(long key, Object value) {
+		int i = hash(key) & mask;
+		for (int dist = 0; values[i] != null; dist++) {
+			int d = distance(i);
+			if (d < dist) {
+				long k = keys[i];
+				Object v = values[i];
+				keys[i] = key;
+				values[i] = value;
+				key = k;
+				value = v;
+				dist = d;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		values[i] = value;
+		used++;
+	}
+
+	/**
+	 * start moving the entries into a table twice as large
+	 */
+	private void grow() {
+		// finish the last resize first, it is almost always done by now
+		if (oldValues != null) migrate(oldMask + 1);
+		oldKeys = keys;
+		oldValues = values;
+		oldMask = mask;
+		migrated = 0;
+		allocate((mask + 1) << 1);
+	}
+
+	/**
+	 * @param n
+	 * move the next n slots of the old table into the table
+	 */
+	private void migrate(int n) {
+		int end = Math.min(migrated + n, oldMask + 1);
+		for (; migrated < end; migrated++) {
+			Object v = oldValues[migrated];
+			if (v != null && v != MOVED) {
+				insert(oldKeys[migrated], v);
+				oldValues[migrated] = MOVED;
+			}
+		}
+		if (migrated > oldMask) {
+			oldKeys = null;
+			oldValues = null;
+		}
+	}
+
+	/**
+	 * @param key
+	 * @param value - cannot be null
+	 * insert a new entry, or replace the value of the key if it is already in the index
+	 * Complexity: O(1) expected
+	 */
+	@Override
+	public void put(long key, V value) {
+		if (value == null) throw new NullPointerException("a LongHashIndex cannot hold null values");
+		if (oldValues != null) {
+			migrate(MIGRATE_STEP);
+			int o = oldSlot(key);
+			if (o >= 0) {
+				oldValues[o] = value;
+				return;
+			}
+		}
+
+		int i = slot(key);
+		if (i >= 0) {
+			values[i] = value;
+			return;
+		}
+		if (used + 1 > maxUsed) grow();
+		insert(key, value);
+		size++;
+	}
+
+	/**
+	 * @param key
+	 * @return the value of the key, or null if it is not in the index
+	 * Complexity: O(1) expected
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public V get(long key) {
+		int i = slot(key);
+		if (i >= 0) return (V) values[i];
+		int o = oldSlot(key);
+		return o >= 0 ? (V) oldValues[o] : null;
+	}
+
+	/**
+	 * @param key
+	 * remove the key from the index, if it is there
+	 * Complexity: O(1) expected
+	 */
+	@Override
+	public void remove(long key) {
+		if (oldValues != null) {
+			migrate(MIGRATE_STEP);
+			int o = oldSlot(key);
+			if (o >= 0) {
+				oldValues[o] = MOVED;
+				size--;
+				return;
+			}
+		}
+
+		int i = slot(key);
+		if (i < 0) return;
+
+		// shift the entries after it back, until an empty slot or an entry that is already at its home
+		int j = (i + 1) & mask;
+		while (values[j] != null && distance(j) > 0) {
+			keys[i] = keys[j];
+			values[i] = values[j];
+			i = j;
+			j = (j + 1) & mask;
+		}
+		values[i] = null;
+		used--;
+		size--;
+	}
+
+	@Override
+	public boolean containsKey(long key) {
+		return get(key) != null;
+	}
+
+	/* the int keys, widened to longs */
+
+	@Override
+	public void put(int key, V value) {
+		put((long) key, value);
+	}
+
+	@Override
+	public V get(int key) {
+		return get((long) key);
+	}
+
+	@Override
+	public void remove(int key) {
+		remove((long) key);
+	}
+
+	@Override
+	public boolean containsKey(int key) {
+		return get((long) key) != null;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public boolean isNotEmpty() {
+		return size != 0;
+	}
+
+	@Override
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @param action
+	 * perform the action on all the values, in no particular order
+	 * Complexity: O(capacity)
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public void foreach(Do<V> action) {
+		for (int i = 0; i <= mask; i++)
+			if (values[i] != null) action.action((V) values[i]);
+		if (oldValues != null)
+			for (int i = migrated; i <= oldMask; i++)
+				if (oldValues[i] != null && oldValues[i] != MOVED) action.action((V) oldValues[i]);
+	}
+
+	/**
+	 * @return the longest distance of an entry from its home slot, for testing
+	 */
+	public int maxProbe() {
+		int max = 0;
+		for (int i = 0; i <= mask; i++)
+			if (values[i] != null) max = Math.max(max, distance(i));
+		return max;
+	}
+}
@@ -0,0 +1,26 @@
+package maman18.data;
+
+/**
+ * @author Shlomi.v
+ *
+ * @param <V> - the type of the Values
+ *
+ * the same as Index, for indexes keyed by primitive longs
+ */
+public interface LongIndex<V> {
+	public void put(long key, V value);
+
+	public V get(long key);
+
+	public void remove(long key);
+
+	public boolean containsKey(long key);
+
+	public boolean isEmpty();
+
+	public boolean isNotEmpty();
+
+	public int getSize();
+
+	public void foreach(Do<V> action);
+}
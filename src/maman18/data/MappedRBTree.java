@@ -0,0 +1,786 @@
+package maman18.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * @author Shlomi.v
+ *
+ * This is an RB-Tree from short string keys (or long keys) to int values, that lives in a memory mapped file
+ * instead of the java heap. The nodes are fixed size records in the file, and every operation
+ * reads and writes them directly in the mapping, so:
+ *  (*) opening an existing file is O(1), only the header is checked
+ *  (*) there is nothing to deserialize, the tree is used as is
+ *  (*) the data is kept by the operating system, so it survives the application exiting
+ *
+ * The layout of the file is a list of RECORD sized records. record 0 is the header,
+ * so index 0 can play the role of null (Nil[T]) just like in LongArrayRBTree.
+ *
+ * header:  magic, version, root, next unused record, free list head, size, capacity, stamp
+ * node:    left, right, parent, value, color, key length, key bytes
+ *
+ * The keys are compared ignoring case (they are stored folded to lower case),
+ * the same as String.compareToIgnoreCase does for ascii keys.
+ * Only ascii keys of up to MAX_KEY_LENGTH characters can be stored (see fits). looking up or removing
+ * any other key finds nothing, and putting one throws an IllegalArgumentException.
+ * A long key is stored as its 8 bytes, with LONG_KEY in place of the key length. the long keys are
+ * ordered as numbers, and all of them come before the string keys.
+ *
+ * The stamp is a number the owner of the file keeps in the header (see setStamp), to tell which state
+ * of its own the contents of the file match. the tree itself never looks at it.
+ *
+ * Notice this class is not thread safe, and a crash in the middle of a put or remove can leave
+ * the file inconsistent. call force() to make sure everything was written to the disk.
+ */
+public class MappedRBTree {
+
+	// the longest key that fits in a record
+	public static final int MAX_KEY_LENGTH = 30;
+
+	// the value get returns when a key is not found
+	public static final int NOT_FOUND = Integer.MIN_VALUE;
+
+	private static final int MAGIC = 0x52425431; // "RBT1"
+	// version 2 added the long keys and the stamp, version 1 files are still opened (they have neither)
+	private static final int VERSION = 2;
+	private static final int RECORD = 48;
+	private static final int INITIAL_CAPACITY = 1024;
+	private static final int MAX_CAPACITY = Integer.MAX_VALUE / RECORD;
+
+	private static final int NIL = 0;
+	private static final byte RED = 1;
+	private static final byte BLACK = 0;
+
+	// header offsets
+	private static final int H_MAGIC = 0;
+	private static final int H_VERSION = 4;
+	private static final int H_ROOT = 8;
+	private static final int H_NEXT = 12;
+	private static final int H_FREE = 16;
+	private static final int H_SIZE = 20;
+	private static final int H_CAPACITY = 24;
+	private static final int H_STAMP = 28;
+
+	// node offsets
+	private static final int N_LEFT = 0;
+	private static final int N_RIGHT = 4;
+	private static final int N_PARENT = 8;
+	private static final int N_VALUE = 12;
+	private static final int N_COLOR = 16;
+	private static final int N_KEY_LENGTH = 17;
+	private static final int N_KEY = 18;
+
+	// the key length of a node whose key is a long
+	private static final byte LONG_KEY = -1;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private MappedByteBuffer buf;
+
+	// the key currently searched for, folded to lower case. reused to avoid allocating on every call
+	private final byte[] search = new byte[MAX_KEY_LENGTH];
+	private int searchLength;
+	// or the long key searched for, when searchLength is LONG_KEY
+	private long searchCode;
+
+	/**
+	 * @param file
+	 * @throws IOException
+	 *
+	 * notice this method is private. in order to get a MappedRBTree, see open below
+	 */
+	private MappedRBTree(File f) throws IOException {
+		file = new RandomAccessFile(f, "rw");
+		channel = file.getChannel();
+		if (channel.size() == 0) {
+			map(INITIAL_CAPACITY);
+			buf.putInt(H_MAGIC, MAGIC);
+			buf.putInt(H_VERSION, VERSION);
+			buf.putInt(H_ROOT, NIL);
+			buf.putInt(H_NEXT, 1);
+			buf.putInt(H_FREE, NIL);
+			buf.putInt(H_SIZE, 0);
+			buf.putInt(H_CAPACITY, INITIAL_CAPACITY);
+			buf.putLong(H_STAMP, 0);
+		} else {
+			if (channel.size() < RECORD) {
+				close();
+				throw new IOException(f + " is not an index file");
+			}
+			map((int) (channel.size() / RECORD));
+			int version = buf.getInt(H_VERSION);
+			if (buf.getInt(H_MAGIC) != MAGIC || version < 1 || version > VERSION
+					|| (long) buf.getInt(H_CAPACITY) * RECORD > channel.size()) {
+				close();
+				throw new IOException(f + " is not an index file");
+			}
+			if (version == 1) {
+				buf.putLong(H_STAMP, 0);
+				buf.putInt(H_VERSION, VERSION);
+			}
+		}
+	}
+
+	/**
+	 * @param f - the file holding the tree, it is created if it doesnt exist
+	 * @return the tree stored in the file
+	 * @throws IOException
+	 * Complexity: O(1)
+	 */
+	static public MappedRBTree open(File f) throws IOException {
+		return new MappedRBTree(f);
+	}
+
+	/**
+	 * @param capacity - the number of records to map
+	 * maps (and extends if needed) the file
+	 */
+	private void map(int capacity) throws IOException {
+		buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * RECORD);
+	}
+
+	/**
+	 * double the number of records in the file
+	 */
+	private void grow() {
+		int capacity = buf.getInt(H_CAPACITY);
+		if (capacity == MAX_CAPACITY)
+			throw new IllegalStateException("the index file is full");
+		capacity = (int) Math.min((long) capacity * 2, MAX_CAPACITY);
+		try {
+			map(capacity);
+		} catch (IOException e) {
+			throw new IllegalStateException("could not grow the index file", e);
+		}
+		buf.putInt(H_CAPACITY, capacity);
+	}
+
+	/* header and node field access */
+
+	private int header(int field) {
+		return buf.getInt(field);
+	}
+
+	private void setHeader(int field, int value) {
+		buf.putInt(field, value);
+	}
+
+	private int root() {
+		return header(H_ROOT);
+	}
+
+	private int field(int n, int field) {
+		return buf.getInt(n * RECORD + field);
+	}
+
+	private void setField(int n, int field, int value) {
+		buf.putInt(n * RECORD + field, value);
+	}
+
+	private int left(int n) {
+		return field(n, N_LEFT);
+	}
+
+	private int right(int n) {
+		return field(n, N_RIGHT);
+	}
+
+	private int parent(int n) {
+		return field(n, N_PARENT);
+	}
+
+	private void setLeft(int n, int l) {
+		setField(n, N_LEFT, l);
+	}
+
+	private void setRight(int n, int r) {
+		setField(n, N_RIGHT, r);
+	}
+
+	private void setParent(int n, int p) {
+		setField(n, N_PARENT, p);
+	}
+
+	/**
+	 * @param n
+	 * @return true iff n is red, the NIL node (the header) is always black
+	 */
+	private boolean isRed(int n) {
+		return n != NIL && buf.get(n * RECORD + N_COLOR) == RED;
+	}
+
+	private boolean isBlack(int n) {
+		return !isRed(n);
+	}
+
+	private void setRed(int n) {
+		buf.put(n * RECORD + N_COLOR, RED);
+	}
+
+	private void setBlack(int n) {
+		if (n != NIL) buf.put(n * RECORD + N_COLOR, BLACK);
+	}
+
+	private void setColor(int n, boolean isRed) {
+		if (isRed) setRed(n);
+		else setBlack(n);
+	}
+
+	/* helper node navigation methods */
+	private boolean isLeftChild(int n) {
+		return left(parent(n)) == n;
+	}
+
+	private boolean isRightChild(int n) {
+		return right(parent(n)) == n;
+	}
+
+	private int grandparent(int n) {
+		return parent(parent(n));
+	}
+
+	private int brother(int n) {
+		return isLeftChild(n) ? right(parent(n)) : left(parent(n));
+	}
+
+	private int uncle(int n) {
+		return brother(parent(n));
+	}
+
+	/**
+	 * @param key
+	 * @return true iff the key can be stored in the tree: ascii, and no longer than MAX_KEY_LENGTH
+	 * Complexity: O(length of key)
+	 */
+	public static boolean fits(CharSequence key) {
+		int length = key.length();
+		if (length > MAX_KEY_LENGTH) return false;
+		for (int i = 0; i < length; i++)
+			if (key.charAt(i) > 127) return false;
+		return true;
+	}
+
+	/**
+	 * @param key
+	 * @return true if the key was copied into the search buffer, folded to lower case,
+	 * or false if it does not fit in the tree (see fits)
+	 */
+	private boolean setSearch(CharSequence key) {
+		if (!fits(key)) return false;
+		int length = key.length();
+		for (int i = 0; i < length; i++)
+			search[i] = (byte) Character.toLowerCase(key.charAt(i));
+		searchLength = length;
+		return true;
+	}
+
+	/**
+	 * @param key
+	 * make the long key the search key
+	 */
+	private void setSearch(long key) {
+		searchCode = key;
+		searchLength = LONG_KEY;
+	}
+
+	/**
+	 * @param n
+	 * @return the order of the search key compared to the key of node n
+	 */
+	private int compareSearch(int n) {
+		int base = n * RECORD;
+		int length = buf.get(base + N_KEY_LENGTH);
+		if (length == LONG_KEY || searchLength == LONG_KEY) {
+			// the long keys come before all the string keys
+			if (length != searchLength) return searchLength == LONG_KEY ? -1 : 1;
+			return Long.compare(searchCode, buf.getLong(base + N_KEY));
+		}
+		int min = Math.min(length, searchLength);
+		for (int i = 0; i < min; i++) {
+			int ord = search[i] - buf.get(base + N_KEY + i);
+			if (ord != 0) return ord;
+		}
+		return searchLength - length;
+	}
+
+	/**
+	 * @param n
+	 * @return the key stored in node n, or null if it is a long key
+	 */
+	private String key(int n) {
+		int base = n * RECORD;
+		if (buf.get(base + N_KEY_LENGTH) == LONG_KEY) return null;
+		char[] chars = new char[buf.get(base + N_KEY_LENGTH)];
+		for (int i = 0; i < chars.length; i++)
+			chars[i] = (char) buf.get(base + N_KEY + i);
+		return new String(chars);
+	}
+
+	/**
+	 * @param n - the node to copy the search key into
+	 */
+	private void storeSearch(int n) {
+		int base = n * RECORD;
+		buf.put(base + N_KEY_LENGTH, (byte) searchLength);
+		if (searchLength == LONG_KEY) {
+			buf.putLong(base + N_KEY, searchCode);
+			return;
+		}
+		for (int i = 0; i < searchLength; i++)
+			buf.put(base + N_KEY + i, search[i]);
+	}
+
+	/**
+	 * @param value
+	 * @param p - the parent of the new node
+	 * @return the index of a fresh red node holding the search key, taken from the free list if possible
+	 * Complexity: O(1) amortized
+	 */
+	private int newNode(int value, int p) {
+		int n = header(H_FREE);
+		if (n != NIL) {
+			setHeader(H_FREE, left(n));
+		} else {
+			n = header(H_NEXT);
+			if (n == header(H_CAPACITY)) grow();
+			setHeader(H_NEXT, n + 1);
+		}
+		storeSearch(n);
+		setField(n, N_VALUE, value);
+		setLeft(n, NIL);
+		setRight(n, NIL);
+		setParent(n, p);
+		setRed(n);
+		setHeader(H_SIZE, header(H_SIZE) + 1);
+		return n;
+	}
+
+	/**
+	 * @param n
+	 * return the node n to the free list
+	 */
+	private void freeNode(int n) {
+		setRight(n, NIL);
+		setParent(n, NIL);
+		setBlack(n);
+		setLeft(n, header(H_FREE));
+		setHeader(H_FREE, n);
+		setHeader(H_SIZE, header(H_SIZE) - 1);
+	}
+
+	/**
+	 * @param key
+	 * @param value
+	 * this method adds a new key/value pair to this tree
+	 * @throws IllegalArgumentException if the key does not fit in the tree (see fits)
+	 */
+	public void put(CharSequence key, int value) {
+		if (!setSearch(key))
+			throw new IllegalArgumentException("the key " + key + " does not fit in the index");
+		insert(value);
+	}
+
+	/**
+	 * @param key
+	 * @param value
+	 * this method adds a new key/value pair to this tree, with a long key
+	 * Complexity: O(lgn)
+	 */
+	public void put(long key, int value) {
+		setSearch(key);
+		insert(value);
+	}
+
+	/**
+	 * @param value
+	 * add the search key with the value, or replace the value if the key is already in the tree
+	 * Complexity: O(lgn)
+	 */
+	private void insert(int value) {
+		// if we have an empty tree, so simply insert a root node and make sure its black
+		if (root() == NIL) {
+			int n = newNode(value, NIL);
+			setBlack(n);
+			setHeader(H_ROOT, n);
+			return;
+		}
+
+		// an iterative tree insert, going down from the root
+		int p = root();
+		while (true) {
+			int ord = compareSearch(p);
+			if (ord == 0) {
+				// the key already exists, only replace its value
+				setField(p, N_VALUE, value);
+				return;
+			}
+			int child = ord < 0 ? left(p) : right(p);
+			if (child == NIL) {
+				int n = newNode(value, p);
+				if (ord < 0) setLeft(p, n);
+				else setRight(p, n);
+				fixRedBlackInsert(n);
+				return;
+			}
+			p = child;
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return the index of the node holding the key, or NIL (also if the key does not fit in the tree)
+	 * Complexity: O(lgn)
+	 */
+	private int findNode(CharSequence key) {
+		if (!setSearch(key)) return NIL;
+		return findSearch();
+	}
+
+	/**
+	 * @param key
+	 * @return the index of the node holding the long key, or NIL
+	 * Complexity: O(lgn)
+	 */
+	private int findNode(long key) {
+		setSearch(key);
+		return findSearch();
+	}
+
+	/**
+	 * @return the index of the node holding the search key, or NIL
+	 * Complexity: O(lgn)
+	 */
+	private int findSearch() {
+		int p = root();
+		while (p != NIL) {
+			int theOrder = compareSearch(p);
+			if (theOrder == 0) return p;
+			p = theOrder < 0 ? left(p) : right(p);
+		}
+		return p;
+	}
+
+	/**
+	 * @param key
+	 * @return the value associated with the given key, or NOT_FOUND
+	 * Complexity: O(lgn)
+	 */
+	public int get(CharSequence key) {
+		int n = findNode(key);
+		return n == NIL ? NOT_FOUND : field(n, N_VALUE);
+	}
+
+	/**
+	 * @param key
+	 * @return true iff the key exists
+	 */
+	public boolean containsKey(CharSequence key) {
+		return findNode(key) != NIL;
+	}
+
+	/**
+	 * @param key
+	 * @return the value associated with the given long key, or NOT_FOUND
+	 * Complexity: O(lgn)
+	 */
+	public int get(long key) {
+		int n = findNode(key);
+		return n == NIL ? NOT_FOUND : field(n, N_VALUE);
+	}
+
+	/**
+	 * @param key
+	 * @return true iff the long key exists
+	 */
+	public boolean containsKey(long key) {
+		return findNode(key) != NIL;
+	}
+
+	/**
+	 * @param n - the node to rotate
+	 */
+	private void rotateLeft(final int n) {
+		final int r = right(n);
+		replaceNode(n, r);
+		setRight(n, left(r));
+		if (left(r) != NIL)
+			setParent(left(r), n);
+		setLeft(r, n);
+		setParent(n, r);
+	}
+
+	/**
+	 * @param n - the node to rotate
+	 */
+	private void rotateRight(final int n) {
+		final int l = left(n);
+		replaceNode(n, l);
+		setLeft(n, right(l));
+		if (right(l) != NIL)
+			setParent(right(l), n);
+		setRight(l, n);
+		setParent(n, l);
+	}
+
+	/**
+	 * @param oldn - the node to override
+	 * @param newn - the node that will override
+	 * a helper method for rotating nodes
+	 */
+	private void replaceNode(final int oldn, final int newn) {
+		if (parent(oldn) == NIL)
+			setHeader(H_ROOT, newn);
+		else
+			if (isLeftChild(oldn)) setLeft(parent(oldn), newn);
+			else setRight(parent(oldn), newn);
+
+		if (newn != NIL) setParent(newn, parent(oldn));
+	}
+
+	/**
+	 * @param z
+	 * fix insert in a red black tree, see RBTree for the cases
+	 */
+	private void fixRedBlackInsert(int z) {
+		while (true) {
+			// if we reached the tree's head, make sure its black
+			if (parent(z) == NIL) {
+				setBlack(z);
+				return;
+			}
+			if (isBlack(parent(z)))
+				return;
+
+			// case 1
+			if (isRed(uncle(z))) {
+				setBlack(parent(z));
+				setBlack(uncle(z));
+				setRed(grandparent(z));
+				z = grandparent(z);
+				continue;
+			}
+
+			// case 2
+			if (isRightChild(z) && isLeftChild(parent(z))) {
+				rotateLeft(parent(z));
+				z = left(z);
+			} else if (isLeftChild(z) && isRightChild(parent(z))) {
+				rotateRight(parent(z));
+				z = right(z);
+			}
+
+			// case 3
+			setBlack(parent(z));
+			setRed(grandparent(z));
+			if (isLeftChild(z) && isLeftChild(parent(z))) {
+				rotateRight(grandparent(z));
+			} else {
+				rotateLeft(grandparent(z));
+			}
+			return;
+		}
+	}
+
+	/**
+	 * @param key
+	 * remove an item by its key.
+	 * Complexity: O(lgn)
+	 */
+	public void remove(CharSequence key) {
+		removeNode(findNode(key));
+	}
+
+	/**
+	 * @param key
+	 * remove an item by its long key.
+	 * Complexity: O(lgn)
+	 */
+	public void remove(long key) {
+		removeNode(findNode(key));
+	}
+
+	/**
+	 * @param n
+	 * remove the node n from the tree, if it is not NIL
+	 * Complexity: O(lgn)
+	 */
+	private void removeNode(int n) {
+		if (n == NIL)
+			return; // Key not found, do nothing
+		if (left(n) != NIL && right(n) != NIL) {
+			// Copy key/value from predecessor and then delete it instead
+			int pred = left(n);
+			while (right(pred) != NIL) pred = right(pred);
+			buf.put(n * RECORD + N_KEY_LENGTH, buf.get(pred * RECORD + N_KEY_LENGTH));
+			for (int i = 0; i < MAX_KEY_LENGTH; i++)
+				buf.put(n * RECORD + N_KEY + i, buf.get(pred * RECORD + N_KEY + i));
+			setField(n, N_VALUE, field(pred, N_VALUE));
+			n = pred;
+		}
+
+		int child = (right(n) == NIL) ? left(n) : right(n);
+		if (isBlack(n)) {
+			setColor(n, isRed(child));
+			fixRedBlackDelete(n);
+		}
+		replaceNode(n, child);
+		freeNode(n);
+
+		if (isRed(root())) {
+			setBlack(root());
+		}
+	}
+
+	/**
+	 * @param z
+	 * this method runs up the tree, fixing colors and rotating nodes to maintain all 5
+	 * RBTree attributes, see RBTree for the cases
+	 * Complexity: O(lgn)
+	 */
+	private void fixRedBlackDelete(int z) {
+		while (parent(z) != NIL) {
+			// case 1, z's brother is red
+			if (isRed(brother(z))) {
+				setRed(parent(z));
+				setBlack(brother(z));
+				if (isLeftChild(z))
+					rotateLeft(parent(z));
+				else
+					rotateRight(parent(z));
+			}
+
+			int b = brother(z);
+			// case 2, z's brother is black, and both its sons are black
+			if (isBlack(b) && isBlack(left(b)) && isBlack(right(b))) {
+				setRed(b);
+				if (isBlack(parent(z))) {
+					z = parent(z);
+					continue;
+				}
+				setBlack(parent(z));
+				return;
+			}
+
+			// case 3, z's brother is black, the near child is red and the far child is black
+			if (isLeftChild(z) && isRed(left(b)) && isBlack(right(b))) {
+				setRed(b);
+				setBlack(left(b));
+				rotateRight(b);
+			} else if (isRightChild(z) && isRed(right(b)) && isBlack(left(b))) {
+				setRed(b);
+				setBlack(right(b));
+				rotateLeft(b);
+			}
+
+			// case 4, fix the colors of z's brother and z's parent
+			b = brother(z);
+			setColor(b, isRed(parent(z)));
+			setBlack(parent(z));
+			if (isLeftChild(z)) {
+				setBlack(right(b));
+				rotateLeft(parent(z));
+			} else {
+				setBlack(left(b));
+				rotateRight(parent(z));
+			}
+			return;
+		}
+	}
+
+	/**
+	 * remove all the keys in O(1), the file keeps its current size
+	 */
+	public void clear() {
+		setHeader(H_ROOT, NIL);
+		setHeader(H_NEXT, 1);
+		setHeader(H_FREE, NIL);
+		setHeader(H_SIZE, 0);
+	}
+
+	/**
+	 * @return the maximum depth in the tree
+	 */
+	public int maxDepth() {
+		return maxDepth(root());
+	}
+
+	private int maxDepth(int n) {
+		if (n == NIL) return 0;
+		return 1 + Math.max(maxDepth(left(n)), maxDepth(right(n)));
+	}
+
+	/**
+	 * @return true iff this tree is empty
+	 */
+	public boolean isEmpty() {
+		return root() == NIL;
+	}
+
+	/**
+	 * @return true iff this tree is NOT empty
+	 */
+	public boolean isNotEmpty() {
+		return !isEmpty();
+	}
+
+	/**
+	 * @return the number of keys in this tree
+	 * Complexity: O(1), the size is kept in the header
+	 */
+	public int getSize() {
+		return header(H_SIZE);
+	}
+
+	/**
+	 * @param action - gets each value along with its key (in lower case, or null for a long key)
+	 * an in-order traversal, so the action gets on the keys in a sorted manner
+	 * Complexity: O(n)
+	 */
+	public void foreach(IntDo<String> action) {
+		foreach(root(), action);
+	}
+
+	private void foreach(int n, IntDo<String> action) {
+		if (n == NIL) return;
+		foreach(left(n), action);
+		action.action(field(n, N_VALUE), key(n));
+		foreach(right(n), action);
+	}
+
+	/**
+	 * @return the stamp in the header, 0 if none was ever set
+	 * Complexity: O(1)
+	 */
+	public long getStamp() {
+		return buf.getLong(H_STAMP);
+	}
+
+	/**
+	 * @param stamp
+	 * keep the stamp in the header. it is written to the disk with the rest of the changes (see force)
+	 * Complexity: O(1)
+	 */
+	public void setStamp(long stamp) {
+		buf.putLong(H_STAMP, stamp);
+	}
+
+	/**
+	 * write all the changes to the disk
+	 */
+	public void force() {
+		buf.force();
+	}
+
+	/**
+	 * write all the changes to the disk and close the file
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if (buf != null) buf.force();
+		channel.close();
+		file.close();
+	}
+}
@@ -0,0 +1,361 @@
+package maman18.data;
+
+import java.util.Comparator;
+
+/**
+ * @author Shlomi.v
+ *
+ * @param <K> - the type of the Key
+ * @param <V> - the type of the Values
+ *
+ * An immutable (persistent) RB-Tree: put and remove do not change the tree, they return a new tree
+ * with the change. only the nodes on the path from the root to the change are copied (O(lgn) of them),
+ * and the new tree shares all the other nodes with the old one, so keeping every version costs O(lgn)
+ * per change.
+ * since no node is ever changed, any number of threads can read a tree while another thread makes new
+ * versions of it, with no locks at all. this is what the library snapshots are made of (see LibrarySnapshot).
+ *
+ * To build this class I used:
+ *  (*) Okasaki, "Red-Black Trees in a Functional Setting", for put
+ *  (*) Kahrs, "Red-black trees with types", for remove
+ *  (*) the implementation of scala.collection.immutable.RedBlackTree
+ * like in RBTree, every node keeps the size of its subtree, so getSize is O(1).
+ */
+public final class PersistentRBTree<K, V> {
+
+	/**
+	 * a node of the tree, it never changes once it is made
+	 */
+	private static final class Node<K, V> {
+		final K key;
+		final V value;
+		final Node<K, V> left, right;
+		final boolean red;
+		final int size;
+
+		Node(K key, V value, Node<K, V> left, Node<K, V> right, boolean red) {
+			this.key = key;
+			this.value = value;
+			this.left = left;
+			this.right = right;
+			this.red = red;
+			this.size = 1 + size(left) + size(right);
+		}
+
+		/**
+		 * @return this node colored black
+		 */
+		Node<K, V> black() {
+			return red ? new Node<K, V>(key, value, left, right, false) : this;
+		}
+
+		/**
+		 * @return this node colored red
+		 */
+		Node<K, V> red() {
+			return red ? this : new Node<K, V>(key, value, left, right, true);
+		}
+	}
+
+	final private Comparator<K> order;
+	final private Node<K, V> root;
+
+	/**
+	 * @param order
+	 * @param root
+	 * notice this method is private. in order to construct a new PersistentRBTree, see empty below
+	 */
+	private PersistentRBTree(Comparator<K> order, Node<K, V> root) {
+		this.order = order;
+		this.root = root;
+	}
+
+	/**
+	 * @param order
+	 * @return a new empty PersistentRBTree, with the given ordering
+	 */
+	static public <K, V> PersistentRBTree<K, V> empty(Comparator<K> order) {
+		return new PersistentRBTree<K, V>(order, null);
+	}
+
+	/**
+	 * @param order
+	 * @param keys - the keys, sorted by order and with no duplicates
+	 * @param values - the value of each key
+	 * @param n - the number of entries to take from the arrays
+	 * @return a new PersistentRBTree holding the n entries, built bottom-up like RBTree.fromSorted
+	 * @throws IllegalArgumentException if the keys are not sorted
+	 * Complexity: O(n)
+	 */
+	static public <K, V> PersistentRBTree<K, V> fromSorted(Comparator<K> order, K[] keys, V[] values, int n) {
+		for (int i = 1; i < n; i++)
+			if (order.compare(keys[i - 1], keys[i]) >= 0)
+				throw new IllegalArgumentException("the keys are not sorted: " + keys[i - 1] + " before " + keys[i]);
+		return new PersistentRBTree<K, V>(order, build(keys, values, 0, n - 1, 0, RBTree.redLevel(n)));
+	}
+
+	/**
+	 * a recursive helper of fromSorted
+	 */
+	private static <K, V> Node<K, V> build(K[] keys, V[] values, int lo, int hi, int level, int redLevel) {
+		if (hi < lo) return null;
+		final int mid = (lo + hi) >>> 1;
+		final Node<K, V> left = build(keys, values, lo, mid - 1, level + 1, redLevel);
+		final Node<K, V> right = build(keys, values, mid + 1, hi, level + 1, redLevel);
+		return new Node<K, V>(keys[mid], values[mid], left, right, level == redLevel);
+	}
+
+	private static int size(Node<?, ?> n) {
+		return n == null ? 0 : n.size;
+	}
+
+	private static boolean isRed(Node<?, ?> n) {
+		return n != null && n.red;
+	}
+
+	private static boolean isBlack(Node<?, ?> n) {
+		return n != null && !n.red;
+	}
+
+	/**
+	 * @param key
+	 * @return the value of the key, or null if it is not in the tree
+	 * Complexity: O(lgn)
+	 */
+	public V get(K key) {
+		Node<K, V> n = root;
+		while (n != null) {
+			int c = order.compare(key, n.key);
+			if (c == 0) return n.value;
+			n = c < 0 ? n.left : n.right;
+		}
+		return null;
+	}
+
+	/**
+	 * @param key
+	 * @return true iff the key is in the tree
+	 * Complexity: O(lgn)
+	 */
+	public boolean containsKey(K key) {
+		Node<K, V> n = root;
+		while (n != null) {
+			int c = order.compare(key, n.key);
+			if (c == 0) return true;
+			n = c < 0 ? n.left : n.right;
+		}
+		return false;
+	}
+
+	public boolean isEmpty() {
+		return root == null;
+	}
+
+	public boolean isNotEmpty() {
+		return root != null;
+	}
+
+	/**
+	 * @return the number of entries
+	 * Complexity: O(1)
+	 */
+	public int getSize() {
+		return size(root);
+	}
+
+	/**
+	 * @param action
+	 * do the action on all the values, in the order of their keys
+	 * Complexity: O(n)
+	 */
+	public void foreach(Do<V> action) {
+		foreach(root, action);
+	}
+
+	private static <K, V> void foreach(Node<K, V> n, Do<V> action) {
+		while (n != null) {
+			foreach(n.left, action);
+			action.action(n.value);
+			n = n.right;
+		}
+	}
+
+	/**
+	 * @return the depth of the deepest node, for testing the balance of the tree
+	 * Complexity: O(n)
+	 */
+	public int maxDepth() {
+		return maxDepth(root);
+	}
+
+	private static int maxDepth(Node<?, ?> n) {
+		return n == null ? 0 : 1 + Math.max(maxDepth(n.left), maxDepth(n.right));
+	}
+
+	/* put */
+
+	/**
+	 * @param key
+	 * @param value
+	 * @return a tree with the key mapped to the value, this tree if it already is
+	 * Complexity: O(lgn)
+	 */
+	public PersistentRBTree<K, V> put(K key, V value) {
+		Node<K, V> n = put(root, key, value);
+		return n == root ? this : new PersistentRBTree<K, V>(order, n.black());
+	}
+
+	/**
+	 * @return the subtree n with the key mapped to the value, n itself if it already is.
+	 * the new subtree may have a red root with a red child, the caller fixes that
+	 */
+	private Node<K, V> put(Node<K, V> n, K key, V value) {
+		if (n == null) return new Node<K, V>(key, value, null, null, true);
+		int c = order.compare(key, n.key);
+		if (c < 0) {
+			Node<K, V> left = put(n.left, key, value);
+			return left == n.left ? n : balanceLeft(n.red, n.key, n.value, left, n.right);
+		} else if (c > 0) {
+			Node<K, V> right = put(n.right, key, value);
+			return right == n.right ? n : balanceRight(n.red, n.key, n.value, n.left, right);
+		}
+		return n.value == value ? n : new Node<K, V>(n.key, value, n.left, n.right, n.red);
+	}
+
+	/**
+	 * @return a node with the given left subtree, that may have a red root with a red child.
+	 * under a black node the two reds are rotated into a red node with two black children
+	 */
+	private static <K, V> Node<K, V> balanceLeft(boolean red, K key, V value, Node<K, V> l, Node<K, V> r) {
+		if (!red && isRed(l)) {
+			if (isRed(l.left))
+				return new Node<K, V>(l.key, l.value, l.left.black(), new Node<K, V>(key, value, l.right, r, false), true);
+			if (isRed(l.right))
+				return new Node<K, V>(l.right.key, l.right.value, new Node<K, V>(l.key, l.value, l.left, l.right.left, false),
+						new Node<K, V>(key, value, l.right.right, r, false), true);
+		}
+		return new Node<K, V>(key, value, l, r, red);
+	}
+
+	/**
+	 * the mirror of balanceLeft
+	 */
+	private static <K, V> Node<K, V> balanceRight(boolean red, K key, V value, Node<K, V> l, Node<K, V> r) {
+		if (!red && isRed(r)) {
+			if (isRed(r.right))
+				return new Node<K, V>(r.key, r.value, new Node<K, V>(key, value, l, r.left, false), r.right.black(), true);
+			if (isRed(r.left))
+				return new Node<K, V>(r.left.key, r.left.value, new Node<K, V>(key, value, l, r.left.left, false),
+						new Node<K, V>(r.key, r.value, r.left.right, r.right, false), true);
+		}
+		return new Node<K, V>(key, value, l, r, red);
+	}
+
+	/* remove */
+
+	/**
+	 * @param key
+	 * @return a tree without the key, this tree if the key is not in it
+	 * Complexity: O(lgn)
+	 */
+	public PersistentRBTree<K, V> remove(K key) {
+		if (!containsKey(key)) return this;
+		Node<K, V> n = remove(root, key);
+		return new PersistentRBTree<K, V>(order, n == null ? null : n.black());
+	}
+
+	/**
+	 * @return the subtree n without the key, that is in it.
+	 * removing from a black subtree leaves it one black node shorter, the callers make up for it
+	 * (balanceLeftShort, balanceRightShort)
+	 */
+	private Node<K, V> remove(Node<K, V> n, K key) {
+		int c = order.compare(key, n.key);
+		if (c < 0) {
+			Node<K, V> left = remove(n.left, key);
+			return isBlack(n.left) ? balanceLeftShort(n.key, n.value, left, n.right)
+					: new Node<K, V>(n.key, n.value, left, n.right, true);
+		} else if (c > 0) {
+			Node<K, V> right = remove(n.right, key);
+			return isBlack(n.right) ? balanceRightShort(n.key, n.value, n.left, right)
+					: new Node<K, V>(n.key, n.value, n.left, right, true);
+		}
+		return append(n.left, n.right);
+	}
+
+	/**
+	 * @return a node with the two subtrees, where the left one is a black node shorter than the right one
+	 */
+	private static <K, V> Node<K, V> balanceLeftShort(K key, V value, Node<K, V> l, Node<K, V> r) {
+		if (isRed(l))
+			return new Node<K, V>(key, value, l.black(), r, true);
+		if (isBlack(r))
+			return balance(key, value, l, r.red());
+		if (isRed(r) && isBlack(r.left))
+			return new Node<K, V>(r.left.key, r.left.value, new Node<K, V>(key, value, l, r.left.left, false),
+					balance(r.key, r.value, r.left.right, r.right.red()), true);
+		throw new IllegalStateException("the tree is not balanced");
+	}
+
+	/**
+	 * the mirror of balanceLeftShort
+	 */
+	private static <K, V> Node<K, V> balanceRightShort(K key, V value, Node<K, V> l, Node<K, V> r) {
+		if (isRed(r))
+			return new Node<K, V>(key, value, l, r.black(), true);
+		if (isBlack(l))
+			return balance(key, value, l.red(), r);
+		if (isRed(l) && isBlack(l.right))
+			return new Node<K, V>(l.right.key, l.right.value, balance(l.key, l.value, l.left.red(), l.right.left),
+					new Node<K, V>(key, value, l.right.right, r, false), true);
+		throw new IllegalStateException("the tree is not balanced");
+	}
+
+	/**
+	 * @return a black node with the two subtrees, where a red child with a red child of its own is rotated away
+	 */
+	private static <K, V> Node<K, V> balance(K key, V value, Node<K, V> l, Node<K, V> r) {
+		if (isRed(l)) {
+			if (isRed(r))
+				return new Node<K, V>(key, value, l.black(), r.black(), true);
+			if (isRed(l.left))
+				return new Node<K, V>(l.key, l.value, l.left.black(), new Node<K, V>(key, value, l.right, r, false), true);
+			if (isRed(l.right))
+				return new Node<K, V>(l.right.key, l.right.value, new Node<K, V>(l.key, l.value, l.left, l.right.left, false),
+						new Node<K, V>(key, value, l.right.right, r, false), true);
+		} else if (isRed(r)) {
+			if (isRed(r.right))
+				return new Node<K, V>(r.key, r.value, new Node<K, V>(key, value, l, r.left, false), r.right.black(), true);
+			if (isRed(r.left))
+				return new Node<K, V>(r.left.key, r.left.value, new Node<K, V>(key, value, l, r.left.left, false),
+						new Node<K, V>(r.key, r.value, r.left.right, r.right, false), true);
+		}
+		return new Node<K, V>(key, value, l, r, false);
+	}
+
+	/**
+	 * @return the two subtrees (all the keys of l before all the keys of r) joined into one, in place of
+	 * the node that was between them
+	 */
+	private static <K, V> Node<K, V> append(Node<K, V> l, Node<K, V> r) {
+		if (l == null) return r;
+		if (r == null) return l;
+		if (l.red && r.red) {
+			Node<K, V> middle = append(l.right, r.left);
+			if (isRed(middle))
+				return new Node<K, V>(middle.key, middle.value, new Node<K, V>(l.key, l.value, l.left, middle.left, true),
+						new Node<K, V>(r.key, r.value, middle.right, r.right, true), true);
+			return new Node<K, V>(l.key, l.value, l.left, new Node<K, V>(r.key, r.value, middle, r.right, true), true);
+		}
+		if (!l.red && !r.red) {
+			Node<K, V> middle = append(l.right, r.left);
+			if (isRed(middle))
+				return new Node<K, V>(middle.key, middle.value, new Node<K, V>(l.key, l.value, l.left, middle.left, false),
+						new Node<K, V>(r.key, r.value, middle.right, r.right, false), true);
+			return balanceLeftShort(l.key, l.value, l.left, new Node<K, V>(r.key, r.value, middle, r.right, false));
+		}
+		if (r.red)
+			return new Node<K, V>(r.key, r.value, append(l, r.left), r.right, true);
+		return new Node<K, V>(l.key, l.value, l.left, append(l.right, r), true);
+	}
+}
@@ -1,6 +1,14 @@
 package maman18.data;
 
 import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * @author Shlomi.v
@@ -14,8 +22,11 @@ import java.util.Comparator;
  *  (*) the implementation of java.util.TreeMap
  *  (*) Wikipedia and other online sources 
  * 
+ * Besides foreach, the entries can be visited in order with an iterator (that can stop at any point),
+ * over a range of keys, or with a stream. like in TreeMap, the iterators fail with a
+ * ConcurrentModificationException if the tree is changed while they run, other than by their own remove.
  */
-public class RBTree<K, V> {
+public class RBTree<K, V> implements Index<K, V>, Iterable<Map.Entry<K, V>> {
 
 	enum Color {
 		RED, BLACK
@@ -47,13 +58,15 @@ public class RBTree<K, V> {
 	 * the internal representation of a node in the tree,
 	 * including helper methods to navigate between the nodes.
 	 */
-	private class Node {
+	private class Node implements Map.Entry<K, V> {
 		K key;
 		V value;
 		Node parent;
 		Node left;
 		Node right;
 		Color color;
+		// the number of nodes in the subtree rooted in this node, kept up to date by insert, remove and the rotations
+		int size = 1;
 		@Override
 	    public String toString() {
 	    	return "("+key+","+value+"," +color+")";
@@ -71,6 +84,37 @@ public class RBTree<K, V> {
 				right.parent = this;
 		}
 
+		/* the entry methods, a node is the entry that the iterators return */
+		@Override
+		public K getKey() {
+			return key;
+		}
+
+		@Override
+		public V getValue() {
+			return value;
+		}
+
+		@Override
+		public V setValue(V value) {
+			V old = this.value;
+			this.value = value;
+			return old;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Map.Entry)) return false;
+			Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+			return (key == null ? e.getKey() == null : key.equals(e.getKey()))
+					&& (value == null ? e.getValue() == null : value.equals(e.getValue()));
+		}
+
+		@Override
+		public int hashCode() {
+			return (key == null ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
+		}
+
 		/* helper node navigation methods */
 		boolean isLeftChild() {
 			return parent.left == this;
@@ -106,29 +150,28 @@ public class RBTree<K, V> {
 		/**
 		 * @param key
 		 * @param value
-		 * @return the newly inserted node
+		 * @return the newly inserted node, or null if the key already existed and only its value was replaced
 		 * this is a recursive implementation of tree insert
 		 */
 		private Node insert(K key, V value) {
 			int ord = order.compare(key, this.key);
 			if (ord == 0) {
 				this.value = value;
-				return this;
+				return null;
 			}
 
+			final Node n;
 			if (ord < 0) {
-				if (left != null) return left.insert(key, value);
-				else {
-					left = new Node(key, value, this, null, null, Color.RED);
-					return left;
-				}
+				if (left != null) n = left.insert(key, value);
+				else n = left = new Node(key, value, this, null, null, Color.RED);
 			} else {
-				if (right != null) return right.insert(key, value);
-				else {
-					right = new Node(key, value, this, null, null, Color.RED);
-					return right;
-				}
+				if (right != null) n = right.insert(key, value);
+				else n = right = new Node(key, value, this, null, null, Color.RED);
 			}
+
+			// a new node was added below this one
+			if (n != null) size++;
+			return n;
 		}
 
 		/**
@@ -144,9 +187,31 @@ public class RBTree<K, V> {
 		
 		/**
 		 * @return the number of elements in the tree rooted in this node
+		 * Complexity: O(1)
 		 */
 		private int getSize() {
-			return 1 + ((left == null) ? 0 : left.getSize()) + ((right == null) ? 0 : right.getSize());
+			return size;
+		}
+
+		/**
+		 * recount the size of this node from its children, after they were changed by a rotation
+		 */
+		private void updateSize() {
+			size = 1 + size(left) + size(right);
+		}
+
+		/**
+		 * @param from
+		 * @param to
+		 * @param base - the rank of the smallest item in the tree rooted in this node
+		 * @param action
+		 * perform an in-order scan of the items ranked from..to-1 in this tree, skipping the subtrees outside of it
+		 */
+		public void foreach(int from, int to, int base, Do<V> action) {
+			int rank = base + size(left);
+			if (left != null && from < rank) left.foreach(from, to, base, action);
+			if (from <= rank && rank < to) action.action(value);
+			if (right != null && rank + 1 < to) right.foreach(from, to, rank + 1, action);
 		}
 		
 		/**
@@ -169,11 +234,23 @@ public class RBTree<K, V> {
 		// if we have an empty tree, so simply insert a root node and make sure its black
 		if (root == null) {
 			root = new Node(key, value, null, null, null, Color.BLACK);
+			modCount++;
+			if (fingerSearch) finger = root;
 			return;
 		}
 
+		// a key next to the last one is put right there, without going down from the root
+		if (finger != null && putNearFinger(key, value))
+			return;
+
 		// this tree is not empty, so insert a new node to the root tree, and fix it to satisfy all 5 red-black properties
-		fixRedBlackInsert(root.insert(key, value));
+		// (if the key was already in the tree, only its value was replaced and there is nothing to fix)
+		final Node n = root.insert(key, value);
+		if (n != null) {
+			modCount++;
+			fixRedBlackInsert(n);
+			if (fingerSearch) finger = n;
+		}
 	}
 
 	/**
@@ -189,6 +266,16 @@ public class RBTree<K, V> {
 	// the RBTree's root
 	Node root = null;
 
+	// the number of nodes added and removed so far, the iterators use it to notice changes
+	int modCount = 0;
+
+	// the counters of the work this tree does
+	private final TreeStats stats = new TreeStats();
+
+	// the last node that was found or added, when finger search is on (see setFingerSearch)
+	private boolean fingerSearch = false;
+	private Node finger = null;
+
 	/**
 	 * @param key 
 	 * @return the found node
@@ -197,11 +284,14 @@ public class RBTree<K, V> {
 	 */
 	public Node findNode(final K key) {
 		Node p = root;
+		int steps = 0;
 		while (p != null) {
+			steps++;
 			int theOrder = order.compare(key, p.key);
-			if (theOrder == 0) return p; 
+			if (theOrder == 0) break;
 			p = theOrder < 0 ? p.left : p.right;
 		}
+		stats.search(steps);
 		return p;
 	}
 
@@ -211,7 +301,7 @@ public class RBTree<K, V> {
 	 * Complexity: O(lgn)
 	 */
 	public V get(final K key) {
-		final Node n = findNode(key);
+		final Node n = fingerSearch ? findNodeNearFinger(key) : findNode(key);
 		return n == null ? null : n.value;
 	}
 
@@ -220,6 +310,7 @@ public class RBTree<K, V> {
 	 * @param n - the node to rotate
 	 */
 	private void rotateLeft(final Node n) {
+		stats.rotations++;
 		final Node r = n.right;
 		replaceNode(n, r);
 		n.right = r.left;
@@ -227,12 +318,15 @@ public class RBTree<K, V> {
 			r.left.parent = n;
 		r.left = n;
 		n.parent = r;
+		r.size = n.size;
+		n.updateSize();
 	}
 
 	/**
 	 * @param n - the node to rotate
 	 */
 	private void rotateRight(final Node n) {
+		stats.rotations++;
 		final Node l = n.left;
 		replaceNode(n, l);
 		n.left = l.right;
@@ -240,6 +334,8 @@ public class RBTree<K, V> {
 			l.right.parent = n;
 		l.right = n;
 		n.parent = l;
+		l.size = n.size;
+		n.updateSize();
 	}
 	
 	/**
@@ -265,9 +361,10 @@ public class RBTree<K, V> {
 	 */
 	private void fixRedBlackInsert(final Node z) {
 		// if we reached the tree's head, make sure its black
-		if (z.parent == null)
-			z.color = Color.BLACK; 
-		else {
+		if (z.parent == null) {
+			z.color = Color.BLACK;
+			stats.recolorings++;
+		} else {
 			// otherwise, fix all cases..
 			if (getColor(z.parent) == Color.BLACK)
 				return;
@@ -277,6 +374,7 @@ public class RBTree<K, V> {
 					z.parent.color = Color.BLACK;
 					z.uncle().color = Color.BLACK;
 					z.grandparent().color = Color.RED;
+					stats.recolorings += 3;
 					fixRedBlackInsert(z.grandparent());
 				} else {
 					// case 2
@@ -304,6 +402,7 @@ public class RBTree<K, V> {
 		// case 3
 		z.parent.color = Color.BLACK;
 		z.grandparent().color = Color.RED;
+		stats.recolorings += 2;
 		if (z.isLeftChild() && z.parent.isLeftChild()) {
 			rotateRight(z.grandparent());
 		} else {
@@ -321,9 +420,14 @@ public class RBTree<K, V> {
 	 * Complexity: O(lgn)
 	 */
 	public void remove(K key) {
-		Node n = findNode(key);
+		Node n = fingerSearch ? findNodeNearFinger(key) : findNode(key);
 		if (n == null)
 			return; // Key not found, do nothing
+		modCount++;
+
+		// the next key is where the next remove of a run is going to look, and its node is never the one
+		// that gets deleted below (that is either n or its predecessor)
+		if (fingerSearch) finger = successor(n);
 		if (n.left != null && n.right != null) {
 			// Copy key/value from predecessor and then delete it instead
 			Node pred = n.left.maximumNode();
@@ -339,6 +443,10 @@ public class RBTree<K, V> {
 		}
 		replaceNode(n, child);
 
+		// n is gone, so all of its ancestors lost a node
+		for (Node p = n.parent; p != null; p = p.parent)
+			p.size--;
+
 		if (getColor(root) == Color.RED) {
 			root.color = Color.BLACK;
 		}
@@ -359,6 +467,7 @@ public class RBTree<K, V> {
 			if (getColor(z.brother()) == Color.RED) {
 				z.parent.color = Color.RED;
 				z.brother().color = Color.BLACK;
+				stats.recolorings += 2;
 				if (z.isLeftChild())
 					rotateLeft(z.parent);
 				else
@@ -370,8 +479,12 @@ public class RBTree<K, V> {
 					&& getColor(z.brother().right) == Color.BLACK) {
 				
 				z.brother().color = Color.RED;
+				stats.recolorings++;
 				if (getColor(z.parent) == Color.BLACK) fixRedBlackDelete(z.parent);
-				else z.parent.color = Color.BLACK; 
+				else {
+					z.parent.color = Color.BLACK;
+					stats.recolorings++;
+				}
 			} 
 			else {
 				// case 3, z's brother is black, left child is red and right child is black
@@ -382,6 +495,7 @@ public class RBTree<K, V> {
 					
 					z.brother().color = Color.RED;
 					z.brother().left.color = Color.BLACK;
+					stats.recolorings += 2;
 					rotateRight(z.brother());
 				} else if (z.isRightChild()
 						&& getColor(z.brother()) == Color.BLACK
@@ -390,12 +504,14 @@ public class RBTree<K, V> {
 					
 					z.brother().color = Color.RED;
 					z.brother().right.color = Color.BLACK;
+					stats.recolorings += 2;
 					rotateLeft(z.brother());
 				}
 				
 				// case 4, fix the colors of z's brother and z's parent
 				z.brother().color = getColor(z.parent);
 				z.parent.color = Color.BLACK;
+				stats.recolorings += 3;
 	
 				if (z.isLeftChild()) {
 					z.brother().right.color = Color.BLACK;
@@ -409,6 +525,13 @@ public class RBTree<K, V> {
 
 	}
 
+	/**
+	 * @return the counters of the work this tree does (searches, rotations and recolorings)
+	 */
+	public TreeStats getStats() {
+		return stats;
+	}
+
 	/**
 	 * @return the maximum depth in the tree
 	 * used to test that the tree.. 
@@ -455,14 +578,547 @@ public class RBTree<K, V> {
 	 * Complexity: O(n)   
 	 */
 	public void foreach(Do<V> action) {
-		root.foreach(action);
+		if (root != null) root.foreach(action);
 	}
 
 	/**
 	 * @return the number of nodes in this tree
-	 * Complexity: O(n)
+	 * Complexity: O(1)
 	 */
 	public int getSize() {
-		return root.getSize();
+		return root == null ? 0 : root.getSize();
+	}
+
+	/**
+	 * @param n
+	 * @return the number of nodes in the tree rooted in n, a null node is an empty tree
+	 */
+	private int size(final Node n) {
+		return n == null ? 0 : n.size;
+	}
+
+	/**
+	 * @param key
+	 * @return the number of keys in this tree that are smaller than key.
+	 * if the key is in the tree, this is its index in the sorted order
+	 * Complexity: O(lgn)
+	 */
+	public int rank(final K key) {
+		int rank = 0;
+		Node p = root;
+		while (p != null) {
+			int ord = order.compare(key, p.key);
+			if (ord == 0) return rank + size(p.left);
+			if (ord < 0) {
+				p = p.left;
+			} else {
+				rank += size(p.left) + 1;
+				p = p.right;
+			}
+		}
+		return rank;
+	}
+
+	/**
+	 * @param k
+	 * @return the value of the k-th smallest key (counting from 0), or null if there are no k+1 keys
+	 * Complexity: O(lgn)
+	 */
+	public V select(int k) {
+		final Node n = selectNode(k);
+		return n == null ? null : n.value;
+	}
+
+	/**
+	 * @param k
+	 * @return the node with the k-th smallest key, or null if there are no k+1 keys
+	 * Complexity: O(lgn)
+	 */
+	private Node selectNode(int k) {
+		if (k < 0 || k >= getSize()) return null;
+		Node p = root;
+		while (true) {
+			int left = size(p.left);
+			if (k == left) return p;
+			if (k < left) {
+				p = p.left;
+			} else {
+				k -= left + 1;
+				p = p.right;
+			}
+		}
+	}
+
+	/**
+	 * @param from - the rank of the first item to visit
+	 * @param to - the rank after the last item to visit
+	 * @param action - the action to perform over each item
+	 * visit one page of the items, in the order of their keys, without going over the items before it.
+	 * Complexity: O(lgn + to-from)
+	 */
+	public void foreach(int from, int to, Do<V> action) {
+		if (root != null && from < to) root.foreach(from, to, 0, action);
+	}
+
+	/* finger search */
+
+	/**
+	 * @param on
+	 * turn finger search on or off.
+	 * when it is on, the tree remembers the last node that was found or added (the finger), and the next
+	 * get/put/remove first looks right next to it: a key that is equal to the finger or to its neighbour on
+	 * the side of the key, or that falls in the gap between them, is handled with 2 compares instead of
+	 * going down from the root. this makes runs of sequential keys (AA0001, AA0002, ...) cost O(1) compares each.
+	 * the walk to the neighbour follows the parent links without compares, and is O(1) on average over a run.
+	 * a key that is not near the finger costs 2 more compares than usual, so this is only worth it
+	 * when the keys come in runs. notice that get moves the finger too, so with finger search on even
+	 * reads change the tree, and it cannot be read by several threads at once.
+	 */
+	public void setFingerSearch(boolean on) {
+		fingerSearch = on;
+		finger = on ? root : null;
+	}
+
+	/**
+	 * @param key
+	 * @return the node of the key, or null if there is none. the finger moves to the found node
+	 * looks next to the finger first, and goes down from the root only if the key is not near it
+	 */
+	private Node findNodeNearFinger(final K key) {
+		final Node f = finger;
+		if (f != null) {
+			final int ord = order.compare(key, f.key);
+			if (ord == 0) return f;
+
+			// the neighbour of the finger on the side of the key
+			final Node next = ord > 0 ? successor(f) : predecessor(f);
+			if (next == null) return null; // the key is beyond the first or the last key
+			final int nextOrd = order.compare(key, next.key);
+			if (nextOrd == 0) return finger = next;
+			if ((nextOrd < 0) == (ord > 0)) return null; // the key falls between the finger and its neighbour
+		}
+
+		final Node n = findNode(key);
+		if (n != null) finger = n;
+		return n;
+	}
+
+	/**
+	 * @param key
+	 * @param value
+	 * @return true iff the key was put next to the finger, false if it is not near it
+	 * a new node between the finger f and its neighbour s goes under whichever of them has a free child
+	 * on that side: if f has a child there, then s is the leftmost (or rightmost) node of that subtree.
+	 * the sizes of the ancestors are then counted up the parent links, which takes no compares
+	 */
+	private boolean putNearFinger(K key, V value) {
+		final Node f = finger;
+		final int ord = order.compare(key, f.key);
+		if (ord == 0) {
+			f.value = value;
+			return true;
+		}
+
+		final Node next = ord > 0 ? successor(f) : predecessor(f);
+		if (next != null) {
+			final int nextOrd = order.compare(key, next.key);
+			if (nextOrd == 0) {
+				next.value = value;
+				finger = next;
+				return true;
+			}
+			if ((nextOrd < 0) != (ord > 0)) return false; // the key is beyond the neighbour
+		}
+
+		final Node n;
+		if (ord > 0) {
+			if (f.right == null) n = f.right = new Node(key, value, f, null, null, Color.RED);
+			else n = next.left = new Node(key, value, next, null, null, Color.RED);
+		} else {
+			if (f.left == null) n = f.left = new Node(key, value, f, null, null, Color.RED);
+			else n = next.right = new Node(key, value, next, null, null, Color.RED);
+		}
+		for (Node p = n.parent; p != null; p = p.parent)
+			p.size++;
+
+		modCount++;
+		fixRedBlackInsert(n);
+		finger = n;
+		return true;
+	}
+
+	/* bulk construction */
+
+	/**
+	 * @param order
+	 * @param keys - the keys, sorted by order and with no duplicates
+	 * @param values - the value of each key
+	 * @param n - the number of entries to take from the arrays
+	 * @return a new RBTree holding the n entries
+	 * @throws IllegalArgumentException if the keys are not sorted
+	 *
+	 * builds the tree bottom-up, with no rotations and no compares other than checking the order:
+	 * the middle entry is the root and each half is built the same way, so the tree is perfectly balanced.
+	 * all the nodes are black, except for the lowest level when it is not full, which is red
+	 * (this is also how TreeMap.buildFromSorted works)
+	 * Complexity: O(n)
+	 */
+	static public <K, V> RBTree<K, V> fromSorted(Comparator<K> order, K[] keys, V[] values, int n) {
+		RBTree<K, V> t = new RBTree<K, V>(order);
+		t.checkSorted(keys, n);
+		t.root = t.build(keys, values, 0, n - 1, 0, redLevel(n));
+		t.modCount++;
+		return t;
+	}
+
+	/**
+	 * @param keys - the keys to add, sorted by order and with no duplicates
+	 * @param values - the value of each key
+	 * @param m - the number of entries to take from the arrays
+	 * @throws IllegalArgumentException if the keys are not sorted
+	 *
+	 * add a sorted batch of entries, the values of keys that already exist are replaced.
+	 * a small batch is simply put one entry at a time. a large batch is merged with the entries of the tree
+	 * in a single in-order pass, and then the whole tree is rebuilt like in fromSorted. that is cheaper
+	 * once m puts, at O(lg(n+m)) each, cost more than going over all the n+m entries.
+	 * Complexity: O(min(m*lg(n+m), n+m))
+	 */
+	@SuppressWarnings("unchecked")
+	public void putAllSorted(K[] keys, V[] values, int m) {
+		checkSorted(keys, m);
+		final int n = getSize();
+		if ((long) m * (32 - Integer.numberOfLeadingZeros(n + m)) < n + m) {
+			for (int i = 0; i < m; i++)
+				put(keys[i], values[i]);
+			return;
+		}
+
+		// merge the tree and the batch into sorted arrays
+		K[] mergedKeys = (K[]) new Object[n + m];
+		V[] mergedValues = (V[]) new Object[n + m];
+		int count = 0, i = 0;
+		for (Node p = firstNode(); p != null; p = successor(p)) {
+			while (i < m && order.compare(keys[i], p.key) < 0) {
+				mergedKeys[count] = keys[i];
+				mergedValues[count++] = values[i++];
+			}
+			// a key that is in both keeps the key of the tree and gets the value of the batch, just like put
+			mergedKeys[count] = p.key;
+			mergedValues[count++] = i < m && order.compare(keys[i], p.key) == 0 ? values[i++] : p.value;
+		}
+		while (i < m) {
+			mergedKeys[count] = keys[i];
+			mergedValues[count++] = values[i++];
+		}
+
+		root = build(mergedKeys, mergedValues, 0, count - 1, 0, redLevel(count));
+		modCount++;
+		finger = null;
+	}
+
+	/**
+	 * @param keys
+	 * @param n
+	 * @throws IllegalArgumentException if the first n keys are not strictly increasing
+	 */
+	private void checkSorted(K[] keys, int n) {
+		for (int i = 1; i < n; i++)
+			if (order.compare(keys[i - 1], keys[i]) >= 0)
+				throw new IllegalArgumentException("the keys are not sorted: " + keys[i - 1] + " before " + keys[i]);
+	}
+
+	/**
+	 * @param keys
+	 * @param values
+	 * @param lo
+	 * @param hi
+	 * @param level - the depth of the built subtree in the whole tree
+	 * @param redLevel - the depth of the nodes to color red
+	 * @return the root of a balanced tree holding the entries lo..hi
+	 * a recursive helper of fromSorted
+	 */
+	private Node build(K[] keys, V[] values, int lo, int hi, int level, int redLevel) {
+		if (hi < lo) return null;
+		final int mid = (lo + hi) >>> 1;
+		final Node left = build(keys, values, lo, mid - 1, level + 1, redLevel);
+		final Node right = build(keys, values, mid + 1, hi, level + 1, redLevel);
+		final Node n = new Node(keys[mid], values[mid], null, left, right, level == redLevel ? Color.RED : Color.BLACK);
+		n.size = hi - lo + 1;
+		return n;
+	}
+
+	/**
+	 * @param n
+	 * @return the depth of the lowest level of a balanced tree with n nodes.
+	 * when that level is not full, its nodes are colored red, so every path has the same number of black nodes
+	 */
+	static int redLevel(int n) {
+		int level = 0;
+		for (int m = n - 1; m >= 0; m = m / 2 - 1)
+			level++;
+		return level;
+	}
+
+	/* ordered access: ceiling/floor, iterators, range scans and streams */
+
+	/**
+	 * @return the node with the smallest key, or null if the tree is empty
+	 * Complexity: O(lgn)
+	 */
+	private Node firstNode() {
+		Node p = root;
+		if (p != null)
+			while (p.left != null) p = p.left;
+		return p;
+	}
+
+	/**
+	 * @param n
+	 * @return the node with the next key after the key of n, or null if n is the last node
+	 * goes down to the leftmost node of the right subtree, or else up to the first ancestor that n is left of.
+	 * Complexity: O(lgn), and O(1) on average over a whole scan
+	 */
+	private Node successor(Node n) {
+		if (n.right != null) {
+			n = n.right;
+			while (n.left != null) n = n.left;
+			return n;
+		}
+		while (n.parent != null && n.isRightChild()) n = n.parent;
+		return n.parent;
+	}
+
+	/**
+	 * @param n
+	 * @return the node with the previous key before the key of n, or null if n is the first node
+	 * the mirror of successor
+	 * Complexity: O(lgn)
+	 */
+	private Node predecessor(Node n) {
+		if (n.left != null) return n.left.maximumNode();
+		while (n.parent != null && n.isLeftChild()) n = n.parent;
+		return n.parent;
+	}
+
+	/**
+	 * @param key
+	 * @return the node with the smallest key that is larger than or equal to key, or null if there is none
+	 * Complexity: O(lgn)
+	 */
+	private Node ceilingNode(final K key) {
+		Node p = root, ceiling = null;
+		while (p != null) {
+			int ord = order.compare(key, p.key);
+			if (ord == 0) return p;
+			if (ord < 0) {
+				ceiling = p;
+				p = p.left;
+			} else {
+				p = p.right;
+			}
+		}
+		return ceiling;
+	}
+
+	/**
+	 * @param key
+	 * @return the node with the largest key that is smaller than or equal to key, or null if there is none
+	 * Complexity: O(lgn)
+	 */
+	private Node floorNode(final K key) {
+		Node p = root, floor = null;
+		while (p != null) {
+			int ord = order.compare(key, p.key);
+			if (ord == 0) return p;
+			if (ord > 0) {
+				floor = p;
+				p = p.right;
+			} else {
+				p = p.left;
+			}
+		}
+		return floor;
+	}
+
+	/**
+	 * @param key
+	 * @return the entry with the smallest key that is larger than or equal to key, or null if there is none
+	 * Complexity: O(lgn)
+	 */
+	public Map.Entry<K, V> ceilingEntry(final K key) {
+		return ceilingNode(key);
+	}
+
+	/**
+	 * @param key
+	 * @return the entry with the largest key that is smaller than or equal to key, or null if there is none
+	 * Complexity: O(lgn)
+	 */
+	public Map.Entry<K, V> floorEntry(final K key) {
+		return floorNode(key);
+	}
+
+	/**
+	 * @return an iterator over all the entries, in the order of their keys
+	 * the entries are the nodes themselves, so setValue changes the tree
+	 */
+	@Override
+	public Iterator<Map.Entry<K, V>> iterator() {
+		return new EntryIterator(firstNode(), null);
+	}
+
+	/**
+	 * @param from - the smallest key to visit, or null to start at the first key
+	 * @param to - the key to stop before, or null to go on to the last key
+	 * @return the entries with from <= key < to, in the order of their keys
+	 * Complexity: O(lgn) to find from, and then O(1) on average per entry
+	 */
+	public Iterable<Map.Entry<K, V>> range(final K from, final K to) {
+		return new Iterable<Map.Entry<K, V>>() {
+			@Override
+			public Iterator<Map.Entry<K, V>> iterator() {
+				return new EntryIterator(from == null ? firstNode() : ceilingNode(from), to);
+			}
+		};
+	}
+
+	/**
+	 * an in-order iterator that walks from node to node through the parent links, so it needs no stack
+	 */
+	private class EntryIterator implements Iterator<Map.Entry<K, V>> {
+		private Node next;
+		private Node lastReturned = null;
+		private final K to;
+		private int expectedModCount = modCount;
+
+		/**
+		 * @param first - the first node to visit
+		 * @param to - the key to stop before, or null to visit all the nodes after first
+		 */
+		EntryIterator(Node first, K to) {
+			this.to = to;
+			this.next = inRange(first) ? first : null;
+		}
+
+		private boolean inRange(Node n) {
+			return n != null && (to == null || order.compare(n.key, to) < 0);
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Map.Entry<K, V> next() {
+			if (next == null) throw new NoSuchElementException();
+			if (modCount != expectedModCount) throw new ConcurrentModificationException();
+			lastReturned = next;
+			next = successor(next);
+			if (!inRange(next)) next = null;
+			return lastReturned;
+		}
+
+		/**
+		 * remove the last entry that was returned.
+		 * remove replaces a node with two children by its predecessor, so the next node is not touched
+		 */
+		@Override
+		public void remove() {
+			if (lastReturned == null) throw new IllegalStateException();
+			if (modCount != expectedModCount) throw new ConcurrentModificationException();
+			RBTree.this.remove(lastReturned.key);
+			lastReturned = null;
+			expectedModCount = modCount;
+		}
+	}
+
+	/**
+	 * @return a spliterator over all the entries, in the order of their keys.
+	 * it splits by rank, using the subtree sizes, so both halves are always the same size and their sizes
+	 * are exact, and every part of a parallel stream gets the same amount of work
+	 */
+	@Override
+	public Spliterator<Map.Entry<K, V>> spliterator() {
+		return new EntrySpliterator(0, getSize());
+	}
+
+	/**
+	 * @return a stream of all the entries, in the order of their keys. call parallel() on it
+	 * to spread the work over all the cores, as long as the tree is not changed while it runs
+	 */
+	public Stream<Map.Entry<K, V>> stream() {
+		return StreamSupport.stream(spliterator(), false);
+	}
+
+	/**
+	 * a spliterator over the entries ranked lo..hi-1.
+	 * the node at rank lo is only found when the first entry is needed, so splitting is O(1)
+	 */
+	private class EntrySpliterator implements Spliterator<Map.Entry<K, V>> {
+		private int lo;
+		private final int hi;
+		private Node current = null;
+		private final int expectedModCount = modCount;
+
+		EntrySpliterator(int lo, int hi) {
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super Map.Entry<K, V>> action) {
+			if (lo >= hi) return false;
+			if (modCount != expectedModCount) throw new ConcurrentModificationException();
+			if (current == null) current = selectNode(lo);
+			final Node n = current;
+			current = ++lo < hi ? successor(n) : null;
+			action.accept(n);
+			return true;
+		}
+
+		@Override
+		public void forEachRemaining(Consumer<? super Map.Entry<K, V>> action) {
+			if (lo >= hi) return;
+			if (modCount != expectedModCount) throw new ConcurrentModificationException();
+			Node n = current == null ? selectNode(lo) : current;
+			for (; lo < hi && n != null; lo++) {
+				action.accept(n);
+				n = successor(n);
+			}
+			current = null;
+			if (modCount != expectedModCount) throw new ConcurrentModificationException();
+		}
+
+		@Override
+		public Spliterator<Map.Entry<K, V>> trySplit() {
+			if (hi - lo < 2) return null;
+			final int mid = (lo + hi) >>> 1;
+			EntrySpliterator prefix = new EntrySpliterator(lo, mid);
+			prefix.current = current;
+			lo = mid;
+			current = null;
+			return prefix;
+		}
+
+		@Override
+		public long estimateSize() {
+			return hi - lo;
+		}
+
+		@Override
+		public int characteristics() {
+			return ORDERED | SORTED | DISTINCT | SIZED | SUBSIZED | NONNULL;
+		}
+
+		@Override
+		public Comparator<? super Map.Entry<K, V>> getComparator() {
+			return new Comparator<Map.Entry<K, V>>() {
+				@Override
+				public int compare(Map.Entry<K, V> e1, Map.Entry<K, V> e2) {
+					return order.compare(e1.getKey(), e2.getKey());
+				}
+			};
+		}
 	}
 }
@@ -0,0 +1,303 @@
+package maman18.data;
+
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicMarkableReference;
+
+/**
+ * @author Shlomi.v
+ *
+ * @param <K> - the type of the Key
+ * @param <V> - the type of the Values
+ *
+ * A lock-free ordered map, implemented as a concurrent skip list.
+ * It has the same get/put/remove/foreach contract as RBTree, but it can be used by many threads at once,
+ * and no thread ever waits for a lock: there is no rebalancing, a node only changes its neighbours
+ * by compare-and-set.
+ *
+ * To build this class I used the lock-free skip list from "The Art of Multiprocessor Programming"
+ * (Herlihy and Shavit), and the implementation of java.util.concurrent.ConcurrentSkipListMap:
+ *  (*) each node is in the levels 0..topLevel, level 0 holds all the keys in order.
+ *  (*) a node is removed by marking its next references, from its top level down to level 0.
+ *      marking level 0 is the moment the key is removed. the marked nodes are then unlinked by
+ *      whoever passes over them while adding or removing.
+ *  (*) get only reads, it skips over marked nodes without unlinking them, so readers never
+ *      write anything and never retry.
+ *
+ * foreach and getSize are weakly consistent: they reflect the changes made by other threads while they
+ * run only partly.
+ */
+public class SkipListIndex<K, V> implements Index<K, V> {
+
+	// the levels are 0..MAX_LEVEL, a skip list with p=1/2 this high is enough for 2^24 keys and more
+	private static final int MAX_LEVEL = 24;
+
+	/**
+	 * a node in the list, the head and tail nodes have no key
+	 */
+	private static final class Node<K, V> {
+		final K key;
+		volatile V value;
+		final AtomicMarkableReference<Node<K, V>>[] next;
+		final int topLevel;
+
+		Node(K key, V value, int topLevel) {
+			this.key = key;
+			this.value = value;
+			this.topLevel = topLevel;
+			// an array of a generic type can only be made of wildcards
+			@SuppressWarnings("unchecked")
+			AtomicMarkableReference<Node<K, V>>[] next =
+					(AtomicMarkableReference<Node<K, V>>[]) new AtomicMarkableReference<?>[topLevel + 1];
+			this.next = next;
+			for (int i = 0; i <= topLevel; i++)
+				next[i] = new AtomicMarkableReference<Node<K, V>>(null, false);
+		}
+	}
+
+	final protected Comparator<K> order;
+
+	private final Node<K, V> head = new Node<K, V>(null, null, MAX_LEVEL);
+	private final Node<K, V> tail = new Node<K, V>(null, null, MAX_LEVEL);
+
+	private final AtomicInteger size = new AtomicInteger();
+
+	// the seed of the random levels. it is shared by the threads without any synchronization,
+	// a lost update only means a less random level
+	private int seed = (int) System.nanoTime() | 1;
+
+	/**
+	 * @param order
+	 * notice this method is private. in order to construct a new SkipListIndex, see empty below
+	 */
+	private SkipListIndex(Comparator<K> order) {
+		this.order = order;
+		for (int i = 0; i <= MAX_LEVEL; i++)
+			head.next[i].set(tail, false);
+	}
+
+	/**
+	 * @param order
+	 * @return a new empty SkipListIndex, with the given ordering
+	 */
+	static public <K, V> SkipListIndex<K, V> empty(Comparator<K> order) {
+		return new SkipListIndex<K, V>(order);
+	}
+
+	/**
+	 * @return a random level, level i is chosen with probability 1/2^(i+1)
+	 */
+	private int randomLevel() {
+		int x = seed;
+		x ^= x << 13;
+		x ^= x >>> 17;
+		x ^= x << 5;
+		seed = x;
+		return Math.min(Integer.numberOfTrailingZeros(x | (1 << MAX_LEVEL)), MAX_LEVEL);
+	}
+
+	/**
+	 * @param n
+	 * @param key
+	 * @return true iff the key of n is smaller than key, the tail is larger than any key
+	 */
+	private boolean less(Node<K, V> n, K key) {
+		return n != tail && order.compare(n.key, key) < 0;
+	}
+
+	/**
+	 * @param key
+	 * @param preds - gets the last node before key in each level
+	 * @param succs - gets the first node at or after key in each level
+	 * @return true iff the key was found (it is succs[0])
+	 *
+	 * find the place of the key in all the levels, unlinking any marked node on the way
+	 */
+	private boolean find(K key, Node<K, V>[] preds, Node<K, V>[] succs) {
+		boolean[] marked = { false };
+		retry:
+		while (true) {
+			Node<K, V> pred = head, curr = null, succ;
+			for (int level = MAX_LEVEL; level >= 0; level--) {
+				curr = pred.next[level].getReference();
+				while (true) {
+					succ = curr.next[level].get(marked);
+					while (marked[0]) {
+						// curr is being removed, unlink it from this level
+						if (!pred.next[level].compareAndSet(curr, succ, false, false))
+							continue retry;
+						curr = succ;
+						succ = curr.next[level].get(marked);
+					}
+					if (less(curr, key)) {
+						pred = curr;
+						curr = succ;
+					} else {
+						break;
+					}
+				}
+				preds[level] = pred;
+				succs[level] = curr;
+			}
+			return curr != tail && order.compare(curr.key, key) == 0;
+		}
+	}
+
+	/**
+	 * @return an array with a node for every level, for the predecessors or successors that find fills
+	 */
+	@SuppressWarnings("unchecked") // of wildcards, like the next array of a Node
+	private Node<K, V>[] levels() {
+		return (Node<K, V>[]) new Node<?, ?>[MAX_LEVEL + 1];
+	}
+
+	/**
+	 * @param key
+	 * @param value
+	 * add a new key/value pair, or replace the value of an existing key
+	 * Complexity: O(lgn) expected
+	 */
+	public void put(K key, V value) {
+		Node<K, V>[] preds = levels(), succs = levels();
+		int topLevel = randomLevel();
+		while (true) {
+			if (find(key, preds, succs)) {
+				succs[0].value = value;
+				return;
+			}
+
+			// link the new node at level 0 first, that is the moment it is added
+			Node<K, V> node = new Node<K, V>(key, value, topLevel);
+			for (int level = 0; level <= topLevel; level++)
+				node.next[level].set(succs[level], false);
+			if (!preds[0].next[0].compareAndSet(succs[0], node, false, false))
+				continue;
+			size.incrementAndGet();
+
+			// and then link it at the upper levels, finding the place again if anything changed
+			for (int level = 1; level <= topLevel; level++) {
+				while (true) {
+					Node<K, V> succ = succs[level];
+					if (node.next[level].isMarked())
+						return; // it is already being removed
+					if (node.next[level].getReference() != succ
+							&& !node.next[level].compareAndSet(node.next[level].getReference(), succ, false, false))
+						continue;
+					if (preds[level].next[level].compareAndSet(succ, node, false, false))
+						break;
+					find(key, preds, succs);
+				}
+			}
+			return;
+		}
+	}
+
+	/**
+	 * @param key
+	 * remove an item by its key
+	 * Complexity: O(lgn) expected
+	 */
+	public void remove(K key) {
+		Node<K, V>[] preds = levels(), succs = levels();
+		if (!find(key, preds, succs))
+			return;
+
+		// mark the upper levels, from the top down
+		Node<K, V> node = succs[0];
+		boolean[] marked = { false };
+		for (int level = node.topLevel; level >= 1; level--) {
+			Node<K, V> succ = node.next[level].get(marked);
+			while (!marked[0]) {
+				node.next[level].attemptMark(succ, true);
+				succ = node.next[level].get(marked);
+			}
+		}
+
+		// and then level 0, whoever marks it is the one that removed the key
+		Node<K, V> succ = node.next[0].get(marked);
+		while (true) {
+			if (node.next[0].compareAndSet(succ, succ, false, true)) {
+				size.decrementAndGet();
+				find(key, preds, succs); // unlink it
+				return;
+			}
+			succ = node.next[0].get(marked);
+			if (marked[0])
+				return; // another thread removed it
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return the value associated with the given key
+	 * this never writes anything and never retries, it skips over the nodes that are being removed
+	 * Complexity: O(lgn) expected
+	 */
+	public V get(K key) {
+		boolean[] marked = { false };
+		Node<K, V> pred = head, curr = null, succ;
+		for (int level = MAX_LEVEL; level >= 0; level--) {
+			curr = pred.next[level].getReference();
+			while (true) {
+				succ = curr.next[level].get(marked);
+				while (marked[0]) {
+					curr = succ;
+					succ = curr.next[level].get(marked);
+				}
+				if (less(curr, key)) {
+					pred = curr;
+					curr = succ;
+				} else {
+					break;
+				}
+			}
+		}
+		return curr != tail && order.compare(curr.key, key) == 0 ? curr.value : null;
+	}
+
+	/**
+	 * @param key
+	 * @return true iff the key exists
+	 */
+	public boolean containsKey(K key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * @return true iff this list is empty
+	 */
+	public boolean isEmpty() {
+		return size.get() == 0;
+	}
+
+	/**
+	 * @return true iff this list is NOT empty
+	 */
+	public boolean isNotEmpty() {
+		return !isEmpty();
+	}
+
+	/**
+	 * @return the number of keys in this list
+	 * Complexity: O(1)
+	 */
+	public int getSize() {
+		return size.get();
+	}
+
+	/**
+	 * @param action - the action to perform over each item in the list
+	 * the items are visited in the order of their keys
+	 * Complexity: O(n)
+	 */
+	public void foreach(Do<V> action) {
+		boolean[] marked = { false };
+		Node<K, V> curr = head.next[0].getReference();
+		while (curr != tail) {
+			Node<K, V> succ = curr.next[0].get(marked);
+			if (!marked[0])
+				action.action(curr.value);
+			curr = succ;
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package maman18.data;
+
+/**
+ * @author Shlomi.v
+ *
+ * The counters a red-black tree keeps about its own work: how long its searches are, and how much
+ * fixing up its inserts and removes take (rotations and recolorings).
+ *
+ * the counters are plain fields that the tree adds to as it goes, so keeping them costs a few additions
+ * per operation and no allocation at all. they are written only by the thread that changes the tree,
+ * another thread that reads them (like a JMX client) may see them a little behind.
+ */
+public final class TreeStats {
+
+	long searches = 0;
+	long searchSteps = 0;
+	int longestSearch = 0;
+	long rotations = 0;
+	long recolorings = 0;
+
+	/**
+	 * @param steps - the number of nodes a search went through
+	 */
+	void search(int steps) {
+		searches++;
+		searchSteps += steps;
+		if (steps > longestSearch) longestSearch = steps;
+	}
+
+	/**
+	 * @return the number of searches from the root (by a get, a containsKey or a remove)
+	 */
+	public long getSearches() {
+		return searches;
+	}
+
+	/**
+	 * @return the average number of nodes a search went through
+	 */
+	public double getMeanSearchPath() {
+		long n = searches;
+		return n == 0 ? 0 : (double) searchSteps / n;
+	}
+
+	/**
+	 * @return the most nodes a single search went through, a cheap lower bound of the height of the tree
+	 */
+	public int getLongestSearch() {
+		return longestSearch;
+	}
+
+	/**
+	 * @return the number of rotations the inserts and removes made
+	 */
+	public long getRotations() {
+		return rotations;
+	}
+
+	/**
+	 * @return the number of nodes the inserts and removes recolored
+	 */
+	public long getRecolorings() {
+		return recolorings;
+	}
+
+	/**
+	 * @param other
+	 * add the counters of other to these, to sum up several trees
+	 */
+	public void add(TreeStats other) {
+		searches += other.searches;
+		searchSteps += other.searchSteps;
+		longestSearch = Math.max(longestSearch, other.longestSearch);
+		rotations += other.rotations;
+		recolorings += other.recolorings;
+	}
+
+	/**
+	 * start counting again from 0
+	 */
+	public void reset() {
+		searches = 0;
+		searchSteps = 0;
+		longestSearch = 0;
+		rotations = 0;
+		recolorings = 0;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("searches=%d meanPath=%.2f longestPath=%d rotations=%d recolorings=%d",
+				searches, getMeanSearchPath(), longestSearch, rotations, recolorings);
+	}
+}
@@ -0,0 +1,305 @@
+package maman18.library;
+
+import java.util.Comparator;
+
+import maman18.library.Library.AddResult;
+import maman18.library.Library.BorrowResult;
+import maman18.library.Library.RemoveResult;
+import maman18.library.Library.ReturnResult;
+import maman18.library.Library.Subscriber;
+import maman18.library.Library.Tier;
+
+/**
+ * @author Shlomi.v
+ *
+ * What Library and ConcurrentLibrary share: the listener, the outcomes of the commands (see LibraryStats),
+ * the codes of the books (see BookId), and the commands that are only a shortcut for another command
+ * (a book id instead of its code, the default borrowing limit, a list of subscribers).
+ * each of them keeps its subscribers and books its own way, and runs the commands on them.
+ */
+abstract class AbstractLibrary implements Circulation {
+
+	// default comparators. the subscriber ids and the book codes are primitives, so these are only needed
+	// by indexes that have no primitive version
+	final Comparator<Integer> intOrd = new Comparator<Integer>() {
+		@Override
+		public int compare(Integer o1, Integer o2) {
+			return o1.compareTo(o2);
+		}
+	};
+
+	final Comparator<Long> longOrd = new Comparator<Long>() {
+		@Override
+		public int compare(Long o1, Long o2) {
+			return o1.compareTo(o2);
+		}
+	};
+
+	// when set, gets the outcome of every command (see setListener)
+	LibraryListener listener = null;
+
+	// the outcomes of the commands so far
+	final LibraryStats stats = new LibraryStats();
+
+	// the codes of the book ids that are not packed, only the books that were lent are there
+	final BookId bookIds;
+
+	/**
+	 * @param bookIds - the table of the book codes, it may be shared with other libraries (see ConcurrentLibrary)
+	 */
+	AbstractLibrary(BookId bookIds) {
+		this.bookIds = bookIds;
+	}
+
+	/**
+	 * @return the table that turns the book ids into their codes and back, see BookId
+	 */
+	@Override
+	public BookId getBookIds() {
+		return bookIds;
+	}
+
+	/**
+	 * @param listener - gets an event for every command, or null for no events at all
+	 *
+	 * the library itself prints nothing, whoever wants to show the outcome of the commands
+	 * (see CommandParser) plugs in a listener
+	 */
+	@Override
+	public void setListener(LibraryListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @param name
+	 * @param id
+	 * @return the outcome
+	 *
+	 * This method will add a subscriber by that given name and the given ID, as a patron (see Tier)
+	 * Complexity : see addSubscriber(name, id, limit)
+	 */
+	@Override
+	public AddResult addSubscriber(String name, int id) {
+		return addSubscriber(name, id, Tier.PATRON.getLimit());
+	}
+
+	/**
+	 * @param ids
+	 * @return the outcome for each of the ids
+	 *
+	 * remove all the subscribers, each one with all of its books at once (see removeSubscriber)
+	 * Complexity : O(sum of removeSubscriber over the subscribers)
+	 */
+	@Override
+	public RemoveResult[] removeSubscribers(int[] ids) {
+		RemoveResult[] results = new RemoveResult[ids.length];
+		for (int i = 0; i < ids.length; i++)
+			results[i] = removeSubscriber(ids[i]);
+		return results;
+	}
+
+	/**
+	 * @param subId
+	 * @param bookId
+	 * @return the outcome
+	 *
+	 * a subscriber identified by subId is borrowing the book identified by bookId.
+	 * the book only gets a code (see BookId) if it is lent
+	 * Complexity : see subBorrowBook(subId, book)
+	 */
+	@Override
+	public BorrowResult subBorrowBook(int subId, String bookId) {
+		long book = bookIds.find(bookId);
+		return book != BookId.NONE ? subBorrowBook(subId, book, bookId) : borrowUnseen(subId, bookId);
+	}
+
+	/**
+	 * @param subId
+	 * @param book - the code of the book, see BookId
+	 * @param bookId - the id as it was typed, for the listener, or null to show the id of the code
+	 * @return the outcome
+	 * the same as subBorrowBook(subId, book), the listener shows the book as it was typed
+	 */
+	abstract BorrowResult subBorrowBook(int subId, long book, String bookId);
+
+	/**
+	 * @param subId
+	 * @param bookId - a book that has no code, so no one holds it
+	 * @return the outcome
+	 * a subscriber identified by subId is borrowing the book, it is given a code only if it can be lent
+	 */
+	abstract BorrowResult borrowUnseen(int subId, String bookId);
+
+	/**
+	 * @param subId
+	 * @param bookId
+	 * @return the outcome
+	 *
+	 * a subscriber identified by subId is returning a book identified by bookId
+	 * Complexity : see subReturnBook(subId, book)
+	 */
+	@Override
+	public ReturnResult subReturnBook(int subId, String bookId) {
+		long book = bookIds.find(bookId);
+		if (book != BookId.NONE) return subReturnBook(subId, book, bookId);
+
+		// a book with no code was never lent
+		ReturnResult result = getSubscriber(subId) == null ? ReturnResult.NO_SUCH_SUBSCRIBER : ReturnResult.NOT_LENT;
+		returned(result, subId, null, bookId, 0);
+		return result;
+	}
+
+	/**
+	 * @param subId
+	 * @param book - the code of the book, see BookId
+	 * @param bookId - the id as it was typed, for the listener, or null to show the id of the code
+	 * @return the outcome
+	 * the same as subReturnBook(subId, book), the listener shows the book as it was typed
+	 */
+	abstract ReturnResult subReturnBook(int subId, long book, String bookId);
+
+	/**
+	 * @param subId
+	 * @param bookIds
+	 * @return the outcome for each of the books
+	 *
+	 * a subscriber identified by subId is borrowing all the books, in order, until it reaches its limit.
+	 * if any of the books has no code yet they are borrowed one by one, so only the lent ones get codes
+	 * Complexity : see borrowMany(subId, books)
+	 */
+	@Override
+	public BorrowResult[] borrowMany(int subId, String[] bookIds) {
+		long[] books = codes(bookIds);
+		if (books != null) return borrowMany(subId, books, bookIds);
+		BorrowResult[] results = new BorrowResult[bookIds.length];
+		for (int i = 0; i < bookIds.length; i++)
+			results[i] = subBorrowBook(subId, bookIds[i]);
+		return results;
+	}
+
+	/**
+	 * @param subId
+	 * @param books - the codes of the books, see BookId
+	 * @param ids - the ids as they were typed, for the listener, or null to show the ids of the codes
+	 * @return the outcome for each of the books
+	 * the same as borrowMany(subId, books), the listener shows the books as they were typed
+	 */
+	abstract BorrowResult[] borrowMany(int subId, long[] books, String[] ids);
+
+	/**
+	 * @param subId
+	 * @param bookIds
+	 * @return the outcome for each of the books
+	 *
+	 * a subscriber identified by subId is returning all the books.
+	 * if any of the books has no code they are returned one by one
+	 * Complexity : see returnMany(subId, books)
+	 */
+	@Override
+	public ReturnResult[] returnMany(int subId, String[] bookIds) {
+		long[] books = codes(bookIds);
+		if (books != null) return returnMany(subId, books, bookIds);
+		ReturnResult[] results = new ReturnResult[bookIds.length];
+		for (int i = 0; i < bookIds.length; i++)
+			results[i] = subReturnBook(subId, bookIds[i]);
+		return results;
+	}
+
+	/**
+	 * @param subId
+	 * @param books - the codes of the books, see BookId
+	 * @param ids - the ids as they were typed, for the listener, or null to show the ids of the codes
+	 * @return the outcome for each of the books
+	 * the same as returnMany(subId, books), the listener shows the books as they were typed
+	 */
+	abstract ReturnResult[] returnMany(int subId, long[] books, String[] ids);
+
+	/**
+	 * @param bookId
+	 * @return the Subscriber that is currently holding the book identified by bookId
+	 * Complexity : see whoHoldsTheBook(book)
+	 */
+	@Override
+	public Subscriber whoHoldsTheBook(String bookId) {
+		long book = bookIds.find(bookId);
+		return book != BookId.NONE ? whoHoldsTheBook(book) : null;
+	}
+
+	/**
+	 * @param ids
+	 * @return the codes of the book ids (see BookId), or null if any of them has no code
+	 */
+	private long[] codes(String[] ids) {
+		long[] books = new long[ids.length];
+		for (int i = 0; i < ids.length; i++)
+			if ((books[i] = bookIds.find(ids[i])) == BookId.NONE) return null;
+		return books;
+	}
+
+	/**
+	 * @return the outcomes of the commands so far
+	 */
+	@Override
+	public LibraryStats getStats() {
+		return stats;
+	}
+
+	/*
+	 * every outcome of a command goes through the methods below, that count it (see LibraryStats) and
+	 * send it to the listener. the listener gets a book id as it was typed, and a book code is only turned
+	 * into a String (see BookId.toString) when there is a listener and no typed id, like a book of a
+	 * subscriber that returns all of its books
+	 */
+
+	void added(AddResult result, String name, int id) {
+		stats.added(result);
+		if (listener != null) listener.subscriberAdded(result, name, id);
+	}
+
+	void removed(RemoveResult result, int id) {
+		stats.removed(result);
+		if (listener != null) listener.subscriberRemoved(result, id);
+	}
+
+	void borrowed(BorrowResult result, int subId, String subName, long book, String bookId, int holderId) {
+		stats.borrowed(result);
+		if (listener != null)
+			listener.bookBorrowed(result, subId, subName, bookId != null ? bookId : bookIds.toString(book), holderId);
+	}
+
+	void borrowed(BorrowResult result, int subId, String subName, String bookId, int holderId) {
+		stats.borrowed(result);
+		if (listener != null) listener.bookBorrowed(result, subId, subName, bookId, holderId);
+	}
+
+	void returned(ReturnResult result, int subId, String subName, long book, String bookId, int holderId) {
+		stats.returned(result, 1);
+		if (listener != null)
+			listener.bookReturned(result, subId, subName, bookId != null ? bookId : bookIds.toString(book), holderId);
+	}
+
+	void returned(ReturnResult result, int subId, String subName, String bookId, int holderId) {
+		stats.returned(result, 1);
+		if (listener != null) listener.bookReturned(result, subId, subName, bookId, holderId);
+	}
+
+	/**
+	 * @param subId
+	 * @param s - the subscriber, or null if there is no such subscriber
+	 * all the books s holds are returned, the listener gets an event for each of them as if they were
+	 * returned one by one, always taking the first book (so the last book takes its place)
+	 */
+	void returnedAll(int subId, Subscriber s) {
+		if (s == null) {
+			stats.returned(ReturnResult.NO_SUCH_SUBSCRIBER, 1);
+			if (listener != null) listener.bookReturned(ReturnResult.NO_SUCH_SUBSCRIBER, subId, null, null, 0);
+			return;
+		}
+		stats.returned(ReturnResult.OK, s.count);
+		if (listener == null) return;
+		for (int i = 0; i < s.count; i++) {
+			String bookId = bookIds.toString(s.books[i == 0 ? 0 : s.count - i]);
+			listener.bookReturned(ReturnResult.OK, s.id, s.name, bookId, s.id);
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package maman18.library;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author Shlomi.v
+ *
+ * Turns book ids into primitive longs (codes), so the library keeps and compares the book ids as numbers
+ * instead of Strings. the ids are compared ignoring case, so the case is folded once, when the code is made:
+ *  (*) an id of up to MAX_PACKED letters and digits (like AA0001) is packed into its code, as a base 37
+ *      number with a digit per character: 1..10 for '0'..'9', 11..36 for 'a'..'z' in either case, and 0
+ *      for the padding after the id. so the codes of these ids are ordered just like the ids themselves
+ *      (by compareToIgnoreCase), and they are all positive.
+ *  (*) any other id gets a negative code, in the order the ids are first lent. these ids are kept in a
+ *      table, so they can be turned back into Strings. every library has its own table (see
+ *      Circulation.getBookIds), and only a book that is lent gets into it: looking an id up (see find)
+ *      never adds it. the table only grows, but such ids are rare.
+ *
+ * an id that is not packed and was never lent has no code at all, find gives NONE for it. no one can hold
+ * such a book, so the library answers the commands on it without a code.
+ *
+ * a packed id is turned back into a String in upper case. an id that did not fit keeps the spelling
+ * it was first lent with. so the library only shows an id made from its code where no one typed it
+ * (like the books of a subscriber, or a recovered library), a command shows the id as it was typed.
+ *
+ * this class is thread safe.
+ */
+public final class BookId {
+
+	// the longest id that is packed, 37^12 < 2^63
+	public static final int MAX_PACKED = 12;
+
+	// the code of no book, for an id that has no code (see find)
+	public static final long NONE = Long.MIN_VALUE;
+
+	private static final int RADIX = 37;
+
+	// the ids that do not fit, by their folded form, and by their code (-1, -2, ...)
+	private final ConcurrentHashMap<String, Long> others = new ConcurrentHashMap<String, Long>();
+	private final ArrayList<String> otherIds = new ArrayList<String>();
+
+	/**
+	 * builds an empty table, where only the packed ids have codes
+	 */
+	BookId() {
+	}
+
+	/**
+	 * @param id
+	 * @return the code of the id, or NONE if it is not packed and was never lent.
+	 * nothing is added to the table
+	 * Complexity: O(length of id)
+	 */
+	public long find(CharSequence id) {
+		long code = pack(id, 0, id.length());
+		if (code != NONE) return code;
+		Long other = others.get(fold(id.toString()));
+		return other != null ? other : NONE;
+	}
+
+	/**
+	 * @param id
+	 * @return the code of the id, an id that does not fit and is not in the table yet gets a new code.
+	 * only call it for a book that is being lent, or was lent (like when the library is recovered)
+	 * Complexity: O(length of id)
+	 */
+	long register(CharSequence id) {
+		long code = pack(id, 0, id.length());
+		if (code != NONE) return code;
+		String other = id.toString(), folded = fold(other);
+		Long known = others.get(folded);
+		if (known != null) return known;
+		synchronized (otherIds) {
+			known = others.get(folded);
+			if (known == null) {
+				otherIds.add(other);
+				known = (long) -otherIds.size();
+				others.put(folded, known);
+			}
+			return known;
+		}
+	}
+
+	/**
+	 * @param id
+	 * @param start
+	 * @param end
+	 * @return the packed code of the characters start..end-1 of id, read straight from the characters
+	 * without making a String out of them, or NONE if they do not fit (see find for those)
+	 */
+	static long pack(CharSequence id, int start, int end) {
+		int length = end - start;
+		if (length == 0 || length > MAX_PACKED) return NONE;
+		long code = 0;
+		for (int i = start; i < end; i++) {
+			char c = id.charAt(i);
+			int digit;
+			if (c >= '0' && c <= '9') digit = c - '0' + 1;
+			else if (c >= 'a' && c <= 'z') digit = c - 'a' + 11;
+			else if (c >= 'A' && c <= 'Z') digit = c - 'A' + 11;
+			else return NONE;
+			code = code * RADIX + digit;
+		}
+		for (int i = length; i < MAX_PACKED; i++)
+			code *= RADIX;
+		return code;
+	}
+
+	/**
+	 * @param id
+	 * @return the id with every character folded the way compareToIgnoreCase does,
+	 * so two ids are equal ignoring case iff their folded forms are equal
+	 */
+	private static String fold(String id) {
+		char[] chars = id.toCharArray();
+		for (int i = 0; i < chars.length; i++)
+			chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+		return new String(chars);
+	}
+
+	/**
+	 * @param code
+	 * @return the id of the code, see the notes above about its case
+	 * @throws IllegalArgumentException if the code was not made by this table
+	 */
+	public String toString(long code) {
+		if (code < 0) {
+			synchronized (otherIds) {
+				if (code == NONE || -code > otherIds.size())
+					throw new IllegalArgumentException("unknown book code " + code);
+				return otherIds.get((int) (-code - 1));
+			}
+		}
+
+		// the digits are read from the last one, the padding at the end sets the length of the id
+		char[] chars = new char[MAX_PACKED];
+		int length = MAX_PACKED;
+		for (int i = MAX_PACKED - 1; i >= 0; i--) {
+			int digit = (int) (code % RADIX);
+			code /= RADIX;
+			if (digit == 0) length = i;
+			else chars[i] = digit <= 10 ? (char) ('0' + digit - 1) : (char) ('A' + digit - 11);
+		}
+		return new String(chars, 0, length);
+	}
+}
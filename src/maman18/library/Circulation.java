@@ -0,0 +1,204 @@
+package maman18.library;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import maman18.data.Do;
+import maman18.data.TreeStats;
+import maman18.library.Library.AddResult;
+import maman18.library.Library.BorrowResult;
+import maman18.library.Library.RemoveResult;
+import maman18.library.Library.ReturnResult;
+import maman18.library.Library.Subscriber;
+
+/**
+ * @author Shlomi.v
+ *
+ * The commands and the queries every library runs, whether it is a plain Library or a thread safe
+ * ConcurrentLibrary. the front ends (CommandParser, CommandPipeline, LibraryServer, LibraryMetrics) only
+ * need these, so they work with either of them.
+ *
+ * what only a plain Library can do (keep its state in files, keep snapshots) is not here, see Library.
+ * all complexity analysis refers to n as the total number of subscribers, m the total number of books
+ */
+public interface Circulation extends Closeable {
+
+	/**
+	 * @param listener - gets an event for every command, or null for no events at all
+	 */
+	public void setListener(LibraryListener listener);
+
+	/**
+	 * @param name
+	 * @param id
+	 * @return the outcome
+	 * add a subscriber by that given name and the given ID, as a patron (see Library.Tier)
+	 */
+	public AddResult addSubscriber(String name, int id);
+
+	/**
+	 * @param name
+	 * @param id
+	 * @param limit - the most books the subscriber can hold
+	 * @return the outcome
+	 * @throws IllegalArgumentException if the limit is negative
+	 * add a subscriber by that given name and the given ID, with its own borrowing limit
+	 */
+	public AddResult addSubscriber(String name, int id, int limit);
+
+	/**
+	 * @param id
+	 * @return the outcome
+	 * remove the subscriber identified by ID, returning all of the books the subscriber holds at once
+	 */
+	public RemoveResult removeSubscriber(int id);
+
+	/**
+	 * @param ids
+	 * @return the outcome for each of the ids
+	 */
+	public RemoveResult[] removeSubscribers(int[] ids);
+
+	/**
+	 * @return the table that turns the book ids into their codes and back, see BookId
+	 */
+	public BookId getBookIds();
+
+	/**
+	 * @param subId
+	 * @param bookId
+	 * @return the outcome. a book id that is not packed only gets a code if the book is lent (see BookId)
+	 */
+	public BorrowResult subBorrowBook(int subId, String bookId);
+
+	/**
+	 * @param subId
+	 * @param book - the code of the book, see BookId
+	 * @return the outcome
+	 */
+	public BorrowResult subBorrowBook(int subId, long book);
+
+	/**
+	 * @param subId
+	 * @param bookId
+	 * @return the outcome
+	 */
+	public ReturnResult subReturnBook(int subId, String bookId);
+
+	/**
+	 * @param subId
+	 * @param book - the code of the book, see BookId
+	 * @return the outcome
+	 */
+	public ReturnResult subReturnBook(int subId, long book);
+
+	/**
+	 * @param subId
+	 * @param bookIds
+	 * @return the outcome for each of the books, they are borrowed in order until the limit is reached
+	 */
+	public BorrowResult[] borrowMany(int subId, String[] bookIds);
+
+	/**
+	 * @param subId
+	 * @param books - the codes of the books, see BookId
+	 * @return the outcome for each of the books, they are borrowed in order until the limit is reached
+	 */
+	public BorrowResult[] borrowMany(int subId, long[] books);
+
+	/**
+	 * @param subId
+	 * @param bookIds
+	 * @return the outcome for each of the books
+	 */
+	public ReturnResult[] returnMany(int subId, String[] bookIds);
+
+	/**
+	 * @param subId
+	 * @param books - the codes of the books, see BookId
+	 * @return the outcome for each of the books
+	 */
+	public ReturnResult[] returnMany(int subId, long[] books);
+
+	/**
+	 * @param subId
+	 * @return the outcome, OK even if the subscriber held no books
+	 */
+	public ReturnResult returnAll(int subId);
+
+	/**
+	 * @return ALL the subscribers that currently hold the most books, or null if no one holds any.
+	 * they can be read a page at a time, see MostBorrowed.foreach(from, to, action)
+	 */
+	public MostBorrowed mostBorrowed();
+
+	/**
+	 * @param from - the rank of the first subscriber to visit, counting from 0 in the order of their ids
+	 * @param to - the rank after the last subscriber to visit
+	 * @param action - the action to perform over each subscriber
+	 * visit one page of the subscribers, in the order of their ids
+	 */
+	public void listSubscribers(int from, int to, Do<Subscriber> action);
+
+	/**
+	 * @param bookId
+	 * @return the Subscriber that is currently holding the book identified by bookId, or null
+	 */
+	public Subscriber whoHoldsTheBook(String bookId);
+
+	/**
+	 * @param book - the code of the book, see BookId
+	 * @return the Subscriber that is currently holding the book, or null
+	 */
+	public Subscriber whoHoldsTheBook(long book);
+
+	/**
+	 * @param subId
+	 * @return the Subscriber by the subId, or null
+	 */
+	public Subscriber getSubscriber(int subId);
+
+	/**
+	 * @return the outcomes of the commands so far
+	 */
+	public LibraryStats getStats();
+
+	/**
+	 * @return the number of subscribers
+	 */
+	public int getSubscriberCount();
+
+	/**
+	 * @return the number of books that are lent
+	 */
+	public int getLentCount();
+
+	/**
+	 * @return the counters of the subscribers trees, or null if the subscribers are not kept in trees
+	 */
+	public TreeStats getSubscribersTreeStats();
+
+	/**
+	 * @return the counters of the whoHoldsTheBook trees, or null if the books are not kept in trees
+	 */
+	public TreeStats getBooksTreeStats();
+
+	/**
+	 * start counting the outcomes of the commands and the work of the trees again from 0
+	 */
+	public void resetStats();
+
+	/**
+	 * make all the changes so far durable, if the library keeps them on the disk at all.
+	 * the outcome of a command should not be shown to anyone before that
+	 * @throws IllegalStateException if the changes could not be written to the disk
+	 */
+	public void commit();
+
+	/**
+	 * make sure everything that is kept in files is written to the disk, and close the files
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException;
+}
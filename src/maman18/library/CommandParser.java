@@ -1,7 +1,13 @@
 package maman18.library;
 
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import maman18.data.Do;
-import maman18.data.RBTree;
+import maman18.data.LatencyHistogram;
+import maman18.library.CommandScanner.Kind;
+import maman18.library.Library.RemoveResult;
 import maman18.library.Library.Subscriber;
 
 /**
@@ -11,143 +17,259 @@ import maman18.library.Library.Subscriber;
  *
  */
 public class CommandParser {
-	private Library lib;
+	private Circulation lib;
+	private final CommandScanner scanner = new CommandScanner();
+
+	// where the answers to the queries are printed
+	protected final PrintStream out;
+
+	// true iff there is no listener, so no book id is ever shown and a packed id needs no String
+	private final boolean quiet;
+
+	// the latency of each kind of command, by the ordinal of its kind
+	private final LatencyHistogram[] latencies = histograms();
 
 	/**
 	 * @param lib
 	 * 
 	 * The constructor must get a library to work with.
+	 * the outcome of the commands is printed by a PrintingListener
+	 */
+	public CommandParser(Circulation lib) {
+		this(lib, new PrintingListener());
+	}
+
+	/**
+	 * @param lib
+	 * @param listener - shows the outcome of the library commands, or null to not show it at all
 	 */
-	public CommandParser(Library lib) {
+	public CommandParser(Circulation lib, LibraryListener listener) {
+		this(lib, listener, System.out);
+	}
+
+	/**
+	 * @param lib
+	 * @param listener - shows the outcome of the library commands, or null to not show it at all
+	 * @param out - where the answers to the queries are printed
+	 */
+	public CommandParser(Circulation lib, LibraryListener listener, PrintStream out) {
 		this.lib = lib;
+		this.out = out;
+		quiet = listener == null;
+		lib.setListener(listener);
 	}
 	
 	/**
 	 * @param cmd
 	 * 
-	 * This method does the parsing, it calls the proper method on the given library object 
-	 */
-	public void doCommand(String cmd) {
-		cmd = cmd.trim();
-		
-		if (cmd.equals("quit")) {
-			System.out.println("Byebye!");
-			System.exit(0);
-		}
-		
-		// make sure we actually got a command
-		if (cmd.length() > 0) {
-			// split the command string into an array of strings, using whitespace as delimiters
-			String[] cmds = cmd.split("\\s+");
-			
-			// check the very first character
-			switch (cmd.charAt(0)) {
-			case '+': { // if its a '+', this must be an add subscriber command
-					// the name must appear as the second parameter
-					String name = cmds[1]; 
-	
-					// and the id must appear as the third parameter
-					int id = Integer.valueOf(cmds[2]);
-					
-					// and make the call
-					lib.addSubscriber(name, id);
-				}
-				break;
-			case '-': { // a '-' must mean remove subscriber
-					int id = Integer.valueOf(cmds[2]);
-					String name = cmds[1];
-					
-					System.out.println("Removing subscriber " + name + " (" + id + ")");
-					
-					lib.removeSubscriber(id);
-					
-					System.out.println("Subscriber " + name + " (" + id + ") removed");
-				}
-				break;
-			case '?': { // a '?' means a beginning of a query, lets check which one:
-					// the second parameter must identify the query
-					String query = cmds[1];
-					
-					// and a letter must mean we got a query regarding a book - who olds the book
-					if (Character.isLetter(query.charAt(0))) {
-						
-						// print out the query
-						System.out.println("Query: which subscriber has the book " + query + "?");
-						
-						// find out who holds this book, O(lgm)
-						Subscriber who = lib.whoHoldsTheBook(query);
-						
-						// and print out a proper response
-						System.out.println(who != null ? who.name + " has the book "+ query : "No subscriber is holding this book " + query);
-					} 
-					// if it begins with a digit, then we got a query regarding a subscriber - what books that he hold?
-					else if (Character.isDigit(query.charAt(0))) {
-
-						// get the id of the subscriber 
-						int id = Integer.valueOf(query);
-						
-						// print out the query
-						System.out.println("Query: Which books does subscriber " + id + " hold?");
-						
-						// get the current subscriber, O(lgn)
-						Subscriber s = lib.getSubscriber(id);
-						if (s != null) {
-							System.out.println("Subscriber " + s.name + " " + s.id+ " has these books:");
-							
-							// we found him, print out all of his books, O(1)
-							for (int i = 0; i < s.count; i++)
-								System.out.println("\t" + s.books[i]);
-						} else {
-							System.out.println("Subscriber " + id + " does not exist");
-						}
-	
-					} 
-					// it begins with a '!' - meaning we want to get a list of all the users that has the most books
-					else if (query.trim().charAt(0) == '!') {
-						
-						// print out the query
-						System.out.println("Query: Which subscribers has the most books?");
-						
-						// get the RBTree containing all these users, O(1)
-						RBTree<Integer, Subscriber> most = lib.mostBorrowed();
-						
-						// if any are found
-						if (most != null) {
-							System.out.println("the following subscribers has the most ("+ most.firstEntry().count + ") books:");
-							
-							// traverse the result in-order, and print each Subscriber (O(n))
-							most.foreach(new Do<Subscriber>() {
-								@Override
-								public void action(Subscriber s) {
-									System.out.println("\t" + s.name);
-								}
-							});
-						} else {
-							System.out.println("no subscribers has any books!");
-						}
-					}
-				}
-				break;
-			default: // in any other case, lets check the last entered token 
-				switch (cmd.charAt(cmd.length() - 1)) {
-				case '+': { // a '+' is borrow book command
-						String name = cmds[0];
-						int id = Integer.parseInt(cmds[1]);
-						String bookld = cmds[2];
-						lib.subBorrowBook(id, bookld);
-					}
-					break;
-				case '-': { // a '-' is return a borrowed book command
-						String name = cmds[0];
-						int id = Integer.parseInt(cmds[1]);
-						String bookld = cmds[2];
-						lib.subReturnBook(id, bookld);
-					}
-					break;
-				default:
-					System.out.println("command not recognized!");
-				}
+	 * This method does the parsing, it calls the proper method on the given library object.
+	 * the parsing itself is done by a CommandScanner, that is reused for all the commands.
+	 * the time it takes (including the printing) is added to the latency of its kind of command
+	 */
+	public void doCommand(CharSequence cmd) {
+		long start = System.nanoTime();
+		Kind kind = scanner.scan(cmd);
+		run(kind);
+		latencies[kind.ordinal()].record(System.nanoTime() - start);
+	}
+
+	/**
+	 * @return the latency histogram of each kind of command, by its name. the histograms keep
+	 * counting, they are written by the thread that runs the commands
+	 */
+	public Map<String, LatencyHistogram> getLatencies() {
+		return byKind(latencies);
+	}
+
+	/**
+	 * @param kind - the kind of the command that was just scanned
+	 * run the scanned command on the library
+	 */
+	private void run(Kind kind) {
+		switch (kind) {
+		case QUIT:
+			quit();
+			break;
+		case EMPTY: // nothing to do
+			break;
+		case ADD: // add a subscriber by the name and id
+			lib.addSubscriber(scanner.name(), scanner.id);
+			break;
+		case REMOVE: { // remove a subscriber
+				int id = scanner.id;
+				String name = scanner.name();
+				
+				printRemoving(out, name, id);
+				printRemoved(out, name, id, lib.removeSubscriber(id));
+			}
+			break;
+		case QUERY_BOOK: { // who holds the book
+				String query = scanner.book();
+				
+				// find out who holds this book, O(lgm), and print out a proper response
+				Subscriber who = lib.whoHoldsTheBook(query);
+				printHolder(out, query, who != null ? who.name : null);
+			}
+			break;
+		case QUERY_SUBSCRIBER: { // what books does the subscriber hold
+				int id = scanner.id;
+				
+				// get the current subscriber, O(lgn), and print out all of its books, O(1)
+				Subscriber s = lib.getSubscriber(id);
+				if (s != null)
+					printBooks(out, lib.getBookIds(), id, s.name, s.books, s.count);
+				else
+					printBooks(out, lib.getBookIds(), id, null, null, 0);
 			}
+			break;
+		case QUERY_MOST: { // a list of all the users that has the most books
+				
+				// get all these users, O(1)
+				MostBorrowed most = lib.mostBorrowed();
+				
+				// if any are found, traverse the result in the order of the ids (O(klgk))
+				printMost(out, most, most != null ? names(most) : null);
+			}
+			break;
+		case BORROW: { // a subscriber borrows a book, a book id that is not packed is looked up by its String
+				// and so is any id the listener shows, so it shows the id as it was typed
+				long book = quiet ? scanner.bookCode() : BookId.NONE;
+				if (book != BookId.NONE)
+					lib.subBorrowBook(scanner.id, book);
+				else
+					lib.subBorrowBook(scanner.id, scanner.book());
+			}
+			break;
+		case RETURN: { // a subscriber returns a borrowed book
+				long book = quiet ? scanner.bookCode() : BookId.NONE;
+				if (book != BookId.NONE)
+					lib.subReturnBook(scanner.id, book);
+				else
+					lib.subReturnBook(scanner.id, scanner.book());
+			}
+			break;
+		default:
+			out.println("command not recognized!");
 		}
 	}
+
+	/**
+	 * the user asked to quit, say goodbye and exit the application.
+	 * a front end that serves more than one user (see LibraryServer) only ends the session of this user
+	 */
+	protected void quit() {
+		out.println("Byebye!");
+		System.exit(0);
+	}
+
+	/*
+	 * the printing of the commands below is shared with the render stage of a CommandPipeline,
+	 * that prints what another thread found out
+	 */
+
+	/**
+	 * @param out
+	 * @param name
+	 * @param id
+	 * print the start of the removal of a subscriber, before the books it returns
+	 */
+	static void printRemoving(PrintStream out, String name, int id) {
+		out.println("Removing subscriber " + name + " (" + id + ")");
+	}
+
+	/**
+	 * @param out
+	 * @param name
+	 * @param id
+	 * @param result
+	 * print the end of the removal of a subscriber, if it was removed
+	 */
+	static void printRemoved(PrintStream out, String name, int id, RemoveResult result) {
+		if (result == RemoveResult.OK)
+			out.println("Subscriber " + name + " (" + id + ") removed");
+	}
+
+	/**
+	 * @param out
+	 * @param query - the book id that was asked about
+	 * @param holder - the name of the subscriber that holds it, or null if no one does
+	 */
+	static void printHolder(PrintStream out, String query, String holder) {
+		out.println("Query: which subscriber has the book " + query + "?");
+		out.println(holder != null ? holder + " has the book " + query : "No subscriber is holding this book " + query);
+	}
+
+	/**
+	 * @param out
+	 * @param bookIds - the book codes of the library
+	 * @param id - the subscriber that was asked about
+	 * @param name - its name, or null if there is no such subscriber
+	 * @param books - the codes of its books, see BookId
+	 * @param count - the number of books
+	 */
+	static void printBooks(PrintStream out, BookId bookIds, int id, String name, long[] books, int count) {
+		out.println("Query: Which books does subscriber " + id + " hold?");
+		if (name != null) {
+			out.println("Subscriber " + name + " " + id + " has these books:");
+			for (int i = 0; i < count; i++)
+				out.println("\t" + bookIds.toString(books[i]));
+		} else {
+			out.println("Subscriber " + id + " does not exist");
+		}
+	}
+
+	/**
+	 * @param out
+	 * @param most - the subscribers that hold the most books, or null if no one holds any
+	 * @param names - their names, in the order of their ids
+	 */
+	static void printMost(PrintStream out, MostBorrowed most, String[] names) {
+		out.println("Query: Which subscribers has the most books?");
+		if (most != null) {
+			out.println("the following subscribers has the most (" + most.getCount() + ") books:");
+			for (String name : names)
+				out.println("\t" + name);
+		} else {
+			out.println("no subscribers has any books!");
+		}
+	}
+
+	/**
+	 * @return a new latency histogram for each kind of command
+	 */
+	static LatencyHistogram[] histograms() {
+		LatencyHistogram[] histograms = new LatencyHistogram[Kind.values().length];
+		for (int i = 0; i < histograms.length; i++)
+			histograms[i] = new LatencyHistogram();
+		return histograms;
+	}
+
+	/**
+	 * @param histograms - a histogram for each kind of command
+	 * @return the histograms by the names of their kinds, skipping the empty commands
+	 */
+	static Map<String, LatencyHistogram> byKind(LatencyHistogram[] histograms) {
+		Map<String, LatencyHistogram> byKind = new LinkedHashMap<String, LatencyHistogram>();
+		for (Kind kind : Kind.values())
+			if (kind != Kind.EMPTY) byKind.put(kind.name(), histograms[kind.ordinal()]);
+		return byKind;
+	}
+
+	/**
+	 * @param most
+	 * @return the names of the subscribers, in the order of their ids
+	 * Complexity: O(klgk)
+	 */
+	static String[] names(MostBorrowed most) {
+		final String[] names = new String[most.getSize()];
+		most.foreach(new Do<Subscriber>() {
+			private int i = 0;
+
+			@Override
+			public void action(Subscriber s) {
+				names[i++] = s.name;
+			}
+		});
+		return names;
+	}
 }
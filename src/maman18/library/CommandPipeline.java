@@ -0,0 +1,340 @@
+package maman18.library;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+import maman18.data.LatencyHistogram;
+
+import maman18.library.CommandScanner.Kind;
+
+/**
+ * @author Shlomi.v
+ *
+ * Runs a stream of commands like a CommandParser does, with the same output, but split into four stages
+ * that each run on their own thread:
+ *  (*) read   - splits the input into lines (this is the thread that calls run)
+ *  (*) parse  - scans each line into a command
+ *  (*) apply  - runs the command on the Library, and keeps what the library answered. this is the only
+ *      thread that touches the library, so it needs no locks
+ *  (*) render - prints the answers
+ * so reading the input and formatting the output no longer hold up the changes to the library.
+ *
+ * the stages are connected by a single ring of reusable slots (see CommandSlot), one slot per command
+ * (like a disruptor).
+ * each stage has a cursor, the number of commands it is done with, and only takes the slots the stage
+ * before it is done with. the reader only refills a slot once the renderer is done with it, so a slow
+ * stage holds back the ones before it once the ring is full (backpressure).
+ * the cursors are the only shared state, no locks are taken. a stage takes all the slots that are ready
+ * at once, and only moves its cursor after the whole batch, so the cursors are rarely written.
+ * all the stages go over the slots in the same order, so the output is printed in the order of the commands.
+ *
+ * a CommandPipeline is not thread safe, run should not be called by more than one thread at a time.
+ */
+public class CommandPipeline {
+
+	// the number of slots in the ring, a power of 2
+	private static final int RING_SIZE = 1 << 12;
+
+	// the most slots the reader fills before it moves its cursor
+	private static final int READ_BATCH = 1 << 6;
+
+	// the size of the reader's input buffer
+	private static final int READ_BUFFER = 1 << 16;
+
+	// how a stage that has nothing to do waits: it spins, then yields, and then sleeps for a short while
+	private static final int SPINS = 1 << 7;
+	private static final int YIELDS = 1 << 7;
+	private static final long PARK_NANOS = 1 << 16;
+
+	/**
+	 * the number of commands a stage is done with, kept apart from the other cursors so they do not
+	 * share a cache line
+	 */
+	private static final class Cursor {
+		@SuppressWarnings("unused")
+		long p1, p2, p3, p4, p5, p6, p7;
+		volatile long value = 0;
+		@SuppressWarnings("unused")
+		long q1, q2, q3, q4, q5, q6, q7;
+	}
+
+	private final Circulation lib;
+	private final PrintStream out;
+	private final PrintingListener printer;
+
+	private final CommandSlot[] ring = new CommandSlot[RING_SIZE];
+	private final Cursor read = new Cursor(), parsed = new Cursor(), applied = new Cursor(), rendered = new Cursor();
+
+	// the slot the apply stage runs now, the library events are kept in it
+	private CommandSlot applying;
+
+	// the time the apply stage takes for each kind of command, by the ordinal of its kind
+	private final LatencyHistogram[] latencies = CommandParser.histograms();
+
+	// set once the apply stage stopped (at a quit or an error), the reader stops reading then
+	private volatile boolean stopped;
+
+	// the error the render stage reached, it is thrown by run
+	private RuntimeException failure;
+
+	/**
+	 * @param lib
+	 * @param out - where the outcome of the commands is printed
+	 */
+	public CommandPipeline(Circulation lib, PrintStream out) {
+		this.lib = lib;
+		this.out = out;
+		this.printer = new PrintingListener(out);
+		for (int i = 0; i < RING_SIZE; i++)
+			ring[i] = new CommandSlot();
+
+		lib.setListener(new CommandSlot.Recorder() {
+			@Override
+			CommandSlot applying() {
+				return applying;
+			}
+		});
+	}
+
+	/**
+	 * @param in - the commands, one per line
+	 * run all the commands, and return once all of them are printed
+	 * @throws IOException if the input cannot be read, the commands that were read are still run
+	 * @throws RuntimeException the error of a command that failed (like a bad id), the commands after it
+	 * are not run, just like a CommandParser would stop at it
+	 */
+	public void run(Reader in) throws IOException {
+		stopped = false;
+		failure = null;
+		Thread[] stages = {
+			new Stage("library-parse", read, parsed) {
+				private final CommandScanner scanner = new CommandScanner();
+
+				@Override
+				void handle(CommandSlot s) {
+					parse(scanner, s);
+				}
+			},
+			new Stage("library-apply", parsed, applied) {
+				private boolean halted = false;
+
+				@Override
+				void handle(CommandSlot s) {
+					if (halted) return;
+					apply(s);
+					if (s.kind == Kind.QUIT || s.error != null) {
+						halted = true;
+						stopped = true;
+					}
+				}
+			},
+			new Stage("library-render", applied, rendered) {
+				private boolean halted = false;
+
+				@Override
+				void handle(CommandSlot s) {
+					if (!halted) halted = !render(s);
+					s.clear();
+				}
+			}
+		};
+		for (Thread stage : stages)
+			stage.start();
+
+		try {
+			readAll(in);
+		} finally {
+			for (Thread stage : stages) {
+				boolean interrupted = false;
+				while (stage.isAlive()) {
+					try {
+						stage.join();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+				if (interrupted) Thread.currentThread().interrupt();
+			}
+			out.flush();
+		}
+		if (failure != null) throw failure;
+	}
+
+	/**
+	 * @return the latency histogram of each kind of command, by its name. this is the time the apply stage
+	 * takes to run the command on the library (reading, parsing and printing it are done by other threads)
+	 */
+	public Map<String, LatencyHistogram> getLatencies() {
+		return CommandParser.byKind(latencies);
+	}
+
+	/**
+	 * the user asked to quit, say goodbye and exit the application, just like a CommandParser does.
+	 * the commands after the quit are not run
+	 */
+	protected void quit() {
+		out.println("Byebye!");
+		out.flush();
+		System.exit(0);
+	}
+
+	/**
+	 * a stage that takes the slots from the cursor before it, handles them in order, and moves its own cursor
+	 */
+	private abstract class Stage extends Thread {
+		private final Cursor from, to;
+
+		Stage(String name, Cursor from, Cursor to) {
+			super(name);
+			this.from = from;
+			this.to = to;
+			setDaemon(true);
+		}
+
+		abstract void handle(CommandSlot s);
+
+		@Override
+		public void run() {
+			long next = to.value;
+			while (true) {
+				long ready = await(from, next);
+				for (; next < ready; next++) {
+					CommandSlot s = ring[(int) next & (RING_SIZE - 1)];
+					boolean last = s.last;
+					handle(s);
+					if (last) {
+						to.value = next + 1;
+						return;
+					}
+				}
+				to.value = next;
+			}
+		}
+	}
+
+	/**
+	 * @param cursor
+	 * @param next
+	 * @return the value of the cursor, once it is past next
+	 */
+	private static long await(Cursor cursor, long next) {
+		long value;
+		for (int i = 0; (value = cursor.value) <= next; i++) {
+			if (i < SPINS) continue;
+			if (i < SPINS + YIELDS) Thread.yield();
+			else LockSupport.parkNanos(PARK_NANOS);
+		}
+		return value;
+	}
+
+	/**
+	 * @param in
+	 * the read stage: split the input into lines and hand them to the parser, the lines end just like
+	 * BufferedReader.readLine ends them. the end of the input is marked by a last slot with no line
+	 * @throws IOException
+	 */
+	private void readAll(Reader in) throws IOException {
+		char[] buffer = new char[READ_BUFFER];
+		long next = read.value;
+		CommandSlot s = slot(next);
+		boolean cr = false;
+		try {
+			int n;
+			while (!stopped && (n = in.read(buffer)) >= 0) {
+				int start = 0;
+				for (int i = 0; i < n; i++) {
+					char c = buffer[i];
+					if (c != '\n' && c != '\r') continue;
+					if (c == '\n' && cr && i == start) {
+						// the \n of a \r\n that was split by the buffer
+						cr = false;
+						start = i + 1;
+						continue;
+					}
+					s.append(buffer, start, i);
+					cr = c == '\r';
+					if (cr && i + 1 < n && buffer[i + 1] == '\n') {
+						i++;
+						cr = false;
+					}
+					start = i + 1;
+
+					// publish the line, and the whole batch once it is large enough
+					next++;
+					if ((next & (READ_BATCH - 1)) == 0) read.value = next;
+					s = slot(next);
+				}
+				s.append(buffer, start, n);
+				if (start < n) cr = false;
+				read.value = next;
+			}
+
+			// a last line with no line end
+			if (s.view.limit() > 0) {
+				next++;
+				s = slot(next);
+			}
+		} finally {
+			s.last = true;
+			read.value = next + 1;
+		}
+	}
+
+	/**
+	 * @param next
+	 * @return the slot of the next command, once the renderer is done with what it held before
+	 */
+	private CommandSlot slot(long next) {
+		if (next - rendered.value >= RING_SIZE) {
+			read.value = next;
+			await(rendered, next - RING_SIZE);
+		}
+		return ring[(int) next & (RING_SIZE - 1)];
+	}
+
+	/**
+	 * @param scanner
+	 * @param s
+	 * the parse stage: scan the line of the slot into its command
+	 */
+	private static void parse(CommandScanner scanner, CommandSlot s) {
+		if (s.last) return;
+		s.view.position(0);
+		s.parse(scanner, s.view);
+	}
+
+	/**
+	 * @param s
+	 * the apply stage: run the command of the slot on the library, and keep the answers in the slot
+	 */
+	private void apply(CommandSlot s) {
+		if (s.last || s.error != null || s.kind == null) return;
+		applying = s;
+		long start = System.nanoTime();
+		s.apply(lib);
+		if (s.error == null) latencies[s.kind.ordinal()].record(System.nanoTime() - start);
+		applying = null;
+	}
+
+	/**
+	 * @param s
+	 * @return false if this was the last command to print (a quit or an error)
+	 * the render stage: print the outcome of the command of the slot, just like a CommandParser prints it
+	 */
+	private boolean render(CommandSlot s) {
+		if (s.last) return true;
+		s.render(out, printer);
+		if (s.error != null) {
+			failure = s.error;
+			return false;
+		}
+		if (s.kind == Kind.QUIT) {
+			quit();
+			return false;
+		}
+		return true;
+	}
+}
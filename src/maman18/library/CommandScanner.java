@@ -0,0 +1,190 @@
+package maman18.library;
+
+/**
+ * @author Shlomi.v
+ *
+ * A hand written scanner for the command grammar:
+ *   + name id          - add a subscriber
+ *   - name id          - remove a subscriber
+ *   name id book +     - borrow a book
+ *   name id book -     - return a book
+ *   ? book / ? id / ? ! - the queries
+ *   quit
+ *
+ * scan works directly on the characters of the command and keeps the result in reusable fields:
+ * the numbers are parsed in place, and the name and book are only remembered as positions in the
+ * command, so scanning a command creates no garbage at all.
+ * a String for the name or the book is only created if someone asks for it, and a book id that is packed
+ * can be read as its code (see BookId) with no String at all.
+ *
+ * one scanner is meant to be reused for all the commands, so it is not thread safe.
+ */
+class CommandScanner {
+
+	/**
+	 * the kinds of commands
+	 */
+	enum Kind {
+		EMPTY, QUIT, ADD, REMOVE, BORROW, RETURN, QUERY_BOOK, QUERY_SUBSCRIBER, QUERY_MOST, UNKNOWN
+	};
+
+	// the most tokens any command has
+	private static final int MAX_TOKENS = 4;
+
+	// the result of the last scan
+	Kind kind;
+	int id;
+
+	// the scanned command, and the positions of its tokens
+	private CharSequence cmd;
+	private final int[] starts = new int[MAX_TOKENS];
+	private final int[] ends = new int[MAX_TOKENS];
+	private int tokens;
+
+	// which tokens hold the name and the book in the last command
+	private int nameToken;
+	private int bookToken;
+
+	/**
+	 * @param cmd - the command to scan
+	 * @return the kind of the command, it is also kept in kind
+	 * @throws NumberFormatException if the id is not a number
+	 * Complexity: O(length of cmd)
+	 */
+	Kind scan(CharSequence cmd) {
+		this.cmd = cmd;
+		tokenize();
+		nameToken = -1;
+		bookToken = -1;
+
+		if (tokens == 0)
+			return kind = Kind.EMPTY;
+
+		if (tokens == 1 && is(0, "quit"))
+			return kind = Kind.QUIT;
+
+		char first = cmd.charAt(starts[0]);
+		char last = cmd.charAt(ends[tokens - 1] - 1);
+		switch (first) {
+		case '+':
+		case '-':
+			// + name id / - name id
+			if (tokens < 3) return kind = Kind.UNKNOWN;
+			nameToken = 1;
+			id = parseInt(2);
+			return kind = first == '+' ? Kind.ADD : Kind.REMOVE;
+		case '?':
+			// ? query
+			if (tokens < 2) return kind = Kind.UNKNOWN;
+			char q = cmd.charAt(starts[1]);
+			if (Character.isLetter(q)) {
+				bookToken = 1;
+				return kind = Kind.QUERY_BOOK;
+			} else if (Character.isDigit(q)) {
+				id = parseInt(1);
+				return kind = Kind.QUERY_SUBSCRIBER;
+			} else if (q == '!') {
+				return kind = Kind.QUERY_MOST;
+			}
+			return kind = Kind.EMPTY;
+		default:
+			// name id book +/-
+			if ((last != '+' && last != '-') || tokens < 3) return kind = Kind.UNKNOWN;
+			nameToken = 0;
+			bookToken = 2;
+			id = parseInt(1);
+			return kind = last == '+' ? Kind.BORROW : Kind.RETURN;
+		}
+	}
+
+	/**
+	 * @return the name in the last command, as a new String
+	 */
+	String name() {
+		return token(nameToken);
+	}
+
+	/**
+	 * @return the book id in the last command, as a new String
+	 */
+	String book() {
+		return token(bookToken);
+	}
+
+	/**
+	 * @return the packed code of the book id in the last command (see BookId), read in place, or
+	 * BookId.NONE if the id is not packed (then the library looks it up by its String, see book)
+	 */
+	long bookCode() {
+		return BookId.pack(cmd, starts[bookToken], ends[bookToken]);
+	}
+
+	/**
+	 * split the command into whitespace separated tokens, only keeping their positions
+	 */
+	private void tokenize() {
+		tokens = 0;
+		int i = 0, length = cmd.length();
+		while (tokens < MAX_TOKENS) {
+			while (i < length && Character.isWhitespace(cmd.charAt(i))) i++;
+			if (i == length) break;
+			starts[tokens] = i;
+			while (i < length && !Character.isWhitespace(cmd.charAt(i))) i++;
+			ends[tokens++] = i;
+		}
+
+		// a command with more tokens still ends with its last token (the + or - of a borrow or return)
+		while (i < length && Character.isWhitespace(cmd.charAt(i))) i++;
+		if (i < length) {
+			int end = length;
+			while (Character.isWhitespace(cmd.charAt(end - 1))) end--;
+			ends[tokens - 1] = end;
+		}
+	}
+
+	/**
+	 * @param token
+	 * @param word
+	 * @return true iff the token is exactly the given word
+	 */
+	private boolean is(int token, String word) {
+		if (ends[token] - starts[token] != word.length()) return false;
+		for (int i = 0; i < word.length(); i++)
+			if (cmd.charAt(starts[token] + i) != word.charAt(i)) return false;
+		return true;
+	}
+
+	/**
+	 * @param token
+	 * @return the decimal number in the token, parsed in place
+	 * @throws NumberFormatException just like Integer.parseInt
+	 */
+	private int parseInt(int token) {
+		int i = starts[token], end = ends[token];
+		boolean negative = false;
+		char c = cmd.charAt(i);
+		if (c == '-' || c == '+') {
+			negative = c == '-';
+			if (++i == end) throw new NumberFormatException("For input string: \"" + token(token) + "\"");
+		}
+
+		// accumulate as a negative number, so Integer.MIN_VALUE can be parsed too
+		long limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+		long result = 0;
+		for (; i < end; i++) {
+			int digit = Character.digit(cmd.charAt(i), 10);
+			if (digit < 0) throw new NumberFormatException("For input string: \"" + token(token) + "\"");
+			result = result * 10 - digit;
+			if (result < limit) throw new NumberFormatException("For input string: \"" + token(token) + "\"");
+		}
+		return (int) (negative ? result : -result);
+	}
+
+	/**
+	 * @param token
+	 * @return the token as a new String
+	 */
+	private String token(int token) {
+		return cmd.subSequence(starts[token], ends[token]).toString();
+	}
+}
@@ -0,0 +1,274 @@
+package maman18.library;
+
+import java.io.PrintStream;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+import maman18.library.CommandScanner.Kind;
+import maman18.library.Library.AddResult;
+import maman18.library.Library.BorrowResult;
+import maman18.library.Library.RemoveResult;
+import maman18.library.Library.ReturnResult;
+import maman18.library.Library.Subscriber;
+
+/**
+ * @author Shlomi.v
+ *
+ * A command that is run on one thread and printed on another, for the front ends that run the commands
+ * apart from printing them (CommandPipeline, ParallelReplay). a slot goes through three steps:
+ *  (*) parse  - scan the line into the command
+ *  (*) apply  - run the command on the Library, and keep what the library answered (see Recorder)
+ *  (*) render - print the answers, just like a CommandParser prints them
+ * the slots are reused, so running a command allocates nothing beyond what the command itself needs.
+ */
+final class CommandSlot {
+
+	// the size of a new slot's line
+	private static final int LINE = 1 << 6;
+
+	// read: the line, and whether it is the end of the input (and has no line)
+	char[] line = new char[LINE];
+	CharBuffer view = CharBuffer.wrap(line, 0, 0);
+	boolean last;
+
+	// parsed
+	Kind kind;
+	int id;
+	String name;
+	String book;
+	long bookCode;
+	RuntimeException error;
+
+	// applied: the events of the listener, in order
+	int events;
+	Enum<?>[] results = new Enum<?>[1];
+	int[] subIds = new int[1];
+	String[] names = new String[1];
+	String[] bookIds = new String[1];
+	int[] holders = new int[1];
+
+	// applied: the answer to a query (or a removal), and the book codes of the library to print it with
+	BookId codes;
+	RemoveResult removed;
+	String holder;
+	long[] books = new long[1];
+	int count;
+	MostBorrowed most;
+	String[] mostNames;
+
+	/**
+	 * a LibraryListener that keeps the events of the library in the slot that is being applied
+	 */
+	static abstract class Recorder implements LibraryListener {
+		/**
+		 * @return the slot the calling thread is applying
+		 */
+		abstract CommandSlot applying();
+
+		@Override
+		public void subscriberAdded(AddResult result, String name, int id) {
+			applying().event(result, id, name, null, 0);
+		}
+
+		@Override
+		public void subscriberRemoved(RemoveResult result, int id) {
+			applying().event(result, id, null, null, 0);
+		}
+
+		@Override
+		public void bookBorrowed(BorrowResult result, int subId, String subName, String bookId, int holderId) {
+			applying().event(result, subId, subName, bookId, holderId);
+		}
+
+		@Override
+		public void bookReturned(ReturnResult result, int subId, String subName, String bookId, int holderId) {
+			applying().event(result, subId, subName, bookId, holderId);
+		}
+	}
+
+	/**
+	 * @param chars
+	 * @param start
+	 * @param end
+	 * add the characters start..end-1 to the line
+	 */
+	void append(char[] chars, int start, int end) {
+		int length = view.limit(), n = end - start;
+		if (length + n > line.length) {
+			line = Arrays.copyOf(line, Math.max(length + n, 2 * line.length));
+			view = CharBuffer.wrap(line);
+		}
+		System.arraycopy(chars, start, line, length, n);
+		view.limit(length + n);
+	}
+
+	/**
+	 * @param result
+	 * @param subId
+	 * @param name
+	 * @param bookId
+	 * @param holder
+	 * keep an event of the listener
+	 */
+	void event(Enum<?> result, int subId, String name, String bookId, int holder) {
+		if (events == results.length) {
+			int length = 2 * events;
+			results = Arrays.copyOf(results, length);
+			subIds = Arrays.copyOf(subIds, length);
+			names = Arrays.copyOf(names, length);
+			bookIds = Arrays.copyOf(bookIds, length);
+			holders = Arrays.copyOf(holders, length);
+		}
+		results[events] = result;
+		subIds[events] = subId;
+		names[events] = name;
+		bookIds[events] = bookId;
+		holders[events] = holder;
+		events++;
+	}
+
+	/**
+	 * forget the last command, so the slot keeps no references to it
+	 */
+	void clear() {
+		view.limit(0);
+		last = false;
+		kind = null;
+		name = null;
+		book = null;
+		error = null;
+		Arrays.fill(names, 0, events, null);
+		Arrays.fill(bookIds, 0, events, null);
+		events = 0;
+		removed = null;
+		holder = null;
+		count = 0;
+		most = null;
+		mostNames = null;
+	}
+
+	/**
+	 * @param scanner
+	 * @param cmd - the line of the command
+	 * scan the line into the command of the slot, an error (like a bad id) is kept in the slot
+	 */
+	void parse(CommandScanner scanner, CharSequence cmd) {
+		try {
+			switch (kind = scanner.scan(cmd)) {
+			case ADD:
+			case REMOVE:
+				id = scanner.id;
+				name = scanner.name();
+				break;
+			case QUERY_BOOK:
+				book = scanner.book();
+				bookCode = scanner.bookCode();
+				break;
+			case QUERY_SUBSCRIBER:
+				id = scanner.id;
+				break;
+			case BORROW:
+			case RETURN:
+				// the events show the id as it was typed, so it is kept even when it is packed
+				id = scanner.id;
+				bookCode = scanner.bookCode();
+				book = scanner.book();
+				break;
+			default:
+				break;
+			}
+		} catch (RuntimeException e) {
+			error = e;
+		}
+	}
+
+	/**
+	 * @param lib
+	 * run the command of the slot on the library, and keep the answers in the slot.
+	 * the events of the library are kept by its listener, a Recorder that returns this slot
+	 */
+	void apply(Circulation lib) {
+		try {
+			switch (kind) {
+			case ADD:
+				lib.addSubscriber(name, id);
+				break;
+			case REMOVE:
+				removed = lib.removeSubscriber(id);
+				break;
+			case QUERY_BOOK: {
+					Subscriber who = bookCode != BookId.NONE ? lib.whoHoldsTheBook(bookCode) : lib.whoHoldsTheBook(book);
+					holder = who != null ? who.name : null;
+				}
+				break;
+			case QUERY_SUBSCRIBER: {
+					Subscriber sub = lib.getSubscriber(id);
+					codes = lib.getBookIds();
+					if (sub != null) {
+						holder = sub.name;
+						if (sub.count > books.length) books = new long[Math.max(sub.count, 2 * books.length)];
+						System.arraycopy(sub.books, 0, books, 0, sub.count);
+						count = sub.count;
+					}
+				}
+				break;
+			case QUERY_MOST:
+				most = lib.mostBorrowed();
+				if (most != null) mostNames = CommandParser.names(most);
+				break;
+			case BORROW:
+				lib.subBorrowBook(id, book);
+				break;
+			case RETURN:
+				lib.subReturnBook(id, book);
+				break;
+			default:
+				break;
+			}
+		} catch (RuntimeException e) {
+			error = e;
+		}
+	}
+
+	/**
+	 * @param out
+	 * @param printer - prints the events of the library
+	 * print the outcome of the command, just like a CommandParser prints it.
+	 * nothing is printed for a quit, and only the events for a command that failed, the caller handles them
+	 */
+	void render(PrintStream out, PrintingListener printer) {
+		if (kind == Kind.REMOVE) CommandParser.printRemoving(out, name, id);
+		for (int i = 0; i < events; i++) {
+			Enum<?> result = results[i];
+			if (result instanceof AddResult)
+				printer.subscriberAdded((AddResult) result, names[i], subIds[i]);
+			else if (result instanceof RemoveResult)
+				printer.subscriberRemoved((RemoveResult) result, subIds[i]);
+			else if (result instanceof BorrowResult)
+				printer.bookBorrowed((BorrowResult) result, subIds[i], names[i], bookIds[i], holders[i]);
+			else
+				printer.bookReturned((ReturnResult) result, subIds[i], names[i], bookIds[i], holders[i]);
+		}
+		if (error != null) return;
+
+		switch (kind) {
+		case REMOVE:
+			CommandParser.printRemoved(out, name, id, removed);
+			break;
+		case QUERY_BOOK:
+			CommandParser.printHolder(out, book, holder);
+			break;
+		case QUERY_SUBSCRIBER:
+			CommandParser.printBooks(out, codes, id, holder, books, count);
+			break;
+		case QUERY_MOST:
+			CommandParser.printMost(out, most, mostNames);
+			break;
+		case UNKNOWN:
+			out.println("command not recognized!");
+			break;
+		default:
+			break;
+		}
+	}
+}
@@ -0,0 +1,548 @@
+package maman18.library;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import maman18.data.BoxedLongIndex;
+import maman18.data.Do;
+import maman18.data.LongArrayRBTree;
+import maman18.data.LongHashIndex;
+import maman18.data.LongIndex;
+import maman18.data.SkipListIndex;
+import maman18.data.TreeStats;
+import maman18.library.Library.AddResult;
+import maman18.library.Library.BorrowResult;
+import maman18.library.Library.IndexType;
+import maman18.library.Library.RemoveResult;
+import maman18.library.Library.ReturnResult;
+import maman18.library.Library.Subscriber;
+
+/**
+ * @author Shlomi.v
+ *
+ * A thread safe Library, where commands on different subscribers and different books run in parallel.
+ *
+ * the library is split into stripes, each with its own lock:
+ *  (*) segments - the subscribers are spread over segments by their id. each segment is a plain Library
+ *      that holds its subscribers, the books they hold and its own count buckets, but no whoHoldsTheBook
+ *      index: the segments are only changed through their apply methods, once the stripes approved.
+ *  (*) book stripes - the books are spread over stripes by their id. each stripe knows who holds each
+ *      of its books, so a book can only be lent once across all the segments. the stripes are the only
+ *      index of the holders.
+ *
+ * a command takes the lock of the segment of its subscriber, and then the lock of the stripe of its book.
+ * no command ever takes the locks in the other order, or takes two segments or two stripes at once
+ * (except mostBorrowed, that takes all the segments in order), so there are no deadlocks.
+ *
+ * the queries can skip the locks altogether: when the subscribers index is a SKIP_LIST, getSubscriber
+ * reads the segments without locking them, and when the books index is a SKIP_LIST, all the stripes share
+ * a single lock-free list of holders and whoHoldsTheBook reads it without locking. the commands still
+ * take the locks, so they stay atomic.
+ *
+ * notice the Subscribers returned by the queries keep changing while other threads run commands.
+ * this library only runs the commands of every library (see Circulation): unlike a plain Library it keeps
+ * nothing in files and publishes no snapshots, so commit and close have nothing to do.
+ */
+public class ConcurrentLibrary extends AbstractLibrary {
+
+	/**
+	 * the lock of one book stripe, and the holders of its books
+	 */
+	private class BookStripe {
+		final LongIndex<Subscriber> holders;
+
+		BookStripe(LongIndex<Subscriber> holders) {
+			this.holders = holders;
+		}
+	}
+
+	private final Library[] segments;
+	private final BookStripe[] stripes;
+
+	// true iff the queries can read the subscribers / the holders without locks
+	private final boolean lockFreeSubscribers;
+	private final boolean lockFreeBooks;
+
+	/**
+	 * builds a library with 4 stripes for every available processor
+	 */
+	public ConcurrentLibrary() {
+		this(4 * Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param stripes - the number of subscriber segments and book stripes, rounded up to a power of 2
+	 */
+	public ConcurrentLibrary(int stripes) {
+		this(stripes, IndexType.HASH, IndexType.HASH);
+	}
+
+	/**
+	 * @param stripes - the number of subscriber segments and book stripes, rounded up to a power of 2
+	 * @param subscribers - the kind of the subscribers index in each segment
+	 * @param books - the kind of the index of the book holders
+	 */
+	public ConcurrentLibrary(int stripes, IndexType subscribers, IndexType books) {
+		super(new BookId());
+		int n = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+		lockFreeSubscribers = subscribers == IndexType.SKIP_LIST;
+		lockFreeBooks = books == IndexType.SKIP_LIST;
+
+		// a skip list of holders is shared by all the stripes, a tree or a hash table belongs to a single stripe
+		LongIndex<Subscriber> shared = lockFreeBooks
+				? new BoxedLongIndex<Subscriber>(SkipListIndex.<Long, Subscriber>empty(longOrd)) : null;
+
+		segments = new Library[n];
+		this.stripes = new BookStripe[n];
+		for (int i = 0; i < n; i++) {
+			segments[i] = new Library(subscribers, null, bookIds);
+			LongIndex<Subscriber> holders;
+			if (lockFreeBooks)
+				holders = shared;
+			else if (books == IndexType.TREE)
+				holders = LongArrayRBTree.empty();
+			else
+				holders = LongHashIndex.empty();
+			this.stripes[i] = new BookStripe(holders);
+		}
+	}
+
+	/**
+	 * @param subId
+	 * @return the segment holding the subscriber
+	 */
+	private Library segment(int subId) {
+		// spread the bits, since ids often share their low bits
+		int h = subId * 0x9E3779B9;
+		return segments[(h ^ (h >>> 16)) & (segments.length - 1)];
+	}
+
+	/**
+	 * @param book - the code of the book, see BookId
+	 * @return the stripe holding the book
+	 */
+	private BookStripe stripe(long book) {
+		int h = (int) (book ^ (book >>> 32)) * 0x9E3779B9;
+		return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+	}
+
+	/**
+	 * nothing is kept on the disk, so every change is as durable as it gets once its command returns
+	 */
+	@Override
+	public void commit() {
+	}
+
+	/**
+	 * nothing is kept in files, so there is nothing to close
+	 */
+	@Override
+	public void close() throws IOException {
+	}
+
+	@Override
+	public AddResult addSubscriber(String name, int id, int limit) {
+		if (limit < 0) throw new IllegalArgumentException("bad limit " + limit);
+		Library seg = segment(id);
+		AddResult result;
+		synchronized (seg) {
+			result = seg.addSubscriber(name, id, limit);
+		}
+		added(result, name, id);
+		return result;
+	}
+
+	@Override
+	public RemoveResult removeSubscriber(int id) {
+		Library seg = segment(id);
+		synchronized (seg) {
+			Subscriber s = seg.getSubscriber(id);
+			if (s == null) {
+				removed(RemoveResult.NO_SUCH_SUBSCRIBER, id);
+				return RemoveResult.NO_SUCH_SUBSCRIBER;
+			}
+
+			release(s);
+			returnedAll(id, s);
+			seg.removeSubscriber(id);
+		}
+		removed(RemoveResult.OK, id);
+		return RemoveResult.OK;
+	}
+
+	/**
+	 * @param s - a subscriber whose segment is locked
+	 * take all the books of s out of their stripes, each under the lock of its own stripe
+	 */
+	private void release(Subscriber s) {
+		for (int i = 0; i < s.count; i++) {
+			long book = s.books[i];
+			BookStripe stripe = stripe(book);
+			synchronized (stripe) {
+				stripe.holders.remove(book);
+			}
+		}
+	}
+
+	@Override
+	public BorrowResult subBorrowBook(int subId, long book) {
+		return subBorrowBook(subId, book, null);
+	}
+
+	@Override
+	BorrowResult subBorrowBook(int subId, long book, String bookId) {
+		Library seg = segment(subId);
+		synchronized (seg) {
+			Subscriber s = seg.getSubscriber(subId);
+			if (s == null) {
+				borrowed(BorrowResult.NO_SUCH_SUBSCRIBER, subId, null, book, bookId, 0);
+				return BorrowResult.NO_SUCH_SUBSCRIBER;
+			}
+			if (s.count == s.limit) {
+				borrowed(BorrowResult.LIMIT_REACHED, subId, s.name, book, bookId, 0);
+				return BorrowResult.LIMIT_REACHED;
+			}
+
+			BookStripe stripe = stripe(book);
+			synchronized (stripe) {
+				Subscriber holder = stripe.holders.get(book);
+				if (holder != null) {
+					borrowed(BorrowResult.ALREADY_HELD, subId, s.name, book, bookId, holder.id);
+					return BorrowResult.ALREADY_HELD;
+				}
+				seg.applyBorrow(s, book);
+				stripe.holders.put(book, s);
+			}
+			borrowed(BorrowResult.OK, subId, s.name, book, bookId, subId);
+			return BorrowResult.OK;
+		}
+	}
+
+	/**
+	 * the segment stays locked from the checks until the book is lent, so the book is only given a code
+	 * if it is lent
+	 */
+	@Override
+	BorrowResult borrowUnseen(int subId, String bookId) {
+		Library seg = segment(subId);
+		synchronized (seg) {
+			Subscriber s = seg.getSubscriber(subId);
+			if (s == null) {
+				borrowed(BorrowResult.NO_SUCH_SUBSCRIBER, subId, null, bookId, 0);
+				return BorrowResult.NO_SUCH_SUBSCRIBER;
+			}
+			if (s.count == s.limit) {
+				borrowed(BorrowResult.LIMIT_REACHED, subId, s.name, bookId, 0);
+				return BorrowResult.LIMIT_REACHED;
+			}
+			return subBorrowBook(subId, bookIds.register(bookId), bookId);
+		}
+	}
+
+	@Override
+	public ReturnResult subReturnBook(int subId, long book) {
+		return subReturnBook(subId, book, null);
+	}
+
+	@Override
+	ReturnResult subReturnBook(int subId, long book, String bookId) {
+		Library seg = segment(subId);
+		synchronized (seg) {
+			Subscriber s = seg.getSubscriber(subId);
+			if (s == null) {
+				returned(ReturnResult.NO_SUCH_SUBSCRIBER, subId, null, book, bookId, 0);
+				return ReturnResult.NO_SUCH_SUBSCRIBER;
+			}
+
+			BookStripe stripe = stripe(book);
+			synchronized (stripe) {
+				Subscriber holder = stripe.holders.get(book);
+				if (holder == null) {
+					returned(ReturnResult.NOT_LENT, subId, null, book, bookId, 0);
+					return ReturnResult.NOT_LENT;
+				}
+				if (holder.id != subId) {
+					returned(ReturnResult.HELD_BY_ANOTHER, subId, null, book, bookId, holder.id);
+					return ReturnResult.HELD_BY_ANOTHER;
+				}
+				seg.applyReturn(s, book);
+				stripe.holders.remove(book);
+			}
+			returned(ReturnResult.OK, subId, s.name, book, bookId, subId);
+			return ReturnResult.OK;
+		}
+	}
+
+	/**
+	 * claims each of the books in its stripe, one stripe at a time, and then lends all the claimed books
+	 * in a single pass over the segment
+	 */
+	@Override
+	public BorrowResult[] borrowMany(int subId, long[] books) {
+		return borrowMany(subId, books, null);
+	}
+
+	@Override
+	BorrowResult[] borrowMany(int subId, long[] books, String[] ids) {
+		BorrowResult[] results = new BorrowResult[books.length];
+		Library seg = segment(subId);
+		synchronized (seg) {
+			Subscriber s = seg.getSubscriber(subId);
+			if (s == null) {
+				for (int i = 0; i < books.length; i++) {
+					results[i] = BorrowResult.NO_SUCH_SUBSCRIBER;
+					borrowed(BorrowResult.NO_SUCH_SUBSCRIBER, subId, null, books[i], ids != null ? ids[i] : null, 0);
+				}
+				return results;
+			}
+
+			long[] claimed = new long[books.length];
+			int n = 0;
+			for (int i = 0; i < books.length; i++) {
+				long book = books[i];
+				String bookId = ids != null ? ids[i] : null;
+				if (s.count + n == s.limit) {
+					results[i] = BorrowResult.LIMIT_REACHED;
+					borrowed(BorrowResult.LIMIT_REACHED, subId, s.name, book, bookId, 0);
+					continue;
+				}
+				BookStripe stripe = stripe(book);
+				Subscriber holder;
+				synchronized (stripe) {
+					holder = stripe.holders.get(book);
+					if (holder == null) stripe.holders.put(book, s);
+				}
+				if (holder != null) {
+					results[i] = BorrowResult.ALREADY_HELD;
+					borrowed(BorrowResult.ALREADY_HELD, subId, s.name, book, bookId, holder.id);
+					continue;
+				}
+				claimed[n++] = book;
+				results[i] = BorrowResult.OK;
+				borrowed(BorrowResult.OK, subId, s.name, book, bookId, subId);
+			}
+			for (int i = 0; i < n; i++)
+				seg.applyBorrow(s, claimed[i]);
+		}
+		return results;
+	}
+
+	/**
+	 * releases each of the books from its stripe, one stripe at a time, and then takes back all the
+	 * released books in a single pass over the segment
+	 */
+	@Override
+	public ReturnResult[] returnMany(int subId, long[] books) {
+		return returnMany(subId, books, null);
+	}
+
+	@Override
+	ReturnResult[] returnMany(int subId, long[] books, String[] ids) {
+		ReturnResult[] results = new ReturnResult[books.length];
+		Library seg = segment(subId);
+		synchronized (seg) {
+			Subscriber s = seg.getSubscriber(subId);
+			if (s == null) {
+				for (int i = 0; i < books.length; i++) {
+					results[i] = ReturnResult.NO_SUCH_SUBSCRIBER;
+					returned(ReturnResult.NO_SUCH_SUBSCRIBER, subId, null, books[i], ids != null ? ids[i] : null, 0);
+				}
+				return results;
+			}
+
+			long[] released = new long[books.length];
+			int n = 0;
+			for (int i = 0; i < books.length; i++) {
+				long book = books[i];
+				String bookId = ids != null ? ids[i] : null;
+				BookStripe stripe = stripe(book);
+				Subscriber holder;
+				synchronized (stripe) {
+					holder = stripe.holders.get(book);
+					if (holder != null && holder.id == subId) stripe.holders.remove(book);
+				}
+				if (holder == null) {
+					results[i] = ReturnResult.NOT_LENT;
+					returned(ReturnResult.NOT_LENT, subId, null, book, bookId, 0);
+					continue;
+				}
+				if (holder.id != subId) {
+					results[i] = ReturnResult.HELD_BY_ANOTHER;
+					returned(ReturnResult.HELD_BY_ANOTHER, subId, null, book, bookId, holder.id);
+					continue;
+				}
+				released[n++] = book;
+				results[i] = ReturnResult.OK;
+				returned(ReturnResult.OK, subId, s.name, book, bookId, subId);
+			}
+			for (int i = 0; i < n; i++)
+				seg.applyReturn(s, released[i]);
+		}
+		return results;
+	}
+
+	@Override
+	public ReturnResult returnAll(int subId) {
+		Library seg = segment(subId);
+		synchronized (seg) {
+			Subscriber s = seg.getSubscriber(subId);
+			if (s == null) {
+				returnedAll(subId, null);
+				return ReturnResult.NO_SUCH_SUBSCRIBER;
+			}
+			release(s);
+			returnedAll(subId, s);
+			seg.returnAll(subId);
+		}
+		return ReturnResult.OK;
+	}
+
+	/**
+	 * @return all the subscribers that currently hold the most books, or null if no one holds any.
+	 * all the segments are locked (in order) while they are collected, so the answer is consistent
+	 * Complexity: O(k) where k is the number of subscribers in the result, and O(klgk) to read them in order
+	 */
+	@Override
+	public MostBorrowed mostBorrowed() {
+		ArrayList<Subscriber> most = new ArrayList<Subscriber>();
+		int max = mostBorrowed(0, 0, most);
+		return max == 0 ? null : new MostBorrowed(max, most.toArray(new Subscriber[most.size()]));
+	}
+
+	/**
+	 * @param i - the next segment to lock
+	 * @param max - the largest number of books found in the segments 0..i-1
+	 * @param most - the subscribers that hold max books in the segments 0..i-1
+	 * @return the largest number of books held in all the segments, most then holds all the subscribers that hold it
+	 * a recursive helper that holds the locks of segments 0..i-1 while it looks at segment i
+	 */
+	private int mostBorrowed(int i, int max, ArrayList<Subscriber> most) {
+		if (i == segments.length) return max;
+		Library seg = segments[i];
+		synchronized (seg) {
+			MostBorrowed segMost = seg.mostBorrowed();
+			if (segMost != null) {
+				if (segMost.getCount() > max) {
+					max = segMost.getCount();
+					most.clear();
+				}
+				if (segMost.getCount() == max)
+					most.addAll(Arrays.asList(segMost.subscribers()));
+			}
+			return mostBorrowed(i + 1, max, most);
+		}
+	}
+
+	/**
+	 * @param from - the rank of the first subscriber to visit, counting from 0 in the order of their ids
+	 * @param to - the rank after the last subscriber to visit
+	 * @param action - the action to perform over each subscriber
+	 * visit one page of the subscribers, in the order of their ids.
+	 * the ids are spread over the segments, so the rank of an id is only known once all of them are merged.
+	 * each segment is read under its own lock, one at a time, so commands on other segments may run meanwhile
+	 * Complexity: O(n lgn)
+	 */
+	@Override
+	public void listSubscribers(int from, int to, Do<Subscriber> action) {
+		ArrayList<Subscriber> all = new ArrayList<Subscriber>();
+		for (Library seg : segments) {
+			synchronized (seg) {
+				all.addAll(Arrays.asList(seg.subscribersById()));
+			}
+		}
+		Subscriber[] sorted = all.toArray(new Subscriber[all.size()]);
+		Arrays.sort(sorted, new Comparator<Subscriber>() {
+			@Override
+			public int compare(Subscriber s1, Subscriber s2) {
+				return Integer.compare(s1.id, s2.id);
+			}
+		});
+		for (int i = Math.max(0, from); i < Math.min(to, sorted.length); i++)
+			action.action(sorted[i]);
+	}
+
+	@Override
+	public Subscriber whoHoldsTheBook(long book) {
+		BookStripe stripe = stripe(book);
+		if (lockFreeBooks)
+			return stripe.holders.get(book);
+		synchronized (stripe) {
+			return stripe.holders.get(book);
+		}
+	}
+
+	@Override
+	public Subscriber getSubscriber(int subId) {
+		Library seg = segment(subId);
+		if (lockFreeSubscribers)
+			return seg.getSubscriber(subId);
+		synchronized (seg) {
+			return seg.getSubscriber(subId);
+		}
+	}
+
+	/**
+	 * @return the number of subscribers in all the segments, read without locking them
+	 */
+	@Override
+	public int getSubscriberCount() {
+		int n = 0;
+		for (Library seg : segments)
+			n += seg.getSubscriberCount();
+		return n;
+	}
+
+	/**
+	 * @return the number of books that are lent in all the stripes, read without locking them
+	 */
+	@Override
+	public int getLentCount() {
+		if (lockFreeBooks) return stripes[0].holders.getSize();
+		int n = 0;
+		for (BookStripe stripe : stripes)
+			n += stripe.holders.getSize();
+		return n;
+	}
+
+	/**
+	 * @return the counters of the subscribers trees of all the segments summed up, or null if they
+	 * are not trees
+	 */
+	@Override
+	public TreeStats getSubscribersTreeStats() {
+		TreeStats sum = null;
+		for (Library seg : segments) {
+			TreeStats stats = seg.getSubscribersTreeStats();
+			if (stats == null) continue;
+			if (sum == null) sum = new TreeStats();
+			sum.add(stats);
+		}
+		return sum;
+	}
+
+	/**
+	 * @return the counters of the holders trees of all the stripes summed up, or null if they are not trees
+	 */
+	@Override
+	public TreeStats getBooksTreeStats() {
+		TreeStats sum = null;
+		for (BookStripe stripe : stripes) {
+			if (!(stripe.holders instanceof LongArrayRBTree)) continue;
+			if (sum == null) sum = new TreeStats();
+			sum.add(((LongArrayRBTree<Subscriber>) stripe.holders).getStats());
+		}
+		return sum;
+	}
+
+	@Override
+	public void resetStats() {
+		stats.reset();
+		for (Library seg : segments)
+			seg.resetStats();
+		for (BookStripe stripe : stripes)
+			if (stripe.holders instanceof LongArrayRBTree)
+				((LongArrayRBTree<Subscriber>) stripe.holders).getStats().reset();
+	}
+}
@@ -0,0 +1,120 @@
+package maman18.library;
+
+import java.util.Arrays;
+
+import maman18.library.Library.Subscriber;
+
+/**
+ * @author Shlomi.v
+ *
+ * The subscribers that hold any books, grouped into buckets by the number of books they hold (like an LFU cache).
+ *
+ * each bucket is a doubly linked list that runs through the subscribers themselves (Subscriber.prev and
+ * Subscriber.next), so moving a subscriber to the next or the previous bucket is a constant number of
+ * pointer changes, with no search and no allocation. the highest bucket that is not empty is kept up to date
+ * on every move, so the subscribers that hold the most books are always known.
+ *
+ * a subscriber is in exactly one bucket while it holds any books, and in none while it holds none.
+ * the buckets are only an array of list heads, that grows when a subscriber first reaches a new count,
+ * so subscribers with large limits cost nothing until they actually hold that many books.
+ */
+class CountBuckets {
+
+	private static final int INITIAL_COUNTS = 16;
+
+	// heads[c] is the first subscriber that holds c books, sizes[c] is the number of them
+	private Subscriber[] heads = new Subscriber[INITIAL_COUNTS];
+	private int[] sizes = new int[INITIAL_COUNTS];
+
+	// the highest count that has any subscribers, 0 if none do
+	private int top = 0;
+
+	/**
+	 * @param s - a subscriber whose count was just raised by one
+	 * move s up to the bucket of its new count
+	 * Complexity: O(1)
+	 */
+	void increment(Subscriber s) {
+		if (s.count > 1) unlink(s, s.count - 1);
+		link(s, s.count);
+		if (s.count > top) top = s.count;
+	}
+
+	/**
+	 * @param s - a subscriber whose count was just lowered by one
+	 * move s down to the bucket of its new count, or out of the buckets if it holds no books now
+	 * Complexity: O(1)
+	 */
+	void decrement(Subscriber s) {
+		unlink(s, s.count + 1);
+		if (s.count > 0) link(s, s.count);
+
+		// s was the last one in the top bucket, and it is now in the bucket right below (or in none)
+		if (sizes[top] == 0) top = s.count;
+	}
+
+	/**
+	 * @param s - a subscriber whose count was just changed by any amount
+	 * @param from - the count of s before the change
+	 * move s straight from the bucket of from to the bucket of its new count
+	 * Complexity: O(1), plus the number of empty buckets passed when the top bucket is left empty
+	 */
+	void moved(Subscriber s, int from) {
+		if (from == s.count) return;
+		if (from > 0) unlink(s, from);
+		if (s.count > 0) link(s, s.count);
+		if (s.count > top) top = s.count;
+		else while (top > 0 && sizes[top] == 0) top--;
+	}
+
+	/**
+	 * @param s - a subscriber that is not in any bucket
+	 * put s in the bucket of its count, if it holds any books. this is how a loaded subscriber is added
+	 * Complexity: O(1)
+	 */
+	void add(Subscriber s) {
+		if (s.count == 0) return;
+		link(s, s.count);
+		if (s.count > top) top = s.count;
+	}
+
+	/**
+	 * @return the subscribers that hold the most books, or null if no one holds any
+	 * Complexity: O(1)
+	 */
+	MostBorrowed most() {
+		return top == 0 ? null : new MostBorrowed(top, heads[top], sizes[top]);
+	}
+
+	/**
+	 * @param s
+	 * @param c
+	 * add s at the head of bucket c
+	 */
+	private void link(Subscriber s, int c) {
+		if (c >= heads.length) {
+			int length = Math.max(c + 1, 2 * heads.length);
+			heads = Arrays.copyOf(heads, length);
+			sizes = Arrays.copyOf(sizes, length);
+		}
+		s.prev = null;
+		s.next = heads[c];
+		if (heads[c] != null) heads[c].prev = s;
+		heads[c] = s;
+		sizes[c]++;
+	}
+
+	/**
+	 * @param s
+	 * @param c
+	 * take s out of bucket c
+	 */
+	private void unlink(Subscriber s, int c) {
+		if (s.prev != null) s.prev.next = s.next;
+		else heads[c] = s.next;
+		if (s.next != null) s.next.prev = s.prev;
+		s.prev = null;
+		s.next = null;
+		sizes[c]--;
+	}
+}
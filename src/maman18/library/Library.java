@@ -1,226 +1,1116 @@
 package maman18.library;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Comparator;
 
-import maman18.data.RBTree;
+import maman18.data.BoxedLongIndex;
+import maman18.data.Do;
+import maman18.data.IntIndex;
+import maman18.data.IntRBTree;
+import maman18.data.LongArrayRBTree;
+import maman18.data.LongHashIndex;
+import maman18.data.LongIndex;
+import maman18.data.MappedRBTree;
+import maman18.data.PersistentRBTree;
+import maman18.data.SkipListIndex;
+import maman18.data.TreeStats;
 
 
 /**
  * @author Shlomi.v
  *
- * This class holds the library information
- * all complexity analysis refers to n as the total number of subscribers, m the total number of books
+ * This class holds the library information, for a single thread (see ConcurrentLibrary for many).
+ * besides the commands of every library (see Circulation), it can keep its state in files (see persistTo)
+ * and publish snapshots of it (see keepSnapshots)
+ * all complexity analysis refers to n as the total number of subscribers, m the total number of books.
+ * a lookup in subs is O(lgn) and in whoHoldsTheBook O(lgm) with TREE or SKIP_LIST indexes, as written below.
+ * with the default HASH indexes each of these lookups is O(1) expected (see IndexType)
  *
  */
-public class Library {
+public class Library extends AbstractLibrary {
+
+	/**
+	 * the usual borrowing limits. they are only presets, any subscriber can get any limit (see addSubscriber)
+	 */
+	public enum Tier {
+		PATRON(10), INSTITUTION(5000);
+
+		private final int limit;
+
+		Tier(int limit) {
+			this.limit = limit;
+		}
+
+		/**
+		 * @return the most books a subscriber of this tier can hold
+		 */
+		public int getLimit() {
+			return limit;
+		}
+	};
 
-	final static int MAX_BOOKS = 10;
-	
 	/**
 	 * an inner class representing each library subscriber
+	 *
+	 * the books array starts empty, and is doubled whenever it fills up (up to the limit), so a subscriber
+	 * only takes the space of the books it actually holds. up to SCAN_LIMIT books are simply scanned, and
+	 * beyond that a small hash table of the positions of the books in the array (slots) is kept next to it,
+	 * so a book is found and removed in O(1) no matter how many books the subscriber holds.
 	 */
 	static class Subscriber {
-		public Subscriber(String name, int id) {
+		// the most books that are scanned, more books than this are found through the slots
+		private static final int SCAN_LIMIT = 16;
+
+		private static final long[] NO_BOOKS = new long[0];
+
+		public Subscriber(String name, int id, int limit) {
 			this.name = name;
 			this.id = id;
+			this.limit = limit;
 		}
 
 		final String name;
 		final int id;
-		String books[] = new String[MAX_BOOKS]; // a maximum of 10 books
+		final int limit; // the most books the subscriber can hold
+		long books[] = NO_BOOKS; // the books the subscriber holds, by their codes (see BookId)
 		int count;
-	}
 
-	// default comparators
-	final Comparator<Integer> intOrd = new Comparator<Integer>() {
-		@Override
-		public int compare(Integer o1, Integer o2) {
-			return o1.compareTo(o2);
+		// slots[i] is 1 + the position of a book in books, or 0 for an empty slot. null while the books are scanned
+		private int slots[] = null;
+
+		// the neighbours of the subscriber in the list of its count bucket (see CountBuckets)
+		Subscriber prev, next;
+
+		/**
+		 * @param book - a book the subscriber does not hold yet
+		 * add the book at the end of the books array
+		 * Complexity: O(1) amortized
+		 */
+		void add(long book) {
+			if (count == books.length) {
+				books = Arrays.copyOf(books, Math.max(count + 1, Math.min(limit, Math.max(4, 2 * count))));
+				slots = null;
+			}
+			books[count++] = book;
+			if (slots != null) {
+				slots[free(book)] = count;
+			} else if (count > SCAN_LIMIT) {
+				// the positions are indexed in a table at least twice as large as the array, so it is at most half full
+				slots = new int[Integer.highestOneBit(books.length) << 2];
+				for (int i = 0; i < count; i++)
+					slots[free(books[i])] = i + 1;
+			}
 		}
-	};
-	
-	final Comparator<String> strOrd = new Comparator<String>() {
-		@Override
-		public int compare(String o1, String o2) {
-			return o1.compareToIgnoreCase(o2);
+
+		/**
+		 * @param book
+		 * @return true iff the subscriber held the book, and it was removed.
+		 * the last book is copied over it, so the array has no holes
+		 * Complexity: O(1)
+		 */
+		boolean remove(long book) {
+			int i = indexOf(book);
+			if (i < 0) return false;
+			int last = count - 1;
+			if (slots != null) {
+				clear(slot(book));
+				if (i != last) slots[slot(books[last])] = i + 1;
+			}
+			books[i] = books[last];
+			if (--count == 0) {
+				books = NO_BOOKS;
+				slots = null;
+			}
+			return true;
+		}
+
+		/**
+		 * remove all the books
+		 * Complexity: O(1)
+		 */
+		void clear() {
+			books = NO_BOOKS;
+			slots = null;
+			count = 0;
+		}
+
+		/**
+		 * @return a copy of the subscriber as it is now, that is never changed (see LibrarySnapshot)
+		 * Complexity: O(k) where k is the number of books the subscriber holds
+		 */
+		Subscriber frozen() {
+			Subscriber copy = new Subscriber(name, id, limit);
+			if (count > 0) copy.books = Arrays.copyOf(books, count);
+			copy.count = count;
+			return copy;
+		}
+
+		/**
+		 * @param book
+		 * @return the position of the book in books, or -1 if the subscriber does not hold it
+		 * Complexity: O(1)
+		 */
+		int indexOf(long book) {
+			if (slots == null) {
+				for (int i = 0; i < count; i++)
+					if (books[i] == book) return i;
+				return -1;
+			}
+			int slot = slot(book);
+			return slot < 0 ? -1 : slots[slot] - 1;
+		}
+
+		private static int hash(long book) {
+			long h = (book ^ (book >>> 33)) * 0xFF51AFD7ED558CCDL;
+			return (int) (h ^ (h >>> 33));
+		}
+
+		/**
+		 * @return the slot of the book, or -1 if it has none
+		 */
+		private int slot(long book) {
+			int mask = slots.length - 1;
+			for (int i = hash(book) & mask; slots[i] != 0; i = (i + 1) & mask)
+				if (books[slots[i] - 1] == book) return i;
+			return -1;
+		}
+
+		/**
+		 * @return the first empty slot on the way of the book
+		 */
+		private int free(long book) {
+			int mask = slots.length - 1;
+			int i = hash(book) & mask;
+			while (slots[i] != 0) i = (i + 1) & mask;
+			return i;
+		}
+
+		/**
+		 * @param i
+		 * empty slot i, moving back any later slot of its run that can no longer be reached past it
+		 */
+		private void clear(int i) {
+			int mask = slots.length - 1;
+			for (int j = (i + 1) & mask; slots[j] != 0; j = (j + 1) & mask) {
+				int home = hash(books[slots[j] - 1]) & mask;
+				// the slot stays if its home is cyclically in (i, j]
+				if (i <= j ? (i < home && home <= j) : (i < home || home <= j)) continue;
+				slots[i] = slots[j];
+				i = j;
+			}
+			slots[i] = 0;
 		}
+	}
+
+	/**
+	 * the kinds of data structures the subs and whoHoldsTheBook indexes can use
+	 *  HASH      - a hash table, O(1) lookups for a single thread. the commands never need these two indexes
+	 *              in order, so this is the default
+	 *  TREE      - an RB-Tree, O(lgn) lookups for a single thread, keeps its keys in order and knows the rank
+	 *              of every key, so listSubscribers goes straight to the page it lists
+	 *  SKIP_LIST - a lock-free skip list, it can be read by any number of threads while it is changed
+	 */
+	public enum IndexType {
+		HASH, TREE, SKIP_LIST
 	};
 
-	// the internal data structure is made out of two main RBTrees
+	// the internal data structure is made out of two main indexes
 	// subs:            SubId->Subscriber
-	// whoHoldsTheBook: bookId->Subscriber
+	// whoHoldsTheBook: bookCode->Subscriber
+	//
+	// and the count buckets, a list per number of books of all the current users that have borrowed that many.
+	// mostBooks:       [1..max limit]->Subscriber list
 	//
-	// and an array of 10 RBTrees. each node holds all the current users that have borrowed that many books.
-	// mostBooks:       [0..10]->SubId->Subscriber
-	RBTree<Integer, Subscriber> subs = RBTree.empty(intOrd);
-	RBTree<String, Subscriber> whoHoldsTheBook = RBTree.empty(strOrd);
-	RBTree<Integer, Subscriber> mostBooks[] = new RBTree[MAX_BOOKS];
+	// subs and whoHoldsTheBook are only ever used for point lookups, so by default they are hash tables
+	// keyed by the primitive ids (LongHashIndex, the subscriber ids are widened), with no object per entry at all.
+	// the books are kept by their codes (see BookId) rather than their ids, so comparing two books is
+	// comparing two longs, no String is kept per book, and since the codes are already case folded
+	// the hash of a book does not depend on the case of its id.
+	// borrowing or returning a book moves its subscriber to the next bucket, in O(1), and the ids of the
+	// subscribers that hold the most books are only sorted when someone asks for them (see MostBorrowed).
+	// subs and whoHoldsTheBook can also be trees or skip lists, see IndexType
+	// (or whoHoldsTheBook can be a tree in a memory mapped file, see the constructor below)
+	IntIndex<Subscriber> subs;
+	LongIndex<Subscriber> whoHoldsTheBook;
+	CountBuckets mostBooks = new CountBuckets();
+
+	// when set, every change is logged to the disk (see persistTo)
+	LibraryStore store = null;
+
+	// when set, every change is also made to persistent copies of subs and whoHoldsTheBook, and they are
+	// published as a new snapshot after every command (see keepSnapshots)
+	private PersistentRBTree<Integer, Subscriber> snapshotSubs = null;
+	private PersistentRBTree<Long, Integer> snapshotBooks = null;
+	private volatile LibrarySnapshot snapshot = null;
 
 	/**
-	 * The constructor, builds 10 empty RBTrees
+	 * The constructor, builds an empty library whose subs and whoHoldsTheBook indexes are hash tables
 	 * Complexity : O(1)
 	 */
 	public Library() {
-		for (int i = 0; i < mostBooks.length; i++) {
-			mostBooks[i] = RBTree.empty(intOrd);
+		this(IndexType.HASH, IndexType.HASH);
+	}
+
+	/**
+	 * @param subscribers - the kind of the subs index
+	 * @param books - the kind of the whoHoldsTheBook index
+	 * Complexity : O(1)
+	 */
+	public Library(IndexType subscribers, IndexType books) {
+		this(subscribers, books, new BookId());
+	}
+
+	/**
+	 * @param subscribers - the kind of the subs index
+	 * @param books - the kind of the whoHoldsTheBook index, or null for none at all (see NoHolders), when
+	 * the holders of the books are kept by the library this one is a part of
+	 * @param bookIds - the table of the book codes, shared with the libraries this one is a part of
+	 * (see ConcurrentLibrary)
+	 * Complexity : O(1)
+	 */
+	Library(IndexType subscribers, IndexType books, BookId bookIds) {
+		super(bookIds);
+		if (subscribers == IndexType.SKIP_LIST)
+			subs = new BoxedLongIndex<Subscriber>(SkipListIndex.<Long, Subscriber>empty(longOrd));
+		else if (subscribers == IndexType.TREE)
+			subs = IntRBTree.empty();
+		else
+			subs = LongHashIndex.empty();
+
+		if (books == null)
+			whoHoldsTheBook = new NoHolders();
+		else if (books == IndexType.SKIP_LIST)
+			whoHoldsTheBook = new BoxedLongIndex<Subscriber>(SkipListIndex.<Long, Subscriber>empty(longOrd));
+		else if (books == IndexType.TREE)
+			whoHoldsTheBook = bookTree(LongArrayRBTree.<Subscriber>empty());
+		else
+			whoHoldsTheBook = LongHashIndex.empty();
+	}
+
+	/**
+	 * @param bookIndex - the file holding the whoHoldsTheBook index, it is created if it doesnt exist
+	 * @throws IOException
+	 * 
+	 * builds a library whose whoHoldsTheBook index is kept off the heap in a memory mapped file.
+	 * notice that only the id of the holder is kept in the file, the subscribers themselves are not, so
+	 * the books the file has from the last run are dropped when it is opened: no subscriber holds them.
+	 * to keep the lent books across restarts, see the constructor below.
+	 * Complexity : O(1)
+	 */
+	public Library(File bookIndex) throws IOException {
+		this();
+		MappedHolderIndex index = new MappedHolderIndex(MappedRBTree.open(bookIndex), this);
+		index.clear();
+		whoHoldsTheBook = index;
+	}
+
+	/**
+	 * @param bookIndex - the file holding the whoHoldsTheBook index, it is created if it doesnt exist
+	 * @param dir - the directory holding the library files
+	 * @throws IOException
+	 * 
+	 * builds a library whose whoHoldsTheBook index is kept in a memory mapped file, and recovers it from
+	 * the files in dir (see persistTo).
+	 * the subscribers are recovered first, and the index is used as is if it was closed together with
+	 * exactly these files (see LibraryStore.stamp), only the few books that are kept on the heap are put
+	 * back. otherwise (a crash, or the files changed without the index) it is rebuilt from the subscribers.
+	 * Complexity : O(size of the files), and O(m lgm) more when the index is rebuilt
+	 */
+	public Library(File bookIndex, File dir) throws IOException {
+		this();
+		MappedHolderIndex index = new MappedHolderIndex(MappedRBTree.open(bookIndex), this);
+		whoHoldsTheBook = new NoHolders();
+		try {
+			store = LibraryStore.open(dir, this);
+		} catch (IOException e) {
+			index.close(0);
+			throw e;
 		}
+		boolean matches = index.matches(store.stamp());
+		if (!matches) index.clear();
+		fillBookIndex(index, matches);
+		whoHoldsTheBook = index;
+		publish();
+	}
+
+	/**
+	 * @param dir - the directory holding the library files
+	 * @throws IOException
+	 * 
+	 * recover the library from the snapshot and journal in dir, and from now on log every change there.
+	 * this must be called while the library is still empty.
+	 * the changes are synced to the disk in groups, so a change is only durable once commit returns: the
+	 * outcome of a command should not be shown to anyone before that, or a crash may lose a change that
+	 * was already acknowledged.
+	 * Complexity : O(size of the files)
+	 */
+	public void persistTo(File dir) throws IOException {
+		store = LibraryStore.open(dir, this);
+		publish();
+	}
+
+	/**
+	 * make all the changes so far durable, if the library is persisted (see persistTo).
+	 * all the changes since the last commit share a single fsync, so whoever shows the outcome of many
+	 * commands at once (a buffer of output, a round of answers over the network) pays for one
+	 * @throws IllegalStateException if the changes could not be written to the disk
+	 * Complexity : O(1) when there is nothing to sync
+	 */
+	@Override
+	public void commit() {
+		if (store != null)
+			store.commit();
 	}
 
+	/**
+	 * make sure everything that is kept in files is written to the disk, and close the files
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		if (store != null)
+			store.close();
+		if (whoHoldsTheBook instanceof MappedHolderIndex)
+			((MappedHolderIndex) whoHoldsTheBook).close(store != null ? store.stamp() : 0);
+	}
+
+	/**
+	 * from now on, publish a snapshot of the library after every command (see LibrarySnapshot), so any
+	 * number of threads can read the library while it changes, with no locks.
+	 * every change then also copies the subscriber it changes, and O(lgn+lgm) nodes of the snapshot trees
+	 * Complexity : O(n + m lgm) for the first snapshot
+	 */
+	public void keepSnapshots() {
+		if (snapshot != null) return;
+		buildSnapshot();
+		snapshot = new LibrarySnapshot(0, snapshotSubs, snapshotBooks, bookIds);
+	}
+
+	/**
+	 * @return the snapshot of the library after the last command, or null if it does not keep snapshots.
+	 * it can be called by any thread, at any time
+	 * Complexity : O(1)
+	 */
+	public LibrarySnapshot snapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * the outcome of addSubscriber
+	 */
+	public enum AddResult {
+		OK, ALREADY_EXISTS
+	};
+
+	/**
+	 * the outcome of removeSubscriber
+	 */
+	public enum RemoveResult {
+		OK, NO_SUCH_SUBSCRIBER
+	};
+
+	/**
+	 * the outcome of subBorrowBook
+	 */
+	public enum BorrowResult {
+		OK, NO_SUCH_SUBSCRIBER, LIMIT_REACHED, ALREADY_HELD
+	};
+
+	/**
+	 * the outcome of subReturnBook
+	 */
+	public enum ReturnResult {
+		OK, NO_SUCH_SUBSCRIBER, NOT_LENT, HELD_BY_ANOTHER
+	};
+
 	/**
 	 * @param name
 	 * @param id
+	 * @param limit - the most books the subscriber can hold
+	 * @return the outcome
+	 * @throws IllegalArgumentException if the limit is negative
 	 * 
-	 * This method will add a subscriber by that given name and the given ID
-	 * Complexity : O(lgn)
+	 * This method will add a subscriber by that given name and the given ID, with its own borrowing limit
+	 * Complexity : O(1) expected with a HASH subs index (the default), O(lgn) with a TREE or a SKIP_LIST
 	 */
-	void addSubscriber(String name, int id) {
+	@Override
+	public AddResult addSubscriber(String name, int id, int limit) {
+		if (limit < 0) throw new IllegalArgumentException("bad limit " + limit);
 		if (subs.containsKey(id)) {
-			System.out.println("Subscriber " + name + " "+id +" already exists");
-			return;
+			added(AddResult.ALREADY_EXISTS, name, id);
+			return AddResult.ALREADY_EXISTS;
 		}
-		subs.put(id, new Subscriber(name, id));
-		System.out.println("Added subscriber " + name + " " + id);
+		applyAdd(name, id, limit);
+		if (store != null) store.logAdd(id, name, limit);
+		publish();
+		added(AddResult.OK, name, id);
+		return AddResult.OK;
 	}
 
 	/**
 	 * @param id
+	 * @return the outcome
 	 * 
-	 * remove the subscriber identified by ID
-	 * Complexity : O(lgn+lgm)
+	 * remove the subscriber identified by ID, returning all of the books the subscriber holds at once
+	 * (see returnAll)
+	 * Complexity : O(lgn+klgm) where k is the number of books the subscriber holds
 	 */
-	void removeSubscriber(int id) {
+	@Override
+	public RemoveResult removeSubscriber(int id) {
 		Subscriber s = subs.get(id); // O(lgn)
-		int count = s.count;
-
-		for (int i = 0; i < count; i++) {
-			subReturnBook(id, s.books[0]); // O(lgm+lgn)
+		if (s == null) {
+			removed(RemoveResult.NO_SUCH_SUBSCRIBER, id);
+			return RemoveResult.NO_SUCH_SUBSCRIBER;
 		}
 
-		subs.remove(id); // O(lgn)
+		returnedAll(id, s);
+		applyRemove(id); // O(lgn+klgm)
+		if (store != null) store.logRemove(id);
+		publish();
+		removed(RemoveResult.OK, id);
+		return RemoveResult.OK;
+	}
+
+	/**
+	 * @param subId
+	 * @param book - the code of the book, see BookId
+	 * @return the outcome
+	 * 
+	 * a subscriber identified by subId is borrowing the book
+	 * Complexity : O(lgn+lgm)
+	 */
+	@Override
+	public BorrowResult subBorrowBook(int subId, long book) {
+		return subBorrowBook(subId, book, null);
+	}
+
+	/**
+	 * @param subId
+	 * @param book - the code of the book, see BookId
+	 * @param bookId - the id as it was typed, for the listener, or null to show the id of the code
+	 * @return the outcome
+	 * Complexity : O(lgn+lgm)
+	 */
+	@Override
+	BorrowResult subBorrowBook(int subId, long book, String bookId) {
+		Subscriber s = subs.get(subId); // O(lgn)
+		if (s == null) {
+			borrowed(BorrowResult.NO_SUCH_SUBSCRIBER, subId, null, book, bookId, 0);
+			return BorrowResult.NO_SUCH_SUBSCRIBER;
+		}
+		if (s.count == s.limit) {
+			borrowed(BorrowResult.LIMIT_REACHED, subId, s.name, book, bookId, 0);
+			return BorrowResult.LIMIT_REACHED;
+		}
+		Subscriber hasThisBook = whoHoldsTheBook.get(book); // O(lgm)
+		if (hasThisBook != null) {
+			borrowed(BorrowResult.ALREADY_HELD, subId, s.name, book, bookId, hasThisBook.id);
+			return BorrowResult.ALREADY_HELD;
+		}
+		
+		applyBorrow(s, book); // O(lgn+lgm)
+		if (store != null) store.logBorrow(subId, book);
+		publish();
+		borrowed(BorrowResult.OK, subId, s.name, book, bookId, subId);
+		return BorrowResult.OK;
 	}
 
 	/**
 	 * @param subId
-	 * @param bookId
+	 * @param bookId - a book that has no code, so no one holds it
+	 * @return the outcome
 	 * 
-	 * a subscriber identified by subId is borrowing the book identified by bookId
+	 * a subscriber identified by subId is borrowing the book, it is given a code only if it can be lent
 	 * Complexity : O(lgn+lgm)
 	 */
-	void subBorrowBook(int subId, String bookId) {
+	@Override
+	BorrowResult borrowUnseen(int subId, String bookId) {
 		Subscriber s = subs.get(subId); // O(lgn)
-		if (s != null) {
-			if (s.count == s.books.length) {
-				System.out.println("Subscriber " + s.name + " " + s.id + " cant borrow any more books.");
-				return;
-			}
-			Subscriber hasThisBook = whoHoldsTheBook.get(bookId); // O(lgm)
-			if (hasThisBook != null) {
-				System.out.println("Another subscriber ("+hasThisBook.id+") already took this book (" + bookId +")");
-				return;
-			}
-			
-			whoHoldsTheBook.put(bookId, s); // O(lgm)
-			s.books[s.count] = bookId;
-			if (s.count > 0) mostBooks[s.count -1].remove(subId); // O(lgm)
-			s.count ++;
-			mostBooks[s.count -1].put(subId, s); // O(lgm)
-			System.out.println(s.name + " borrowed the book " + bookId);
-			return;
+		if (s == null) {
+			borrowed(BorrowResult.NO_SUCH_SUBSCRIBER, subId, null, bookId, 0);
+			return BorrowResult.NO_SUCH_SUBSCRIBER;
+		}
+		if (s.count == s.limit) {
+			borrowed(BorrowResult.LIMIT_REACHED, subId, s.name, bookId, 0);
+			return BorrowResult.LIMIT_REACHED;
 		}
-		System.out.println("user " + subId + " does not exists");
-		return;
+		return subBorrowBook(subId, bookIds.register(bookId), bookId);
 	}
 	
 	/**
 	 * @param subId
-	 * @param bookId
+	 * @param book - the code of the book, see BookId
+	 * @return the outcome
 	 * 
-	 * a subscriber identified by subId is returning a book identified by bookId
+	 * a subscriber identified by subId is returning the book
+	 * Complexity : O(lgn+lgm)
+	 */
+	@Override
+	public ReturnResult subReturnBook(int subId, long book) {
+		return subReturnBook(subId, book, null);
+	}
+
+	/**
+	 * @param subId
+	 * @param book - the code of the book, see BookId
+	 * @param bookId - the id as it was typed, for the listener, or null to show the id of the code
+	 * @return the outcome
 	 * Complexity : O(lgn+lgm)
 	 */
-	void subReturnBook(int subId, String bookId) {
-		Subscriber sub = whoHoldsTheBook.get(bookId); // O(lgn)
+	@Override
+	ReturnResult subReturnBook(int subId, long book, String bookId) {
+		Subscriber sub = whoHoldsTheBook.get(book); // O(lgm)
 		
 		// check if the user exists
-		if (subs.get(subId) == null) {                // O(lgm)
-			System.out.println("user " + subId+" does not exist");
-			return;
+		if (subs.get(subId) == null) {                // O(lgn)
+			returned(ReturnResult.NO_SUCH_SUBSCRIBER, subId, null, book, bookId, 0);
+			return ReturnResult.NO_SUCH_SUBSCRIBER;
 		}
 		
 		// check if anyone holds this book
 		if (sub == null) {
-			System.out.println("no one holds this book");
-			return;	
+			returned(ReturnResult.NOT_LENT, subId, null, book, bookId, 0);
+			return ReturnResult.NOT_LENT;
 		}
 		
 		// check that this user is actually holding this book
 		if (sub.id != subId) {
-			System.out.println("another user holds this book! (" + sub.id + ")");
-			return;
+			returned(ReturnResult.HELD_BY_ANOTHER, subId, null, book, bookId, sub.id);
+			return ReturnResult.HELD_BY_ANOTHER;
 		}
 		
-		// he does, so mark that the book is not lent to anyone
-		whoHoldsTheBook.remove(bookId);				  // O(lgm)
-		
-		// now fix the mostBooks array
-		// and remove this book from the subscriber
-		for (int i = 0; i < sub.books.length; i++) {
-			String book = sub.books[i];               
-			if (book != null && book.equals(bookId)) {
-				
-				// we found the book in the subscriber's book list
-				// so delete it by coping the last book over this book and reducing book count by one
-				sub.books[i] = sub.books[sub.count - 1];
-				
-				// mark last book count as no book
-				sub.books[sub.count - 1] = null;
-				
-				// fix mostBooks
-				mostBooks[sub.count-- -1].remove(subId); // O(lgn)
-				if (sub.count > 0) 
-					mostBooks[sub.count - 1].put(subId, sub); // O(lgn)
-				
-				System.out.println(sub.name + " returned the book " + bookId);
-				return;
+		// it is, so take the book back
+		if (!applyReturn(sub, book)) {				  // O(lgn+lgm)
+			returned(ReturnResult.NOT_LENT, subId, sub.name, book, bookId, 0);
+			return ReturnResult.NOT_LENT;
+		}
+		if (store != null) store.logReturn(subId, book);
+		publish();
+		returned(ReturnResult.OK, subId, sub.name, book, bookId, subId);
+		return ReturnResult.OK;
+	}
+
+	/*
+	 * the bulk commands below find the subscriber once, make all the changes to the indexes in a single
+	 * pass, and only then move the subscriber to its final count bucket. the listener still gets an event
+	 * per book, just like the single book commands
+	 */
+
+	/**
+	 * @param subId
+	 * @param books - the codes of the books, see BookId
+	 * @return the outcome for each of the books
+	 * 
+	 * a subscriber identified by subId is borrowing all the books, in order, until it reaches its limit
+	 * Complexity : O(lgn+klgm) where k is the number of books
+	 */
+	@Override
+	public BorrowResult[] borrowMany(int subId, long[] books) {
+		return borrowMany(subId, books, null);
+	}
+
+	/**
+	 * @param subId
+	 * @param books - the codes of the books, see BookId
+	 * @param ids - the ids as they were typed, for the listener, or null to show the ids of the codes
+	 * @return the outcome for each of the books
+	 * Complexity : O(lgn+klgm) where k is the number of books
+	 */
+	@Override
+	BorrowResult[] borrowMany(int subId, long[] books, String[] ids) {
+		BorrowResult[] results = new BorrowResult[books.length];
+		Subscriber s = subs.get(subId); // O(lgn)
+		if (s == null) {
+			for (int i = 0; i < books.length; i++) {
+				results[i] = BorrowResult.NO_SUCH_SUBSCRIBER;
+				borrowed(BorrowResult.NO_SUCH_SUBSCRIBER, subId, null, books[i], ids != null ? ids[i] : null, 0);
 			}
+			return results;
 		}
-		
-		return;
-	
+
+		int from = s.count;
+		for (int i = 0; i < books.length; i++) {
+			long book = books[i];
+			String bookId = ids != null ? ids[i] : null;
+			if (s.count == s.limit) {
+				results[i] = BorrowResult.LIMIT_REACHED;
+				borrowed(BorrowResult.LIMIT_REACHED, subId, s.name, book, bookId, 0);
+				continue;
+			}
+			Subscriber hasThisBook = whoHoldsTheBook.get(book); // O(lgm)
+			if (hasThisBook != null) {
+				results[i] = BorrowResult.ALREADY_HELD;
+				borrowed(BorrowResult.ALREADY_HELD, subId, s.name, book, bookId, hasThisBook.id);
+				continue;
+			}
+
+			whoHoldsTheBook.put(book, s); // O(lgm)
+			s.add(book); // O(1)
+			snapshotBook(book, s);
+			results[i] = BorrowResult.OK;
+			if (store != null) store.logBorrow(subId, book);
+			borrowed(BorrowResult.OK, subId, s.name, book, bookId, subId);
+		}
+		mostBooks.moved(s, from); // O(1)
+		if (s.count != from) {
+			snapshotSubscriber(s);
+			publish();
+		}
+		return results;
+	}
+
+	/**
+	 * @param subId
+	 * @param books - the codes of the books, see BookId
+	 * @return the outcome for each of the books
+	 * 
+	 * a subscriber identified by subId is returning all the books
+	 * Complexity : O(lgn+klgm) where k is the number of books
+	 */
+	@Override
+	public ReturnResult[] returnMany(int subId, long[] books) {
+		return returnMany(subId, books, null);
+	}
+
+	/**
+	 * @param subId
+	 * @param books - the codes of the books, see BookId
+	 * @param ids - the ids as they were typed, for the listener, or null to show the ids of the codes
+	 * @return the outcome for each of the books
+	 * Complexity : O(lgn+klgm) where k is the number of books
+	 */
+	@Override
+	ReturnResult[] returnMany(int subId, long[] books, String[] ids) {
+		ReturnResult[] results = new ReturnResult[books.length];
+		Subscriber s = subs.get(subId); // O(lgn)
+		if (s == null) {
+			for (int i = 0; i < books.length; i++) {
+				results[i] = ReturnResult.NO_SUCH_SUBSCRIBER;
+				returned(ReturnResult.NO_SUCH_SUBSCRIBER, subId, null, books[i], ids != null ? ids[i] : null, 0);
+			}
+			return results;
+		}
+
+		int from = s.count;
+		for (int i = 0; i < books.length; i++) {
+			long book = books[i];
+			String bookId = ids != null ? ids[i] : null;
+			Subscriber holder = whoHoldsTheBook.get(book); // O(lgm)
+			if (holder == null) {
+				results[i] = ReturnResult.NOT_LENT;
+				returned(ReturnResult.NOT_LENT, subId, null, book, bookId, 0);
+				continue;
+			}
+			if (holder.id != subId) {
+				results[i] = ReturnResult.HELD_BY_ANOTHER;
+				returned(ReturnResult.HELD_BY_ANOTHER, subId, null, book, bookId, holder.id);
+				continue;
+			}
+			if (!s.remove(book)) { // O(1)
+				results[i] = ReturnResult.NOT_LENT;
+				returned(ReturnResult.NOT_LENT, subId, s.name, book, bookId, 0);
+				continue;
+			}
+
+			whoHoldsTheBook.remove(book); // O(lgm)
+			snapshotBook(book, null);
+			results[i] = ReturnResult.OK;
+			if (store != null) store.logReturn(subId, book);
+			returned(ReturnResult.OK, subId, s.name, book, bookId, subId);
+		}
+		mostBooks.moved(s, from); // O(1)
+		if (s.count != from) {
+			snapshotSubscriber(s);
+			publish();
+		}
+		return results;
+	}
+
+	/**
+	 * @param subId
+	 * @return the outcome, OK even if the subscriber held no books
+	 * 
+	 * a subscriber identified by subId is returning all of the books it holds.
+	 * the change is logged as a single record, rather than a record per book
+	 * Complexity : O(lgn+klgm) where k is the number of books the subscriber holds
+	 */
+	@Override
+	public ReturnResult returnAll(int subId) {
+		Subscriber s = subs.get(subId); // O(lgn)
+		if (s == null) {
+			returnedAll(subId, null);
+			return ReturnResult.NO_SUCH_SUBSCRIBER;
+		}
+		returnedAll(subId, s);
+		applyReturnAll(s); // O(klgm)
+		if (store != null) store.logReturnAll(subId);
+		publish();
+		return ReturnResult.OK;
+	}
+
+	/*
+	 * the apply methods below make the actual changes to the data structures, without any checks
+	 * or output. they are used by the commands above once the checks passed, and when the library
+	 * state is recovered from its files (see LibraryStore)
+	 */
+
+	/**
+	 * @param name
+	 * @param id
+	 * @param limit
+	 * add a new subscriber
+	 * Complexity : O(lgn)
+	 */
+	void applyAdd(String name, int id, int limit) {
+		Subscriber s = new Subscriber(name, id, limit);
+		subs.put(id, s);
+		snapshotSubscriber(s);
+	}
+
+	/**
+	 * @param id
+	 * remove a subscriber, any book the subscriber still holds is returned
+	 * Complexity : O(lgn+klgm) where k is the number of books the subscriber holds
+	 */
+	void applyRemove(int id) {
+		Subscriber s = subs.get(id);
+		applyReturnAll(s);
+		subs.remove(id);
+		if (snapshotSubs != null) snapshotSubs = snapshotSubs.remove(id);
+	}
+
+	/**
+	 * @param s
+	 * take back all the books s holds, s goes straight out of the count buckets
+	 * Complexity : O(klgm) where k is the number of books s holds
+	 */
+	void applyReturnAll(Subscriber s) {
+		int from = s.count;
+		for (int i = 0; i < s.count; i++) {
+			whoHoldsTheBook.remove(s.books[i]); // O(lgm)
+			snapshotBook(s.books[i], null);
+		}
+		s.clear();
+		mostBooks.moved(s, from); // O(1)
+		snapshotSubscriber(s);
+	}
+
+	/**
+	 * @param s
+	 * @param book - the code of the book
+	 * lend the book to the subscriber s
+	 * Complexity : O(lgm)
+	 */
+	void applyBorrow(Subscriber s, long book) {
+		whoHoldsTheBook.put(book, s); // O(lgm)
+		s.add(book); // O(1)
+		mostBooks.increment(s); // O(1)
+		snapshotBook(book, s);
+		snapshotSubscriber(s);
+	}
+
+	/**
+	 * @param sub
+	 * @param book - the code of the book
+	 * @return true iff the subscriber sub held the book, and returned it
+	 * Complexity : O(lgm)
+	 */
+	boolean applyReturn(Subscriber sub, long book) {
+		// delete the book from the subscriber's book list, O(1)
+		if (!sub.remove(book)) return false;
+
+		// mark that the book is not lent to anyone
+		whoHoldsTheBook.remove(book);		  // O(lgm)
+
+		// fix mostBooks
+		mostBooks.decrement(sub); // O(1)
+		snapshotBook(book, null);
+		snapshotSubscriber(sub);
+		return true;
 	}
 	
 	/**
-	 * @return the RedBlack Tree containing ALL the subscribers that currently hold the most books
-	 * Complexity: O(1)
+	 * @param subscribers - the subscribers sorted by id, each already holding its books
+	 * @param n - the number of subscribers to take from the array
+	 * @throws IllegalArgumentException if the ids are not sorted, or a book is held twice
+	 *
+	 * fill an empty library with all of its subscribers at once, this is how a snapshot is loaded.
+	 * the trees are built bottom-up from sorted arrays (see IntRBTree.fromSorted), with no rotations at all.
+	 * the subscribers come sorted, so only the book codes have to be sorted first, and only when
+	 * whoHoldsTheBook is a tree.
+	 * hash tables are allocated at their final size up front, so they never resize while loading.
+	 * other indexes (skip lists, a mapped file) are filled one entry at a time.
+	 * Complexity : O(n + m lgm), O(n + m) when whoHoldsTheBook is not a tree
 	 */
-	public RBTree<Integer, Subscriber> mostBorrowed() {
-		// find the largest RB-Tree that is not empty, it will contain all the users that are holding
-		// that many books
-		for (int i = mostBooks.length-1; i >= 0; i--) {
-			if (mostBooks[i].isNotEmpty()) {
-				return mostBooks[i];
+	void loadSorted(Subscriber[] subscribers, int n) {
+		// put every subscriber in its count bucket, and collect all the lent books
+		int[] ids = new int[n];
+		int m = 0;
+		for (int i = 0; i < n; i++) {
+			ids[i] = subscribers[i].id;
+			m += subscribers[i].count;
+			mostBooks.add(subscribers[i]);
+		}
+		long[] books = new long[m];
+		m = 0;
+		for (int i = 0; i < n; i++) {
+			Subscriber s = subscribers[i];
+			for (int j = 0; j < s.count; j++)
+				books[m++] = s.books[j];
+		}
+
+		if (subs instanceof IntRBTree) {
+			subs = IntRBTree.fromSorted(ids, subscribers, n);
+		} else {
+			if (subs instanceof LongHashIndex) subs = LongHashIndex.withCapacity(n);
+			for (int i = 0; i < n; i++) {
+				if (i > 0 && ids[i - 1] >= ids[i])
+					throw new IllegalArgumentException("the ids are not sorted: " + ids[i - 1] + " before " + ids[i]);
+				subs.put(ids[i], subscribers[i]);
 			}
 		}
-		
-		return null;
+
+		if (whoHoldsTheBook instanceof LongArrayRBTree) {
+			// the codes are sorted as primitives, and then the holder of each one is found by a binary search
+			// in the sorted codes. a book that is held twice shows up twice in them, and fromSorted rejects it
+			Arrays.sort(books);
+			Subscriber[] holders = new Subscriber[m];
+			for (int i = 0; i < n; i++) {
+				Subscriber s = subscribers[i];
+				for (int j = 0; j < s.count; j++)
+					holders[Arrays.binarySearch(books, s.books[j])] = s;
+			}
+			whoHoldsTheBook = bookTree(LongArrayRBTree.fromSorted(books, holders, m));
+		} else {
+			if (whoHoldsTheBook instanceof LongHashIndex) whoHoldsTheBook = LongHashIndex.withCapacity(m);
+			for (int i = 0; i < n; i++) {
+				Subscriber s = subscribers[i];
+				for (int j = 0; j < s.count; j++) {
+					if (whoHoldsTheBook.containsKey(s.books[j]))
+						throw new IllegalArgumentException("the book " + bookIds.toString(s.books[j]) + " is held twice");
+					whoHoldsTheBook.put(s.books[j], s);
+				}
+			}
+		}
+		if (snapshotSubs != null) buildSnapshot();
 	}
 
+	/*
+	 * when the library keeps snapshots, the apply methods make every change to the persistent trees of
+	 * the snapshot as well, and the commands publish the trees once they are done
+	 */
+
 	/**
-	 * @param bookId
-	 * @return the Subscriber that is currently holding the book identified by bookId
+	 * build the snapshot trees from the indexes, a frozen copy of every subscriber and the holder of every book
+	 * Complexity : O(n + m lgm), O(n lgn + m lgm) when subs is a hash table
+	 */
+	private void buildSnapshot() {
+		Subscriber[] all = subscribersById();
+		int n = all.length, m = 0;
+		Integer[] ids = new Integer[n];
+		Subscriber[] frozen = new Subscriber[n];
+		for (int i = 0; i < n; i++) {
+			ids[i] = all[i].id;
+			frozen[i] = all[i].frozen();
+			m += all[i].count;
+		}
+
+		// the codes are sorted as primitives, and the holder of each one is found by a binary search, like in loadSorted
+		long[] books = new long[m];
+		m = 0;
+		for (Subscriber s : all)
+			for (int j = 0; j < s.count; j++)
+				books[m++] = s.books[j];
+		Arrays.sort(books);
+		Long[] codes = new Long[m];
+		Integer[] holders = new Integer[m];
+		for (int i = 0; i < m; i++)
+			codes[i] = books[i];
+		for (Subscriber s : all)
+			for (int j = 0; j < s.count; j++)
+				holders[Arrays.binarySearch(books, s.books[j])] = s.id;
+
+		snapshotSubs = PersistentRBTree.fromSorted(intOrd, ids, frozen, n);
+		snapshotBooks = PersistentRBTree.fromSorted(longOrd, codes, holders, m);
+	}
+
+	/**
+	 * @param s
+	 * put a frozen copy of s in the snapshot subscribers
+	 * Complexity : O(lgn+k) where k is the number of books s holds
+	 */
+	private void snapshotSubscriber(Subscriber s) {
+		if (snapshotSubs != null) snapshotSubs = snapshotSubs.put(s.id, s.frozen());
+	}
+
+	/**
+	 * @param book
+	 * @param holder - the subscriber that holds the book now, or null if it was returned
 	 * Complexity : O(lgm)
 	 */
-	public Subscriber whoHoldsTheBook(String bookId) {
-		return whoHoldsTheBook.get(bookId);
+	private void snapshotBook(long book, Subscriber holder) {
+		if (snapshotBooks == null) return;
+		snapshotBooks = holder != null ? snapshotBooks.put(book, holder.id) : snapshotBooks.remove(book);
+	}
+
+	/**
+	 * publish the snapshot trees as the next snapshot, once a command is done
+	 */
+	private void publish() {
+		if (snapshotSubs != null)
+			snapshot = new LibrarySnapshot(snapshot.getVersion() + 1, snapshotSubs, snapshotBooks, bookIds);
+	}
+
+	/**
+	 * @param index - the mapped whoHoldsTheBook index
+	 * @param onHeapOnly - true to only put the books the index keeps on the heap, when the file is up to date
+	 * put the holder of every lent book in the index
+	 * Complexity : O(n + m lgm)
+	 */
+	private void fillBookIndex(final MappedHolderIndex index, final boolean onHeapOnly) {
+		subs.foreach(new Do<Subscriber>() {
+			@Override
+			public void action(Subscriber s) {
+				for (int i = 0; i < s.count; i++)
+					if (!onHeapOnly || index.keepsOnHeap(s.books[i]))
+						index.put(s.books[i], s); // O(lgm)
+			}
+		});
+	}
+
+	/**
+	 * @return all the subscribers, sorted by their ids, this is how a snapshot is written.
+	 * a hash table has no order, so its subscribers are sorted here
+	 * Complexity : O(n), O(n lgn) when subs is a hash table
+	 */
+	Subscriber[] subscribersById() {
+		final Subscriber[] all = new Subscriber[subs.getSize()];
+		subs.foreach(new Do<Subscriber>() {
+			private int i = 0;
+
+			@Override
+			public void action(Subscriber s) {
+				all[i++] = s;
+			}
+		});
+		if (subs instanceof LongHashIndex) {
+			Arrays.sort(all, new Comparator<Subscriber>() {
+				@Override
+				public int compare(Subscriber s1, Subscriber s2) {
+					return Integer.compare(s1.id, s2.id);
+				}
+			});
+		}
+		return all;
+	}
+
+	/**
+	 * @param tree
+	 * @return the tree, set up to be the whoHoldsTheBook index.
+	 * book ids come in runs (a shelf of AA0001, AA0002, ...), so the tree searches near the last book first
+	 */
+	private static LongArrayRBTree<Subscriber> bookTree(LongArrayRBTree<Subscriber> tree) {
+		tree.setFingerSearch(true);
+		return tree;
+	}
+
+	/**
+	 * @return ALL the subscribers that currently hold the most books, or null if no one holds any.
+	 * the count and the number of subscribers are ready right away, the subscribers are only sorted by
+	 * their ids if they are asked for (see MostBorrowed)
+	 * Complexity: O(1)
+	 */
+	@Override
+	public MostBorrowed mostBorrowed() {
+		return mostBooks.most();
+	}
+
+	/**
+	 * @param from - the rank of the first subscriber to visit, counting from 0 in the order of their ids
+	 * @param to - the rank after the last subscriber to visit
+	 * @param action - the action to perform over each subscriber
+	 * visit one page of the subscribers, in the order of their ids.
+	 * a TREE subs index keeps the size of every subtree, so it goes straight to the page (see IntRBTree.foreach).
+	 * a hash table or a skip list cannot find the rank of an id, so all the subscribers are listed first
+	 * Complexity : O(lgn + to-from) with a TREE subs index, O(n lgn) with a HASH (the default), O(n) with a SKIP_LIST
+	 */
+	@Override
+	public void listSubscribers(int from, int to, Do<Subscriber> action) {
+		if (subs instanceof IntRBTree) {
+			((IntRBTree<Subscriber>) subs).foreach(from, to, action);
+			return;
+		}
+		Subscriber[] all = subscribersById();
+		for (int i = Math.max(0, from); i < Math.min(to, all.length); i++)
+			action.action(all[i]);
+	}
+
+	/**
+	 * @param book - the code of the book, see BookId
+	 * @return the Subscriber that is currently holding the book
+	 * Complexity : O(1) expected with a HASH whoHoldsTheBook index (the default), O(lgm) with a TREE or a SKIP_LIST
+	 */
+	@Override
+	public Subscriber whoHoldsTheBook(long book) {
+		return whoHoldsTheBook.get(book);
 	}
 
 
 	/**
 	 * @param subId
 	 * @return the Subscriber by the subId
-	 * Complexity : O(lgn)
+	 * Complexity : O(1) expected with a HASH subs index (the default), O(lgn) with a TREE or a SKIP_LIST
 	 */
+	@Override
 	public Subscriber getSubscriber(int subId) { 
 		return subs.get(subId);
 	}	
+
+	/**
+	 * @return the number of subscribers
+	 * Complexity : O(1)
+	 */
+	@Override
+	public int getSubscriberCount() {
+		return subs.getSize();
+	}
+
+	/**
+	 * @return the number of books that are lent
+	 * Complexity : O(1)
+	 */
+	@Override
+	public int getLentCount() {
+		return whoHoldsTheBook.getSize();
+	}
+
+	/**
+	 * @return the counters of the subscribers tree, or null if the subscribers are not kept in a tree
+	 */
+	@Override
+	public TreeStats getSubscribersTreeStats() {
+		return subs instanceof IntRBTree ? ((IntRBTree<Subscriber>) subs).getStats() : null;
+	}
+
+	/**
+	 * @return the counters of the whoHoldsTheBook tree, or null if the books are not kept in a tree
+	 */
+	@Override
+	public TreeStats getBooksTreeStats() {
+		return whoHoldsTheBook instanceof LongArrayRBTree
+				? ((LongArrayRBTree<Subscriber>) whoHoldsTheBook).getStats() : null;
+	}
+
+	/**
+	 * start counting the outcomes of the commands and the work of the trees again from 0
+	 */
+	@Override
+	public void resetStats() {
+		stats.reset();
+		TreeStats subsStats = getSubscribersTreeStats(), booksStats = getBooksTreeStats();
+		if (subsStats != null) subsStats.reset();
+		if (booksStats != null) booksStats.reset();
+	}
 }
@@ -0,0 +1,27 @@
+package maman18.library;
+
+import maman18.library.Library.AddResult;
+import maman18.library.Library.BorrowResult;
+import maman18.library.Library.RemoveResult;
+import maman18.library.Library.ReturnResult;
+
+/**
+ * @author Shlomi.v
+ *
+ * gets an event with the outcome of every command the Library runs.
+ * the Library calls it right after the command, on the same thread, so it should be quick
+ * (or hand the event to another thread).
+ *
+ * the arguments that dont make sense for some outcome are null or 0:
+ *   subName  - the name of the subscriber, null if there is no such subscriber
+ *   holderId - the subscriber that holds the book after the command (or already held it)
+ */
+public interface LibraryListener {
+	public void subscriberAdded(AddResult result, String name, int id);
+
+	public void subscriberRemoved(RemoveResult result, int id);
+
+	public void bookBorrowed(BorrowResult result, int subId, String subName, String bookId, int holderId);
+
+	public void bookReturned(ReturnResult result, int subId, String subName, String bookId, int holderId);
+}
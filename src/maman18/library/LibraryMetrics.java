@@ -0,0 +1,188 @@
+package maman18.library;
+
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import maman18.data.LatencyHistogram;
+import maman18.data.TreeStats;
+
+/**
+ * @author Shlomi.v
+ *
+ * Shows what a Library is doing while it runs: its size, the outcomes of its commands (see LibraryStats),
+ * the counters of its trees (see TreeStats) and the latency of each kind of command (see LatencyHistogram).
+ *
+ * all the numbers are kept by the library, its trees and its front end as they go, with no allocation
+ * and no locks. this class only reads them when asked, so it can be left on all the time:
+ *  (*) over JMX - register puts it in the platform MBean server as maman18:type=Library
+ *  (*) as text  - dumpEvery prints all of it every few seconds
+ * the numbers are read without stopping the threads that keep them, so they may be a little behind.
+ */
+public class LibraryMetrics implements LibraryMetricsMXBean, Closeable {
+
+	public static final String NAME = "maman18:type=Library";
+
+	private final Circulation lib;
+	private final Map<String, LatencyHistogram> latencies;
+
+	private ObjectName registered = null;
+	private Timer timer = null;
+
+	/**
+	 * @param lib
+	 * @param latencies - the latency histogram of each kind of command, by its name
+	 * (see CommandParser.getLatencies), or null if there are none
+	 */
+	public LibraryMetrics(Circulation lib, Map<String, LatencyHistogram> latencies) {
+		this.lib = lib;
+		this.latencies = latencies != null ? latencies : new LinkedHashMap<String, LatencyHistogram>();
+	}
+
+	/**
+	 * show the metrics in the platform MBean server
+	 * @throws JMException if they cannot be registered (like when another library is registered already)
+	 */
+	public void register() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(NAME);
+		server.registerMBean(this, name);
+		registered = name;
+	}
+
+	/**
+	 * @param out
+	 * @param seconds
+	 * print all the metrics to out every few seconds, on a background thread
+	 */
+	public void dumpEvery(final PrintStream out, long seconds) {
+		if (timer == null) timer = new Timer("library-metrics", true);
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				out.print(dump());
+				out.flush();
+			}
+		}, seconds * 1000, seconds * 1000);
+	}
+
+	/**
+	 * stop the dumps, and take the metrics out of the MBean server
+	 */
+	@Override
+	public void close() {
+		if (timer != null) timer.cancel();
+		timer = null;
+		if (registered != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+			} catch (JMException e) {
+				// it is gone either way
+			}
+			registered = null;
+		}
+	}
+
+	@Override
+	public int getSubscribers() {
+		return lib.getSubscriberCount();
+	}
+
+	@Override
+	public int getLentBooks() {
+		return lib.getLentCount();
+	}
+
+	@Override
+	public Map<String, Long> getAdds() {
+		return byName(lib.getStats().getAdds());
+	}
+
+	@Override
+	public Map<String, Long> getRemoves() {
+		return byName(lib.getStats().getRemoves());
+	}
+
+	@Override
+	public Map<String, Long> getBorrows() {
+		return byName(lib.getStats().getBorrows());
+	}
+
+	@Override
+	public Map<String, Long> getReturns() {
+		return byName(lib.getStats().getReturns());
+	}
+
+	private static Map<String, Long> byName(Map<? extends Enum<?>, Long> counts) {
+		Map<String, Long> byName = new LinkedHashMap<String, Long>();
+		for (Map.Entry<? extends Enum<?>, Long> e : counts.entrySet())
+			byName.put(e.getKey().name(), e.getValue());
+		return byName;
+	}
+
+	/**
+	 * @return the counters of the subscribers tree, or null if the subscribers are not kept in a tree
+	 */
+	@Override
+	public TreeStats getSubscribersTree() {
+		return lib.getSubscribersTreeStats();
+	}
+
+	/**
+	 * @return the counters of the whoHoldsTheBook tree, or null if the books are not kept in a tree
+	 */
+	@Override
+	public TreeStats getBooksTree() {
+		return lib.getBooksTreeStats();
+	}
+
+	/**
+	 * @return a summary of the latency histogram of each kind of command that ran at least once
+	 */
+	@Override
+	public Map<String, String> getCommandLatencies() {
+		Map<String, String> summaries = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, LatencyHistogram> e : latencies.entrySet())
+			if (e.getValue().getCount() > 0) summaries.put(e.getKey(), e.getValue().toString());
+		return summaries;
+	}
+
+	/**
+	 * @return all the metrics as text, a line for each
+	 */
+	@Override
+	public String dump() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("library metrics at ").append(new Date()).append(":\n");
+		sb.append("  subscribers=").append(getSubscribers()).append(" lent books=").append(getLentBooks()).append('\n');
+		sb.append("  adds ").append(getAdds()).append('\n');
+		sb.append("  removes ").append(getRemoves()).append('\n');
+		sb.append("  borrows ").append(getBorrows()).append('\n');
+		sb.append("  returns ").append(getReturns()).append('\n');
+		TreeStats subscribers = getSubscribersTree(), books = getBooksTree();
+		if (subscribers != null) sb.append("  subscribers tree ").append(subscribers).append('\n');
+		if (books != null) sb.append("  books tree ").append(books).append('\n');
+		for (Map.Entry<String, String> e : getCommandLatencies().entrySet())
+			sb.append("  ").append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+		return sb.toString();
+	}
+
+	/**
+	 * start counting all the metrics again from 0
+	 */
+	@Override
+	public void reset() {
+		lib.resetStats();
+		for (LatencyHistogram histogram : latencies.values())
+			histogram.reset();
+	}
+}
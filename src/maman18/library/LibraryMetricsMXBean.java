@@ -0,0 +1,34 @@
+package maman18.library;
+
+import java.util.Map;
+
+import maman18.data.TreeStats;
+
+/**
+ * @author Shlomi.v
+ *
+ * What a LibraryMetrics shows over JMX (like in jconsole), see LibraryMetrics
+ */
+public interface LibraryMetricsMXBean {
+	public int getSubscribers();
+
+	public int getLentBooks();
+
+	public Map<String, Long> getAdds();
+
+	public Map<String, Long> getRemoves();
+
+	public Map<String, Long> getBorrows();
+
+	public Map<String, Long> getReturns();
+
+	public TreeStats getSubscribersTree();
+
+	public TreeStats getBooksTree();
+
+	public Map<String, String> getCommandLatencies();
+
+	public String dump();
+
+	public void reset();
+}
@@ -0,0 +1,123 @@
+package maman18.library;
+
+import java.util.ArrayList;
+
+import maman18.data.Do;
+import maman18.data.PersistentRBTree;
+import maman18.library.Library.Subscriber;
+
+/**
+ * @author Shlomi.v
+ *
+ * The state of a Library as it was right after one of its commands, that never changes
+ * (see Library.keepSnapshots).
+ *
+ * a snapshot is two persistent trees (see PersistentRBTree): the subscribers by their ids, each a frozen copy
+ * of the subscriber with its books, and the id of the holder of each lent book. the library makes a new
+ * version of the trees with every change, sharing all the nodes that did not change with the last version,
+ * and publishes it as a new snapshot once the command is done.
+ *
+ * so a snapshot can be read by any thread, for as long as it likes, while the library keeps changing:
+ * no locks are taken, and the snapshot always shows the library between two whole commands.
+ * pinning a snapshot is just keeping a reference to it, and an old snapshot is freed once no one keeps it.
+ */
+public final class LibrarySnapshot {
+
+	private final long version;
+	private final PersistentRBTree<Integer, Subscriber> subscribers;
+	private final PersistentRBTree<Long, Integer> holders;
+	private final BookId bookIds;
+
+	/**
+	 * @param version - the number of the snapshot, every snapshot of a library gets the next number
+	 * @param subscribers - frozen copies of the subscribers, by their ids
+	 * @param holders - the id of the holder of each lent book, by the code of the book (see BookId)
+	 * @param bookIds - the book codes of the library
+	 */
+	LibrarySnapshot(long version, PersistentRBTree<Integer, Subscriber> subscribers, PersistentRBTree<Long, Integer> holders,
+			BookId bookIds) {
+		this.version = version;
+		this.subscribers = subscribers;
+		this.holders = holders;
+		this.bookIds = bookIds;
+	}
+
+	/**
+	 * @return the number of the snapshot, a later snapshot of the same library has a larger number
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @param subId
+	 * @return the Subscriber by the subId, as it was then
+	 * Complexity : O(lgn)
+	 */
+	public Subscriber getSubscriber(int subId) {
+		return subscribers.get(subId);
+	}
+
+	/**
+	 * @param bookId
+	 * @return the Subscriber that was holding the book identified by bookId
+	 * Complexity : O(lgm+lgn)
+	 */
+	public Subscriber whoHoldsTheBook(String bookId) {
+		long book = bookIds.find(bookId);
+		return book != BookId.NONE ? whoHoldsTheBook(book) : null;
+	}
+
+	/**
+	 * @param book - the code of the book, see BookId
+	 * @return the Subscriber that was holding the book
+	 * Complexity : O(lgm+lgn)
+	 */
+	public Subscriber whoHoldsTheBook(long book) {
+		Integer holder = holders.get(book);
+		return holder != null ? subscribers.get(holder) : null;
+	}
+
+	/**
+	 * @return the number of subscribers
+	 * Complexity : O(1)
+	 */
+	public int getSubscriberCount() {
+		return subscribers.getSize();
+	}
+
+	/**
+	 * @return the number of books that were lent
+	 * Complexity : O(1)
+	 */
+	public int getLentCount() {
+		return holders.getSize();
+	}
+
+	/**
+	 * @param action
+	 * do the action on all the subscribers, in the order of their ids
+	 * Complexity : O(n)
+	 */
+	public void foreach(Do<Subscriber> action) {
+		subscribers.foreach(action);
+	}
+
+	/**
+	 * @return ALL the subscribers that held the most books, or null if no one held any.
+	 * a snapshot has no count buckets, so all the subscribers are looked at
+	 * Complexity : O(n)
+	 */
+	public MostBorrowed mostBorrowed() {
+		final ArrayList<Subscriber> most = new ArrayList<Subscriber>();
+		subscribers.foreach(new Do<Subscriber>() {
+			@Override
+			public void action(Subscriber s) {
+				if (s.count == 0) return;
+				if (!most.isEmpty() && s.count > most.get(0).count) most.clear();
+				if (most.isEmpty() || s.count == most.get(0).count) most.add(s);
+			}
+		});
+		return most.isEmpty() ? null : new MostBorrowed(most.get(0).count, most.toArray(new Subscriber[most.size()]));
+	}
+}
@@ -0,0 +1,132 @@
+package maman18.library;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import maman18.library.Library.AddResult;
+import maman18.library.Library.BorrowResult;
+import maman18.library.Library.RemoveResult;
+import maman18.library.Library.ReturnResult;
+
+/**
+ * @author Shlomi.v
+ *
+ * Counts the outcomes of the commands a Library runs, like how many borrows were turned down and why.
+ *
+ * a counter for each outcome of each command, kept in an array by the ordinal of the outcome, so counting
+ * an outcome is an array lookup and an addition with no allocation. the counters are LongAdders, so
+ * the threads of a ConcurrentLibrary count at once without losing counts or contending on a single field.
+ */
+public final class LibraryStats {
+
+	private final LongAdder[] adds = counters(AddResult.values().length);
+	private final LongAdder[] removes = counters(RemoveResult.values().length);
+	private final LongAdder[] borrows = counters(BorrowResult.values().length);
+	private final LongAdder[] returns = counters(ReturnResult.values().length);
+
+	private static LongAdder[] counters(int n) {
+		LongAdder[] counters = new LongAdder[n];
+		for (int i = 0; i < n; i++)
+			counters[i] = new LongAdder();
+		return counters;
+	}
+
+	void added(AddResult result) {
+		adds[result.ordinal()].increment();
+	}
+
+	void removed(RemoveResult result) {
+		removes[result.ordinal()].increment();
+	}
+
+	void borrowed(BorrowResult result) {
+		borrows[result.ordinal()].increment();
+	}
+
+	void returned(ReturnResult result, int books) {
+		returns[result.ordinal()].add(books);
+	}
+
+	/**
+	 * @param result
+	 * @return the number of adds with this outcome
+	 */
+	public long getAdds(AddResult result) {
+		return adds[result.ordinal()].sum();
+	}
+
+	/**
+	 * @param result
+	 * @return the number of removes with this outcome
+	 */
+	public long getRemoves(RemoveResult result) {
+		return removes[result.ordinal()].sum();
+	}
+
+	/**
+	 * @param result
+	 * @return the number of borrows with this outcome, the outcomes other than OK are the reasons borrows
+	 * were turned down
+	 */
+	public long getBorrows(BorrowResult result) {
+		return borrows[result.ordinal()].sum();
+	}
+
+	/**
+	 * @param result
+	 * @return the number of returned books with this outcome
+	 */
+	public long getReturns(ReturnResult result) {
+		return returns[result.ordinal()].sum();
+	}
+
+	/**
+	 * @return the number of borrows by their outcome
+	 */
+	public Map<BorrowResult, Long> getBorrows() {
+		return sums(BorrowResult.class, borrows);
+	}
+
+	/**
+	 * @return the number of returned books by their outcome
+	 */
+	public Map<ReturnResult, Long> getReturns() {
+		return sums(ReturnResult.class, returns);
+	}
+
+	/**
+	 * @return the number of adds by their outcome
+	 */
+	public Map<AddResult, Long> getAdds() {
+		return sums(AddResult.class, adds);
+	}
+
+	/**
+	 * @return the number of removes by their outcome
+	 */
+	public Map<RemoveResult, Long> getRemoves() {
+		return sums(RemoveResult.class, removes);
+	}
+
+	private static <E extends Enum<E>> Map<E, Long> sums(Class<E> type, LongAdder[] counters) {
+		Map<E, Long> sums = new EnumMap<E, Long>(type);
+		for (E result : type.getEnumConstants())
+			sums.put(result, counters[result.ordinal()].sum());
+		return sums;
+	}
+
+	/**
+	 * start counting again from 0
+	 */
+	public void reset() {
+		for (LongAdder[] counters : new LongAdder[][] { adds, removes, borrows, returns })
+			for (LongAdder counter : counters)
+				counter.reset();
+	}
+
+	@Override
+	public String toString() {
+		return "adds=" + getAdds() + " removes=" + getRemoves() + " borrows=" + getBorrows() + " returns=" + getReturns();
+	}
+}
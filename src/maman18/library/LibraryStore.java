@@ -0,0 +1,481 @@
+package maman18.library;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import maman18.library.Library.Subscriber;
+
+/**
+ * @author Shlomi.v
+ *
+ * This class keeps the library state on the disk, using a snapshot and a write-ahead log (the journal).
+ *
+ *  (*) every change to the library is appended to the journal. the journal is not synced to the disk
+ *      on every change, instead a group of changes is synced together (group commit): whoever shows the
+ *      outcome of the commands calls commit first, and all the changes that are waiting share its fsync.
+ *      the waiting changes are also synced when GROUP_SIZE of them are waiting or every GROUP_MILLIS
+ *      milliseconds, so the journal does not fall far behind while no one commits.
+ *  (*) every SNAPSHOT_EVERY changes, the whole state is written to a new snapshot and a new journal is started.
+ *      the snapshot is written right away by the thread that logged that change, while it holds the store,
+ *      so that command (and any other that logs meanwhile) waits O(n+m) for it: a latency spike of about
+ *      the time it takes to write the whole library, once every SNAPSHOT_EVERY changes.
+ *  (*) to recover, the snapshot is loaded and then the journal that follows it is replayed.
+ *
+ * The snapshot only keeps the subscribers and the books each of them holds. whoHoldsTheBook and mostBooks
+ * are rebuilt from them while loading, so they take no space on the disk.
+ * The books are written by their ids rather than their codes, so the files do not depend on the codes
+ * that BookId gave to ids it could not pack (those change from run to run).
+ *
+ * Snapshots and journals are numbered by a generation: snapshot g is followed by the journal journal-g.
+ * a new snapshot is first written to a temporary file and synced, and only then atomically renamed over
+ * the old one, and the directory is synced. only then is the old journal deleted, so a crash at any point
+ * leaves either the old snapshot with its journal, or the new snapshot with its (maybe missing) journal.
+ *
+ * Each journal record is framed by its length and a CRC32, so a record that was only partly written
+ * when the application crashed is detected, and the journal is cut right before it.
+ *
+ * The store also keeps a CRC32 of the snapshot and of every journal record after it, so the state on the
+ * disk can be told apart from any other in O(1) (see stamp), without reading the files again.
+ */
+class LibraryStore {
+
+	// group commit limits
+	static final int GROUP_SIZE = 1024;
+	static final long GROUP_MILLIS = 10;
+
+	// the number of journal records between snapshots
+	static final int SNAPSHOT_EVERY = 1000000;
+
+	private static final int SNAPSHOT_MAGIC = 0x4C494253; // "LIBS"
+	// version 2 added the limit of each subscriber, version 1 snapshots are still read (as patrons)
+	private static final int SNAPSHOT_VERSION = 2;
+	private static final String SNAPSHOT = "snapshot";
+	private static final String JOURNAL = "journal-";
+
+	// the longest possible journal record: type, id, a string of up to 64K bytes and a limit
+	private static final int MAX_RECORD = 1 + 4 + 2 + 65535 + 4;
+
+	// journal record types
+	private static final byte ADD = 1;
+	private static final byte REMOVE = 2;
+	private static final byte BORROW = 3;
+	private static final byte RETURN = 4;
+	private static final byte ADD_LIMITED = 5; // an ADD of a subscriber that is not a patron, followed by its limit
+	private static final byte RETURN_ALL = 6;
+
+	private final File dir;
+	private final Library lib;
+	private long generation;
+
+	// the open journal, and the number of records that were not synced yet / since the last snapshot
+	private FileOutputStream journalFile;
+	private DataOutputStream journal;
+	private int unsynced;
+	private int sinceSnapshot;
+
+	// a record is first built here, so its length and CRC can be written before it
+	private final ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+	private final DataOutputStream recordData = new DataOutputStream(record);
+	private final CRC32 crc = new CRC32();
+
+	// the CRC32 of the snapshot bytes and of the journal records since, see stamp
+	private final CRC32 history = new CRC32();
+
+	private final Timer syncer = new Timer("journal-sync", true);
+
+	/**
+	 * notice this method is private, see open below
+	 */
+	private LibraryStore(File dir, Library lib) {
+		this.dir = dir;
+		this.lib = lib;
+	}
+
+	/**
+	 * @param dir - the directory holding the snapshot and journal, it is created if it doesnt exist
+	 * @param lib - an empty library, it is filled with the recovered state
+	 * @return a store that is ready to log the changes to lib
+	 * @throws IOException
+	 *
+	 * recovers the library state from dir: load the snapshot, then replay the journal that follows it
+	 * Complexity: O(size of the snapshot + size of the journal)
+	 */
+	static LibraryStore open(File dir, Library lib) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("could not create " + dir);
+
+		final LibraryStore store = new LibraryStore(dir, lib);
+		store.loadSnapshot();
+		long good = store.replayJournal();
+		store.deleteOldJournals();
+		store.openJournal(good);
+		store.syncDir();
+
+		store.syncer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				store.syncIfNeeded();
+			}
+		}, GROUP_MILLIS, GROUP_MILLIS);
+		return store;
+	}
+
+	/* logging the changes */
+
+	void logAdd(int id, String name, int limit) {
+		if (limit == Library.Tier.PATRON.getLimit())
+			log(ADD, id, name);
+		else
+			log(ADD_LIMITED, id, name, limit);
+	}
+
+	void logRemove(int id) {
+		log(REMOVE, id, "");
+	}
+
+	void logReturnAll(int subId) {
+		log(RETURN_ALL, subId, "");
+	}
+
+	void logBorrow(int subId, long book) {
+		log(BORROW, subId, lib.bookIds.toString(book));
+	}
+
+	void logReturn(int subId, long book) {
+		log(RETURN, subId, lib.bookIds.toString(book));
+	}
+
+	/**
+	 * @param type
+	 * @param id
+	 * @param str
+	 * append a record to the journal, it will be synced with the next group
+	 */
+	private void log(byte type, int id, String str) {
+		log(type, id, str, -1);
+	}
+
+	/**
+	 * @param type
+	 * @param id
+	 * @param str
+	 * @param limit - written at the end of the record, unless it is -1
+	 * append a record to the journal, it will be synced with the next group
+	 */
+	private synchronized void log(byte type, int id, String str, int limit) {
+		try {
+			record.reset();
+			recordData.writeByte(type);
+			recordData.writeInt(id);
+			recordData.writeUTF(str);
+			if (limit != -1) recordData.writeInt(limit);
+			byte[] bytes = record.toByteArray();
+			crc.reset();
+			crc.update(bytes);
+
+			journal.writeInt(bytes.length);
+			journal.write(bytes);
+			journal.writeInt((int) crc.getValue());
+
+			history.update(bytes);
+
+			if (++unsynced >= GROUP_SIZE) sync();
+			if (++sinceSnapshot >= SNAPSHOT_EVERY) snapshot(); // O(n+m), see the notes above
+		} catch (IOException e) {
+			throw new IllegalStateException("could not write to the journal", e);
+		}
+	}
+
+	/**
+	 * make all the records that were logged so far durable, with a single fsync for all of them
+	 * @throws IllegalStateException if the journal could not be synced
+	 * Complexity: O(1) if no record is waiting
+	 */
+	synchronized void commit() {
+		if (unsynced == 0 || journal == null) return;
+		try {
+			sync();
+		} catch (IOException e) {
+			throw new IllegalStateException("could not sync the journal", e);
+		}
+	}
+
+	/**
+	 * sync the waiting group, called by the syncer timer
+	 */
+	private synchronized void syncIfNeeded() {
+		if (unsynced == 0 || journal == null) return;
+		try {
+			sync();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * write all the waiting records to the disk, with a single fsync
+	 * @throws IOException
+	 */
+	synchronized void sync() throws IOException {
+		journal.flush();
+		journalFile.getChannel().force(false);
+		unsynced = 0;
+	}
+
+	/**
+	 * sync the journal and close it
+	 * @throws IOException
+	 */
+	synchronized void close() throws IOException {
+		syncer.cancel();
+		if (journal == null) return;
+		sync();
+		journal.close();
+		journal = null;
+	}
+
+	/**
+	 * @return a number that tells the state on the disk apart: the CRC32 of the snapshot and of the
+	 * journal records after it, and the number of those records. it is never 0.
+	 * a file that is kept alongside the library (see MappedHolderIndex) stores the stamp when it is
+	 * closed, and can then tell whether it still matches the library when it is opened again
+	 * Complexity: O(1)
+	 */
+	synchronized long stamp() {
+		return (sinceSnapshot + 1L) << 32 | history.getValue();
+	}
+
+	/* the journal files */
+
+	private File journalFile(long generation) {
+		return new File(dir, JOURNAL + generation);
+	}
+
+	/**
+	 * @param length - the length of the valid part of the journal
+	 * open the journal of the current generation for appending, cutting off any broken tail
+	 */
+	private void openJournal(long length) throws IOException {
+		File f = journalFile(generation);
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			raf.setLength(length);
+		} finally {
+			raf.close();
+		}
+		journalFile = new FileOutputStream(f, true);
+		journal = new DataOutputStream(new BufferedOutputStream(journalFile, 64 * 1024));
+	}
+
+	/**
+	 * make the files created, renamed and deleted in the directory so far durable.
+	 * some systems (like Windows) cannot open a directory at all, there it is skipped
+	 * @throws IOException
+	 */
+	private void syncDir() throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+		} catch (IOException e) {
+			return;
+		}
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * delete any journal that doesnt belong to the current generation.
+	 * only call it once the snapshot of the current generation is durable (see syncDir)
+	 */
+	private void deleteOldJournals() {
+		File[] files = dir.listFiles();
+		if (files == null) return;
+		for (File f : files) {
+			if (f.getName().startsWith(JOURNAL) && !f.equals(journalFile(generation)))
+				f.delete();
+		}
+	}
+
+	/**
+	 * @return the length of the valid part of the journal
+	 * replay all the complete records of the current journal into the library
+	 */
+	private long replayJournal() throws IOException {
+		File f = journalFile(generation);
+		if (!f.exists()) return 0;
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 64 * 1024));
+		long good = 0;
+		try {
+			while (true) {
+				int length = in.readInt();
+				if (length <= 0 || length > MAX_RECORD) break;
+				byte[] bytes = new byte[length];
+				in.readFully(bytes);
+				int expected = in.readInt();
+				crc.reset();
+				crc.update(bytes);
+				if ((int) crc.getValue() != expected) break;
+				history.update(bytes);
+
+				DataInputStream rec = new DataInputStream(new ByteArrayInputStream(bytes));
+				apply(rec.readByte(), rec.readInt(), rec.readUTF(), rec);
+				good += 4 + length + 4;
+				sinceSnapshot++;
+			}
+		} catch (EOFException e) {
+			// the last record was not fully written, it is ignored
+		} finally {
+			in.close();
+		}
+		return good;
+	}
+
+	/**
+	 * @param type
+	 * @param id
+	 * @param str
+	 * @param rest - the rest of the record, if the type has more fields
+	 * apply a single journal record to the library
+	 */
+	private void apply(byte type, int id, String str, DataInputStream rest) throws IOException {
+		switch (type) {
+		case ADD:
+			lib.applyAdd(str, id, Library.Tier.PATRON.getLimit());
+			break;
+		case ADD_LIMITED:
+			lib.applyAdd(str, id, rest.readInt());
+			break;
+		case REMOVE:
+			lib.applyRemove(id);
+			break;
+		case BORROW:
+			lib.applyBorrow(lib.getSubscriber(id), lib.bookIds.register(str));
+			break;
+		case RETURN:
+			lib.applyReturn(lib.getSubscriber(id), lib.bookIds.find(str));
+			break;
+		case RETURN_ALL:
+			lib.applyReturnAll(lib.getSubscriber(id));
+			break;
+		default:
+			throw new IOException("unknown journal record " + type);
+		}
+	}
+
+	/* snapshots */
+
+	/**
+	 * load the snapshot into the library, if there is one
+	 */
+	private void loadSnapshot() throws IOException {
+		File f = new File(dir, SNAPSHOT);
+		history.reset();
+		if (!f.exists()) {
+			generation = 0;
+			return;
+		}
+
+		// every byte of the snapshot is read, so history gets the CRC of the whole file
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new CheckedInputStream(new FileInputStream(f), history), 64 * 1024));
+		try {
+			if (in.readInt() != SNAPSHOT_MAGIC)
+				throw new IOException(f + " is not a library snapshot");
+			int version = in.readInt();
+			if (version < 1 || version > SNAPSHOT_VERSION)
+				throw new IOException(f + " has an unknown version " + version);
+			generation = in.readLong();
+
+			// the subscribers were written in the order of their ids, so the library can be built in bulk
+			int subscribers = in.readInt();
+			Subscriber[] loaded = new Subscriber[subscribers];
+			for (int i = 0; i < subscribers; i++) {
+				int id = in.readInt();
+				String name = in.readUTF();
+				int limit = version == 1 ? Library.Tier.PATRON.getLimit() : in.readInt();
+				Subscriber s = new Subscriber(name, id, limit);
+				int books = in.readInt();
+				if (books < 0 || books > limit)
+					throw new IOException(f + " is corrupt, subscriber " + id + " holds " + books + " books of " + limit);
+				for (int j = 0; j < books; j++)
+					s.add(lib.bookIds.register(in.readUTF()));
+				loaded[i] = s;
+			}
+			lib.loadSorted(loaded, subscribers);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(f + " is corrupt", e);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * write the whole library to a new snapshot, and start a new journal after it
+	 * Complexity: O(n+m), and O(nlgn) to sort the subscribers of a hash table
+	 */
+	synchronized void snapshot() throws IOException {
+		File tmp = new File(dir, SNAPSHOT + ".tmp");
+		FileOutputStream file = new FileOutputStream(tmp);
+		history.reset();
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new CheckedOutputStream(file, history), 64 * 1024));
+		try {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_VERSION);
+			out.writeLong(generation + 1);
+			// the subscribers are written in the order of their ids, each with the books it holds
+			Subscriber[] all = lib.subscribersById();
+			out.writeInt(all.length);
+			for (Subscriber s : all) {
+				out.writeInt(s.id);
+				out.writeUTF(s.name);
+				out.writeInt(s.limit);
+				out.writeInt(s.count);
+				for (int i = 0; i < s.count; i++)
+					out.writeUTF(lib.bookIds.toString(s.books[i]));
+			}
+			out.flush();
+			file.getChannel().force(true);
+		} finally {
+			out.close();
+		}
+
+		// the new snapshot replaces the old one at once, there is no moment with no snapshot at all
+		Files.move(tmp.toPath(), new File(dir, SNAPSHOT).toPath(),
+				StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+		if (journal != null) {
+			sync();
+			journal.close();
+		}
+		generation++;
+		openJournal(0);
+		// the old journal is only deleted once the rename and the new journal are durable
+		syncDir();
+		deleteOldJournals();
+		sinceSnapshot = 0;
+	}
+}
@@ -0,0 +1,165 @@
+package maman18.library;
+
+import java.io.IOException;
+
+import maman18.data.Do;
+import maman18.data.IntDo;
+import maman18.data.LongHashIndex;
+import maman18.data.LongIndex;
+import maman18.data.MappedRBTree;
+import maman18.library.Library.Subscriber;
+
+/**
+ * @author Shlomi.v
+ *
+ * a whoHoldsTheBook index that is stored in a memory mapped file.
+ * the file only keeps the id of the subscriber holding each book,
+ * the Subscriber itself is found through the subscribers index of the library.
+ * a packed book id is keyed by its code (see BookId), with no String at all. the codes of the ids that
+ * could not be packed change from run to run, so those are keyed by the ids themselves, and an id that
+ * does not fit in the file (see MappedRBTree.fits) is kept in a hash table on the heap instead.
+ *
+ * the stamp of the file tells which state of the library files it matches (see LibraryStore.stamp).
+ * it is cleared as soon as the file is opened and only set again by close, so after a crash the file
+ * matches nothing and gets rebuilt.
+ */
+class MappedHolderIndex implements LongIndex<Subscriber> {
+	private final MappedRBTree holders;
+	private final Library lib;
+
+	// the stamp the file was closed with
+	private final long lastStamp;
+
+	// the holders of the books whose ids do not fit in the file
+	private LongHashIndex<Subscriber> others = LongHashIndex.empty();
+
+	/**
+	 * @param holders - the tree in the mapped file
+	 * @param lib - the library that is used to resolve the subscriber ids
+	 */
+	MappedHolderIndex(MappedRBTree holders, Library lib) {
+		this.holders = holders;
+		this.lib = lib;
+		lastStamp = holders.getStamp();
+		holders.setStamp(0);
+		holders.force();
+	}
+
+	/**
+	 * @param book
+	 * @return true iff the holder of the book is kept on the heap, and not in the file
+	 * Complexity: O(1)
+	 */
+	boolean keepsOnHeap(long book) {
+		return book < 0 && !MappedRBTree.fits(lib.bookIds.toString(book));
+	}
+
+	@Override
+	public void put(long book, Subscriber s) {
+		if (book >= 0) {
+			holders.put(book, s.id);
+			return;
+		}
+		String id = lib.bookIds.toString(book);
+		if (MappedRBTree.fits(id))
+			holders.put(id, s.id);
+		else
+			others.put(book, s);
+	}
+
+	/**
+	 * @return the Subscriber holding the book, or null if no one does (or the holder is not a subscriber)
+	 * Complexity: O(lgm + lgn)
+	 */
+	@Override
+	public Subscriber get(long book) {
+		int id;
+		if (book >= 0) {
+			id = holders.get(book);
+		} else {
+			String bookId = lib.bookIds.toString(book);
+			if (!MappedRBTree.fits(bookId)) return others.get(book);
+			id = holders.get(bookId);
+		}
+		return id == MappedRBTree.NOT_FOUND ? null : lib.getSubscriber(id);
+	}
+
+	@Override
+	public void remove(long book) {
+		if (book >= 0) {
+			holders.remove(book);
+			return;
+		}
+		String id = lib.bookIds.toString(book);
+		if (MappedRBTree.fits(id))
+			holders.remove(id);
+		else
+			others.remove(book);
+	}
+
+	@Override
+	public boolean containsKey(long book) {
+		return get(book) != null;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return holders.isEmpty() && others.isEmpty();
+	}
+
+	@Override
+	public boolean isNotEmpty() {
+		return !isEmpty();
+	}
+
+	@Override
+	public int getSize() {
+		return holders.getSize() + others.getSize();
+	}
+
+	/**
+	 * @param action - gets the Subscriber holding each book, in the order of the book ids in the file,
+	 * and then the holders of the books that do not fit in it
+	 * Complexity: O(m lgn)
+	 */
+	@Override
+	public void foreach(final Do<Subscriber> action) {
+		holders.foreach(new IntDo<String>() {
+			@Override
+			public void action(int id, String bookId) {
+				Subscriber s = lib.getSubscriber(id);
+				if (s != null) action.action(s);
+			}
+		});
+		others.foreach(action);
+	}
+
+	/**
+	 * @param stamp - the stamp of the library files (see LibraryStore.stamp)
+	 * @return true iff the file was closed together with exactly these library files, so it can be used as is
+	 * Complexity: O(1)
+	 */
+	boolean matches(long stamp) {
+		return lastStamp != 0 && lastStamp == stamp;
+	}
+
+	/**
+	 * remove all the books from the index
+	 * Complexity: O(1)
+	 */
+	void clear() {
+		holders.clear();
+		others = LongHashIndex.empty();
+	}
+
+	/**
+	 * @param stamp - the stamp of the library files the index matches now, or 0 if it matches none
+	 * write everything to the disk and close the file. the books are written before the stamp is
+	 * @throws IOException
+	 */
+	void close(long stamp) throws IOException {
+		holders.force();
+		holders.setStamp(stamp);
+		holders.close();
+	}
+}
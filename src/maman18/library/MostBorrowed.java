@@ -0,0 +1,127 @@
+package maman18.library;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import maman18.data.Do;
+import maman18.library.Library.Subscriber;
+
+/**
+ * @author Shlomi.v
+ *
+ * The answer to Library.mostBorrowed: the subscribers that currently hold the most books.
+ *
+ * the number of books and the number of subscribers are known right away. the subscribers themselves are
+ * only collected and sorted by their ids once foreach asks for them, so a caller that only needs the count
+ * pays O(1) for the whole query.
+ * an answer taken from a single Library is a view of its count bucket (see CountBuckets), so it has to be
+ * read before the library changes again.
+ */
+public class MostBorrowed {
+
+	private static final Comparator<Subscriber> byId = new Comparator<Subscriber>() {
+		@Override
+		public int compare(Subscriber s1, Subscriber s2) {
+			return Integer.compare(s1.id, s2.id);
+		}
+	};
+
+	private final int count;
+	private final int size;
+
+	// the first subscriber in the bucket, until the subscribers are collected
+	private final Subscriber head;
+
+	// the subscribers, once collected, and whether they were sorted already
+	private Subscriber[] subscribers;
+	private boolean sorted = false;
+
+	/**
+	 * @param count - the number of books each of the subscribers holds
+	 * @param head - the first subscriber in the bucket of count
+	 * @param size - the number of subscribers in the bucket
+	 */
+	MostBorrowed(int count, Subscriber head, int size) {
+		this.count = count;
+		this.head = head;
+		this.size = size;
+	}
+
+	/**
+	 * @param count - the number of books each of the subscribers holds
+	 * @param subscribers - the subscribers, in any order
+	 */
+	MostBorrowed(int count, Subscriber[] subscribers) {
+		this.count = count;
+		this.head = null;
+		this.size = subscribers.length;
+		this.subscribers = subscribers;
+	}
+
+	/**
+	 * @return the number of books each of the subscribers holds
+	 * Complexity: O(1)
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the number of subscribers that hold that many books
+	 * Complexity: O(1)
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the subscribers, in no particular order
+	 * Complexity: O(k) the first time, where k is the number of subscribers, and O(1) after that
+	 */
+	Subscriber[] subscribers() {
+		if (subscribers == null) {
+			subscribers = new Subscriber[size];
+			int i = 0;
+			for (Subscriber s = head; s != null; s = s.next)
+				subscribers[i++] = s;
+		}
+		return subscribers;
+	}
+
+	/**
+	 * @return the subscribers, sorted by their ids
+	 * Complexity: O(k lgk) the first time, where k is the number of subscribers, and O(1) after that
+	 */
+	private Subscriber[] sorted() {
+		Subscriber[] all = subscribers();
+		if (!sorted) {
+			Arrays.sort(all, byId);
+			sorted = true;
+		}
+		return all;
+	}
+
+	/**
+	 * @param action
+	 * perform the action on all the subscribers, in the order of their ids
+	 * Complexity: O(k lgk) the first time, where k is the number of subscribers, and O(k) after that
+	 */
+	public void foreach(Do<Subscriber> action) {
+		for (Subscriber s : sorted())
+			action.action(s);
+	}
+
+	/**
+	 * @param from - the rank of the first subscriber to visit, counting from 0
+	 * @param to - the rank after the last subscriber to visit
+	 * @param action
+	 * perform the action on one page of the subscribers, in the order of their ids.
+	 * the subscribers are only sorted once, so every page after the first costs only its own length
+	 * Complexity: O(k lgk) the first time, where k is the number of subscribers, and O(to-from) after that
+	 */
+	public void foreach(int from, int to, Do<Subscriber> action) {
+		Subscriber[] all = sorted();
+		for (int i = Math.max(0, from); i < Math.min(to, all.length); i++)
+			action.action(all[i]);
+	}
+}
@@ -0,0 +1,51 @@
+package maman18.library;
+
+import maman18.data.Do;
+import maman18.data.LongIndex;
+import maman18.library.Library.Subscriber;
+
+/**
+ * @author Shlomi.v
+ *
+ * a whoHoldsTheBook index that keeps nothing, for a library whose holders are kept somewhere else.
+ * every put and remove is ignored, and no book has a holder.
+ */
+class NoHolders implements LongIndex<Subscriber> {
+
+	@Override
+	public void put(long book, Subscriber s) {
+	}
+
+	@Override
+	public Subscriber get(long book) {
+		return null;
+	}
+
+	@Override
+	public void remove(long book) {
+	}
+
+	@Override
+	public boolean containsKey(long book) {
+		return false;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return true;
+	}
+
+	@Override
+	public boolean isNotEmpty() {
+		return false;
+	}
+
+	@Override
+	public int getSize() {
+		return 0;
+	}
+
+	@Override
+	public void foreach(Do<Subscriber> action) {
+	}
+}
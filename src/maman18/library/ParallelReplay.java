@@ -0,0 +1,305 @@
+package maman18.library;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import maman18.data.LongHashIndex;
+import maman18.library.CommandScanner.Kind;
+
+/**
+ * @author Shlomi.v
+ *
+ * Replays a stream of commands (like a history of commands kept in a file) on a ConcurrentLibrary, running
+ * the commands that do not touch each other at the same time on a fork-join pool. the output, and the
+ * library it leaves behind, are the same as if a CommandParser ran the commands one after the other.
+ *
+ * the commands are read in batches, and each batch goes through these steps:
+ *  (*) parse - every line is scanned into a command (see CommandSlot), in order, on the calling thread
+ *  (*) plan  - every command is chained after the last command before it on the same subscriber, and after
+ *      the last command before it on the same book. two commands that share no subscriber and no book
+ *      see the library the same way whatever order they run in, so only the chains need to keep their order
+ *  (*) apply - the commands that wait for no other command are forked into the pool. once a command is
+ *      done, the commands chained after it that wait for nothing else are ready: the first of them is run
+ *      right away by the same thread, and the rest are forked. so a long chain runs as a plain loop.
+ *  (*) render - the answers are printed in the order of the commands, on the calling thread
+ *
+ * some commands touch more than their own subscriber and book: removing a subscriber returns all of its
+ * books, and the query for the most borrowing subscribers looks at all of them. such a command is a barrier,
+ * it only runs once all the commands before it are done, and the commands after it wait for it.
+ * a quit or a command that cannot be parsed (like a bad id) ends the replay, the commands after it are not run.
+ *
+ * a ParallelReplay is not thread safe, run should not be called by more than one thread at a time.
+ */
+public class ParallelReplay {
+
+	// the most commands that are read, planned and run together
+	private static final int BATCH = 1 << 14;
+
+	private final ConcurrentLibrary lib;
+	private final PrintStream out;
+	private final PrintingListener printer;
+	private final ForkJoinPool pool;
+
+	private final CommandScanner scanner = new CommandScanner();
+	private final CommandSlot[] batch = new CommandSlot[BATCH];
+
+	// the plan, by the position of the command in the batch: the next command on the same subscriber and
+	// the next command on the same book (or -1), and the number of commands it still waits for
+	private final int[] nextOfSubscriber = new int[BATCH];
+	private final int[] nextOfBook = new int[BATCH];
+	private final AtomicIntegerArray waiting = new AtomicIntegerArray(BATCH);
+
+	// the commands that wait for no other command, they start the chains
+	private final int[] heads = new int[BATCH];
+
+	// the slot each thread applies now, the library events are kept in it
+	private final ThreadLocal<CommandSlot> applying = new ThreadLocal<CommandSlot>();
+
+	/**
+	 * @param lib
+	 * @param out - where the outcome of the commands is printed
+	 * the commands run on the common fork-join pool
+	 */
+	public ParallelReplay(ConcurrentLibrary lib, PrintStream out) {
+		this(lib, out, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param lib
+	 * @param out - where the outcome of the commands is printed
+	 * @param pool - the threads that run the commands
+	 */
+	public ParallelReplay(ConcurrentLibrary lib, PrintStream out, ForkJoinPool pool) {
+		this.lib = lib;
+		this.out = out;
+		this.printer = new PrintingListener(out);
+		this.pool = pool;
+		for (int i = 0; i < BATCH; i++)
+			batch[i] = new CommandSlot();
+
+		lib.setListener(new CommandSlot.Recorder() {
+			@Override
+			CommandSlot applying() {
+				return applying.get();
+			}
+		});
+	}
+
+	/**
+	 * @param in - the commands, one per line
+	 * run all the commands, and return once all of them are printed
+	 * @throws IOException if the input cannot be read, the commands that were read are still run
+	 * @throws RuntimeException the error of a command that could not be parsed (like a bad id), the commands
+	 * after it are not run, just like a CommandParser would stop at it
+	 */
+	public void run(Reader in) throws IOException {
+		BufferedReader br = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in);
+		try {
+			boolean more = true;
+			while (more) {
+				// parse a batch, up to the end of the input or a command that ends the replay
+				int n = 0;
+				boolean stop = false;
+				RuntimeException error = null;
+				try {
+					String line;
+					while (n < BATCH && (line = br.readLine()) != null) {
+						CommandSlot s = batch[n++];
+						s.parse(scanner, line);
+						if (s.error != null || s.kind == Kind.QUIT) {
+							stop = true;
+							error = s.error;
+							break;
+						}
+					}
+					more = n == BATCH;
+				} finally {
+					// run what was read, even if the input failed
+					apply(stop ? n - 1 : n);
+					render(n);
+				}
+
+				if (stop) {
+					if (error != null) throw error;
+					quit();
+					return;
+				}
+			}
+		} finally {
+			out.flush();
+		}
+	}
+
+	/**
+	 * the user asked to quit, say goodbye and exit the application, just like a CommandParser does.
+	 * the commands after the quit are not run
+	 */
+	protected void quit() {
+		out.println("Byebye!");
+		out.flush();
+		System.exit(0);
+	}
+
+	/**
+	 * @param n
+	 * run the first n commands of the batch, the barriers on the calling thread and the commands between
+	 * them on the pool
+	 */
+	private void apply(int n) {
+		int from = 0;
+		for (int i = 0; i < n; i++) {
+			Kind kind = batch[i].kind;
+			if (kind == Kind.REMOVE || kind == Kind.QUERY_MOST) {
+				applyAll(from, i);
+				apply(batch[i]);
+				from = i + 1;
+			}
+		}
+		applyAll(from, n);
+	}
+
+	/**
+	 * @param from
+	 * @param to
+	 * plan the commands from..to-1 of the batch (none of them a barrier), and run them all on the pool.
+	 * a pool of a single thread runs them in order on the calling thread, without a plan
+	 */
+	private void applyAll(final int from, final int to) {
+		if (to - from == 1 || pool.getParallelism() == 1) {
+			// nothing would run at the same time, so the commands just run in order
+			for (int i = from; i < to; i++)
+				apply(batch[i]);
+			return;
+		}
+
+		LongHashIndex<Integer> lastOfSubscriber = LongHashIndex.withCapacity(to - from);
+		LongHashIndex<Integer> lastOfBook = LongHashIndex.withCapacity(to - from);
+		int n = 0;
+		for (int i = from; i < to; i++) {
+			CommandSlot s = batch[i];
+			nextOfSubscriber[i] = -1;
+			nextOfBook[i] = -1;
+			int waits = 0;
+			boolean bySubscriber = false, byBook = false;
+			switch (s.kind) {
+			case ADD:
+			case QUERY_SUBSCRIBER:
+				bySubscriber = true;
+				break;
+			case BORROW:
+			case RETURN:
+				bySubscriber = true;
+				byBook = true;
+				break;
+			case QUERY_BOOK:
+				byBook = true;
+				break;
+			default:
+				break;
+			}
+			if (bySubscriber) {
+				Integer last = lastOfSubscriber.get(s.id);
+				if (last != null) {
+					nextOfSubscriber[last] = i;
+					waits++;
+				}
+				lastOfSubscriber.put(s.id, i);
+			}
+			if (byBook) {
+				// all the book ids that are not packed share the code BookId.NONE, so they run one after the other
+				Integer last = lastOfBook.get(s.bookCode);
+				if (last != null) {
+					nextOfBook[last] = i;
+					waits++;
+				}
+				lastOfBook.put(s.bookCode, i);
+			}
+			waiting.set(i, waits);
+			if (waits == 0) heads[n++] = i;
+		}
+		final int chains = n;
+
+		pool.invoke(new CountedCompleter<Void>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public void compute() {
+				// the waiting counts already change once the first chain runs, so the heads are taken from the plan
+				for (int i = 0; i < chains; i++) {
+					addToPendingCount(1);
+					new Chain(this, heads[i]).fork();
+				}
+				tryComplete();
+			}
+		});
+	}
+
+	/**
+	 * runs a command, and then the commands chained after it once they are ready
+	 */
+	private final class Chain extends CountedCompleter<Void> {
+		private static final long serialVersionUID = 1L;
+
+		private final int first;
+
+		Chain(CountedCompleter<?> root, int first) {
+			super(root);
+			this.first = first;
+		}
+
+		@Override
+		public void compute() {
+			int i = first;
+			while (i >= 0) {
+				apply(batch[i]);
+				i = ready(nextOfBook[i], ready(nextOfSubscriber[i], -1));
+			}
+			tryComplete();
+		}
+
+		/**
+		 * @param after - a command chained after the one that is done, or -1
+		 * @param next - the command this chain runs next, or -1
+		 * @return the command this chain runs next. if after is ready too, and this chain already has
+		 * a next command, after is forked into a chain of its own
+		 */
+		private int ready(int after, int next) {
+			if (after < 0 || waiting.decrementAndGet(after) > 0) return next;
+			if (next < 0) return after;
+			CountedCompleter<?> root = getCompleter();
+			root.addToPendingCount(1);
+			new Chain(root, after).fork();
+			return next;
+		}
+	}
+
+	/**
+	 * @param s
+	 * run the command of the slot on the library, on the calling thread
+	 */
+	private void apply(CommandSlot s) {
+		applying.set(s);
+		try {
+			s.apply(lib);
+		} finally {
+			applying.remove();
+		}
+	}
+
+	/**
+	 * @param n
+	 * print the outcome of the first n commands of the batch, and clear them for the next batch
+	 */
+	private void render(int n) {
+		for (int i = 0; i < n; i++) {
+			CommandSlot s = batch[i];
+			if (s.kind != Kind.QUIT) s.render(out, printer);
+			s.clear();
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package maman18.library;
+
+import java.io.PrintStream;
+
+import maman18.library.Library.AddResult;
+import maman18.library.Library.BorrowResult;
+import maman18.library.Library.RemoveResult;
+import maman18.library.Library.ReturnResult;
+
+/**
+ * @author Shlomi.v
+ *
+ * a LibraryListener that prints the outcome of each command to System.out (or any other stream),
+ * this is how the CommandParser shows the user what happened
+ */
+public class PrintingListener implements LibraryListener {
+
+	private final PrintStream out;
+
+	public PrintingListener() {
+		this(System.out);
+	}
+
+	/**
+	 * @param out - where the outcomes are printed
+	 */
+	public PrintingListener(PrintStream out) {
+		this.out = out;
+	}
+
+	@Override
+	public void subscriberAdded(AddResult result, String name, int id) {
+		switch (result) {
+		case OK:
+			out.println("Added subscriber " + name + " " + id);
+			break;
+		case ALREADY_EXISTS:
+			out.println("Subscriber " + name + " " + id + " already exists");
+			break;
+		}
+	}
+
+	@Override
+	public void subscriberRemoved(RemoveResult result, int id) {
+		// the CommandParser prints the removal itself, only a missing subscriber is reported here
+		if (result == RemoveResult.NO_SUCH_SUBSCRIBER)
+			out.println("user " + id + " does not exist");
+	}
+
+	@Override
+	public void bookBorrowed(BorrowResult result, int subId, String subName, String bookId, int holderId) {
+		switch (result) {
+		case OK:
+			out.println(subName + " borrowed the book " + bookId);
+			break;
+		case NO_SUCH_SUBSCRIBER:
+			out.println("user " + subId + " does not exists");
+			break;
+		case LIMIT_REACHED:
+			out.println("Subscriber " + subName + " " + subId + " cant borrow any more books.");
+			break;
+		case ALREADY_HELD:
+			out.println("Another subscriber (" + holderId + ") already took this book (" + bookId + ")");
+			break;
+		}
+	}
+
+	@Override
+	public void bookReturned(ReturnResult result, int subId, String subName, String bookId, int holderId) {
+		switch (result) {
+		case OK:
+			out.println(subName + " returned the book " + bookId);
+			break;
+		case NO_SUCH_SUBSCRIBER:
+			out.println("user " + subId + " does not exist");
+			break;
+		case NOT_LENT:
+			out.println("no one holds this book");
+			break;
+		case HELD_BY_ANOTHER:
+			out.println("another user holds this book! (" + holderId + ")");
+			break;
+		}
+	}
+}
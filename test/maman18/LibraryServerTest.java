@@ -0,0 +1,154 @@
+package maman18;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import maman18.library.CommandParser;
+import maman18.library.Library;
+import maman18.library.PrintingListener;
+
+/**
+ * @author Shlomi.v
+ *
+ * Serves a library on a loopback port, sends it commands over real sockets (pipelined, and split in the
+ * middle of lines and of characters) and checks the answers are exactly what a CommandParser prints.
+ */
+public class LibraryServerTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private LibraryServer server;
+	private Thread serving;
+
+	// the same commands on a library of its own, to know what the answers should be
+	private final ByteArrayOutputStream expectedBytes = new ByteArrayOutputStream();
+	private PrintStream expectedOut;
+	private CommandParser expected;
+
+	@Before
+	public void start() throws IOException {
+		server = new LibraryServer(new Library(), 0);
+		serving = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					server.serve();
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		});
+		serving.start();
+
+		expectedOut = new PrintStream(expectedBytes, true, UTF8.name());
+		expected = new CommandParser(new Library(), new PrintingListener(expectedOut), expectedOut) {
+			@Override
+			protected void quit() {
+				out.println("Byebye!");
+			}
+		};
+	}
+
+	@After
+	public void stop() throws InterruptedException {
+		server.close();
+		serving.join(10000);
+	}
+
+	/**
+	 * @param commands - the lines, each ending with a line end
+	 * @return what a CommandParser prints for them
+	 */
+	private String expect(String commands) {
+		expectedBytes.reset();
+		for (String line : commands.split("\n"))
+			expected.doCommand(line);
+		return new String(expectedBytes.toByteArray(), UTF8);
+	}
+
+	/**
+	 * @param parts - the parts to send, each with its own write and a short pause after it
+	 * @return everything the server sent back until it closed the connection
+	 */
+	private String send(byte[]... parts) throws IOException, InterruptedException {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+		try {
+			socket.setSoTimeout(10000);
+			OutputStream out = socket.getOutputStream();
+			for (byte[] part : parts) {
+				out.write(part);
+				out.flush();
+				Thread.sleep(20);
+			}
+			InputStream in = socket.getInputStream();
+			ByteArrayOutputStream answers = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int n;
+			while ((n = in.read(buf)) != -1)
+				answers.write(buf, 0, n);
+			return new String(answers.toByteArray(), UTF8);
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void pipelinedCommandsAreAnsweredInOrder() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 1; i <= 200; i++)
+			sb.append("+ sub").append(i).append(' ').append(i).append('\n');
+		for (int i = 1; i <= 2000; i++) {
+			int sub = 1 + i % 200;
+			sb.append("sub").append(sub).append(' ').append(sub).append(" ab").append(i % 500).append(i % 3 == 0 ? " -\n" : " +\n");
+		}
+		sb.append("? ab7\n? 8\n? !\nnot a command\nquit\n");
+		String commands = sb.toString();
+
+		// all the commands in a single write, without waiting for any answer
+		assertEquals(expect(commands), send(commands.getBytes(UTF8)));
+	}
+
+	@Test
+	public void linesSplitAcrossWritesAreJoined() throws Exception {
+		String commands = "+ \u05e9\u05dc\u05d5\u05de\u05d9 1\n\u05e9\u05dc\u05d5\u05de\u05d9 1 Ab12 +\n? ab12\n? 1\nquit\n";
+		byte[] bytes = commands.getBytes(UTF8);
+
+		// cut in the middle of a line, and in the middle of the two bytes of a hebrew letter
+		int cut1 = 5, cut2 = 20, cut3 = 21;
+		byte[][] parts = { slice(bytes, 0, cut1), slice(bytes, cut1, cut2), slice(bytes, cut2, cut3),
+				slice(bytes, cut3, bytes.length) };
+		assertEquals(expect(commands), send(parts));
+	}
+
+	@Test
+	public void quitOnlyEndsItsOwnSession() throws Exception {
+		assertEquals(expect("+ Shlomi 1\nquit\n"), send("+ Shlomi 1\nquit\n".getBytes(UTF8)));
+		// the server still serves, and kept the library of the first session
+		assertEquals(expect("Shlomi 1 AA0001 +\n? AA0001\nquit\n"),
+				send("Shlomi 1 AA0001 +\n? AA0001\nquit\n".getBytes(UTF8)));
+	}
+
+	/**
+	 * @param bytes
+	 * @param from
+	 * @param to
+	 * @return the bytes from..to-1
+	 */
+	private static byte[] slice(byte[] bytes, int from, int to) {
+		byte[] part = new byte[to - from];
+		System.arraycopy(bytes, from, part, 0, part.length);
+		return part;
+	}
+}
@@ -0,0 +1,134 @@
+package maman18.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+/**
+ * @author Shlomi.v
+ *
+ * Runs random puts and removes on a LongHashIndex next to a TreeMap, with long keys and with int keys,
+ * and checks they agree after every step, including while the table is in the middle of a resize.
+ */
+public class LongHashIndexTest {
+
+	/**
+	 * @param index
+	 * @param oracle
+	 * check the index holds exactly the entries of the oracle
+	 */
+	private static void check(LongHashIndex<String> index, TreeMap<Long, String> oracle) {
+		assertEquals(oracle.size(), index.getSize());
+		assertEquals(oracle.isEmpty(), index.isEmpty());
+		for (Map.Entry<Long, String> e : oracle.entrySet())
+			assertEquals(e.getValue(), index.get(e.getKey().longValue()));
+
+		final List<String> values = new ArrayList<String>();
+		index.foreach(new Do<String>() {
+			@Override
+			public void action(String v) {
+				values.add(v);
+			}
+		});
+		assertEquals(oracle.size(), values.size());
+		assertTrue(values.containsAll(oracle.values()));
+	}
+
+	@Test
+	public void longKeysAgreeWithTreeMap() {
+		for (long seed = 1; seed <= 3; seed++) {
+			Random rnd = new Random(seed);
+			LongHashIndex<String> index = LongHashIndex.empty();
+			TreeMap<Long, String> oracle = new TreeMap<Long, String>();
+			for (int i = 0; i < 50000; i++) {
+				// a small range of keys in the high bits, so the same keys come back many times
+				long key = (long) rnd.nextInt(5000) << 40 | 7;
+				if (rnd.nextInt(3) == 0) {
+					index.remove(key);
+					oracle.remove(key);
+				} else {
+					index.put(key, "v" + i);
+					oracle.put(key, "v" + i);
+				}
+				if (i % 5000 == 0) check(index, oracle);
+			}
+			check(index, oracle);
+			assertTrue("probes too long: " + index.maxProbe(), index.maxProbe() < 32);
+		}
+	}
+
+	@Test
+	public void intKeysAreWidened() {
+		LongHashIndex<String> index = LongHashIndex.empty();
+		IntIndex<String> ints = index;
+		TreeMap<Long, String> oracle = new TreeMap<Long, String>();
+		Random rnd = new Random(7);
+		for (int i = 0; i < 20000; i++) {
+			int key = rnd.nextInt(4000) - 2000;
+			if (rnd.nextInt(3) == 0) {
+				ints.remove(key);
+				oracle.remove((long) key);
+			} else {
+				ints.put(key, "v" + i);
+				oracle.put((long) key, "v" + i);
+			}
+		}
+		check(index, oracle);
+		for (int key = -2000; key < 2000; key++) {
+			assertEquals(oracle.get((long) key), ints.get(key));
+			assertEquals(oracle.containsKey((long) key), ints.containsKey(key));
+		}
+		// a negative int is the same key as the same negative long
+		ints.put(-1, "minus one");
+		assertEquals("minus one", index.get(-1L));
+	}
+
+	@Test
+	public void resizeMovesEveryEntry() {
+		// a sequential run of keys, with removes and gets while the entries are being moved to the larger table
+		LongHashIndex<String> index = LongHashIndex.empty();
+		TreeMap<Long, String> oracle = new TreeMap<Long, String>();
+		for (long key = 0; key < 10000; key++) {
+			index.put(key, "v" + key);
+			oracle.put(key, "v" + key);
+			if (key % 3 == 0) {
+				index.remove(key / 2);
+				oracle.remove(key / 2);
+			}
+			assertEquals(oracle.get(key / 3), index.get(key / 3));
+		}
+		check(index, oracle);
+
+		// remove everything, the table must end up empty with no entry left behind
+		for (long key = 0; key < 10000; key++) {
+			index.remove(key);
+			assertNull(index.get(key));
+		}
+		assertEquals(0, index.getSize());
+		assertFalse(index.isNotEmpty());
+	}
+
+	@Test
+	public void withCapacityHoldsTheEntries() {
+		LongHashIndex<String> index = LongHashIndex.withCapacity(1000);
+		for (long key = 0; key < 1000; key++)
+			index.put(key * 1000003, "v" + key);
+		for (long key = 0; key < 1000; key++)
+			assertEquals("v" + key, index.get(key * 1000003));
+		assertEquals(1000, index.getSize());
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void nullValuesAreRejected() {
+		LongHashIndex.<String>empty().put(1L, null);
+	}
+}
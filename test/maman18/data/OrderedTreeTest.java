@@ -0,0 +1,241 @@
+package maman18.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.function.ToLongFunction;
+
+import org.junit.Test;
+
+/**
+ * @author Shlomi.v
+ *
+ * Runs random puts and removes on an IntRBTree and a LongArrayRBTree next to a TreeMap, and checks that
+ * the trees agree with it on every way to read them: get, size, rank, select, pages, ceiling/floor,
+ * iterators, ranges and streams.
+ */
+public class OrderedTreeTest {
+
+	private static final int OPS = 20000;
+
+	/**
+	 * @param rnd
+	 * @param keys - the range of the keys, small so the same keys are put and removed many times
+	 * @param tree
+	 * @param oracle
+	 * run random puts and removes on both the tree and the oracle
+	 */
+	private static void change(Random rnd, int keys, IntRBTree<String> tree, TreeMap<Integer, String> oracle) {
+		for (int i = 0; i < OPS; i++) {
+			int key = rnd.nextInt(keys) - keys / 2;
+			if (rnd.nextInt(3) == 0) {
+				tree.remove(key);
+				oracle.remove(key);
+			} else {
+				tree.put(key, "v" + i);
+				oracle.put(key, "v" + i);
+			}
+		}
+	}
+
+	private static void change(Random rnd, int keys, LongArrayRBTree<String> tree, TreeMap<Long, String> oracle) {
+		for (int i = 0; i < OPS; i++) {
+			// spread the keys over the whole long range, and keep them in runs for the finger
+			long key = (rnd.nextInt(keys) - keys / 2) * 0x1234567890L;
+			if (rnd.nextInt(3) == 0) {
+				tree.remove(key);
+				oracle.remove(key);
+			} else {
+				tree.put(key, "v" + i);
+				oracle.put(key, "v" + i);
+			}
+		}
+	}
+
+	private static <K, V> void assertEntries(Iterable<? extends Map.Entry<K, V>> expected, Iterable<Map.Entry<K, V>> actual) {
+		Iterator<Map.Entry<K, V>> it = actual.iterator();
+		for (Map.Entry<K, V> e : expected) {
+			assertTrue(it.hasNext());
+			Map.Entry<K, V> a = it.next();
+			assertEquals(e.getKey(), a.getKey());
+			assertEquals(e.getValue(), a.getValue());
+		}
+		assertFalse(it.hasNext());
+	}
+
+	private static <V> List<V> page(IntRBTree<V> tree, int from, int to) {
+		final List<V> page = new ArrayList<V>();
+		tree.foreach(from, to, new Do<V>() {
+			@Override
+			public void action(V v) {
+				page.add(v);
+			}
+		});
+		return page;
+	}
+
+	private static <V> List<V> page(LongArrayRBTree<V> tree, int from, int to) {
+		final List<V> page = new ArrayList<V>();
+		tree.foreach(from, to, new Do<V>() {
+			@Override
+			public void action(V v) {
+				page.add(v);
+			}
+		});
+		return page;
+	}
+
+	@Test
+	public void intTreeAgreesWithTreeMap() {
+		for (long seed = 1; seed <= 3; seed++) {
+			Random rnd = new Random(seed);
+			IntRBTree<String> tree = IntRBTree.empty();
+			TreeMap<Integer, String> oracle = new TreeMap<Integer, String>();
+			change(rnd, 2000, tree, oracle);
+
+			assertEquals(oracle.size(), tree.getSize());
+			assertEntries(oracle.entrySet(), tree);
+			List<String> values = new ArrayList<String>(oracle.values());
+			for (int k = 0; k < values.size(); k++)
+				assertEquals(values.get(k), tree.select(k));
+			assertNull(tree.select(values.size()));
+			assertEquals(values.subList(10, 60), page(tree, 10, 60));
+			assertEquals(values.subList(values.size() - 5, values.size()), page(tree, values.size() - 5, values.size() + 5));
+
+			for (int key = -1100; key <= 1100; key += 7) {
+				assertEquals(oracle.get(key), tree.get(key));
+				assertEquals(oracle.headMap(key).size(), tree.rank(key));
+				Map.Entry<Integer, String> c = oracle.ceilingEntry(key), f = oracle.floorEntry(key);
+				assertEquals(c == null ? null : c.getKey(), tree.ceilingEntry(key) == null ? null : tree.ceilingEntry(key).getKey());
+				assertEquals(f == null ? null : f.getKey(), tree.floorEntry(key) == null ? null : tree.floorEntry(key).getKey());
+				assertEntries(oracle.subMap(key, key + 50).entrySet(), tree.range(key, key + 50));
+			}
+			assertEntries(oracle.subMap(5, 5).entrySet(), tree.range(5, 5));
+			assertEquals(oracle.size(), tree.stream().parallel().count());
+			long sum = 0;
+			for (int key : oracle.keySet())
+				sum += key;
+			assertEquals(sum, tree.stream().parallel().mapToLong(new ToLongFunction<Map.Entry<Integer, String>>() {
+				@Override
+				public long applyAsLong(Map.Entry<Integer, String> e) {
+					return e.getKey();
+				}
+			}).sum());
+		}
+	}
+
+	@Test
+	public void longTreeAgreesWithTreeMap() {
+		for (long seed = 1; seed <= 3; seed++) {
+			Random rnd = new Random(seed);
+			LongArrayRBTree<String> tree = LongArrayRBTree.empty();
+			tree.setFingerSearch(seed == 2);
+			TreeMap<Long, String> oracle = new TreeMap<Long, String>();
+			change(rnd, 2000, tree, oracle);
+
+			assertEquals(oracle.size(), tree.getSize());
+			assertEntries(oracle.entrySet(), tree);
+			List<String> values = new ArrayList<String>(oracle.values());
+			for (int k = 0; k < values.size(); k++)
+				assertEquals(values.get(k), tree.select(k));
+			assertNull(tree.select(-1));
+			assertEquals(values.subList(10, 60), page(tree, 10, 60));
+
+			for (long key = -1100 * 0x1234567890L; key <= 1100 * 0x1234567890L; key += 7 * 0x1234567890L + 1) {
+				assertEquals(oracle.get(key), tree.get(key));
+				assertEquals(oracle.headMap(key).size(), tree.rank(key));
+				Map.Entry<Long, String> c = oracle.ceilingEntry(key), f = oracle.floorEntry(key);
+				assertEquals(c == null ? null : c.getKey(), tree.ceilingEntry(key) == null ? null : tree.ceilingEntry(key).getKey());
+				assertEquals(f == null ? null : f.getKey(), tree.floorEntry(key) == null ? null : tree.floorEntry(key).getKey());
+				long to = key + 50 * 0x1234567890L;
+				assertEntries(oracle.subMap(key, to).entrySet(), tree.range(key, to));
+			}
+			assertEquals(oracle.size(), tree.stream().parallel().count());
+		}
+	}
+
+	@Test
+	public void fromSortedKeepsTheSizes() {
+		int n = 1000;
+		int[] ints = new int[n];
+		long[] longs = new long[n];
+		Integer[] values = new Integer[n];
+		for (int i = 0; i < n; i++) {
+			ints[i] = 3 * i;
+			longs[i] = 3L * i;
+			values[i] = i;
+		}
+		IntRBTree<Integer> intTree = IntRBTree.fromSorted(ints, values, n);
+		LongArrayRBTree<Integer> longTree = LongArrayRBTree.fromSorted(longs, values, n);
+		for (int i = 0; i < n; i += 37) {
+			assertEquals(i, intTree.rank(3 * i));
+			assertEquals(i, longTree.rank(3L * i));
+			assertEquals(Integer.valueOf(i), intTree.select(i));
+			assertEquals(Integer.valueOf(i), longTree.select(i));
+		}
+
+		// the sizes stay right through the puts and removes that follow the build
+		intTree.put(1, -1);
+		longTree.put(1, -1);
+		intTree.remove(0);
+		longTree.remove(0);
+		assertEquals(n, intTree.getSize());
+		assertEquals(n, longTree.getSize());
+		assertEquals(Integer.valueOf(-1), intTree.select(0));
+		assertEquals(Integer.valueOf(-1), longTree.select(0));
+		assertEquals(2, intTree.rank(6));
+		assertEquals(2, longTree.rank(6));
+	}
+
+	@Test
+	public void iteratorsRemoveAndNoticeChanges() {
+		IntRBTree<Integer> intTree = IntRBTree.empty();
+		LongArrayRBTree<Integer> longTree = LongArrayRBTree.empty();
+		for (int i = 0; i < 100; i++) {
+			intTree.put(i, i);
+			longTree.put(i, i);
+		}
+
+		// remove every other entry through the iterators
+		int i = 0;
+		for (Iterator<Map.Entry<Integer, Integer>> it = intTree.iterator(); it.hasNext(); i++) {
+			assertEquals(Integer.valueOf(i), it.next().getKey());
+			if (i % 2 == 0) it.remove();
+		}
+		i = 0;
+		for (Iterator<Map.Entry<Long, Integer>> it = longTree.iterator(); it.hasNext(); i++) {
+			assertEquals(Long.valueOf(i), it.next().getKey());
+			if (i % 2 == 0) it.remove();
+		}
+		assertEquals(50, intTree.getSize());
+		assertEquals(50, longTree.getSize());
+		assertEquals(Integer.valueOf(1), intTree.select(0));
+		assertEquals(Integer.valueOf(1), longTree.select(0));
+
+		Iterator<Map.Entry<Integer, Integer>> intIt = intTree.iterator();
+		intIt.next();
+		intTree.put(1000, 1000);
+		try {
+			intIt.next();
+			throw new AssertionError("the iterator did not notice the put");
+		} catch (ConcurrentModificationException e) {
+		}
+		Iterator<Map.Entry<Long, Integer>> longIt = longTree.iterator();
+		longIt.next();
+		longTree.remove(3);
+		try {
+			longIt.next();
+			throw new AssertionError("the iterator did not notice the remove");
+		} catch (ConcurrentModificationException e) {
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package maman18.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+/**
+ * @author Shlomi.v
+ *
+ * Makes many versions of a PersistentRBTree with random puts and removes, keeps a TreeMap copy of every
+ * version, and checks that no later change shows up in an older version.
+ */
+public class PersistentRBTreeTest {
+
+	private static final Comparator<Integer> intOrd = new Comparator<Integer>() {
+		@Override
+		public int compare(Integer a, Integer b) {
+			return Integer.compare(a, b);
+		}
+	};
+
+	/**
+	 * @param tree
+	 * @param oracle
+	 * check the tree holds exactly the entries of the oracle, in order, and is balanced
+	 */
+	private static void check(PersistentRBTree<Integer, String> tree, TreeMap<Integer, String> oracle) {
+		assertEquals(oracle.size(), tree.getSize());
+		assertEquals(oracle.isEmpty(), tree.isEmpty());
+		final List<String> values = new ArrayList<String>();
+		tree.foreach(new Do<String>() {
+			@Override
+			public void action(String v) {
+				values.add(v);
+			}
+		});
+		assertEquals(new ArrayList<String>(oracle.values()), values);
+		for (Integer key : oracle.keySet())
+			assertEquals(oracle.get(key), tree.get(key));
+		// a red-black tree is no deeper than 2lg(n+1)
+		int n = oracle.size();
+		assertTrue(tree.maxDepth() <= 2 * (32 - Integer.numberOfLeadingZeros(n + 1)));
+	}
+
+	@Test
+	public void oldVersionsDoNotChange() {
+		Random rnd = new Random(1);
+		List<PersistentRBTree<Integer, String>> versions = new ArrayList<PersistentRBTree<Integer, String>>();
+		List<TreeMap<Integer, String>> oracles = new ArrayList<TreeMap<Integer, String>>();
+		PersistentRBTree<Integer, String> tree = PersistentRBTree.empty(intOrd);
+		TreeMap<Integer, String> oracle = new TreeMap<Integer, String>();
+		for (int i = 0; i < 5000; i++) {
+			int key = rnd.nextInt(500);
+			if (rnd.nextInt(3) == 0) {
+				tree = tree.remove(key);
+				oracle.remove(key);
+			} else {
+				tree = tree.put(key, key + "/" + i);
+				oracle.put(key, key + "/" + i);
+			}
+			if (i % 50 == 0) {
+				versions.add(tree);
+				oracles.add(new TreeMap<Integer, String>(oracle));
+			}
+		}
+		check(tree, oracle);
+		for (int v = 0; v < versions.size(); v++)
+			check(versions.get(v), oracles.get(v));
+	}
+
+	@Test
+	public void unchangedTreesAreReturnedAsIs() {
+		PersistentRBTree<Integer, String> tree = PersistentRBTree.empty(intOrd);
+		for (int key = 0; key < 100; key++)
+			tree = tree.put(key, "v" + key);
+		String value = tree.get(7);
+		assertSame(tree, tree.put(7, value));
+		assertSame(tree, tree.remove(1000));
+	}
+
+	@Test
+	public void fromSortedAgreesWithPuts() {
+		Integer[] keys = new Integer[1000];
+		String[] values = new String[1000];
+		TreeMap<Integer, String> oracle = new TreeMap<Integer, String>();
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = 3 * i;
+			values[i] = "v" + i;
+			oracle.put(keys[i], values[i]);
+		}
+		PersistentRBTree<Integer, String> tree = PersistentRBTree.fromSorted(intOrd, keys, values, keys.length);
+		check(tree, oracle);
+
+		// the bulk built tree is persistent too
+		PersistentRBTree<Integer, String> changed = tree.remove(0).put(1, "one");
+		check(tree, oracle);
+		oracle.remove(0);
+		oracle.put(1, "one");
+		check(changed, oracle);
+	}
+}
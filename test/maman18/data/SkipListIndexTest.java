@@ -0,0 +1,136 @@
+package maman18.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+/**
+ * @author Shlomi.v
+ *
+ * Runs random puts and removes on a SkipListIndex next to a TreeMap, first on one thread and then on many
+ * threads at once, and checks they end up with the same keys in the same order.
+ */
+public class SkipListIndexTest {
+
+	private static final int THREADS = 8;
+
+	private static final Comparator<Integer> intOrd = new Comparator<Integer>() {
+		@Override
+		public int compare(Integer a, Integer b) {
+			return Integer.compare(a, b);
+		}
+	};
+
+	/**
+	 * @param index
+	 * @param oracle
+	 * check the index holds exactly the entries of the oracle, and visits them in the order of their keys
+	 */
+	private static void check(SkipListIndex<Integer, String> index, TreeMap<Integer, String> oracle) {
+		assertEquals(oracle.size(), index.getSize());
+		assertEquals(oracle.isEmpty(), index.isEmpty());
+		final List<String> values = new ArrayList<String>();
+		index.foreach(new Do<String>() {
+			@Override
+			public void action(String v) {
+				values.add(v);
+			}
+		});
+		assertEquals(new ArrayList<String>(oracle.values()), values);
+	}
+
+	@Test
+	public void agreesWithTreeMap() {
+		for (long seed = 1; seed <= 3; seed++) {
+			Random rnd = new Random(seed);
+			SkipListIndex<Integer, String> index = SkipListIndex.empty(intOrd);
+			TreeMap<Integer, String> oracle = new TreeMap<Integer, String>();
+			for (int i = 0; i < 30000; i++) {
+				int key = rnd.nextInt(3000) - 1500;
+				switch (rnd.nextInt(3)) {
+				case 0:
+					index.remove(key);
+					oracle.remove(key);
+					break;
+				default:
+					index.put(key, key + "/" + i);
+					oracle.put(key, key + "/" + i);
+					break;
+				}
+				assertEquals(oracle.get(key), index.get(key));
+				assertEquals(oracle.containsKey(key), index.containsKey(key));
+			}
+			check(index, oracle);
+		}
+	}
+
+	@Test
+	public void threadsAgreeWithTheirOwnTreeMaps() throws Exception {
+		final SkipListIndex<Integer, String> index = SkipListIndex.empty(intOrd);
+		// keys below 0 are never changed, the readers must always find them
+		for (int key = -1000; key < 0; key++)
+			index.put(key, "fixed" + key);
+
+		ExecutorService pool = Executors.newFixedThreadPool(2 * THREADS);
+		try {
+			List<Future<TreeMap<Integer, String>>> writers = new ArrayList<Future<TreeMap<Integer, String>>>();
+			List<Future<Void>> readers = new ArrayList<Future<Void>>();
+			for (int t = 0; t < THREADS; t++) {
+				final int thread = t;
+				writers.add(pool.submit(new Callable<TreeMap<Integer, String>>() {
+					@Override
+					public TreeMap<Integer, String> call() {
+						// every thread has its own keys, the ones that are thread modulo THREADS
+						Random rnd = new Random(thread);
+						TreeMap<Integer, String> oracle = new TreeMap<Integer, String>();
+						for (int i = 0; i < 20000; i++) {
+							int key = rnd.nextInt(500) * THREADS + thread;
+							if (rnd.nextInt(3) == 0) {
+								index.remove(key);
+								oracle.remove(key);
+							} else {
+								index.put(key, key + "/" + i);
+								oracle.put(key, key + "/" + i);
+							}
+						}
+						return oracle;
+					}
+				}));
+				readers.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						Random rnd = new Random(-thread);
+						for (int i = 0; i < 20000; i++) {
+							int key = -1 - rnd.nextInt(1000);
+							assertEquals("fixed" + key, index.get(key));
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> reader : readers)
+				reader.get();
+
+			TreeMap<Integer, String> oracle = new TreeMap<Integer, String>();
+			for (int key = -1000; key < 0; key++)
+				oracle.put(key, "fixed" + key);
+			for (Future<TreeMap<Integer, String>> writer : writers)
+				oracle.putAll(writer.get());
+			check(index, oracle);
+			assertNull(index.get(500 * THREADS));
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+}
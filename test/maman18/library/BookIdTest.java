@@ -0,0 +1,107 @@
+package maman18.library;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author Shlomi.v
+ *
+ * Turns random book ids into codes and back (see BookId), and checks the case of the ids the listener shows.
+ */
+public class BookIdTest {
+
+	private static final String DIGITS = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
+
+	/**
+	 * @param rnd
+	 * @return an id of 1..MAX_PACKED letters and digits, in mixed case
+	 */
+	private static String packable(Random rnd) {
+		char[] chars = new char[1 + rnd.nextInt(BookId.MAX_PACKED)];
+		for (int i = 0; i < chars.length; i++)
+			chars[i] = DIGITS.charAt(rnd.nextInt(DIGITS.length()));
+		return new String(chars);
+	}
+
+	@Test
+	public void packedIdsComeBackInUpperCase() {
+		BookId ids = new BookId();
+		Random rnd = new Random(1);
+		for (int i = 0; i < 10000; i++) {
+			String id = packable(rnd);
+			long code = BookId.pack(id, 0, id.length());
+			assertTrue(id, code >= 0);
+			assertEquals(code, ids.find(id));
+			assertEquals(code, ids.find(id.toLowerCase()));
+			assertEquals(code, ids.register(id.toUpperCase()));
+			assertEquals(id.toUpperCase(), ids.toString(code));
+		}
+	}
+
+	@Test
+	public void packedCodesAreOrderedLikeTheIds() {
+		Random rnd = new Random(2);
+		for (int i = 0; i < 10000; i++) {
+			String a = packable(rnd), b = packable(rnd);
+			long ca = BookId.pack(a, 0, a.length()), cb = BookId.pack(b, 0, b.length());
+			assertEquals(a + " " + b, Integer.signum(a.compareToIgnoreCase(b)), Long.signum(Long.compare(ca, cb)));
+		}
+	}
+
+	@Test
+	public void otherIdsKeepTheirFirstSpelling() {
+		BookId ids = new BookId();
+		String id = "Long-Book-Id-1";
+		assertEquals(BookId.NONE, BookId.pack(id, 0, id.length()));
+		assertEquals(BookId.NONE, BookId.pack("", 0, 0));
+		assertEquals(BookId.NONE, BookId.pack("ABCDEFGHIJKLM", 0, 13));
+
+		// looking an id up does not give it a code, lending it does
+		assertEquals(BookId.NONE, ids.find(id));
+		long code = ids.register(id);
+		assertTrue(code < 0);
+		assertEquals(code, ids.find(id.toUpperCase()));
+		assertEquals(code, ids.register(id.toLowerCase()));
+		assertEquals(id, ids.toString(code));
+
+		long other = ids.register("\u05e1\u05e4\u05e8-1");
+		assertEquals(code - 1, other);
+		assertEquals("\u05e1\u05e4\u05e8-1", ids.toString(other));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownCodesAreRejected() {
+		new BookId().toString(-1);
+	}
+
+	@Test
+	public void listenerShowsTheIdAsTyped() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(bytes);
+		Library lib = new Library();
+		CommandParser parser = new CommandParser(lib, new PrintingListener(out), out);
+		parser.doCommand("+ Shlomi 1");
+		parser.doCommand("Shlomi 1 ab12 +");
+		parser.doCommand("Shlomi 1 Ab12 +");
+		lib.subReturnBook(1, "aB12");
+		lib.borrowMany(1, new String[] { "cd34", "long-book-id" });
+		// no one typed the ids of the books a subscriber returns all at once
+		lib.returnAll(1);
+		out.flush();
+
+		assertEquals("Added subscriber Shlomi 1\n"
+				+ "Shlomi borrowed the book ab12\n"
+				+ "Another subscriber (1) already took this book (Ab12)\n"
+				+ "Shlomi returned the book aB12\n"
+				+ "Shlomi borrowed the book cd34\n"
+				+ "Shlomi borrowed the book long-book-id\n"
+				+ "Shlomi returned the book CD34\n"
+				+ "Shlomi returned the book long-book-id\n", bytes.toString().replace("\r\n", "\n"));
+	}
+}
@@ -0,0 +1,188 @@
+package maman18.library;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Test;
+
+import maman18.library.Library.BorrowResult;
+import maman18.library.Library.IndexType;
+import maman18.library.Library.ReturnResult;
+import maman18.library.Library.Subscriber;
+
+/**
+ * @author Shlomi.v
+ *
+ * Runs borrows and returns on a ConcurrentLibrary from many threads at once, and checks that every book
+ * ends up lent at most once, and that the subscribers and the book stripes agree on who holds what.
+ */
+public class ConcurrentLibraryTest {
+
+	private static final int THREADS = 8;
+	private static final int BOOKS = 500;
+
+	private final ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+
+	@After
+	public void shutdown() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * @param i
+	 * @return the id of the i'th book, every 10th of them too long to be packed (see BookId)
+	 */
+	private static String book(int i) {
+		return i % 10 == 0 ? "a-book-id-that-is-too-long-to-pack-" + i : "AB" + i;
+	}
+
+	/**
+	 * @param tasks
+	 * @return the results of the tasks, that are all started at the same time
+	 */
+	private <T> List<T> runAll(List<Callable<T>> tasks) throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Future<T>> futures = new ArrayList<Future<T>>();
+		for (final Callable<T> task : tasks) {
+			futures.add(pool.submit(new Callable<T>() {
+				@Override
+				public T call() throws Exception {
+					start.await();
+					return task.call();
+				}
+			}));
+		}
+		start.countDown();
+		List<T> results = new ArrayList<T>();
+		for (Future<T> f : futures)
+			results.add(f.get());
+		return results;
+	}
+
+	/**
+	 * @param lib
+	 * @param subscribers - the ids of all the subscribers
+	 * @return the number of books the subscribers hold.
+	 * checks that whoHoldsTheBook finds the holder of every book a subscriber holds
+	 */
+	private static int checkHolders(ConcurrentLibrary lib, int subscribers) {
+		int held = 0;
+		for (int id = 1; id <= subscribers; id++) {
+			Subscriber s = lib.getSubscriber(id);
+			for (int i = 0; i < s.count; i++)
+				assertSame(s, lib.whoHoldsTheBook(s.books[i]));
+			held += s.count;
+		}
+		assertEquals(held, lib.getLentCount());
+		return held;
+	}
+
+	@Test
+	public void everyBookIsLentOnce() throws Exception {
+		for (IndexType books : IndexType.values()) {
+			final ConcurrentLibrary lib = new ConcurrentLibrary(4, IndexType.HASH, books);
+			List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+			for (int t = 1; t <= THREADS; t++) {
+				final int id = t;
+				lib.addSubscriber("sub" + id, id, BOOKS);
+				tasks.add(new Callable<Integer>() {
+					@Override
+					public Integer call() {
+						int lent = 0;
+						for (int i = 0; i < BOOKS; i++)
+							if (lib.subBorrowBook(id, book(i)) == BorrowResult.OK) lent++;
+						return lent;
+					}
+				});
+			}
+
+			int lent = 0;
+			for (int n : runAll(tasks))
+				lent += n;
+			assertEquals(books.toString(), BOOKS, lent);
+			assertEquals(books.toString(), BOOKS, checkHolders(lib, THREADS));
+			for (int i = 0; i < BOOKS; i++)
+				assertNotNull(lib.whoHoldsTheBook(book(i)));
+		}
+	}
+
+	@Test
+	public void borrowsAndReturnsKeepTheHoldersInStep() throws Exception {
+		final ConcurrentLibrary lib = new ConcurrentLibrary(4);
+		List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+		for (int t = 1; t <= THREADS; t++) {
+			final int id = t;
+			lib.addSubscriber("sub" + id, id, 20);
+			tasks.add(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					// the books this subscriber holds, by what the library answered
+					Random rnd = new Random(id);
+					int held = 0;
+					for (int i = 0; i < 20000; i++) {
+						String book = book(rnd.nextInt(BOOKS / 10));
+						switch (rnd.nextInt(4)) {
+						case 0:
+							for (ReturnResult r : lib.returnMany(id, new String[] { book, book(rnd.nextInt(BOOKS / 10)) }))
+								if (r == ReturnResult.OK) held--;
+							break;
+						case 1:
+							if (lib.subReturnBook(id, book) == ReturnResult.OK) held--;
+							break;
+						default:
+							if (lib.subBorrowBook(id, book) == BorrowResult.OK) held++;
+							break;
+						}
+					}
+					return held;
+				}
+			});
+		}
+
+		List<Integer> held = runAll(tasks);
+		for (int id = 1; id <= THREADS; id++)
+			assertEquals(held.get(id - 1).intValue(), lib.getSubscriber(id).count);
+		checkHolders(lib, THREADS);
+	}
+
+	@Test
+	public void removingSubscribersFreesTheirBooks() throws Exception {
+		final ConcurrentLibrary lib = new ConcurrentLibrary(4);
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int t = 1; t <= THREADS; t++) {
+			final int id = t;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (int round = 0; round < 200; round++) {
+						lib.addSubscriber("sub" + id, id, 5);
+						for (int i = 0; i < 5; i++)
+							lib.subBorrowBook(id, book((id * 7 + round + i) % 50));
+						if (round % 2 == 0) lib.returnAll(id);
+						lib.removeSubscriber(id);
+					}
+					return null;
+				}
+			});
+		}
+
+		runAll(tasks);
+		assertEquals(0, lib.getSubscriberCount());
+		assertEquals(0, lib.getLentCount());
+		for (int i = 0; i < 50; i++)
+			assertNull(lib.whoHoldsTheBook(book(i)));
+		assertNull(lib.mostBorrowed());
+	}
+}
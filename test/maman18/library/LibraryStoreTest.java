@@ -0,0 +1,255 @@
+package maman18.library;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import maman18.data.MappedRBTree;
+import maman18.library.Library.BorrowResult;
+import maman18.library.Library.Subscriber;
+
+/**
+ * @author Shlomi.v
+ *
+ * Restarts a persisted library (see Library.persistTo), with and without the whoHoldsTheBook index in
+ * a memory mapped file, and checks it comes back just as it was.
+ */
+public class LibraryStoreTest {
+
+	// a book id that is too long to be packed into its code (see BookId), or kept in the mapped index
+	private static final String LONG_ID = "a-book-id-that-does-not-fit-in-a-code-or-in-the-index";
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	/**
+	 * @param data - the snapshot and journal directory
+	 * @param index - the mapped whoHoldsTheBook index, or null to keep it on the heap
+	 * @return the library recovered from the files
+	 */
+	private static Library open(File data, File index) throws IOException {
+		if (index != null) return new Library(index, data);
+		Library lib = new Library();
+		lib.persistTo(data);
+		return lib;
+	}
+
+	/**
+	 * @param lib
+	 * run a few of every kind of change on the library
+	 */
+	private static void change(Library lib) {
+		lib.addSubscriber("Shlomi", 1);
+		lib.addSubscriber("Idan", 2);
+		lib.addSubscriber("Ella", 3, 2);
+		lib.addSubscriber("Gone", 4);
+		lib.subBorrowBook(1, "AA0001");
+		lib.subBorrowBook(1, "aa0002");
+		lib.subBorrowBook(1, LONG_ID);
+		lib.subBorrowBook(2, "BB0001");
+		lib.subBorrowBook(2, "BB0002");
+		lib.subReturnBook(2, "bb0001");
+		lib.borrowMany(3, new String[] { "CC0001", "CC0002", "CC0003" });
+		lib.subBorrowBook(4, "DD0001");
+		lib.removeSubscriber(4);
+		lib.subReturnBook(1, "AA0001");
+	}
+
+	/**
+	 * @param lib
+	 * check the library holds what change left in it
+	 */
+	private static void check(Library lib) {
+		assertEquals(3, lib.getSubscriberCount());
+		assertEquals(5, lib.getLentCount());
+		assertNull(lib.getSubscriber(4));
+		assertEquals(2, lib.getSubscriber(3).limit);
+
+		assertNull(lib.whoHoldsTheBook("AA0001"));
+		assertEquals(1, lib.whoHoldsTheBook("AA0002").id);
+		assertEquals(1, lib.whoHoldsTheBook(LONG_ID.toUpperCase()).id);
+		assertNull(lib.whoHoldsTheBook("BB0001"));
+		assertEquals(2, lib.whoHoldsTheBook("BB0002").id);
+		assertEquals(3, lib.whoHoldsTheBook("CC0001").id);
+		assertEquals(3, lib.whoHoldsTheBook("CC0002").id);
+		assertNull(lib.whoHoldsTheBook("CC0003"));
+		assertNull(lib.whoHoldsTheBook("DD0001"));
+
+		assertEquals(2, lib.getSubscriber(1).count);
+		assertEquals(2, lib.mostBorrowed().getCount());
+		assertEquals(2, lib.mostBorrowed().getSize());
+	}
+
+	@Test
+	public void restartWithData() throws IOException {
+		File data = tmp.newFolder("data");
+		Library lib = open(data, null);
+		change(lib);
+		lib.close();
+
+		Library restarted = open(data, null);
+		check(restarted);
+		restarted.close();
+	}
+
+	@Test
+	public void restartWithDataAndIndex() throws IOException {
+		File data = tmp.newFolder("data"), index = new File(tmp.getRoot(), "holders");
+		Library lib = open(data, index);
+		change(lib);
+		check(lib);
+		lib.close();
+
+		// twice, so the second restart opens the index the first one closed
+		for (int i = 0; i < 2; i++) {
+			Library restarted = open(data, index);
+			check(restarted);
+			restarted.close();
+		}
+	}
+
+	@Test
+	public void restartKeepsChangesAfterTheRestart() throws IOException {
+		File data = tmp.newFolder("data"), index = new File(tmp.getRoot(), "holders");
+		Library lib = open(data, index);
+		change(lib);
+		lib.close();
+
+		lib = open(data, index);
+		assertEquals(BorrowResult.OK, lib.subBorrowBook(2, "AA0001"));
+		lib.returnAll(1);
+		lib.close();
+
+		lib = open(data, index);
+		assertEquals(2, lib.whoHoldsTheBook("AA0001").id);
+		assertNull(lib.whoHoldsTheBook(LONG_ID));
+		assertEquals(0, lib.getSubscriber(1).count);
+		assertEquals(4, lib.getLentCount());
+		lib.close();
+	}
+
+	@Test
+	public void indexThatMatchesTheFilesIsUsedAsIs() throws IOException {
+		File data = tmp.newFolder("data"), index = new File(tmp.getRoot(), "holders");
+		Library lib = open(data, index);
+		change(lib);
+		lib.close();
+
+		// a book that only the index has: a restart that rebuilt the index would not find it
+		MappedRBTree tree = MappedRBTree.open(index);
+		tree.put(BookId.pack("ZZ0001", 0, 6), 2);
+		tree.close();
+
+		Library restarted = open(data, index);
+		assertEquals(2, restarted.whoHoldsTheBook("ZZ0001").id);
+		restarted.close();
+	}
+
+	@Test
+	public void indexIsRebuiltWhenTheFilesChangedWithoutIt() throws IOException {
+		File data = tmp.newFolder("data"), index = new File(tmp.getRoot(), "holders");
+		Library lib = open(data, index);
+		change(lib);
+		lib.close();
+
+		// the same files, this time without the index
+		lib = open(data, null);
+		lib.subBorrowBook(2, "AA0001");
+		lib.subReturnBook(2, "BB0002");
+		lib.close();
+
+		lib = open(data, index);
+		assertEquals(2, lib.whoHoldsTheBook("AA0001").id);
+		assertNull(lib.whoHoldsTheBook("BB0002"));
+		assertEquals(1, lib.whoHoldsTheBook("AA0002").id);
+		assertEquals(5, lib.getLentCount());
+		lib.close();
+	}
+
+	@Test
+	public void indexIsRebuiltAfterACrash() throws IOException {
+		File data = tmp.newFolder("data"), index = new File(tmp.getRoot(), "holders");
+		Library lib = open(data, index);
+		change(lib);
+		lib.close();
+
+		// the library is never closed, as if the application crashed right after the commit
+		lib = open(data, index);
+		lib.subBorrowBook(2, "AA0001");
+		lib.commit();
+
+		// and the index got a change the files do not have
+		MappedRBTree tree = MappedRBTree.open(index);
+		tree.put(BookId.pack("ZZ0001", 0, 6), 2);
+		tree.close();
+
+		Library recovered = open(data, index);
+		assertEquals(2, recovered.whoHoldsTheBook("AA0001").id);
+		assertNull(recovered.whoHoldsTheBook("ZZ0001"));
+		assertEquals(6, recovered.getLentCount());
+		recovered.close();
+	}
+
+	@Test
+	public void committedChangesSurviveWithoutClose() throws IOException {
+		File data = tmp.newFolder("data");
+		Library lib = open(data, null);
+		change(lib);
+		lib.commit();
+
+		// the first library is never closed, as if the application crashed right after the commit
+		Library recovered = open(data, null);
+		check(recovered);
+		recovered.close();
+	}
+
+	@Test
+	public void snapshotReplacesTheOldFiles() throws IOException {
+		File data = tmp.newFolder("data"), index = new File(tmp.getRoot(), "holders");
+		Library lib = open(data, index);
+		change(lib);
+		lib.store.snapshot();
+		lib.store.snapshot();
+		lib.subBorrowBook(2, "AA0001");
+		lib.close();
+
+		// only the last snapshot and its journal are left
+		assertEquals(new HashSet<String>(Arrays.asList("snapshot", "journal-2")),
+				new HashSet<String>(Arrays.asList(data.list())));
+
+		Library restarted = open(data, index);
+		assertEquals(2, restarted.whoHoldsTheBook("AA0001").id);
+		assertEquals(6, restarted.getLentCount());
+		restarted.close();
+	}
+
+	@Test
+	public void commitWithoutFilesDoesNothing() {
+		Library lib = new Library();
+		change(lib);
+		lib.commit();
+		check(lib);
+	}
+
+	@Test
+	public void longIdsGetTheirFirstSpellingBack() throws IOException {
+		File data = tmp.newFolder("data");
+		Library lib = open(data, null);
+		lib.addSubscriber("Shlomi", 1);
+		lib.subBorrowBook(1, LONG_ID);
+		lib.close();
+
+		Library restarted = open(data, null);
+		Subscriber s = restarted.getSubscriber(1);
+		assertEquals(LONG_ID, restarted.getBookIds().toString(s.books[0]));
+		restarted.close();
+	}
+}
@@ -0,0 +1,108 @@
+package maman18.library;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import maman18.data.Do;
+import maman18.library.Library.IndexType;
+import maman18.library.Library.Subscriber;
+
+/**
+ * @author Shlomi.v
+ *
+ * Reads the subscribers and the answer of mostBorrowed a page at a time, from every kind of library,
+ * and checks the pages come in the order of the ids with nothing missing or repeated.
+ */
+public class ListSubscribersTest {
+
+	private static final int SUBSCRIBERS = 500;
+
+	/**
+	 * @param lib
+	 * add the subscribers in a scrambled order, and lend 2 books to every 7th of them
+	 */
+	private static void fill(Circulation lib) {
+		for (int i = 0; i < SUBSCRIBERS; i++) {
+			int id = 1 + (i * 211) % SUBSCRIBERS;
+			lib.addSubscriber("sub" + id, id);
+			if (id % 7 == 0) {
+				lib.subBorrowBook(id, "AA" + id);
+				lib.subBorrowBook(id, "BB" + id);
+			} else if (id % 3 == 0) {
+				lib.subBorrowBook(id, "CC" + id);
+			}
+		}
+	}
+
+	/**
+	 * @param lib
+	 * @param from
+	 * @param to
+	 * @return the ids of the subscribers in the page
+	 */
+	private static List<Integer> page(Circulation lib, int from, int to) {
+		final List<Integer> ids = new ArrayList<Integer>();
+		lib.listSubscribers(from, to, new Do<Subscriber>() {
+			@Override
+			public void action(Subscriber s) {
+				ids.add(s.id);
+			}
+		});
+		return ids;
+	}
+
+	/**
+	 * @param lib
+	 * read all the subscribers 64 at a time, and check they are 1..SUBSCRIBERS in order
+	 */
+	private static void checkPages(Circulation lib) {
+		List<Integer> all = new ArrayList<Integer>();
+		for (int from = 0; from < SUBSCRIBERS + 64; from += 64) {
+			List<Integer> page = page(lib, from, from + 64);
+			assertEquals(Math.max(0, Math.min(64, SUBSCRIBERS - from)), page.size());
+			all.addAll(page);
+		}
+		for (int i = 0; i < SUBSCRIBERS; i++)
+			assertEquals(Integer.valueOf(i + 1), all.get(i));
+		assertEquals(0, page(lib, 10, 10).size());
+		assertEquals(5, page(lib, -5, 5).size());
+	}
+
+	@Test
+	public void pagesOfEveryKindOfLibrary() {
+		for (IndexType subscribers : IndexType.values()) {
+			Library lib = new Library(subscribers, IndexType.HASH);
+			fill(lib);
+			checkPages(lib);
+		}
+		ConcurrentLibrary lib = new ConcurrentLibrary(4);
+		fill(lib);
+		checkPages(lib);
+	}
+
+	@Test
+	public void pagesOfTheMostBorrowed() {
+		Library lib = new Library();
+		fill(lib);
+		MostBorrowed most = lib.mostBorrowed();
+		assertEquals(2, most.getCount());
+		assertEquals(SUBSCRIBERS / 7, most.getSize());
+
+		final List<Integer> ids = new ArrayList<Integer>();
+		Do<Subscriber> collect = new Do<Subscriber>() {
+			@Override
+			public void action(Subscriber s) {
+				ids.add(s.id);
+			}
+		};
+		for (int from = 0; from < most.getSize(); from += 10)
+			most.foreach(from, from + 10, collect);
+		assertEquals(most.getSize(), ids.size());
+		for (int i = 0; i < ids.size(); i++)
+			assertEquals(Integer.valueOf(7 * (i + 1)), ids.get(i));
+	}
+}
@@ -0,0 +1,95 @@
+package maman18.library;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import maman18.data.MappedRBTree;
+import maman18.library.Library.BorrowResult;
+import maman18.library.Library.ReturnResult;
+
+/**
+ * @author Shlomi.v
+ *
+ * A library whose whoHoldsTheBook index is kept in a memory mapped file (see MappedHolderIndex), without
+ * persisting the rest of the library: the file must not bring back books that no subscriber holds.
+ */
+public class MappedHolderIndexTest {
+
+	// longer than the keys of the mapped tree, and an id that is not ASCII
+	private static final String LONG_ID = "a-book-id-that-is-longer-than-the-keys-of-the-file";
+	private static final String HEBREW_ID = "\u05e1\u05e4\u05e8-1";
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void restartDropsTheBooksOfTheLastRun() throws IOException {
+		File index = new File(tmp.getRoot(), "holders");
+		Library lib = new Library(index);
+		lib.addSubscriber("Shlomi", 1);
+		lib.subBorrowBook(1, "AA0001");
+		lib.subBorrowBook(1, "AA0002");
+		lib.close();
+
+		// no subscriber came back, so no one holds the books that are still in the file
+		Library restarted = new Library(index);
+		assertEquals(0, restarted.getLentCount());
+		assertNull(restarted.whoHoldsTheBook("AA0001"));
+
+		// and a new subscriber with the same id does not get them either
+		restarted.addSubscriber("Idan", 1);
+		assertNull(restarted.whoHoldsTheBook("AA0001"));
+		assertEquals(BorrowResult.OK, restarted.subBorrowBook(1, "AA0001"));
+		assertEquals(ReturnResult.NOT_LENT, restarted.subReturnBook(1, "AA0002"));
+		assertEquals(1, restarted.getLentCount());
+		restarted.close();
+	}
+
+	@Test
+	public void idsThatDoNotFitAreKeptOnTheHeap() throws IOException {
+		assertFalse(MappedRBTree.fits(LONG_ID));
+		assertFalse(MappedRBTree.fits(HEBREW_ID));
+
+		Library lib = new Library(new File(tmp.getRoot(), "holders"));
+		lib.addSubscriber("Shlomi", 1);
+		assertNull(lib.whoHoldsTheBook(LONG_ID));
+		assertEquals(ReturnResult.NOT_LENT, lib.subReturnBook(1, HEBREW_ID));
+
+		assertEquals(BorrowResult.OK, lib.subBorrowBook(1, LONG_ID));
+		assertEquals(BorrowResult.OK, lib.subBorrowBook(1, HEBREW_ID));
+		assertEquals(BorrowResult.OK, lib.subBorrowBook(1, "AA0001"));
+		assertEquals(3, lib.getLentCount());
+		assertEquals(1, lib.whoHoldsTheBook(LONG_ID.toUpperCase()).id);
+		assertEquals(1, lib.whoHoldsTheBook(HEBREW_ID).id);
+
+		assertEquals(ReturnResult.OK, lib.subReturnBook(1, LONG_ID));
+		assertNull(lib.whoHoldsTheBook(LONG_ID));
+		assertEquals(2, lib.getLentCount());
+		lib.close();
+	}
+
+	@Test
+	public void removingASubscriberFreesItsBooks() throws IOException {
+		File index = new File(tmp.getRoot(), "holders");
+		Library lib = new Library(index);
+		lib.addSubscriber("Shlomi", 1);
+		lib.addSubscriber("Idan", 2);
+		lib.borrowMany(1, new String[] { "AA0001", "AA0002", LONG_ID });
+		lib.subBorrowBook(2, "BB0001");
+		lib.removeSubscriber(1);
+
+		assertEquals(1, lib.getLentCount());
+		assertNull(lib.whoHoldsTheBook("AA0001"));
+		assertNull(lib.whoHoldsTheBook(LONG_ID));
+		assertEquals(BorrowResult.OK, lib.subBorrowBook(2, "AA0001"));
+		lib.close();
+	}
+}
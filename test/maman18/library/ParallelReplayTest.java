@@ -0,0 +1,163 @@
+package maman18.library;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * @author Shlomi.v
+ *
+ * Runs the same generated workload through a CommandParser, a CommandPipeline and a ParallelReplay, and
+ * checks that all of them print exactly the same output.
+ */
+public class ParallelReplayTest {
+
+	private static final int COMMANDS = 30000;
+	private static final int SUBSCRIBERS = 300;
+	private static final int BOOKS = 600;
+
+	private static ForkJoinPool pool;
+
+	@BeforeClass
+	public static void startPool() {
+		pool = new ForkJoinPool(4);
+	}
+
+	@AfterClass
+	public static void stopPool() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * @param seed
+	 * @return a workload of every kind of command, one per line. a few subscribers and books are much
+	 * more popular than the rest, so many commands touch the same ones. some book ids are too long to be
+	 * packed (see BookId), the ids come in either case, and a few lines are not commands at all
+	 */
+	private static String workload(long seed) {
+		Random rnd = new Random(seed);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < SUBSCRIBERS / 2; i++)
+			sb.append("+ sub").append(i).append(' ').append(i).append('\n');
+
+		for (int i = 0; i < COMMANDS; i++) {
+			int sub = popular(rnd, SUBSCRIBERS);
+			String book = book(rnd, popular(rnd, BOOKS));
+			int kind = rnd.nextInt(100);
+			if (kind < 40)
+				sb.append("sub").append(sub).append(' ').append(sub).append(' ').append(book).append(" +");
+			else if (kind < 70)
+				sb.append("sub").append(sub).append(' ').append(sub).append(' ').append(book).append(" -");
+			else if (kind < 78)
+				sb.append("? ").append(book);
+			else if (kind < 84)
+				sb.append("? ").append(sub);
+			else if (kind < 87)
+				sb.append("? !");
+			else if (kind < 93)
+				sb.append("+ sub").append(sub).append(' ').append(sub);
+			else if (kind < 99)
+				sb.append("- sub").append(sub).append(' ').append(sub);
+			else
+				sb.append("this is not a command");
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @param rnd
+	 * @param n
+	 * @return a number in 0..n-1, where the small numbers come up much more often
+	 */
+	private static int popular(Random rnd, int n) {
+		return rnd.nextInt(4) == 0 ? rnd.nextInt(n) : rnd.nextInt(1 + rnd.nextInt(n / 10));
+	}
+
+	/**
+	 * @param rnd
+	 * @param i
+	 * @return the id of the i'th book, in a random case, and too long to be packed for every 7th book
+	 */
+	private static String book(Random rnd, int i) {
+		String id = i % 7 == 0 ? "long-book-id-" + i : "AB" + i;
+		return rnd.nextBoolean() ? id : id.toUpperCase();
+	}
+
+	/**
+	 * @param commands
+	 * @return the output of a CommandParser that runs the commands one by one
+	 */
+	private static String parse(String commands) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(bytes);
+		CommandParser parser = new CommandParser(new Library(), new PrintingListener(out), out);
+		for (String line : commands.split("\n", -1))
+			if (!line.isEmpty()) parser.doCommand(line);
+		out.flush();
+		return bytes.toString();
+	}
+
+	/**
+	 * @param commands
+	 * @param lib
+	 * @return the output of a CommandPipeline that runs the commands on lib
+	 */
+	private static String pipeline(String commands, Circulation lib) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(bytes);
+		new CommandPipeline(lib, out).run(new StringReader(commands));
+		out.flush();
+		return bytes.toString();
+	}
+
+	/**
+	 * @param commands
+	 * @return the output of a ParallelReplay that runs the commands on a ConcurrentLibrary
+	 */
+	private static String replay(String commands) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(bytes);
+		new ParallelReplay(new ConcurrentLibrary(8), out, pool).run(new StringReader(commands));
+		out.flush();
+		return bytes.toString();
+	}
+
+	@Test
+	public void pipelinePrintsWhatTheParserPrints() throws IOException {
+		for (long seed = 1; seed <= 3; seed++) {
+			String commands = workload(seed);
+			String expected = parse(commands);
+			assertEquals("seed " + seed, expected, pipeline(commands, new Library()));
+			assertEquals("seed " + seed, expected, pipeline(commands, new ConcurrentLibrary(8)));
+		}
+	}
+
+	@Test
+	public void parallelReplayPrintsWhatTheParserPrints() throws IOException {
+		for (long seed = 1; seed <= 3; seed++) {
+			String commands = workload(seed);
+			String expected = parse(commands);
+			assertTrue(expected.contains("borrowed the book LONG-BOOK-ID") || expected.contains("borrowed the book long-book-id"));
+			// a replay may run the commands in a different order each time, so run it a few times
+			for (int run = 0; run < 3; run++)
+				assertEquals("seed " + seed + " run " + run, expected, replay(commands));
+		}
+	}
+
+	@Test
+	public void emptyInputPrintsNothing() throws IOException {
+		assertEquals("", pipeline("", new Library()));
+		assertEquals("", replay(""));
+	}
+}